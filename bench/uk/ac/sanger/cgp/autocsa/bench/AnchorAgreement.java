@@ -0,0 +1,255 @@
+package uk.ac.sanger.cgp.autocsa.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import uk.ac.sanger.cgp.autocsa.analysis.AutoCSA;
+import uk.ac.sanger.cgp.autocsa.analysis.SeqTraceAnalysis;
+import uk.ac.sanger.cgp.autocsa.beans.CSAInput;
+import uk.ac.sanger.cgp.autocsa.beans.CSAParameters;
+import uk.ac.sanger.cgp.autocsa.exceptions.BadTraceException;
+import uk.ac.sanger.cgp.autocsa.util.Trace;
+
+/**
+ *<p> Checks that the greedy matching of SeqTraceAnalysis.matchPeaksToRefSeq()
+ * is unchanged by the anchor search (see SeqTraceAnalysis.setAnchorSearch()),
+ * which jumps past base Nos that cannot match rather than trying each.</p>
+ *<p> Each trace is matched with the anchor search on and off and the base
+ * No & peak type of every peak compared. A line is printed per trace giving
+ * the No of peaks, of bases matched, of mismatching peaks & the matching
+ * time each way, followed by the totals. Exits with status 1 if any peak
+ * differs.</p>
+ *<p> The corpus is a set of synthetic traces of random amplimers, most
+ * with trace holes of 5 to 60 bases, some also with a dye blob, a
+ * heterozygous substitution or of an unrelated sequence (which should not
+ * match), plus any AB1 files given with a plain text ref seq file.</p>
+ *<p> Usage: AnchorAgreement [-traces N] [-seed N] [-ref FILE AB1 ...]</p>
+ *<p> Must be run from the project directory as the mobility files are
+ * read from ./resources/mobCorrFiles.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class AnchorAgreement {
+
+  private static final String STS_NAME="AGREEMENT";
+
+  private int traces=60;
+  private long seed=1L;
+  private String fileRefSeq=null;
+  private List files = new ArrayList();
+
+  private CSAParameters csaParams;
+  private long[] total = new long[3];
+  private long[] nanos = new long[2];
+
+/**
+ * Allocates an AnchorAgreement with the CSAInput default parameters
+ */
+  public AnchorAgreement() {
+    CSAInput input = new CSAInput();
+    csaParams = new CSAParameters();
+    csaParams.setPeakSearchBin(input.getPeakSearchBin());
+    csaParams.setRefSearchStartInc(input.getRefSearchStartInc());
+    csaParams.setMaxBasesMissed(input.getMaxBasesMissed());
+    csaParams.setMobilityCorrection(input.getMobilityCorrection());
+    csaParams.setRefSearchStart(input.getRefSearchStart());
+    csaParams.setRefSearchEnd(input.getRefSearchEnd());
+    csaParams.setMinPeakSpacing(input.getMinPeakSpacing());
+    csaParams.setMinPeakIntensity(input.getMinPeakIntensity());
+    csaParams.setCritMutRatio(input.getCritMutRatio());
+  }
+/**
+ * Sets the No of synthetic traces
+ * @param traces No of traces
+ */
+  public void setTraces(int traces) {
+    this.traces=traces;
+  }
+/**
+ * Sets the seed for the synthetic traces
+ * @param seed random number seed
+ */
+  public void setSeed(long seed) {
+    this.seed=seed;
+  }
+/**
+ * Sets the ref seq of the AB1 files added to the corpus
+ * @param refSeq the ref seq
+ */
+  public void setFileRefSeq(String refSeq) {
+    this.fileRefSeq=refSeq;
+  }
+/**
+ * Adds an AB1 file to the corpus
+ * @param file the AB1 file
+ */
+  public void addFile(File file) {
+    files.add(file);
+  }
+/**
+ * Compares the matching over the corpus and prints the results
+ * @return the total No of mismatching peaks
+ * @throws Exception if a trace cannot be written or loaded
+ */
+  public long runAll() throws Exception {
+    System.out.println("# traces="+traces+" seed="+seed+" files="+files.size());
+    System.out.println("trace\tpeaks\tmatched\tmismatches\tanchor_us\tstep_us");
+    File dir=File.createTempFile("autocsa-anchor","");
+    dir.delete();
+    if( ! dir.mkdir() ) {
+      throw new IOException("Cannot create directory "+dir);
+    }
+    Random r = new Random(seed);
+    boolean search=SeqTraceAnalysis.isAnchorSearch();
+    try {
+      for( int i=0; i < traces; ++i ) {
+        String refSeq=SyntheticTraceWriter.randomSequence(seed+i,300+r.nextInt(300));
+        int offset=csaParams.getRefSearchStart()+r.nextInt(csaParams.getRefSearchStartInc());
+        String read=( i%7 == 6 ) ? SyntheticTraceWriter.randomSequence(-seed-i,refSeq.length()-offset)
+                                 : refSeq.substring(offset);
+        SyntheticTraceWriter writer = new SyntheticTraceWriter(seed+i);
+// n.b. holes start past the bases needed to start matching
+        int nHoles=i%4;
+        for( int h=0; h < nHoles; ++h ) {
+          int from=60+r.nextInt(read.length()-130);
+          writer.addTraceHole(from,Math.min(from+5+r.nextInt(56),read.length()-10));
+        }
+        if( i%3 == 2 ) {
+          writer.setDyeBlob(40+r.nextInt(read.length()-80));
+        }
+        File file = new File(dir,"trace"+i+".ab1");
+        if( i%5 == 1 ) {
+          int mutPos=r.nextInt(read.length());
+          writer.write(file,read,mutPos,read.charAt(mutPos) == 'A' ? 'G' : 'A');
+        } else {
+          writer.write(file,read);
+        }
+        compare("syn"+i,file,refSeq);
+        file.delete();
+      }
+    }
+    finally {
+      dir.delete();
+      SeqTraceAnalysis.setAnchorSearch(search);
+    }
+    for( int i=0; i < files.size(); ++i ) {
+      File file=(File) files.get(i);
+      compare(file.getName(),file,fileRefSeq);
+    }
+    System.out.println("total\t"+total[0]+"\t"+total[1]+"\t"+total[2]+
+        "\t"+nanos[0]/1000L+"\t"+nanos[1]/1000L);
+    System.out.println("# total mismatches: "+total[2]);
+    return total[2];
+  }
+/**
+ * Matches one trace with the anchor search on then off and prints its
+ * line of results
+ * @param name name of the trace
+ * @param file the AB1 file
+ * @param refSeq the ref seq
+ * @throws Exception if the trace cannot be loaded
+ */
+  public void compare(String name, File file, String refSeq) throws Exception {
+    SeqTraceAnalysis[] analyses = new SeqTraceAnalysis[2];
+    long[] time = new long[2];
+    for( int a=0; a < 2; ++a ) {
+      Trace trace = new Trace(file,4);
+      trace.loadSCFFile(1);
+      CSAParameters params=copyParams(refSeq);
+      params.setMatchingEngine(AutoCSA.GREEDY_MATCHING);
+      AutoCSA autoCSA = new AutoCSA(STS_NAME,refSeq,false,
+          params.getRefSearchStart(),params.getRefSearchEnd());
+      autoCSA.setCSAParameters(params);
+      try {
+        analyses[a]=autoCSA.prepareAnalysis(trace,params.getMinPeakSpacing(),true);
+      } catch ( BadTraceException ex ) {
+        System.out.println(name+"\tbad trace: "+ex.getMessage());
+        return;
+      }
+      SeqTraceAnalysis.setAnchorSearch(a == 0);
+      long t0=System.nanoTime();
+      analyses[a].matchPeaksToRefSeq();
+      time[a]=System.nanoTime()-t0;
+    }
+    int[] bpPos0=analyses[0].getbpPos();
+    int[] bpPos1=analyses[1].getbpPos();
+    byte[] type0=analyses[0].getRealPeak();
+    byte[] type1=analyses[1].getRealPeak();
+    int peaks=Math.max(bpPos0.length,bpPos1.length);
+    int matched=0;
+    int bad=Math.abs(bpPos0.length-bpPos1.length);
+    for( int i=1; i < Math.min(bpPos0.length,bpPos1.length); ++i ) {
+      if( bpPos0[i] > -1 ) ++matched;
+      if( bpPos0[i] != bpPos1[i] || type0[i] != type1[i] ) ++bad;
+    }
+    total[0]+=peaks;
+    total[1]+=matched;
+    total[2]+=bad;
+    nanos[0]+=time[0];
+    nanos[1]+=time[1];
+    System.out.println(name+"\t"+peaks+"\t"+matched+"\t"+bad+
+        "\t"+time[0]/1000L+"\t"+time[1]/1000L);
+  }
+  private CSAParameters copyParams(String refSeq) {
+    CSAParameters params = new CSAParameters();
+    params.setPeakSearchBin(csaParams.getPeakSearchBin());
+    params.setRefSearchStartInc(csaParams.getRefSearchStartInc());
+    params.setMaxBasesMissed(csaParams.getMaxBasesMissed());
+    params.setMobilityCorrection(csaParams.getMobilityCorrection());
+    params.setRefSearchStart(csaParams.getRefSearchStart());
+// n.b. absolute value needed rather than offset (as CSALoader)
+    params.setRefSearchEnd(refSeq.length()+csaParams.getRefSearchEnd());
+    params.setMinPeakSpacing(csaParams.getMinPeakSpacing());
+    params.setMinPeakIntensity(csaParams.getMinPeakIntensity());
+    params.setCritMutRatio(csaParams.getCritMutRatio());
+    return params;
+  }
+  private static String readRefSeq(File file) throws IOException {
+    StringBuffer sb = new StringBuffer();
+    BufferedReader in = new BufferedReader(new FileReader(file));
+    try {
+      String line;
+      while( (line=in.readLine()) != null ) {
+        if( ! line.startsWith(">") ) {
+          sb.append(line.trim().toUpperCase());
+        }
+      }
+    }
+    finally {
+      in.close();
+    }
+    return sb.toString();
+  }
+/**
+ * Runs the comparison
+ * @param args [-traces N] [-seed N] [-ref FILE AB1 ...]
+ * @throws Exception if a trace cannot be written or loaded
+ */
+  public static void main(String[] args) throws Exception {
+    AnchorAgreement agreement = new AnchorAgreement();
+    for( int i=0; i < args.length; ++i ) {
+      if( args[i].equals("-traces") && i+1 < args.length ) {
+        agreement.setTraces(Integer.parseInt(args[++i]));
+      } else if( args[i].equals("-seed") && i+1 < args.length ) {
+        agreement.setSeed(Long.parseLong(args[++i]));
+      } else if( args[i].equals("-ref") && i+1 < args.length ) {
+        agreement.setFileRefSeq(readRefSeq(new File(args[++i])));
+      } else {
+        agreement.addFile(new File(args[i]));
+      }
+    }
+    if( agreement.fileRefSeq == null && ! agreement.files.isEmpty() ) {
+      throw new IllegalArgumentException("-ref FILE is needed for AB1 files");
+    }
+    if( agreement.runAll() > 0 ) {
+      System.exit(1);
+    }
+  }
+
+}
@@ -0,0 +1,241 @@
+package uk.ac.sanger.cgp.autocsa.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *<p> Times each CSA pipeline stage separately over synthetic traces.</p>
+ *<p> Every stage is run for a number of warmup operations and then for a
+ * number of timed operations, reporting the mean time & throughput and
+ * the bytes allocated per operation. Allocation is read from the
+ * HotSpot per thread allocation counter & is reported as n/a on JVMs
+ * without one.</p>
+ *<p> Usage: BenchmarkRunner [-warmup N] [-iterations N] [-seed N] [stage ...]
+ * where each stage argument selects the stages whose name contains it.</p>
+ *<p> Must be run from the project directory as the mobility files are
+ * read from ./resources/mobCorrFiles.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class BenchmarkRunner {
+
+  private static final String ALLOCATION_BEAN="com.sun.management.ThreadMXBean";
+
+  private int warmup=20;
+  private int iterations=100;
+  private long seed=1L;
+  private List stageFilters = new ArrayList();
+
+  private ThreadMXBean threadBean;
+  private Method allocatedBytes=null;
+  private long allocationOverhead=0L;
+
+/**
+ * Allocates a BenchmarkRunner, enabling allocation measurement if the
+ * JVM supports it
+ */
+  public BenchmarkRunner() {
+    threadBean=ManagementFactory.getThreadMXBean();
+    try {
+      Class beanClass=Class.forName(ALLOCATION_BEAN);
+      if( beanClass.isInstance(threadBean) ) {
+        allocatedBytes=beanClass.getMethod("getThreadAllocatedBytes",new Class[] { long.class });
+        if( getAllocatedBytes() < 0 ) {
+          allocatedBytes=null;
+        }
+      }
+    } catch ( Exception e ) {
+      allocatedBytes=null;
+    }
+// n.b. reading the counter itself allocates so measure & subtract that
+    if( allocatedBytes != null ) {
+      long min=Long.MAX_VALUE;
+      for( int i=0; i < 100; ++i ) {
+        long a0=getAllocatedBytes();
+        long a1=getAllocatedBytes();
+        min=Math.min(min,a1-a0);
+      }
+      allocationOverhead=min;
+    }
+  }
+/**
+ * Sets the No of untimed operations run before timing each stage
+ * @param warmup No of warmup operations
+ */
+  public void setWarmup(int warmup) {
+    this.warmup=warmup;
+  }
+/**
+ * Sets the No of timed operations for each stage
+ * @param iterations No of timed operations
+ */
+  public void setIterations(int iterations) {
+    this.iterations=iterations;
+  }
+/**
+ * Sets the seed for the synthetic traces
+ * @param seed random number seed
+ */
+  public void setSeed(long seed) {
+    this.seed=seed;
+  }
+/**
+ * Adds a stage filter, only stages whose names contain a filter are run
+ * @param filter part of a stage name
+ */
+  public void addStageFilter(String filter) {
+    stageFilters.add(filter);
+  }
+/**
+ * Runs all selected stages and prints a line of results for each
+ * @throws Exception if a stage fails
+ */
+  public void runAll() throws Exception {
+    StageFixture fixture = new StageFixture(seed);
+    try {
+      List stages=PipelineStages.createStages(fixture);
+      System.out.println("# warmup="+warmup+" iterations="+iterations+" seed="+seed);
+      System.out.println(format("stage",40)+format("us/op",12)+format("ops/s",12)+
+          format("bytes/op",14)+format("MB/s alloc",12));
+      for( int i=0; i < stages.size(); ++i ) {
+        BenchmarkStage stage=(BenchmarkStage) stages.get(i);
+        if( isSelected(stage.getName()) ) {
+          System.out.println(measure(stage).toString());
+        }
+      }
+    }
+    finally {
+      fixture.delete();
+    }
+  }
+  private boolean isSelected(String name) {
+    if( stageFilters.isEmpty() ) return true;
+    for( int i=0; i < stageFilters.size(); ++i ) {
+      if( name.indexOf((String) stageFilters.get(i)) > -1 ) return true;
+    }
+    return false;
+  }
+/**
+ * Runs the warmup & timed operations of one stage
+ * @param stage the stage to measure
+ * @return StageResult holding the timings
+ * @throws Exception if the stage fails
+ */
+  public StageResult measure(BenchmarkStage stage) throws Exception {
+    int check=0;
+    for( int i=0; i < warmup; ++i ) {
+      stage.prepare();
+      check+=stage.run();
+    }
+    long nanos=0L;
+    long bytes=0L;
+    for( int i=0; i < iterations; ++i ) {
+      stage.prepare();
+      long a0=getAllocatedBytes();
+      long t0=System.nanoTime();
+      check+=stage.run();
+      long t1=System.nanoTime();
+      long a1=getAllocatedBytes();
+      nanos+=t1-t0;
+      bytes+=a1-a0-allocationOverhead;
+    }
+    StageResult result = new StageResult(stage.getName(),iterations,nanos,
+        allocatedBytes == null ? -1L : Math.max(0L,bytes));
+    result.check=check;
+    return result;
+  }
+  private long getAllocatedBytes() {
+    if( allocatedBytes == null ) return 0L;
+    try {
+      Object value=allocatedBytes.invoke(threadBean,new Object[] { Long.valueOf(Thread.currentThread().getId()) });
+      return ((Long) value).longValue();
+    } catch ( Exception e ) {
+      return -1L;
+    }
+  }
+  private static String format(String value, int width) {
+    StringBuffer sb = new StringBuffer(value);
+    while( sb.length() < width ) sb.append(' ');
+    return sb.append(' ').toString();
+  }
+/**
+ * Runs the benchmarks
+ * @param args [-warmup N] [-iterations N] [-seed N] [stage ...]
+ * @throws Exception if a stage fails
+ */
+  public static void main(String[] args) throws Exception {
+    BenchmarkRunner runner = new BenchmarkRunner();
+    for( int i=0; i < args.length; ++i ) {
+      if( args[i].equals("-warmup") && i+1 < args.length ) {
+        runner.setWarmup(Integer.parseInt(args[++i]));
+      } else if( args[i].equals("-iterations") && i+1 < args.length ) {
+        runner.setIterations(Integer.parseInt(args[++i]));
+      } else if( args[i].equals("-seed") && i+1 < args.length ) {
+        runner.setSeed(Long.parseLong(args[++i]));
+      } else {
+        runner.addStageFilter(args[i]);
+      }
+    }
+    runner.runAll();
+  }
+
+/**
+ * Timings of one stage
+ */
+  public static class StageResult {
+
+    private String name;
+    private int ops;
+    private long nanos;
+    private long bytes;
+    private int check;
+
+    StageResult(String name, int ops, long nanos, long bytes) {
+      this.name=name;
+      this.ops=ops;
+      this.nanos=nanos;
+      this.bytes=bytes;
+    }
+/**
+ * Gets the mean time per operation
+ * @return microseconds per operation
+ */
+    public double getMicrosPerOp() {
+      return (double) nanos/ (1000.0* (double) ops);
+    }
+/**
+ * Gets the throughput
+ * @return operations per second
+ */
+    public double getOpsPerSecond() {
+      return nanos == 0L ? 0.0 : 1.0e9* (double) ops/ (double) nanos;
+    }
+/**
+ * Gets the mean allocation per operation
+ * @return bytes allocated per operation (-1 if not available)
+ */
+    public long getBytesPerOp() {
+      return bytes < 0L ? -1L : bytes/ops;
+    }
+/**
+ * Gets the allocation rate while the stage is running
+ * @return MB allocated per second (-1 if not available)
+ */
+    public double getAllocationRate() {
+      if( bytes < 0L || nanos == 0L ) return -1.0;
+      return (double) bytes/ (1024.0*1024.0)/ ((double) nanos/1.0e9);
+    }
+    public String toString() {
+      return format(name,40)+
+             format(String.valueOf(Math.round(getMicrosPerOp()*10.0)/10.0),12)+
+             format(String.valueOf(Math.round(getOpsPerSecond()*10.0)/10.0),12)+
+             format(bytes < 0L ? "n/a" : String.valueOf(getBytesPerOp()),14)+
+             format(bytes < 0L ? "n/a" : String.valueOf(Math.round(getAllocationRate()*10.0)/10.0),12);
+    }
+  }
+
+}
@@ -0,0 +1,43 @@
+package uk.ac.sanger.cgp.autocsa.bench;
+
+/**
+ *<p> One stage of the CSA pipeline to be timed by the BenchmarkRunner.</p>
+ *<p> For each operation the runner calls {@link #prepare()} untimed and
+ * then times {@link #run()}, so a stage which changes its input in place
+ * can rebuild that input in prepare() without the cost being counted.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public abstract class BenchmarkStage {
+
+  private String name;
+
+/**
+ * Allocates a BenchmarkStage
+ * @param name name of the stage as reported
+ */
+  protected BenchmarkStage(String name) {
+    this.name=name;
+  }
+/**
+ * Gets the name of the stage
+ * @return name of the stage
+ */
+  public String getName() {
+    return name;
+  }
+/**
+ * Builds any state needed by the next call to run() (not timed)
+ * @throws Exception if the state cannot be built
+ */
+  public void prepare() throws Exception {
+  }
+/**
+ * Performs one operation of the stage (timed)
+ * @return a value derived from the result so the work cannot be optimised away
+ * @throws Exception if the operation fails
+ */
+  public abstract int run() throws Exception;
+
+}
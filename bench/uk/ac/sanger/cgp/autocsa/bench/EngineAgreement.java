@@ -0,0 +1,265 @@
+package uk.ac.sanger.cgp.autocsa.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import uk.ac.sanger.cgp.autocsa.analysis.AutoCSA;
+import uk.ac.sanger.cgp.autocsa.analysis.SeqTraceAnalysis;
+import uk.ac.sanger.cgp.autocsa.beans.CSAInput;
+import uk.ac.sanger.cgp.autocsa.beans.CSAParameters;
+import uk.ac.sanger.cgp.autocsa.exceptions.BadTraceException;
+import uk.ac.sanger.cgp.autocsa.util.Trace;
+
+/**
+ *<p> Reports the agreement of the banded matching engine with the greedy
+ * engine of SeqTraceAnalysis.matchPeaksToRefSeq() over a trace corpus.</p>
+ *<p> For each trace both engines match the same peaks to the ref seq and
+ * the scan matched to each base No is compared. A line is printed per
+ * trace giving the bases matched by each engine, by both, the bases both
+ * matched to the same peak & the matching time of each engine, followed
+ * by the totals and the worst case time of each engine.</p>
+ *<p> The corpus is a set of synthetic traces of random amplimers read
+ * from varied offsets, some with a heterozygous substitution and some of
+ * an unrelated sequence (which should not match), plus any AB1 files
+ * given with a plain text ref seq file.</p>
+ *<p> Usage: EngineAgreement [-traces N] [-seed N] [-ref FILE AB1 ...]</p>
+ *<p> Must be run from the project directory as the mobility files are
+ * read from ./resources/mobCorrFiles.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class EngineAgreement {
+
+  private static final String STS_NAME="AGREEMENT";
+  private static final int[] ENGINES = new int[] { AutoCSA.GREEDY_MATCHING, AutoCSA.BANDED_MATCHING };
+  private static final String[] ENGINE_NAMES = new String[] { "greedy", "banded" };
+
+  private int traces=40;
+  private long seed=1L;
+  private String fileRefSeq=null;
+  private List files = new ArrayList();
+
+  private CSAParameters csaParams;
+  private long[] total = new long[5];
+  private long[] nanos = new long[ENGINES.length];
+  private long[] worst = new long[ENGINES.length];
+
+/**
+ * Allocates an EngineAgreement with the CSAInput default parameters
+ */
+  public EngineAgreement() {
+    CSAInput input = new CSAInput();
+    csaParams = new CSAParameters();
+    csaParams.setPeakSearchBin(input.getPeakSearchBin());
+    csaParams.setRefSearchStartInc(input.getRefSearchStartInc());
+    csaParams.setMaxBasesMissed(input.getMaxBasesMissed());
+    csaParams.setMobilityCorrection(input.getMobilityCorrection());
+    csaParams.setRefSearchStart(input.getRefSearchStart());
+    csaParams.setRefSearchEnd(input.getRefSearchEnd());
+    csaParams.setMinPeakSpacing(input.getMinPeakSpacing());
+    csaParams.setMinPeakIntensity(input.getMinPeakIntensity());
+    csaParams.setCritMutRatio(input.getCritMutRatio());
+  }
+/**
+ * Sets the No of synthetic traces
+ * @param traces No of traces
+ */
+  public void setTraces(int traces) {
+    this.traces=traces;
+  }
+/**
+ * Sets the seed for the synthetic traces
+ * @param seed random number seed
+ */
+  public void setSeed(long seed) {
+    this.seed=seed;
+  }
+/**
+ * Sets the ref seq of the AB1 files added to the corpus
+ * @param refSeq the ref seq
+ */
+  public void setFileRefSeq(String refSeq) {
+    this.fileRefSeq=refSeq;
+  }
+/**
+ * Adds an AB1 file to the corpus
+ * @param file the AB1 file
+ */
+  public void addFile(File file) {
+    files.add(file);
+  }
+/**
+ * Compares the engines over the corpus and prints the results
+ * @throws Exception if a trace cannot be written or loaded
+ */
+  public void runAll() throws Exception {
+    System.out.println("# traces="+traces+" seed="+seed+" files="+files.size());
+    System.out.println("trace\tgreedy\tbanded\tboth\tagree\tgreedy_us\tbanded_us");
+    File dir=File.createTempFile("autocsa-agreement","");
+    dir.delete();
+    if( ! dir.mkdir() ) {
+      throw new IOException("Cannot create directory "+dir);
+    }
+    Random r = new Random(seed);
+    try {
+      for( int i=0; i < traces; ++i ) {
+        String refSeq=SyntheticTraceWriter.randomSequence(seed+i,300+r.nextInt(300));
+// n.b. reads start within the range of start bases searched by the
+// greedy engine
+        int offset=csaParams.getRefSearchStart()+r.nextInt(csaParams.getRefSearchStartInc());
+        String read=( i%5 == 4 ) ? SyntheticTraceWriter.randomSequence(-seed-i,refSeq.length()-offset)
+                                 : refSeq.substring(offset);
+        File file = new File(dir,"trace"+i+".ab1");
+        if( i%3 == 1 ) {
+          int mutPos=r.nextInt(read.length());
+          new SyntheticTraceWriter(seed+i).write(file,read,mutPos,read.charAt(mutPos) == 'A' ? 'G' : 'A');
+        } else {
+          new SyntheticTraceWriter(seed+i).write(file,read);
+        }
+        compare("syn"+i,file,refSeq);
+        file.delete();
+      }
+    }
+    finally {
+      dir.delete();
+    }
+    for( int i=0; i < files.size(); ++i ) {
+      File file=(File) files.get(i);
+      compare(file.getName(),file,fileRefSeq);
+    }
+    System.out.println("total\t"+total[0]+"\t"+total[1]+"\t"+total[2]+"\t"+total[3]+
+        "\t"+nanos[0]/1000L+"\t"+nanos[1]/1000L);
+    float agreement=( total[2] > 0 ) ? (float) total[3]/(float) total[2] : 0.0f;
+    System.out.println("# agreement of bases matched by both: "+agreement);
+    for( int e=0; e < ENGINES.length; ++e ) {
+      System.out.println("# "+ENGINE_NAMES[e]+" worst case us: "+worst[e]/1000L);
+    }
+  }
+/**
+ * Matches one trace with each engine and prints its line of results
+ * @param name name of the trace
+ * @param file the AB1 file
+ * @param refSeq the ref seq
+ * @throws Exception if the trace cannot be loaded
+ */
+  public void compare(String name, File file, String refSeq) throws Exception {
+    int[][] scanOfBase = new int[ENGINES.length][];
+    long[] time = new long[ENGINES.length];
+    for( int e=0; e < ENGINES.length; ++e ) {
+      Trace trace = new Trace(file,4);
+      trace.loadSCFFile(1);
+      CSAParameters params=copyParams(refSeq);
+      params.setMatchingEngine(ENGINES[e]);
+      AutoCSA autoCSA = new AutoCSA(STS_NAME,refSeq,false,
+          params.getRefSearchStart(),params.getRefSearchEnd());
+      autoCSA.setCSAParameters(params);
+      SeqTraceAnalysis traceAnalysis;
+      try {
+        traceAnalysis=autoCSA.prepareAnalysis(trace,params.getMinPeakSpacing(),true);
+      } catch ( BadTraceException ex ) {
+        System.out.println(name+"\tbad trace: "+ex.getMessage());
+        return;
+      }
+      long t0=System.nanoTime();
+      traceAnalysis.matchPeaksToRefSeq();
+      time[e]=System.nanoTime()-t0;
+      scanOfBase[e]=getScanOfBase(traceAnalysis,refSeq.length());
+    }
+    int[] counts = new int[4];
+    for( int bp=0; bp < scanOfBase[0].length; ++bp ) {
+      boolean greedy=( scanOfBase[0][bp] > -1 );
+      boolean banded=( scanOfBase[1][bp] > -1 );
+      if( greedy ) ++counts[0];
+      if( banded ) ++counts[1];
+      if( greedy && banded ) {
+        ++counts[2];
+        if( scanOfBase[0][bp] == scanOfBase[1][bp] ) ++counts[3];
+      }
+    }
+    for( int i=0; i < counts.length; ++i ) {
+      total[i]+=counts[i];
+    }
+    ++total[4];
+    for( int e=0; e < ENGINES.length; ++e ) {
+      nanos[e]+=time[e];
+      worst[e]=Math.max(worst[e],time[e]);
+    }
+    System.out.println(name+"\t"+counts[0]+"\t"+counts[1]+"\t"+counts[2]+"\t"+counts[3]+
+        "\t"+time[0]/1000L+"\t"+time[1]/1000L);
+  }
+  private CSAParameters copyParams(String refSeq) {
+    CSAParameters params = new CSAParameters();
+    params.setPeakSearchBin(csaParams.getPeakSearchBin());
+    params.setRefSearchStartInc(csaParams.getRefSearchStartInc());
+    params.setMaxBasesMissed(csaParams.getMaxBasesMissed());
+    params.setMobilityCorrection(csaParams.getMobilityCorrection());
+    params.setRefSearchStart(csaParams.getRefSearchStart());
+// n.b. absolute value needed rather than offset (as CSALoader)
+    params.setRefSearchEnd(refSeq.length()+csaParams.getRefSearchEnd());
+    params.setMinPeakSpacing(csaParams.getMinPeakSpacing());
+    params.setMinPeakIntensity(csaParams.getMinPeakIntensity());
+    params.setCritMutRatio(csaParams.getCritMutRatio());
+    return params;
+  }
+// scan of the peak matched to each base No, -1 if unmatched
+  private static int[] getScanOfBase(SeqTraceAnalysis traceAnalysis, int refLength) {
+    int[] scanOfBase = new int[refLength+1];
+    for( int bp=0; bp < scanOfBase.length; ++bp ) {
+      scanOfBase[bp]=-1;
+    }
+    int[] bpPos=traceAnalysis.getbpPos();
+    int[] scan=traceAnalysis.getScan();
+    for( int i=1; i < bpPos.length; ++i ) {
+      if( bpPos[i] > -1 && bpPos[i] < scanOfBase.length ) {
+        scanOfBase[bpPos[i]]=scan[i];
+      }
+    }
+    return scanOfBase;
+  }
+  private static String readRefSeq(File file) throws IOException {
+    StringBuffer sb = new StringBuffer();
+    BufferedReader in = new BufferedReader(new FileReader(file));
+    try {
+      String line;
+      while( (line=in.readLine()) != null ) {
+        if( ! line.startsWith(">") ) {
+          sb.append(line.trim().toUpperCase());
+        }
+      }
+    }
+    finally {
+      in.close();
+    }
+    return sb.toString();
+  }
+/**
+ * Runs the comparison
+ * @param args [-traces N] [-seed N] [-ref FILE AB1 ...]
+ * @throws Exception if a trace cannot be written or loaded
+ */
+  public static void main(String[] args) throws Exception {
+    EngineAgreement agreement = new EngineAgreement();
+    for( int i=0; i < args.length; ++i ) {
+      if( args[i].equals("-traces") && i+1 < args.length ) {
+        agreement.setTraces(Integer.parseInt(args[++i]));
+      } else if( args[i].equals("-seed") && i+1 < args.length ) {
+        agreement.setSeed(Long.parseLong(args[++i]));
+      } else if( args[i].equals("-ref") && i+1 < args.length ) {
+        agreement.setFileRefSeq(readRefSeq(new File(args[++i])));
+      } else {
+        agreement.addFile(new File(args[i]));
+      }
+    }
+    if( agreement.fileRefSeq == null && ! agreement.files.isEmpty() ) {
+      throw new IllegalArgumentException("-ref FILE is needed for AB1 files");
+    }
+    agreement.runAll();
+  }
+
+}
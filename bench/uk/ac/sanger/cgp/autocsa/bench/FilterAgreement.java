@@ -0,0 +1,290 @@
+package uk.ac.sanger.cgp.autocsa.bench;
+
+import java.util.Random;
+
+import uk.ac.sanger.cgp.autocsa.util.Channel;
+import uk.ac.sanger.cgp.autocsa.util.SlidingWindowFilter;
+import uk.ac.sanger.cgp.autocsa.util.Trace;
+
+/**
+ *<p> Checks the running min/max filters of SlidingWindowFilter and the
+ * baselining built on them against the window rescans they replaced.</p>
+ *<p> Random data is filtered both ways and every output point compared.
+ * The cases cover data lengths from 1 point, window half widths of 0 up
+ * to and beyond the data length, partial and empty from/to limits, and
+ * values beyond the +/-30000 limits of Channel.getMinIntensity() &
+ * getMaxIntensity(). As well as the filters themselves, the checks cover:</p>
+ *<ul>
+ *<li> Trace.baseline(), including partial baseline limits, against the
+ * original scan of each window with Channel.getMinIntensity() then
+ * getMaxIntensity()</li>
+ *<li> the float filter as used by ConvertTrace.subtractBaseline(), against
+ * the original loop over full windows only</li>
+ *</ul>
+ *<p> A line is printed per check giving the No of cases & of mismatching
+ * points. Exits with status 1 if any point differs.</p>
+ *<p> Usage: FilterAgreement [-cases N] [-seed N]</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class FilterAgreement {
+
+  private static final int WINDOW=251;
+  private static final int LIMIT=30000;
+
+  private int cases=200;
+  private long seed=1L;
+  private Random r;
+  private long mismatches=0;
+
+/**
+ * Sets the No of random cases per check
+ * @param cases No of cases
+ */
+  public void setCases(int cases) {
+    this.cases=cases;
+  }
+/**
+ * Sets the seed for the random data
+ * @param seed random number seed
+ */
+  public void setSeed(long seed) {
+    this.seed=seed;
+  }
+/**
+ * Runs every check and prints the results
+ * @return the total No of mismatching points
+ */
+  public long runAll() {
+    System.out.println("# cases="+cases+" seed="+seed);
+    System.out.println("check\tcases\tmismatches");
+    r = new Random(seed);
+    report("int_filter",checkIntFilter());
+    report("float_filter",checkFloatFilter());
+    report("trace_baseline",checkTraceBaseline());
+    report("convert_baseline",checkConvertBaseline());
+    System.out.println("# total mismatches: "+mismatches);
+    return mismatches;
+  }
+  private void report(String check, long bad) {
+    mismatches+=bad;
+    System.out.println(check+"\t"+cases+"\t"+bad);
+  }
+// running min & max of int data with random window & limits
+  private long checkIntFilter() {
+    long bad=0;
+    for( int c=0; c < cases; ++c ) {
+      int n=randomLength(c);
+      int[] src=randomData(n);
+      int hlen=r.nextInt(2*n+2);
+      int from=r.nextInt(n+1)-1;
+      int to=from+r.nextInt(n+1)-1;
+      from=Math.max(from,0);
+      to=Math.min(to,n-1);
+      for( int m=0; m < 2; ++m ) {
+        int[] dst = new int[n];
+        int[] old = new int[n];
+        if( m == 0 ) {
+          SlidingWindowFilter.min(src,n,hlen,from,to,dst);
+        } else {
+          SlidingWindowFilter.max(src,n,hlen,from,to,dst);
+        }
+        for( int i=from; i <= to; ++i ) {
+          int val=src[Math.max(i-hlen,0)];
+          for( int k=Math.max(i-hlen,0); k <= Math.min(i+hlen,n-1); ++k ) {
+            val=( m == 0 ) ? Math.min(val,src[k]) : Math.max(val,src[k]);
+          }
+          old[i]=val;
+        }
+        bad+=countDiffs(old,dst);
+      }
+    }
+    return bad;
+  }
+// running min & max of float data with random window & limits
+  private long checkFloatFilter() {
+    long bad=0;
+    for( int c=0; c < cases; ++c ) {
+      int n=randomLength(c);
+      int[] data=randomData(n);
+      float[] src = new float[n];
+      for( int i=0; i < n; ++i ) {
+        src[i]=(float) data[i];
+      }
+      int hlen=r.nextInt(2*n+2);
+      int from=Math.max(r.nextInt(n+1)-1,0);
+      int to=Math.min(from+r.nextInt(n+1)-1,n-1);
+      for( int m=0; m < 2; ++m ) {
+        float[] dst = new float[n];
+        float[] old = new float[n];
+        if( m == 0 ) {
+          SlidingWindowFilter.min(src,n,hlen,from,to,dst);
+        } else {
+          SlidingWindowFilter.max(src,n,hlen,from,to,dst);
+        }
+        for( int i=from; i <= to; ++i ) {
+          float val=src[Math.max(i-hlen,0)];
+          for( int k=Math.max(i-hlen,0); k <= Math.min(i+hlen,n-1); ++k ) {
+            val=( m == 0 ) ? Math.min(val,src[k]) : Math.max(val,src[k]);
+          }
+          old[i]=val;
+        }
+        bad+=countDiffs(old,dst);
+      }
+    }
+    return bad;
+  }
+// Trace.baseline() of a random channel with random (or zero) limits
+  private long checkTraceBaseline() {
+    long bad=0;
+    for( int c=0; c < cases; ++c ) {
+      int n=randomLength(c);
+      int[] data=randomData(n);
+      int lim1=0;
+      int lim2=0;
+      if( c%3 != 0 ) {
+        lim1=r.nextInt(n);
+        lim2=lim1+r.nextInt(n-lim1);
+      }
+      Channel chan = new Channel();
+      chan.setDataPoints(copyOf(data));
+      Trace trace = new Trace("filter"+c,"3730",new Channel[] { chan });
+      trace.baseline(0,lim1,lim2);
+      bad+=countDiffs(oldBaseline(data,lim1,lim2),trace.getChannel(0).getDataPoints());
+    }
+    return bad;
+  }
+// float filters as applied by ConvertTrace.subtractBaseline()
+  private long checkConvertBaseline() {
+    long bad=0;
+    int hlen=WINDOW/2;
+    for( int c=0; c < cases; ++c ) {
+      int n=WINDOW+randomLength(c);
+      int[] data=randomData(n);
+      float[] temp1 = new float[n];
+      float[] temp2 = new float[n];
+      for( int i=0; i < n; ++i ) {
+        temp1[i]=(float) data[i];
+      }
+      SlidingWindowFilter.min(temp1,n,hlen,hlen,n-hlen-1,temp2);
+      System.arraycopy(temp2,0,temp1,0,n);
+      SlidingWindowFilter.max(temp1,n,hlen,hlen,n-hlen-1,temp2);
+      float[] old=oldConvertBaseline(data);
+      for( int i=hlen; i <= n-hlen-1; ++i ) {
+        if( old[i] != temp2[i] ) { ++bad; }
+      }
+    }
+    return bad;
+  }
+// n.b. as Trace.baseline() before SlidingWindowFilter
+  private static int[] oldBaseline(int[] src, int traceLim1, int traceLim2) {
+    int np=src.length;
+    int hlen=(WINDOW-1)/2;
+    int[] data=copyOf(src);
+    int[] bline = new int[np];
+    int[] bline1 = new int[np];
+    if ( traceLim2 == 0 ) { traceLim2=np-1; }
+    for( int i=traceLim1; i <= traceLim2; ++i ) {
+      int i2=Math.min(i+hlen,np-1);
+      int min=LIMIT;
+      for( int k=Math.max(i-hlen,0); k <= i2; ++k ) {
+        min=Math.min(min,data[k]);
+      }
+      bline[i]=min;
+    }
+    for( int i=traceLim1; i <= traceLim2; ++i ) {
+      int i2=Math.min(i+hlen,np-1);
+      int max=-LIMIT;
+      for( int k=Math.max(i-hlen,0); k <= i2; ++k ) {
+        max=Math.max(max,bline[k]);
+      }
+      bline1[i]=max;
+    }
+    for( int i=0; i < np; ++i ) {
+      data[i]-=bline1[i];
+      if ( data[i] < 0 ) { data[i]=0; }
+    }
+    return data;
+  }
+// n.b. as the min then max loops of ConvertTrace.subtractBaseline() before
+// SlidingWindowFilter, only full windows are set
+  private static float[] oldConvertBaseline(int[] data) {
+    int n=data.length;
+    float[] temp1 = new float[n];
+    float[] temp2 = new float[n];
+    for( int m=0; m < 2; ++m ) {
+      for( int i=0; i < n; ++i ) {
+        temp1[i]=( m == 0 ) ? (float) data[i] : temp2[i];
+      }
+      for( int i=0; i < n; ++i ) {
+        int ii=i+1;
+        if( ii >= WINDOW ) {
+          float val=temp1[ii-WINDOW];
+          for( int k=ii-WINDOW; k < ii; ++k ) {
+            val=( m == 1 ) ? Math.max(val,temp1[k]) : Math.min(val,temp1[k]);
+          }
+          temp2[ii-WINDOW/2-1]=val;
+        }
+      }
+    }
+    return temp2;
+  }
+// mostly short, some as long as a trace
+  private int randomLength(int c) {
+    return ( c%10 == 9 ) ? 1+r.nextInt(18000) : 1+r.nextInt(1000);
+  }
+// trace like data with some values beyond the +/-30000 limits
+  private int[] randomData(int n) {
+    int[] data = new int[n];
+    int level=r.nextInt(2000);
+    for( int i=0; i < n; ++i ) {
+      level+=r.nextInt(201)-100;
+      if( r.nextInt(50) == 0 ) {
+        data[i]=r.nextInt(2*LIMIT+40001)-LIMIT-20000;
+      } else {
+        data[i]=level+r.nextInt(500);
+      }
+    }
+    return data;
+  }
+  private static int[] copyOf(int[] src) {
+    int[] data = new int[src.length];
+    System.arraycopy(src,0,data,0,src.length);
+    return data;
+  }
+  private static long countDiffs(int[] a, int[] b) {
+    long bad=0;
+    for( int i=0; i < a.length; ++i ) {
+      if( a[i] != b[i] ) { ++bad; }
+    }
+    return bad;
+  }
+  private static long countDiffs(float[] a, float[] b) {
+    long bad=0;
+    for( int i=0; i < a.length; ++i ) {
+      if( a[i] != b[i] ) { ++bad; }
+    }
+    return bad;
+  }
+/**
+ * Runs the checks
+ * @param args [-cases N] [-seed N]
+ */
+  public static void main(String[] args) {
+    FilterAgreement agreement = new FilterAgreement();
+    for( int i=0; i < args.length; ++i ) {
+      if( args[i].equals("-cases") && i+1 < args.length ) {
+        agreement.setCases(Integer.parseInt(args[++i]));
+      } else if( args[i].equals("-seed") && i+1 < args.length ) {
+        agreement.setSeed(Long.parseLong(args[++i]));
+      } else {
+        throw new IllegalArgumentException("Unknown argument: "+args[i]);
+      }
+    }
+    if( agreement.runAll() > 0 ) {
+      System.exit(1);
+    }
+  }
+
+}
@@ -0,0 +1,161 @@
+package uk.ac.sanger.cgp.autocsa.bench;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.biojava.bio.chromatogram.Chromatogram;
+
+import uk.ac.sanger.cgp.autocsa.analysis.SeqTraceAnalysis;
+import uk.ac.sanger.cgp.autocsa.beans.CSAOutput;
+import uk.ac.sanger.cgp.autocsa.util.Channel;
+import uk.ac.sanger.cgp.autocsa.util.Constants;
+import uk.ac.sanger.cgp.autocsa.util.ConvertTrace;
+import uk.ac.sanger.cgp.autocsa.util.MappedTraceLoader;
+import uk.ac.sanger.cgp.autocsa.util.Trace;
+import uk.ac.sanger.cgp.autocsa.util.TraceLoader;
+
+/**
+ *<p> The CSA pipeline stages timed by the BenchmarkRunner, in pipeline
+ * order.</p>
+ *<p> Each stage times a single method; the steps preceding it are
+ * repeated in prepare() wherever the method changes its input.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class PipelineStages {
+
+  private PipelineStages() {
+  }
+/**
+ * Creates every stage over the fixture traces
+ * @param fixture the traces & parameters to run the stages over
+ * @return List of BenchmarkStage
+ */
+  public static List createStages(final StageFixture fixture) {
+    List stages = new ArrayList();
+
+    stages.add(new BenchmarkStage("TraceLoader.loadTrace") {
+      public int run() throws Exception {
+        Chromatogram chrom=TraceLoader.loadTrace(fixture.getNormalFile());
+        return chrom.getTraceLength();
+      }
+    });
+
+    stages.add(new BenchmarkStage("ConvertTrace.processTrace") {
+      private ConvertTrace convert;
+      public void prepare() throws Exception {
+        ByteBuffer mapped=MappedTraceLoader.map(fixture.getNormalFile());
+        convert = new ConvertTrace();
+        convert.setChannels(MappedTraceLoader.loadABI(mapped));
+      }
+      public int run() throws Exception {
+        return convert.processTrace();
+      }
+    });
+
+    stages.add(new BenchmarkStage("Channel.findPeaks") {
+      private Trace trace;
+      private int[][] thresholds;
+      public void prepare() throws Exception {
+        if( trace == null ) {
+          trace=fixture.loadTrace(fixture.getNormalFile());
+          thresholds=fixture.getPeakThresholds(trace);
+        }
+      }
+      public int run() {
+        int npeaks=0;
+        for( int i=0; i < 4; ++i ) {
+          Channel chan=trace.getChannel(i);
+          chan.findPeaks(thresholds[i][0],thresholds[i][1],thresholds[i][2],fixture.getMinPeakSpacing());
+          npeaks+=chan.getPeaks().length;
+        }
+        return npeaks;
+      }
+    });
+
+    stages.add(new BenchmarkStage("AutoCSA.analyseTrace") {
+      private Trace trace;
+      public void prepare() throws Exception {
+        trace=fixture.loadTrace(fixture.getNormalFile());
+      }
+      public int run() throws Exception {
+        SeqTraceAnalysis analysis=fixture.newAutoCSA().analyseTrace(trace,0,fixture.getMinPeakSpacing(),"N",true);
+        return analysis.getbpPos().length;
+      }
+    });
+
+    stages.add(new BenchmarkStage("SeqTraceAnalysis.matchPeaksToRefSeq") {
+      private SeqTraceAnalysis analysis;
+      public void prepare() throws Exception {
+        Trace trace=fixture.loadTrace(fixture.getNormalFile());
+        analysis=fixture.newAutoCSA().prepareAnalysis(trace,fixture.getMinPeakSpacing(),true);
+      }
+      public int run() {
+        analysis.matchPeaksToRefSeq();
+        return analysis.getbpPos().length;
+      }
+    });
+
+    stages.add(new BenchmarkStage("SeqTraceAnalysis.setTraceQuality") {
+      private SeqTraceAnalysis analysis;
+      public void prepare() throws Exception {
+// n.b. setTraceQuality only (re)sets the quality array
+        if( analysis == null ) {
+          Trace trace=fixture.loadTrace(fixture.getNormalFile());
+          analysis=fixture.newAutoCSA().analyseTrace(trace,0,fixture.getMinPeakSpacing(),"N",true);
+        }
+      }
+      public int run() {
+        analysis.setTraceQuality(Constants.QUALITY_WINDOW_SIZE);
+        return analysis.getTraceQuality().length;
+      }
+    });
+
+    stages.add(new BenchmarkStage("SeqTraceComparison.normalisePeaks") {
+      private StageFixture.ComparisonState state;
+      public void prepare() throws Exception {
+        state=fixture.prepareComparison();
+      }
+      public int run() {
+        state.comparison.normalisePeaks(state.control,state.sample);
+        return state.comparison.getComparisonQuality();
+      }
+    });
+
+    stages.add(new BenchmarkStage("SeqTraceComparison.hetMutationScan") {
+      private StageFixture.ComparisonState state;
+      public void prepare() throws Exception {
+        state=fixture.prepareComparison();
+        state.comparison.normalisePeaks(state.control,state.sample);
+        state.comparison.setCSAOutput(new CSAOutput());
+      }
+      public int run() {
+        state.comparison.hetMutationScan(state.control,state.sample);
+        return state.comparison.getCSAOutput().getMutationList().size();
+      }
+    });
+
+    stages.add(new BenchmarkStage("SeqTraceComparison.homMutationScan") {
+      private StageFixture.ComparisonState state;
+      public void prepare() throws Exception {
+// n.b. steps of AutoCSA.mutationScan() preceding homMutationScan
+        state=fixture.prepareComparison();
+        state.comparison.normalisePeaks(state.control,state.sample);
+        state.comparison.setCSAOutput(new CSAOutput());
+        state.comparison.hetMutationScan(state.control,state.sample);
+        state.comparison.finalHetMutationScan(state.control,state.sample);
+        state.comparison.testHetIndel();
+        state.comparison.homDeletionScan(state.control,state.sample,state.autoCSA.getMissingBases());
+      }
+      public int run() {
+        state.comparison.homMutationScan(state.control,state.sample,state.autoCSA.getMissingBases());
+        return state.comparison.getCSAOutput().getMutationList().size();
+      }
+    });
+
+    return stages;
+  }
+
+}
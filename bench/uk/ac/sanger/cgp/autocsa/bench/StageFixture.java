@@ -0,0 +1,209 @@
+package uk.ac.sanger.cgp.autocsa.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import uk.ac.sanger.cgp.autocsa.analysis.AutoCSA;
+import uk.ac.sanger.cgp.autocsa.analysis.SeqTraceAnalysis;
+import uk.ac.sanger.cgp.autocsa.analysis.SeqTraceComparison;
+import uk.ac.sanger.cgp.autocsa.beans.CSAInput;
+import uk.ac.sanger.cgp.autocsa.beans.CSAParameters;
+import uk.ac.sanger.cgp.autocsa.beans.TraceDetails;
+import uk.ac.sanger.cgp.autocsa.util.CSALoader;
+import uk.ac.sanger.cgp.autocsa.util.Constants;
+import uk.ac.sanger.cgp.autocsa.util.Trace;
+
+/**
+ *<p> Shared input data for the benchmark stages.</p>
+ *<p> A random amplimer is generated together with a synthetic Normal trace
+ * and a Tumour trace carrying one heterozygous and one homozygous
+ * substitution, so the mutation scans have something to find. Traces are
+ * written to a temporary directory which is removed by {@link #delete()}.</p>
+ *<p> Analysis & comparison parameters are the CSAInput defaults.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class StageFixture {
+
+  private static final int REF_LENGTH=400;
+// n.b. reads start at the first base searched for by the analysis
+  private static final int READ_OFFSET=50;
+  private static final int HET_POS=150;
+  private static final int HOM_POS=250;
+  private static final String STS_NAME="BENCH";
+
+  private File dir;
+  private File normalFile;
+  private File tumourFile;
+  private String refSeq;
+  private CSAParameters csaParams;
+
+/**
+ * Generates the amplimer & traces
+ * @param seed random number seed for the sequence & traces
+ * @throws IOException if the traces cannot be written
+ */
+  public StageFixture(long seed) throws IOException {
+    dir=File.createTempFile("autocsa-bench","");
+    dir.delete();
+    if( ! dir.mkdir() ) {
+      throw new IOException("Cannot create directory "+dir);
+    }
+    refSeq=SyntheticTraceWriter.randomSequence(seed,REF_LENGTH);
+    String read=refSeq.substring(READ_OFFSET);
+    StringBuffer tumour = new StringBuffer(read);
+    tumour.setCharAt(HOM_POS-READ_OFFSET,substitute(read.charAt(HOM_POS-READ_OFFSET)));
+    normalFile=new File(dir,"normal.ab1");
+    tumourFile=new File(dir,"tumour.ab1");
+    new SyntheticTraceWriter(seed+1).write(normalFile,read);
+    new SyntheticTraceWriter(seed+2).write(tumourFile,tumour.toString(),
+        HET_POS-READ_OFFSET,substitute(read.charAt(HET_POS-READ_OFFSET)));
+
+    CSAInput input = new CSAInput();
+    csaParams = new CSAParameters();
+    csaParams.setPeakSearchBin(input.getPeakSearchBin());
+    csaParams.setRefSearchStartInc(input.getRefSearchStartInc());
+    csaParams.setMaxBasesMissed(input.getMaxBasesMissed());
+    csaParams.setMobilityCorrection(input.getMobilityCorrection());
+    csaParams.setRefSearchStart(input.getRefSearchStart());
+// n.b. absolute value needed rather than offset (as CSALoader)
+    csaParams.setRefSearchEnd(refSeq.length()+input.getRefSearchEnd());
+    csaParams.setMinPeakSpacing(input.getMinPeakSpacing());
+    csaParams.setMinPeakIntensity(input.getMinPeakIntensity());
+    csaParams.setCritMutRatio(input.getCritMutRatio());
+  }
+  private static char substitute(char base) {
+    return base == 'A' ? 'G' : 'A';
+  }
+/**
+ * Removes the generated traces
+ */
+  public void delete() {
+    normalFile.delete();
+    tumourFile.delete();
+    dir.delete();
+  }
+/**
+ * Gets the Normal trace file
+ * @return AB1 file
+ */
+  public File getNormalFile() {
+    return normalFile;
+  }
+/**
+ * Gets the Tumour trace file
+ * @return AB1 file
+ */
+  public File getTumourFile() {
+    return tumourFile;
+  }
+/**
+ * Gets the amplimer sequence
+ * @return the ref seq
+ */
+  public String getRefSeq() {
+    return refSeq;
+  }
+/**
+ * Gets the minimum allowed distance between peaks
+ * @return min peak spacing (in scans)
+ */
+  public int getMinPeakSpacing() {
+    return csaParams.getMinPeakSpacing();
+  }
+/**
+ * Loads & mobility corrects a trace as CSALoader does
+ * @param file the AB1 file
+ * @return Trace with data Channels loaded
+ * @throws Exception if the trace cannot be loaded
+ */
+  public Trace loadTrace(File file) throws Exception {
+    Trace trace = new Trace(file,4);
+    trace.loadSCFFile(1);
+    return trace;
+  }
+/**
+ * Creates an AutoCSA object for the amplimer
+ * @return AutoCSA with the fixture parameters set
+ */
+  public AutoCSA newAutoCSA() {
+    AutoCSA autoCSA = new AutoCSA(STS_NAME,refSeq,false,
+        csaParams.getRefSearchStart(),csaParams.getRefSearchEnd());
+    autoCSA.setCSAParameters(csaParams);
+    return autoCSA;
+  }
+/**
+ * Derives the findPeaks() thresholds for each Channel of a Normal trace
+ * in the same way as AutoCSA
+ * @param trace the loaded Trace
+ * @return min peak, min shoulder & relaxed min shoulder intensities
+ * indexed by [Channel][threshold]
+ */
+  public int[][] getPeakThresholds(Trace trace) {
+// n.b. ratios in ACGT order
+    float[] peakRatios = new float[] { Constants.A_CHANNEL_PEAK_RATIO,
+                                       Constants.C_CHANNEL_PEAK_RATIO,
+                                       Constants.G_CHANNEL_PEAK_RATIO,
+                                       Constants.T_CHANNEL_PEAK_RATIO };
+    float[] shoulderRatios = new float[] { Constants.A_CHANNEL_SHOULDER_RATIO,
+                                           Constants.C_CHANNEL_SHOULDER_RATIO,
+                                           Constants.G_CHANNEL_SHOULDER_RATIO,
+                                           Constants.T_CHANNEL_SHOULDER_RATIO };
+    int[][] thresholds = new int[4][3];
+    int len=trace.getChannel(0).getChannelLength();
+    int cut=Constants.SCAN_SUBTRACTOR_FOR_PEAKS;
+    for( int i=0; i < 4; ++i ) {
+      int base="ACGT".indexOf(Constants.INPUT_BASE_ORDERING.charAt(i));
+      float peakRatio=peakRatios[base];
+      float shoulderRatio=shoulderRatios[base];
+      int maxI=trace.getChannel(i).getMaxIntensity(cut,len-cut);
+      thresholds[i][0]=Math.max(Constants.STRICT_MIN_PEAK,(int) (peakRatio*(float) maxI));
+      thresholds[i][1]=(int) (shoulderRatio*(float) maxI);
+      thresholds[i][2]=(int) (Constants.SHOULDER_RELAXATION*shoulderRatio*(float) maxI);
+    }
+    return thresholds;
+  }
+/**
+ * Loads & analyses both traces and sets up their comparison up to the
+ * point where the peaks are normalised (as CSALoader.performComparison)
+ * @return ComparisonState ready for SeqTraceComparison.normalisePeaks()
+ * @throws Exception if either trace cannot be loaded or compared
+ */
+  public ComparisonState prepareComparison() throws Exception {
+    ComparisonState state = new ComparisonState();
+    state.autoCSA=newAutoCSA();
+    state.control=state.autoCSA.analyseTrace(loadTrace(normalFile),0,getMinPeakSpacing(),"N",true);
+    state.sample=state.autoCSA.analyseTrace(loadTrace(tumourFile),0,getMinPeakSpacing(),"S",false);
+    state.comparison=state.autoCSA.setupAutoCSA(state.control,state.sample);
+    if( state.comparison == null ) {
+      throw new IllegalStateException("Failed to set up comparison of synthetic traces");
+    }
+    CSALoader.setTraceAnalQualityAndDyeBlobs(state.control,traceDetails(true));
+    CSALoader.setTraceAnalQualityAndDyeBlobs(state.sample,traceDetails(false));
+    state.control.setROICoords(0,0);
+    state.sample.setROICoords(0,0);
+    state.autoCSA.setROICoords(0,0);
+    state.comparison.setPeakFactors();
+    state.comparison.setIndelBasePosition(state.sample.checkQualityProfileForInDel(true));
+    return state;
+  }
+  private TraceDetails traceDetails(boolean normal) {
+    TraceDetails traceDet = new TraceDetails();
+    traceDet.setNormal(normal);
+    return traceDet;
+  }
+
+/**
+ * The objects taking part in one comparison
+ */
+  public static class ComparisonState {
+
+    AutoCSA autoCSA;
+    SeqTraceAnalysis control;
+    SeqTraceAnalysis sample;
+    SeqTraceComparison comparison;
+
+  }
+
+}
@@ -0,0 +1,275 @@
+package uk.ac.sanger.cgp.autocsa.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import uk.ac.sanger.cgp.autocsa.beans.MobilityCorData;
+import uk.ac.sanger.cgp.autocsa.util.MobilityCorTable;
+
+/**
+ *<p> Writes synthetic, mobility corrected AB1 trace files for benchmarking.</p>
+ *<p> Each trace holds a primer peak followed by one gaussian peak per base
+ * of the supplied sequence on a slowly varying background, so it can be
+ * taken through the whole CSA pipeline without any real (patient) data.
+ * Peaks are offset by the inverse of the DYEP mobility shifts so they are
+ * evenly spaced once the trace has been mobility corrected.</p>
+ *<p> The mobility file is read from ./resources/mobCorrFiles so this must
+ * be run from the project directory.
+ * A heterozygous substitution can be added by splitting the signal at one
+ * base between the reference and mutant channels.</p>
+ *<p> Trace holes (runs of bases with peaks lost in the noise) & a dye blob
+ * (a broad peak in all channels) can be added to give poor traces.</p>
+ *<p> Traces are reproducible for a given seed.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class SyntheticTraceWriter {
+
+  private static final String BASES="ACGT";
+// n.b. channel (DATA 1-4) order is given by the FWO_ tag
+  private static final String CHANNEL_ORDER="GATC";
+  private static final String DYEP_LABEL="DT3730POP7{BDv3}.mob";
+// n.b. internal channel order used by mobility correction is CAGT
+  private static final String MOBILITY_ORDER="CAGT";
+
+  private static final int PRIMER_SCAN=1200;
+  private static final int FIRST_BASE_SCAN=1500;
+  private static final int BASE_SPACING=11;
+  private static final int TAIL_SCANS=600;
+
+  private long seed;
+// n.b. int[2] of the first & after the last index in seq of each hole
+  private List holes = new ArrayList();
+  private int blobPos=-1;
+
+/**
+ * Allocates a SyntheticTraceWriter
+ * @param seed seed for the random peak heights & background noise
+ */
+  public SyntheticTraceWriter(long seed) {
+    this.seed=seed;
+  }
+/**
+ * Adds a trace hole, where base peaks are lost in the background noise
+ * @param from index in seq of the first base in the hole
+ * @param to index in seq after the last base in the hole
+ */
+  public void addTraceHole(int from, int to) {
+    holes.add(new int[] {from,to});
+  }
+/**
+ * Sets a dye blob, i.e. a broad peak in every channel, highest in A
+ * @param pos index in seq of the base at the centre of the blob (-1 for none)
+ */
+  public void setDyeBlob(int pos) {
+    blobPos=pos;
+  }
+/**
+ * Generates a random DNA sequence
+ * @param seed random number seed
+ * @param length No of bases
+ * @return sequence of A,C,G,T
+ */
+  public static String randomSequence(long seed, int length) {
+    Random r = new Random(seed);
+    StringBuffer sb = new StringBuffer(length);
+    for( int i=0; i < length; ++i ) {
+      sb.append(BASES.charAt(r.nextInt(4)));
+    }
+    return sb.toString();
+  }
+/**
+ * Writes a trace of a sequence
+ * @param file output AB1 file
+ * @param seq sequence read by the trace
+ * @throws IOException if the file cannot be written
+ */
+  public void write(File file, String seq) throws IOException {
+    write(file,seq,-1,'N');
+  }
+/**
+ * Writes a trace of a sequence with a heterozygous substitution
+ * @param file output AB1 file
+ * @param seq sequence read by the trace
+ * @param mutPos index in seq of the substitution (-1 for none)
+ * @param mutBase the substituted base
+ * @throws IOException if the file cannot be written
+ */
+  public void write(File file, String seq, int mutPos, char mutBase) throws IOException {
+    Random r = new Random(seed);
+    MobilityCorTable mobility = MobilityCorTable.getInstance(DYEP_LABEL.replaceAll("\\{","=").replaceAll("\\}",""),4);
+    int nBases=seq.length();
+    int nPoints=FIRST_BASE_SCAN+nBases*BASE_SPACING+TAIL_SCANS;
+    int[][] chans = new int[4][nPoints];
+    for( int c=0; c < 4; ++c ) {
+      for( int i=0; i < nPoints; ++i ) {
+        chans[c][i]=200+r.nextInt(30)+(int) (50.0*Math.sin(i/900.0));
+      }
+      addPeak(chans[c],PRIMER_SCAN,3000,6.0);
+    }
+    byte[] calls = new byte[nBases];
+    short[] locs = new short[nBases];
+    for( int b=0; b < nBases; ++b ) {
+      char base=seq.charAt(b);
+      int scan=FIRST_BASE_SCAN+b*BASE_SPACING+r.nextInt(3)-1;
+      int amp=1500+r.nextInt(2000);
+      if( inTraceHole(b) ) {
+        amp=r.nextInt(60);
+      }
+      if( b == mutPos ) {
+        addBasePeak(chans,mobility,base,scan,amp/2);
+        addBasePeak(chans,mobility,mutBase,scan,amp/2);
+      } else {
+        addBasePeak(chans,mobility,base,scan,amp);
+      }
+      calls[b]=(byte) base;
+      locs[b]=(short) scan;
+    }
+    if( blobPos > -1 ) {
+      for( int c=0; c < 4; ++c ) {
+        addPeak(chans[c],FIRST_BASE_SCAN+blobPos*BASE_SPACING,( CHANNEL_ORDER.charAt(c) == 'A' ) ? 4000 : 800,12.0);
+      }
+    }
+
+    List records = new ArrayList();
+    for( int c=0; c < 4; ++c ) {
+      records.add(new Record("DATA",c+1,4,2,nPoints,toBytes(chans[c])));
+    }
+    records.add(new Record("FWO_",1,2,1,4,CHANNEL_ORDER.getBytes()));
+    records.add(new Record("PBAS",1,2,1,nBases,calls));
+    records.add(new Record("PLOC",1,4,2,nBases,toBytes(locs)));
+    records.add(new Record("SVER",1,2,1,3,"3.0".getBytes()));
+    ByteArrayOutputStream spac = new ByteArrayOutputStream();
+    new DataOutputStream(spac).writeFloat(12.0f);
+    records.add(new Record("SPAC",1,7,4,1,spac.toByteArray()));
+    byte[] dyep = new byte[DYEP_LABEL.length()+1];
+    dyep[0]=(byte) DYEP_LABEL.length();
+    System.arraycopy(DYEP_LABEL.getBytes(),0,dyep,1,DYEP_LABEL.length());
+    records.add(new Record("PDMF",1,18,1,dyep.length,dyep));
+    writeABIF(file,records);
+  }
+  private boolean inTraceHole(int b) {
+    for( int i=0; i < holes.size(); ++i ) {
+      int[] hole=(int[]) holes.get(i);
+      if( b >= hole[0] && b < hole[1] ) return true;
+    }
+    return false;
+  }
+  private static void addBasePeak(int[][] chans, MobilityCorTable mobility, char base, int scan, int amp) {
+    MobilityCorData mob=mobility.getScaledData(MOBILITY_ORDER.indexOf(base),1.0f);
+    int shift=0;
+    if( mob.getDoCorrection() == 1 ) {
+      int[] scans=mob.getScan();
+      int[] shifts=mob.getShift();
+      int m=scan-PRIMER_SCAN;
+      shift=shifts[0];
+      for( int k=1; k < mob.getNumShift() && m >= scans[k]; ++k ) {
+        shift=shifts[k];
+      }
+    }
+    addPeak(chans[CHANNEL_ORDER.indexOf(base)],scan+shift,amp,2.5);
+  }
+  private static void addPeak(int[] trace, int centre, int amp, double sigma) {
+    int w=(int) Math.ceil(4.0*sigma);
+    for( int k=-w; k <= w; ++k ) {
+      int p=centre+k;
+      if( p < 0 || p >= trace.length ) continue;
+      trace[p]=Math.min(32000,trace[p]+(int) (amp*Math.exp(-k*k/(2.0*sigma*sigma))));
+    }
+  }
+  private static byte[] toBytes(int[] values) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(values.length*2);
+    DataOutputStream out = new DataOutputStream(bytes);
+    for( int i=0; i < values.length; ++i ) out.writeShort(values[i]);
+    return bytes.toByteArray();
+  }
+  private static byte[] toBytes(short[] values) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(values.length*2);
+    DataOutputStream out = new DataOutputStream(bytes);
+    for( int i=0; i < values.length; ++i ) out.writeShort(values[i]);
+    return bytes.toByteArray();
+  }
+  private static void writeABIF(File file, List records) throws IOException {
+// layout: 128 byte header, record data, then the directory
+    int headerSize=128;
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    int[] offsets = new int[records.size()];
+    for( int i=0; i < records.size(); ++i ) {
+      Record rec=(Record) records.get(i);
+      if( rec.data.length > 4 ) {
+        offsets[i]=headerSize+data.size();
+        data.write(rec.data);
+      }
+    }
+    int dirOffset=headerSize+data.size();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeBytes("ABIF");
+    out.writeShort(101);
+    out.writeBytes("tdir");
+    out.writeInt(1);
+    out.writeShort(1023);
+    out.writeShort(28);
+    out.writeInt(records.size());
+    out.writeInt(records.size()*28);
+    out.writeInt(dirOffset);
+    out.writeInt(0);
+    while( bytes.size() < headerSize ) out.writeByte(0);
+    out.write(data.toByteArray());
+    for( int i=0; i < records.size(); ++i ) {
+      Record rec=(Record) records.get(i);
+      out.writeBytes(rec.name);
+      out.writeInt(rec.number);
+      out.writeShort(rec.type);
+      out.writeShort(rec.elementSize);
+      out.writeInt(rec.numElements);
+      out.writeInt(rec.data.length);
+      if( rec.data.length > 4 ) {
+        out.writeInt(offsets[i]);
+      } else {
+// n.b. data of 4 bytes or less is held in the offset field
+        byte[] inline = new byte[4];
+        System.arraycopy(rec.data,0,inline,0,rec.data.length);
+        out.write(inline);
+      }
+      out.writeInt(0);
+    }
+    FileOutputStream fos = new FileOutputStream(file);
+    try {
+      fos.write(bytes.toByteArray());
+    }
+    finally {
+      fos.close();
+    }
+  }
+
+/**
+ * One ABIF directory entry & its data
+ */
+  private static class Record {
+
+    String name;
+    int number;
+    int type;
+    int elementSize;
+    int numElements;
+    byte[] data;
+
+    Record(String name, int number, int type, int elementSize, int numElements, byte[] data) {
+      this.name=name;
+      this.number=number;
+      this.type=type;
+      this.elementSize=elementSize;
+      this.numElements=numElements;
+      this.data=data;
+    }
+  }
+
+}
@@ -14,13 +14,30 @@ import uk.ac.sanger.cgp.autocsa.util.*;
  *Original author:  emd
  *@author $Author$
  *@version $Revision$
+ *<p> The adjustment type is process wide state, new code should use a
+ * per run {@link MobilityModel} set on AutoCSA instead.</p>
  */
 public class Adjustment {
 
 // default adjustment type is NO Mobility correction
   private static int adjustmentType=0;
+// n.b. coefficients are held by MobilityModel, map kept for old callers
   public static HashMap mobilities=null;
 
+  static {
+    mobilities = new HashMap(10);
+    mobilities.put("A1",Float.valueOf(0.0f));
+    mobilities.put("A2",Float.valueOf(0.0f));
+    mobilities.put("C1",Float.valueOf(0.5541f));
+    mobilities.put("C2",Float.valueOf(-3.406f));
+    mobilities.put("G1",Float.valueOf(1.546f));
+    mobilities.put("G2",Float.valueOf(-14.252f));
+    mobilities.put("T1",Float.valueOf(-1.7502f));
+    mobilities.put("T2",Float.valueOf(13.354f));
+    mobilities.put("S1",Float.valueOf(1.5458f));
+    mobilities.put("S2",Float.valueOf(2.6471f));
+  }
+
 /**
  * dummy constructor as all methods are static
  */
@@ -40,24 +57,12 @@ public class Adjustment {
   public static int getAdjustmentType() {
     return adjustmentType;
   }
-  private static float getAdjustment (String key ) {
-
-// define parameterised mobility correction coefficients (3730 POP7)
-    if( mobilities == null ) {
-      mobilities = new HashMap(10);
-      mobilities.put("A1",new Float(0.0f));
-      mobilities.put("A2",new Float(0.0f));
-      mobilities.put("C1",new Float(0.5541f));
-      mobilities.put("C2",new Float(-3.406f));
-      mobilities.put("G1",new Float(1.546f));
-      mobilities.put("G2",new Float(-14.252f));
-      mobilities.put("T1",new Float(-1.7502f));
-      mobilities.put("T2",new Float(13.354f));
-      mobilities.put("S1",new Float(1.5458f));
-      mobilities.put("S2",new Float(2.6471f));
-    }
-
-    return ((Float) mobilities.get(key)).floatValue();
+/**
+ * Gets a MobilityModel for the current adjustment type
+ * @return MobilityModel matching the current adjustment type
+ */
+  public static MobilityModel getMobilityModel() {
+    return MobilityModel.getInstance(adjustmentType);
   }
 /**
  * Gets the adjustment scan for mutant base searching
@@ -69,24 +74,7 @@ public class Adjustment {
  */
   public static float getAdjustedScan(String base1, String base2, 
                                       int base1_no, int base1_scan) {
-    float base1_a,base2_a,base1_b,base2_b,base1_adj,base2_adj;
-
-// if mobility corrected data return uncorrected scan
-    if ( adjustmentType != 0 ) {
-      return (float) base1_scan;
-    }
-//  lookup slope adj for 1st base
-    base1_a = getAdjustment(base1+1);
-//  lookup slope adj for 2nd base
-    base2_a = getAdjustment(base2+1);
-//  lookup intercept adj for 1st base
-    base1_b = getAdjustment(base1+2);
-//  lookup intercept adj for 2nd base
-    base2_b = getAdjustment(base2+2);
-    base1_adj = base1_a * (float) Math.log((double) base1_no) + base1_b;
-    base2_adj = base2_a * (float) Math.log((double) base1_no) + base2_b;
-// return adjusted scan for additional base at same position
-    return (float) base1_scan - base1_adj + base2_adj;
+    return getMobilityModel().getAdjustedScan(base1,base2,base1_no,base1_scan);
   }
 /**
  * Gets the adjustment offset for amplimer base searching
@@ -98,32 +86,7 @@ public class Adjustment {
  */
   public static float getAdjustmentOffset(String base1, String base2, 
                                           int base1_no, int base2_no) {
-    float base1_a,base2_a,base1_b,base2_b,base1_adj,base2_adj;
-    float s_a,s_b,s_offset;
-
-// if mobility corrected data return scan increment for next base search
-    if ( adjustmentType != 0 ) {
-      if( base1_no > 100 ) {
-        return 10.0f;
-      } else {
-        return 9.0f;
-      }
-    }
-// lookup slope adj for 1st base
-    base1_a = getAdjustment(base1+1);
-// lookup slope adj for 2nd base
-    base2_a = getAdjustment(base2+1);
-// lookup intercept adj for 1st base
-    base1_b = getAdjustment(base1+2);
-// lookup intercept adj for 2nd base
-    base2_b = getAdjustment(base2+2);
-    base1_adj = base1_a * (float) Math.log((double) base1_no) + base1_b;
-    base2_adj = base2_a * (float) Math.log((double) base2_no) + base2_b;
-    s_a = getAdjustment("S"+1);
-    s_b = getAdjustment("S"+2);
-    s_offset = s_a * (float) Math.log((double) base1_no) + s_b;
-// return adjusted scan increment for base at neighbouring position
-    return s_offset - base1_adj + base2_adj;
+    return getMobilityModel().getAdjustmentOffset(base1,base2,base1_no,base2_no);
   }
 
 }
@@ -0,0 +1,205 @@
+package uk.ac.sanger.cgp.autocsa.analysis ;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import uk.ac.sanger.cgp.autocsa.util.*;
+
+/**
+ *<p> Writes & reads completed trace analyses (SeqTraceAnalysis objects as
+ * returned by AutoCSA.doCSAAnalysis()) in a compact versioned binary form,
+ * so a trace analysed in one run can be compared again in a later run
+ * without reloading & reanalysing it.</p>
+ *<p> A snapshot holds the converted (baselined & mobility corrected)
+ * data of each trace Channel, followed by the peak table, ref seq matching
+ * & parameters of the analysis. Int arrays are held as variable length
+ * deltas, so the Channel data is typically around a third of its in memory
+ * size.</p>
+ *<p> n.b. the peaks found in each Channel are not held, as once an
+ * analysis is complete they are only referenced through its peak table.
+ * </p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public final class AnalysisSnapshot {
+
+/** first int of every snapshot ("CSAS") */
+  public static final int MAGIC=0x43534153;
+/** format version written by write() & the only version read by read() */
+  public static final int VERSION=4;
+
+  private AnalysisSnapshot() {
+  }
+/**
+ * Writes a snapshot of an analysis & its Trace
+ * @param analysis the completed SeqTraceAnalysis
+ * @param out stream to write to (not closed)
+ * @throws IOException if the stream cannot be written
+ */
+  public static void write(SeqTraceAnalysis analysis, OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+    writeTrace(analysis.getTraceObj(),data);
+    analysis.writeSnapshot(data);
+    data.flush();
+  }
+/**
+ * Reads a snapshot written by write()
+ * @param in stream to read from (not closed)
+ * @return the SeqTraceAnalysis, with its Trace
+ * @throws IOException if the stream cannot be read or does not hold a
+ * snapshot of this version
+ */
+  public static SeqTraceAnalysis read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+    if( data.readInt() != MAGIC ) {
+      throw new IOException("AnalysisSnapshot.read() not an analysis snapshot");
+    }
+    int version=data.readInt();
+    if( version != VERSION ) {
+      throw new IOException("AnalysisSnapshot.read() unsupported version "+version);
+    }
+    Trace trace=readTrace(data);
+    return SeqTraceAnalysis.readSnapshot(data,trace);
+  }
+
+  private static void writeTrace(Trace trace, DataOutputStream out) throws IOException {
+    out.writeBoolean(trace != null);
+    if( trace == null ) { return; }
+    writeString(trace.traceFile,out);
+    writeString(trace.AbiType,out);
+    out.writeInt(trace.nChannels);
+    for( int j=0; j < trace.nChannels; ++j ) {
+      Channel chan=trace.getChannel(j);
+      writeString(chan.name,out);
+      writeInts(chan.getDataPoints(),out);
+    }
+  }
+  private static Trace readTrace(DataInputStream in) throws IOException {
+    if( ! in.readBoolean() ) { return null; }
+    String file=readString(in);
+    String abiType=readString(in);
+    Channel[] chans = new Channel[in.readInt()];
+    for( int j=0; j < chans.length; ++j ) {
+      chans[j] = new Channel();
+      chans[j].name=readString(in);
+      chans[j].setDataPoints(readInts(in));
+    }
+    return new Trace(file,abiType,chans);
+  }
+/**
+ * Writes a String which may be null
+ */
+  static void writeString(String s, DataOutputStream out) throws IOException {
+    out.writeBoolean(s != null);
+    if( s != null ) { out.writeUTF(s); }
+  }
+  static String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+/**
+ * Writes an int array which may be null, as its length then the zigzag
+ * encoded difference of each element from the previous one in 7 bit groups
+ */
+  static void writeInts(int[] data, DataOutputStream out) throws IOException {
+    if( data == null ) {
+      writeVarInt(0,out);
+      return;
+    }
+    writeVarInt(data.length+1,out);
+    int prev=0;
+    for( int i=0; i < data.length; ++i ) {
+      int delta=data[i]-prev;
+      writeVarInt((delta << 1) ^ (delta >> 31),out);
+      prev=data[i];
+    }
+  }
+  static int[] readInts(DataInputStream in) throws IOException {
+    int len=readVarInt(in)-1;
+    if( len < 0 ) { return null; }
+    int[] data = new int[len];
+    int prev=0;
+    for( int i=0; i < len; ++i ) {
+      int zz=readVarInt(in);
+      prev+=(zz >>> 1) ^ -(zz & 1);
+      data[i]=prev;
+    }
+    return data;
+  }
+/**
+ * Writes a char array which may be null, each char as a single byte
+ * (only base letters are held)
+ */
+  static void writeChars(char[] data, DataOutputStream out) throws IOException {
+    writeVarInt(( data == null ) ? 0 : data.length+1,out);
+    if( data == null ) { return; }
+    for( int i=0; i < data.length; ++i ) {
+      out.writeByte(data[i]);
+    }
+  }
+  static char[] readChars(DataInputStream in) throws IOException {
+    int len=readVarInt(in)-1;
+    if( len < 0 ) { return null; }
+    char[] data = new char[len];
+    for( int i=0; i < len; ++i ) {
+      data[i]=(char) (in.readByte() & 0xFF);
+    }
+    return data;
+  }
+/**
+ * Writes a byte array which may be null
+ */
+  static void writeBytes(byte[] data, DataOutputStream out) throws IOException {
+    writeVarInt(( data == null ) ? 0 : data.length+1,out);
+    if( data == null ) { return; }
+    out.write(data);
+  }
+  static byte[] readBytes(DataInputStream in) throws IOException {
+    int len=readVarInt(in)-1;
+    if( len < 0 ) { return null; }
+    byte[] data = new byte[len];
+    in.readFully(data);
+    return data;
+  }
+/**
+ * Writes a float array which may be null
+ */
+  static void writeFloats(float[] data, DataOutputStream out) throws IOException {
+    writeVarInt(( data == null ) ? 0 : data.length+1,out);
+    if( data == null ) { return; }
+    for( int i=0; i < data.length; ++i ) {
+      out.writeFloat(data[i]);
+    }
+  }
+  static float[] readFloats(DataInputStream in) throws IOException {
+    int len=readVarInt(in)-1;
+    if( len < 0 ) { return null; }
+    float[] data = new float[len];
+    for( int i=0; i < len; ++i ) {
+      data[i]=in.readFloat();
+    }
+    return data;
+  }
+  private static void writeVarInt(int value, DataOutputStream out) throws IOException {
+    while( (value & ~0x7F) != 0 ) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value>>>=7;
+    }
+    out.writeByte(value);
+  }
+  private static int readVarInt(DataInputStream in) throws IOException {
+    int value=0;
+    for( int shift=0; shift < 35; shift+=7 ) {
+      int b=in.readByte();
+      value|=(b & 0x7F) << shift;
+      if( (b & 0x80) == 0 ) { return value; }
+    }
+    throw new IOException("AnalysisSnapshot.readVarInt() malformed int");
+  }
+}
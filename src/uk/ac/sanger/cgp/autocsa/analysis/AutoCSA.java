@@ -36,6 +36,9 @@ public class AutoCSA {
   private SeqTraceAnalysis controlAnalysis=null;
   private SeqTraceAnalysis sampleAnalysis=null;
   private CSAParameters csaParams=null;
+  private MobilityModel mobilityModel=null;
+// n.b. K-mers of refSeq, indexed once for every trace of the amplimer
+  private RefKmerIndex refKmerIndex=null;
   private int[][] missingBases=null;
   private int[] minPeakAmps;
   private int[] minShoulderAmps;
@@ -59,6 +62,9 @@ public class AutoCSA {
   public static final int HET_INS_PEAK=4;
   public static final int HOM_INS_PEAK=5;
   public static final int DYE_BLOB_PEAK=6;
+// constants selecting how peaks are matched to the ref seq
+  public static final int GREEDY_MATCHING=0;
+  public static final int BANDED_MATCHING=1;
 
 /**
  * Constructor for AutoCSA.
@@ -91,6 +97,27 @@ public class AutoCSA {
  */
   public void setCSAParameters(CSAParameters params) {
     csaParams=params;
+    if( params != null ) {
+      mobilityModel=MobilityModel.getInstance(params.getMobilityCorrection());
+    }
+  }
+/**
+ * Set the mobility model used by the analysis and comparison steps.
+ * @param model the MobilityModel for the traces being analysed
+ */
+  public void setMobilityModel(MobilityModel model) {
+    mobilityModel=model;
+  }
+/**
+ * Get the mobility model used by the analysis and comparison steps.
+ * If none has been set the deprecated global Adjustment type is used.
+ * @return the MobilityModel for the traces being analysed
+ */
+  public MobilityModel getMobilityModel() {
+    if( mobilityModel == null ) {
+      return Adjustment.getMobilityModel();
+    }
+    return mobilityModel;
   }
 /**
  * Perform a CSA analysis step on the suplied trace.
@@ -105,8 +132,32 @@ public class AutoCSA {
   public SeqTraceAnalysis analyseTrace(Trace trace, int minAmp, int minDist,
       String traceID, boolean isNormal) throws BadTraceException {
 
+    SeqTraceAnalysis traceAnalysis=prepareAnalysis(trace,minDist,isNormal);
+
+    // apply method to identify ref seq in the trace
+    long matchStart=CSAMetrics.start();
+    traceAnalysis.matchPeaksToRefSeq();
+    CSAMetrics.stop(CSAMetrics.REF_MATCHING,matchStart);
+
+    finishAnalysis(traceAnalysis);
+
+// return the SeqTraceAnalysis object
+    return traceAnalysis;
+  }
+/**
+ * Finds the peaks of the supplied trace and sets up the analysis object
+ * ready for the peaks to be matched to the ref seq, i.e. the steps of
+ * analyseTrace() prior to SeqTraceAnalysis.matchPeaksToRefSeq().
+ * @param trace Trace object specifying input trace
+ * @param minDist minimum allowed distance between peaks (in scans)
+ * @param isNormal boolean indicating whether Trace is a Normal
+ * @return traceAnalysis SeqTraceAnalysis object with data sorted on scan
+ * @throws BadTraceException If 1 or more Channels contains zero peaks
+ */
+  public SeqTraceAnalysis prepareAnalysis(Trace trace, int minDist,
+      boolean isNormal) throws BadTraceException {
+
     SeqTraceAnalysis traceAnalysis = null;
-    int i,iChan;
 
     int[] apeaks = null;
     int[] cpeaks = null;
@@ -118,6 +169,7 @@ public class AutoCSA {
     int[] tpeaksPos = null;
 
 // derive the min intensity for peak detection for each channel
+    long peakStart=CSAMetrics.start();
     setMinIntensityForPeaks(trace,isNormal);
     int AIndex=Constants.INPUT_BASE_ORDERING.indexOf("A");
     int CIndex=Constants.INPUT_BASE_ORDERING.indexOf("C");
@@ -126,21 +178,26 @@ public class AutoCSA {
     int[] numPeaks = new int[] { 0, 0, 0, 0 };
 
 // find peaks then set intensities and locations to individual arrays
-    trace.getChannel(GIndex).findPeaks(minPeakAmps[GIndex],minShoulderAmps[GIndex],minShoulderAmpsRelaxed[GIndex],minDist);
+// n.b. channels are independent so may be searched concurrently
+    final Trace peakTrace=trace;
+    final int peakDist=minDist;
+    ChannelTasks.forEach(4,new ChannelTasks.Task() {
+      public void run(int chan) {
+        peakTrace.getChannel(chan).findPeaks(minPeakAmps[chan],minShoulderAmps[chan],minShoulderAmpsRelaxed[chan],peakDist);
+      }
+    });
     gpeaks=trace.getChannel(GIndex).getPeaks();
     gpeaksPos=trace.getChannel(GIndex).getPeaksPos();
 
-    trace.getChannel(AIndex).findPeaks(minPeakAmps[AIndex],minShoulderAmps[AIndex],minShoulderAmpsRelaxed[AIndex],minDist);
     apeaks=trace.getChannel(AIndex).getPeaks();
     apeaksPos=trace.getChannel(AIndex).getPeaksPos();
 
-    trace.getChannel(TIndex).findPeaks(minPeakAmps[TIndex],minShoulderAmps[TIndex],minShoulderAmpsRelaxed[TIndex],minDist);
     tpeaks=trace.getChannel(TIndex).getPeaks();
     tpeaksPos=trace.getChannel(TIndex).getPeaksPos();
 
-    trace.getChannel(CIndex).findPeaks(minPeakAmps[CIndex],minShoulderAmps[CIndex],minShoulderAmpsRelaxed[CIndex],minDist);
     cpeaks=trace.getChannel(CIndex).getPeaks();
     cpeaksPos=trace.getChannel(CIndex).getPeaksPos();
+    CSAMetrics.stop(CSAMetrics.PEAK_FINDING,peakStart);
 
     if ( gpeaks != null ) {
       numPeaks[GIndex]=gpeaks.length;
@@ -170,6 +227,11 @@ public class AutoCSA {
     traceAnalysis = new SeqTraceAnalysis(npeaks,refSearchStart,refSearchEnd,minPeakAmps,minDist);
 // associate the input Trace obj with the output SeqTraceAnalysis obj
     traceAnalysis.setTraceObj(trace);
+    traceAnalysis.setMobilityModel(getMobilityModel());
+    if( refKmerIndex == null ) {
+      refKmerIndex = new RefKmerIndex(refSeq);
+    }
+    traceAnalysis.setRefKmerIndex(refKmerIndex);
 
 //  set CSA analysis parameters
     if( csaParams != null ) {
@@ -179,6 +241,7 @@ public class AutoCSA {
                                       csaParams.getRefSearchStartInc(),
                                       csaParams.getMaxBasesMissed(),
                                       csaParams.getMinPeakSpacing());
+      traceAnalysis.setMatchingEngine(csaParams.getMatchingEngine());
     }
 // merge individual base scan & intensity arrays
     int[] scan = new int[npeaks+1];
@@ -206,27 +269,20 @@ public class AutoCSA {
 
     // now apply sort indices to rest of data
     // n.b only curIntensity & curBase are defined at this stage
-    traceAnalysis.setScan(traceAnalysis.sortAnalysisData(sortIndices,traceAnalysis.getScan()));
-    traceAnalysis.setIntensity(traceAnalysis.sortAnalysisData(sortIndices,traceAnalysis.getIntensity()));
-    traceAnalysis.setBase(traceAnalysis.sortBaseData(sortIndices,traceAnalysis.getBase()));
-
-    // apply method to identify ref seq in the trace
-    traceAnalysis.matchPeaksToRefSeq();
+    traceAnalysis.sortAnalysisArrays(sortIndices);
 
+    return traceAnalysis;
+  }
+  private void finishAnalysis(SeqTraceAnalysis traceAnalysis) {
+    int i;
     // n.b all data must be sorted wrt bpPos before SeqTraceComparison
     // can be instantiated
-    sortIndices=traceAnalysis.sortDataset(traceAnalysis.getbpPos());
-    traceAnalysis.setbpPos(traceAnalysis.sortAnalysisData(sortIndices,traceAnalysis.getbpPos()));
-    traceAnalysis.setScan(traceAnalysis.sortAnalysisData(sortIndices,traceAnalysis.getScan()));
-    traceAnalysis.setIntensity(traceAnalysis.sortAnalysisData(sortIndices,traceAnalysis.getIntensity()));
-    traceAnalysis.setTracePeakNo(traceAnalysis.sortAnalysisData(sortIndices,traceAnalysis.getTracePeakNo()));
-    traceAnalysis.setRealPeak(traceAnalysis.sortAnalysisData(sortIndices,traceAnalysis.getRealPeak()));
-    traceAnalysis.setFilter(traceAnalysis.sortAnalysisData(sortIndices,traceAnalysis.getFilter()));
-    traceAnalysis.setBase(traceAnalysis.sortBaseData(sortIndices,traceAnalysis.getBase()));
+    int[] sortIndices=traceAnalysis.sortDataset(traceAnalysis.getbpPos());
+    traceAnalysis.sortAnalysisArrays(sortIndices);
 
     int[] bpPos=traceAnalysis.getbpPos();
-// n.b. reset npeaks as analysis adds extra peak slots to arrays
-    npeaks=bpPos.length-1;      // as arrays are len npeaks+1
+// n.b. npeaks from bpPos as analysis adds extra peak slots to arrays
+    int npeaks=bpPos.length-1;      // as arrays are len npeaks+1
     // find extent of ref seq analysed
     for( i=0; i < npeaks+1; ++i ) {
       if( bpPos[i] > -1 ) { break; }
@@ -237,9 +293,6 @@ public class AutoCSA {
 
       traceAnalysis.setTraceHoles(findMissingBases(bpPos,bpPos[i],bpPos[npeaks],traceAnalysis.getAnalysisIndex(bpPos[i])));
     }
-
-// return the SeqTraceAnalysis object
-    return traceAnalysis;
   }
 /**
  * Outputs plain text files containing columns of trace analysis parameters.
@@ -293,6 +346,17 @@ public class AutoCSA {
     controlAnalysis=cTraceAnal;
     sampleAnalysis=sTraceAnal;
   }
+/**
+ * Prepares a Normal analysis for comparison against many Samples, so the
+ * control side of setupAutoCSA() is done once only. The quality values,
+ * dye blobs & ROI of the analysis should be set first and the analysis
+ * not changed afterwards.
+ * @param cTraceAnal the Normal analysis object (null if the analysis failed)
+ * @return the PreparedControl object
+ */
+  public PreparedControl prepareControl(SeqTraceAnalysis cTraceAnal) {
+    return new PreparedControl(cTraceAnal,refSeq);
+  }
 /**
  * Setup method defines a comparison object from individual analyses.
  * @param cTraceAnal the Normal analysis object
@@ -301,6 +365,22 @@ public class AutoCSA {
  */
   public SeqTraceComparison setupAutoCSA(SeqTraceAnalysis cTraceAnal,
                                          SeqTraceAnalysis sTraceAnal) {
+    return setupAutoCSA(cTraceAnal,sTraceAnal,null);
+  }
+/**
+ * Setup method defines a comparison object from a prepared Normal and a
+ * Sample analysis. The comparison uses its own copy of the Normal analysis.
+ * @param control the PreparedControl object (from prepareControl() with the same ref seq)
+ * @param sTraceAnal the Sample analysis object
+ * @return comparison the SeqTraceComparison object
+ */
+  public SeqTraceComparison setupAutoCSA(PreparedControl control,
+                                         SeqTraceAnalysis sTraceAnal) {
+    return setupAutoCSA(control.getAnalysis(),sTraceAnal,control);
+  }
+  private SeqTraceComparison setupAutoCSA(SeqTraceAnalysis cTraceAnal,
+                                          SeqTraceAnalysis sTraceAnal,
+                                          PreparedControl control) {
 
     SeqTraceAnalysis[] traceAnalysis = new SeqTraceAnalysis[2];
     SeqTraceComparison comparison = null;
@@ -322,6 +402,17 @@ public class AutoCSA {
         if(log.isInfoEnabled()) log.info("Trace Analysis Failed");
         return comparison;
       }
+// n.b. the control extent is already known for a PreparedControl
+      if( j == 0 && control != null ) {
+        if( control.getStartIndex() == -1 ) {
+          if(log.isInfoEnabled()) log.info("Failed to Locate Parent Seq");
+          return comparison;
+        }
+        bpIndex[j]=control.getStartIndex();
+        bpLimit1[j]=control.getFirstBase();
+        bpLimit2[j]=control.getLastBase();
+        continue;
+      }
       int[] bpPos=traceAnalysis[j].getbpPos();
       int npeaks=bpPos.length-1;      // as arrays are len npeaks+1
     // find extent of ref seq analysed
@@ -351,8 +442,9 @@ public class AutoCSA {
     //int bpLim1=Math.max(bpLimit1[0],bpLimit1[1]);
     //int bpLim2=Math.min(bpLimit2[0],bpLimit2[1]);
       int[] lims = new int[2];
-      lims=findComparisonLimits(traceAnalysis[0].getbpPos(),
-                                traceAnalysis[1].getbpPos());
+      int[] basePos=( control == null ) ? countBases(traceAnalysis[0].getbpPos())
+                                        : control.getBaseCounts();
+      lims=findComparisonLimits(basePos,traceAnalysis[1].getbpPos());
       int bpLim1=lims[0];
       int bpLim2=lims[1];
       int npoints=bpLim2-bpLim1+1;
@@ -368,7 +460,13 @@ public class AutoCSA {
     }
 
     // set trace holes common to portion of seq used for comparison
-    ArrayList ctrlList = findMissingBases(traceAnalysis[0].getbpPos(),bpLim1,bpLim2,ctrlStart);
+    ArrayList ctrlList=null;
+    if( control != null ) {
+      ctrlList=control.getMissingBases(bpLim1,bpLim2);
+    }
+    if( ctrlList == null ) {
+      ctrlList=findMissingBases(traceAnalysis[0].getbpPos(),bpLim1,bpLim2,ctrlStart);
+    }
     ArrayList sampList = findMissingBases(traceAnalysis[1].getbpPos(),bpLim1,bpLim2,sampStart);
 
     int count1=0;
@@ -415,6 +513,7 @@ public class AutoCSA {
 
 //  construct SeqTraceComparison object (workhorse trace comparison obj)
     comparison = new SeqTraceComparison(npoints);
+    comparison.setMobilityModel(getMobilityModel());
 
 //  set CSA comparison parameters
     if( csaParams != null ) {
@@ -482,12 +581,21 @@ public class AutoCSA {
       ROIStartCoord=start;
       ROIEndCoord=end;
   }
+/**
+ * Returns the bases missing from either trace of the last comparison setup.
+ * @return missing base numbers & flags (null if no bases are missing)
+ */
+  public int[][] getMissingBases() {
+    return missingBases;
+  }
 /**
  * Performs a search for all mutation types on the SeqTraceComparison object.
  * @param comparison the SeqTraceComparison to analyse
  */
   public void mutationScan(SeqTraceComparison comparison) {
 
+    long scanStart=CSAMetrics.start();
+
     // search array scale for Heterozygous point mutations
     // n.b. hetMutationScan needs control & sample trace analysis object
     // to search over and also to reset certain fields
@@ -512,19 +620,22 @@ public class AutoCSA {
     // n.b hom ins's are independent on missingBases
     comparison.homInsertionScan(controlAnalysis,sampleAnalysis,
                                 missingBases);
+    CSAMetrics.stop(CSAMetrics.MUTATION_SCAN,scanStart);
   }
-  private int[] findComparisonLimits(int[] bpPos1,int[] bpPos2) {
+  private int[] countBases(int[] bpPos) {
     int[] basePos = new int[refSeq.length()+1];
+// increment basePos[i] for each peak matched to the base
+    for( int i=0; i < bpPos.length; ++i ) {
+      if( bpPos[i] == -1 ) { continue; }
+      ++basePos[bpPos[i]];
+    }
+    return basePos;
+  }
+  private int[] findComparisonLimits(int[] basePos,int[] bpPos2) {
+// n.b. basePos holds the control counts from countBases() & is updated
     int[] limits = new int[2];
     int i;
-    for( i=0; i < basePos.length; ++i ) {
-      basePos[i]=0;
-    }
 // increment basePos[i] for each trace where we have analysed the base
-    for( i=0; i < bpPos1.length; ++i ) {
-      if( bpPos1[i] == -1 ) { continue; }
-      ++basePos[bpPos1[i]];
-    }
     for( i=0; i < bpPos2.length; ++i ) {
       if( bpPos2[i] == -1 ) { continue; }
       ++basePos[bpPos2[i]];
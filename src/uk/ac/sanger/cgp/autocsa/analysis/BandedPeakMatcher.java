@@ -0,0 +1,411 @@
+package uk.ac.sanger.cgp.autocsa.analysis ;
+
+import java.util.Arrays;
+
+/**
+ *<p> Matches the peaks of a SeqTraceAnalysis to its ref seq with a banded
+ * dynamic programme, an alternative to the greedy search of
+ * SeqTraceAnalysis.matchSequence() with bounded run time.</p>
+ *<p> A state is a base No matched to a (filtered) peak of the same base.
+ * Each state either starts a chain or extends the best scoring chain
+ * ending up to MAX_STEP bases earlier whose scan is where the
+ * MobilityModel base spacing puts it (within the peak search bin), or
+ * jumps a trace hole of up to maxBasesMissed bases from the highest
+ * scoring best state of the earlier base Nos. The highest scoring chain
+ * (a local alignment) is the match.</p>
+ *<p> Only peaks within a band of scans are tried for each base No: a
+ * window about the scan predicted by the best chain being extended & a
+ * window about the scan predicted for its block of bases by votes of the
+ * ref seq 3-mers against those of consecutive peaks. Run time is then
+ * O(bases*(band+maxBasesMissed)) rather than O(bases*peaks), & a trace
+ * with no anchored block (e.g. of another amplimer) is not matched.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+final class BandedPeakMatcher {
+
+// n.b. max bases spanned by an extension, longer gaps are trace holes
+  private static final int MAX_STEP=4;
+// scores of a matched base, a base skipped by an extension & a hole
+  private static final float MATCH=1.0f;
+  private static final float SKIP=1.5f;
+  private static final float HOLE=4.0f;
+// n.b. max penalty for a scan off the modelled spacing (at the bin edge)
+  private static final float DEVIATION=0.5f;
+// n.b. min score per matched base of the best chain
+  private static final float MIN_SCORE=0.5f;
+// n.b. relative error allowed in the modelled spacing over a hole
+  private static final float SPACING_ERROR=0.25f;
+// ref seq bases per anchor block, band half width about its anchor & the
+// scan window in which anchor votes are counted
+  private static final int BLOCK=50;
+  private static final int ANCHOR_BAND=75;
+  private static final int ANCHOR_WINDOW=50;
+  private static final int MIN_ANCHOR_VOTES=6;
+// n.b. min length of a chain before the band follows it
+  private static final int TRACK_LENGTH=5;
+  private static final int NO_ANCHOR=Integer.MIN_VALUE;
+
+  private final String refSeq;
+  private final int first;
+  private final int last;
+  private final float bin;
+  private final int maxMissed;
+// candidate peaks (filtered A,C,G,T) per channel & merged, in scan order
+  private final int[][] chanPeaks = new int[4][];
+  private final int[][] chanScans = new int[4][];
+  private final int[] candScans;
+  private final int[] candChans;
+// per base No (from first): modelled scan relative to first & channel
+  private final float[] expected;
+  private final int[] refChans;
+
+// states, in base No order then scan order
+  private int nStates=0;
+  private int[] stBase = new int[256];
+  private int[] stPeak = new int[256];
+  private int[] stScan = new int[256];
+  private int[] stBack = new int[256];
+  private int[] stLength = new int[256];
+  private float[] stScore = new float[256];
+// per base No (from first): range of its states & its best state
+  private final int[] stFrom;
+  private final int[] stTo;
+  private final int[] bestState;
+// best state a trace hole ending at the current base No may jump from
+  private int holeState=-1;
+
+/**
+ * Allocates a BandedPeakMatcher over the analysis arrays
+ * @param curScan scans of the peaks
+ * @param curBase bases of the peaks
+ * @param filter filter values of the peaks (1 for a searchable peak)
+ * @param nPeaks No of peaks
+ * @param refSeq the ref seq
+ * @param refSearchStart first base No to match
+ * @param refSearchEnd last base No to match
+ * @param bin peak search bin (in scans)
+ * @param maxMissed max No of bases in a trace hole
+ * @param mobility MobilityModel giving the spacing of bases
+ */
+  BandedPeakMatcher(int[] curScan, char[] curBase, int[] filter, int nPeaks,
+                    String refSeq, int refSearchStart, int refSearchEnd,
+                    float bin, int maxMissed, MobilityModel mobility) {
+    this.refSeq=refSeq;
+    first=Math.max(1,refSearchStart);
+    last=Math.min(refSeq.length(),refSearchEnd);
+    this.bin=bin;
+    this.maxMissed=Math.max(MAX_STEP,maxMissed);
+
+// n.b. sorted on scan then index as peaks added to reserved slots may
+// be out of scan order
+    long[] packed = new long[nPeaks];
+    int nCand=0;
+    for( int i=1; i <= nPeaks; ++i ) {
+      if( filter[i] != 1 || PeakIndex.getChannel(curBase[i]) == PeakIndex.OTHER ) continue;
+      packed[nCand++]=((long) curScan[i] << 32) | i;
+    }
+    Arrays.sort(packed,0,nCand);
+    candScans = new int[nCand];
+    candChans = new int[nCand];
+    int[] count = new int[4];
+    for( int p=0; p < nCand; ++p ) {
+      int i=(int) packed[p];
+      candScans[p]=curScan[i];
+      candChans[p]=PeakIndex.getChannel(curBase[i]);
+      ++count[candChans[p]];
+    }
+    for( int c=0; c < 4; ++c ) {
+      chanPeaks[c] = new int[count[c]];
+      chanScans[c] = new int[count[c]];
+      count[c]=0;
+    }
+    for( int p=0; p < nCand; ++p ) {
+      int c=candChans[p];
+      chanPeaks[c][count[c]]=(int) packed[p];
+      chanScans[c][count[c]++]=candScans[p];
+    }
+
+    int n=Math.max(0,last-first+1);
+    expected = new float[n];
+    refChans = new int[n];
+    for( int k=0; k < n; ++k ) {
+      refChans[k]=PeakIndex.getChannel(refSeq.charAt(first+k-1));
+      if( k > 0 ) {
+        int bp=first+k-1;
+        expected[k]=expected[k-1]+mobility.getAdjustmentOffset(getModelBase(bp),getModelBase(bp+1),bp,bp+1);
+      }
+    }
+    stFrom = new int[n];
+    stTo = new int[n];
+    bestState = new int[n];
+  }
+/**
+ * Finds the best matching chain of peaks
+ * @param minLength min No of matched bases for a match
+ * @return int array of the matched analysis index of each base No (0 for
+ * none), null if no chain matches minLength bases
+ */
+  int[] match(int minLength) {
+    if( last < first ) return null;
+    int[] anchors=findAnchors();
+    int best=fill(anchors);
+// n.b. the score must also reach minLength & MIN_SCORE per base, i.e. the
+// chain is long & dense net of the skip, hole & spacing penalties, which
+// rejects the sparse chains found in traces of another sequence
+    if( best < 0 || stLength[best] < minLength ) return null;
+    if( stScore[best] < minLength*MATCH || stScore[best] < MIN_SCORE*stLength[best] ) return null;
+    int[] matched = new int[refSeq.length()+1];
+    for( int s=best; s >= 0; s=stBack[s] ) {
+      matched[first+stBase[s]]=stPeak[s];
+    }
+    return matched;
+  }
+
+// n.b. bases without mobility coefficients (e.g. N) are spaced as an A
+  private String getModelBase(int bp) {
+    char base=refSeq.charAt(bp-1);
+    return ( PeakIndex.getChannel(base) == PeakIndex.OTHER ) ? "A" : String.valueOf(base);
+  }
+/**
+ * Scores the states of every base No in turn
+ * @param anchors anchor scan per block of bases
+ * @return the best state, -1 if none
+ */
+  private int fill(int[] anchors) {
+    nStates=0;
+    int best=-1;
+    int[] lo = new int[2];
+    int[] hi = new int[2];
+    for( int k=0; k < expected.length; ++k ) {
+      stFrom[k]=nStates;
+      bestState[k]=-1;
+      holeState=findHoleState(k);
+      int c=refChans[k];
+      if( c != PeakIndex.OTHER ) {
+        int nWindows=0;
+        int anchor=anchors[k/BLOCK];
+        if( anchor != NO_ANCHOR ) {
+          float centre=anchor+expected[k];
+          lo[nWindows]=(int) Math.floor(centre-ANCHOR_BAND);
+          hi[nWindows++]=(int) Math.ceil(centre+ANCHOR_BAND);
+        }
+        int t=findTrackedState(k);
+        if( t >= 0 ) {
+          float e=expected[k]-expected[stBase[t]];
+          float centre=stScan[t]+e;
+          float w=2.0f*bin+SPACING_ERROR*e;
+          lo[nWindows]=(int) Math.floor(centre-w);
+          hi[nWindows++]=(int) Math.ceil(centre+w);
+        }
+        if( nWindows == 2 ) {
+// n.b. merge into ascending, non overlapping windows
+          if( lo[1] < lo[0] ) {
+            int tmp=lo[0]; lo[0]=lo[1]; lo[1]=tmp;
+            tmp=hi[0]; hi[0]=hi[1]; hi[1]=tmp;
+          }
+          if( lo[1] <= hi[0] ) {
+            hi[0]=Math.max(hi[0],hi[1]);
+            nWindows=1;
+          }
+        }
+        int[] scans=chanScans[c];
+        for( int w=0; w < nWindows; ++w ) {
+          for( int p=lowerBound(scans,0,scans.length,lo[w]); p < scans.length && scans[p] <= hi[w]; ++p ) {
+            addState(k,chanPeaks[c][p],scans[p]);
+          }
+        }
+      }
+      stTo[k]=nStates;
+      int b=bestState[k];
+      if( b >= 0 && ( best < 0 || stScore[b] > stScore[best] ) ) {
+        best=b;
+      }
+    }
+    return best;
+  }
+/**
+ * Adds the state of a base No matched to a peak, extending the best chain
+ * @param k base No (from first)
+ * @param peak analysis index of the peak
+ * @param scan scan of the peak
+ */
+  private void addState(int k, int peak, int scan) {
+    float score=MATCH;
+    int back=-1;
+    int length=1;
+    for( int g=1; g <= MAX_STEP && g <= k; ++g ) {
+      int kp=k-g;
+      float e=expected[k]-expected[kp];
+      float tol=bin*(1.0f+0.5f*(g-1));
+      float from=scan-e-tol;
+      float to=scan-e+tol;
+      for( int s=lowerBound(stScan,stFrom[kp],stTo[kp],(int) Math.ceil(from)); s < stTo[kp] && stScan[s] <= to; ++s ) {
+        float cand=stScore[s]+MATCH-SKIP*(g-1)-DEVIATION*Math.abs(scan-stScan[s]-e)/tol;
+        if( cand > score ) {
+          score=cand;
+          back=s;
+          length=stLength[s]+1;
+        }
+      }
+    }
+    if( holeState >= 0 ) {
+      int s=holeState;
+      float e=expected[k]-expected[stBase[s]];
+      float tol=bin+SPACING_ERROR*e;
+      float d=Math.abs(scan-stScan[s]-e);
+      if( d <= tol ) {
+        float cand=stScore[s]+MATCH-HOLE-DEVIATION*d/tol;
+        if( cand > score ) {
+          score=cand;
+          back=s;
+          length=stLength[s]+1;
+        }
+      }
+    }
+    if( nStates == stPeak.length ) {
+      grow();
+    }
+    int s=nStates++;
+    stBase[s]=k;
+    stPeak[s]=peak;
+    stScan[s]=scan;
+    stBack[s]=back;
+    stLength[s]=length;
+    stScore[s]=score;
+    if( bestState[k] < 0 || score > stScore[bestState[k]] ) {
+      bestState[k]=s;
+    }
+  }
+// the highest scoring best state of the bases a hole before k, -1 if
+// none scores more than a hole costs
+  private int findHoleState(int k) {
+    int hole=-1;
+    for( int kp=k-MAX_STEP-1; kp >= 0 && kp >= k-maxMissed; --kp ) {
+      int s=bestState[kp];
+      if( s < 0 || stScore[s] <= HOLE ) continue;
+      if( hole < 0 || stScore[s] > stScore[hole] ) {
+        hole=s;
+      }
+    }
+    return hole;
+  }
+// the highest scoring best state of the bases before k which the band
+// should follow, -1 if none
+  private int findTrackedState(int k) {
+    int tracked=-1;
+    for( int kp=k-1; kp >= 0 && kp >= k-maxMissed; --kp ) {
+      int s=bestState[kp];
+      if( s < 0 || stLength[s] < TRACK_LENGTH ) continue;
+      if( tracked < 0 || stScore[s] > stScore[tracked] ) {
+        tracked=s;
+      }
+    }
+    return tracked;
+  }
+/**
+ * Finds the scan of the first base No of each block of bases, as voted
+ * for by the peaks starting each run of 3 consecutive candidate peaks
+ * whose bases occur in the block
+ * @return anchor scan per block, NO_ANCHOR if too few votes agree
+ */
+  private int[] findAnchors() {
+    int n=expected.length;
+    int nBlocks=(n+BLOCK-1)/BLOCK;
+    int[] anchors = new int[nBlocks];
+    Arrays.fill(anchors,NO_ANCHOR);
+// n.b. base Nos (from first) of each 3-mer of the ref seq, ascending
+    int[] head = new int[64];
+    int[] next = new int[n];
+    Arrays.fill(head,-1);
+    for( int k=n-3; k >= 0; --k ) {
+      int code=getCode(refChans,k);
+      if( code < 0 ) continue;
+      next[k]=head[code];
+      head[code]=k;
+    }
+    int[] nVotes = new int[nBlocks];
+    for( int pass=0; pass < 2; ++pass ) {
+      int[][] votes=null;
+      if( pass == 1 ) {
+        votes = new int[nBlocks][];
+        for( int b=0; b < nBlocks; ++b ) {
+          votes[b] = new int[nVotes[b]];
+          nVotes[b]=0;
+        }
+      }
+      for( int p=0; p+2 < candChans.length; ++p ) {
+        int code=getCode(candChans,p);
+        for( int k=head[code]; k >= 0; k=next[k] ) {
+          int b=k/BLOCK;
+          if( pass == 1 ) {
+            votes[b][nVotes[b]]=candScans[p]-Math.round(expected[k]);
+          }
+          ++nVotes[b];
+        }
+      }
+      if( pass == 1 ) {
+        for( int b=0; b < nBlocks; ++b ) {
+          anchors[b]=findDensest(votes[b]);
+        }
+      }
+    }
+    return anchors;
+  }
+// centre of the window of ANCHOR_WINDOW scans holding most votes
+  private static int findDensest(int[] votes) {
+    Arrays.sort(votes);
+    int max=0;
+    int anchor=NO_ANCHOR;
+    int i=0;
+    for( int j=0; j < votes.length; ++j ) {
+      while( votes[j]-votes[i] > ANCHOR_WINDOW ) {
+        ++i;
+      }
+      if( j-i+1 > max ) {
+        max=j-i+1;
+        anchor=(votes[i]+votes[j]) >> 1;
+      }
+    }
+    return ( max < MIN_ANCHOR_VOTES ) ? NO_ANCHOR : anchor;
+  }
+  private static int getCode(int[] chans, int from) {
+    int c0=chans[from];
+    int c1=chans[from+1];
+    int c2=chans[from+2];
+    if( c0 == PeakIndex.OTHER || c1 == PeakIndex.OTHER || c2 == PeakIndex.OTHER ) return -1;
+    return (c0 << 4) | (c1 << 2) | c2;
+  }
+// first position in [from,to) whose value is at least key
+  private static int lowerBound(int[] values, int from, int to, int key) {
+    int lo=from;
+    int hi=to;
+    while( lo < hi ) {
+      int mid=(lo+hi) >>> 1;
+      if( values[mid] < key ) {
+        lo=mid+1;
+      } else {
+        hi=mid;
+      }
+    }
+    return lo;
+  }
+  private void grow() {
+    int len=2*stPeak.length;
+    stBase=copyOf(stBase,len);
+    stPeak=copyOf(stPeak,len);
+    stScan=copyOf(stScan,len);
+    stBack=copyOf(stBack,len);
+    stLength=copyOf(stLength,len);
+    float[] score = new float[len];
+    System.arraycopy(stScore,0,score,0,nStates);
+    stScore=score;
+  }
+  private int[] copyOf(int[] src, int len) {
+    int[] dst = new int[len];
+    System.arraycopy(src,0,dst,0,nStates);
+    return dst;
+  }
+
+}
@@ -0,0 +1,148 @@
+package uk.ac.sanger.cgp.autocsa.analysis ;
+
+import java.util.Arrays;
+
+/**
+ *<p> Scratch state of SeqTraceAnalysis reference matching, reused by each
+ * thread across matchSequence() calls & traces rather than allocated per
+ * call.</p>
+ *<p> Holds the matched base rows (peak) of the current trial in a flat
+ * array of FIELDS ints per base No, laid out as the prev_peak rows of
+ * matchPeaksToRefSeq(), & the fork values per analysis index. Both are
+ * cleared by starting a new generation: a row or fork value not stamped
+ * with the current generation reads as 0, so clearing costs O(1) rather
+ * than a fill of every row & peak.</p>
+ *<p> Not thread safe, use {@link #get(int,int)} for the instance of the
+ * current thread.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+final class MatchScratch {
+
+/** No of ints per base No row, as prev_peak */
+  static final int FIELDS=6;
+
+  private static final ThreadLocal SCRATCH = new ThreadLocal();
+
+  private int[] peak = new int[0];
+  private int[] peakGen = new int[0];
+  private int[] forkValue = new int[0];
+  private int[] forkGen = new int[0];
+  private int[] prevPeak = new int[0];
+  private int gen=1;
+
+  private MatchScratch() {
+  }
+/**
+ * Gets the scratch state of the current thread, cleared & large enough
+ * for a match
+ * @param rows No of base No rows (reference length + 1)
+ * @param nPeaks No of peaks in the analysis
+ * @return the MatchScratch
+ */
+  static MatchScratch get(int rows, int nPeaks) {
+    MatchScratch s=(MatchScratch) SCRATCH.get();
+    if( s == null ) {
+      s = new MatchScratch();
+      SCRATCH.set(s);
+    }
+    s.ensureCapacity(rows,nPeaks+1);
+    s.clear();
+    return s;
+  }
+/**
+ * Gets a zeroed flat prev_peak array of FIELDS ints per row, reused by
+ * this thread until the next call
+ * @param rows No of base No rows (reference length + 1)
+ * @return the array (may be longer than needed)
+ */
+  int[] getPrevPeak(int rows) {
+    int len=rows*FIELDS;
+    if( prevPeak.length < len ) {
+      prevPeak = new int[len];
+    } else {
+      Arrays.fill(prevPeak,0,len,0);
+    }
+    return prevPeak;
+  }
+/**
+ * Logically zeroes every peak row & fork value
+ */
+  void clear() {
+    if( ++gen == 0 ) {
+// n.b. stamps wrapped, so stale stamps may match again
+      Arrays.fill(peakGen,0);
+      Arrays.fill(forkGen,0);
+      gen=1;
+    }
+  }
+/**
+ * Gets a field of a peak row
+ * @param row base No
+ * @param field 1 to FIELDS-1, as prev_peak
+ * @return the value, 0 if not set since clear()
+ */
+  int getPeak(int row, int field) {
+    return ( peakGen[row] == gen ) ? peak[row*FIELDS+field] : 0;
+  }
+/**
+ * Sets a field of a peak row
+ * @param row base No
+ * @param field 1 to FIELDS-1, as prev_peak
+ * @param value the value
+ */
+  void setPeak(int row, int field, int value) {
+    if( peakGen[row] != gen ) {
+      Arrays.fill(peak,row*FIELDS,(row+1)*FIELDS,0);
+      peakGen[row]=gen;
+    }
+    peak[row*FIELDS+field]=value;
+  }
+/**
+ * Copies fields 1 to FIELDS-1 of a range of peak rows to a flat prev_peak
+ * array
+ * @param from first row
+ * @param to last row (inclusive)
+ * @param dst the prev_peak array
+ */
+  void copyPeaks(int from, int to, int[] dst) {
+    for( int row=from; row <= to; ++row ) {
+      int off=row*FIELDS;
+      if( peakGen[row] == gen ) {
+        System.arraycopy(peak,off+1,dst,off+1,FIELDS-1);
+      } else {
+        Arrays.fill(dst,off+1,off+FIELDS,0);
+      }
+    }
+  }
+/**
+ * Gets the fork value of a peak
+ * @param index analysis array index
+ * @return the value, 0 if not set since clear()
+ */
+  int getForkValue(int index) {
+    return ( forkGen[index] == gen ) ? forkValue[index] : 0;
+  }
+/**
+ * Sets the fork value of a peak
+ * @param index analysis array index
+ * @param value the value
+ */
+  void setForkValue(int index, int value) {
+    forkGen[index]=gen;
+    forkValue[index]=value;
+  }
+
+  private void ensureCapacity(int rows, int peaks) {
+    if( peakGen.length < rows ) {
+      peak = new int[rows*FIELDS];
+      peakGen = new int[rows];
+    }
+    if( forkGen.length < peaks ) {
+      forkValue = new int[peaks];
+      forkGen = new int[peaks];
+    }
+  }
+
+}
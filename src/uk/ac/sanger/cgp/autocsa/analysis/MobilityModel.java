@@ -0,0 +1,142 @@
+package uk.ac.sanger.cgp.autocsa.analysis ;
+
+/**
+ *<p> Immutable mobility property/base spacing model for one analysis run.</p>
+ *<p> Replaces the process wide state in {@link Adjustment}, a single
+ * instance may be shared between threads as nothing can be modified
+ * after construction.</p>
+ *<p> Mobility coefficients are only valid for ABI 3730 POP7 trace files
+ * and are only used for non mobility corrected traces (type 0).</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public final class MobilityModel implements java.io.Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+/**
+ * model for non mobility corrected trace files (the default)
+ */
+  public static final MobilityModel UNCORRECTED = new MobilityModel(0);
+/**
+ * model for mobility corrected trace files
+ */
+  public static final MobilityModel CORRECTED = new MobilityModel(1);
+
+// parameterised mobility correction coefficients (3730 POP7)
+// index 0 = slope, index 1 = intercept
+  private static final float[] A_COEFFS = { 0.0f, 0.0f };
+  private static final float[] C_COEFFS = { 0.5541f, -3.406f };
+  private static final float[] G_COEFFS = { 1.546f, -14.252f };
+  private static final float[] T_COEFFS = { -1.7502f, 13.354f };
+  private static final float[] S_COEFFS = { 1.5458f, 2.6471f };
+
+  private final int adjustmentType;
+
+/**
+ * Allocates a MobilityModel for the specified adjustment type.
+ * @param type type code of adjustment (0 = not mobility corrected)
+ */
+  public MobilityModel(int type) {
+    adjustmentType=type;
+  }
+/**
+ * Gets a MobilityModel for the specified adjustment type, the shared
+ * instances are returned for the standard types
+ * @param type type code of adjustment
+ * @return MobilityModel for the adjustment type
+ */
+  public static MobilityModel getInstance(int type) {
+    if( type == 0 ) {
+      return UNCORRECTED;
+    }
+    if( type == 1 ) {
+      return CORRECTED;
+    }
+    return new MobilityModel(type);
+  }
+/**
+ * Gets the type code of the adjustment
+ * @return type code of the adjustment
+ */
+  public int getAdjustmentType() {
+    return adjustmentType;
+  }
+/**
+ * Indicates whether the trace data has been mobility corrected
+ * @return true if the adjustment type is non zero
+ */
+  public boolean isMobilityCorrected() {
+    return adjustmentType != 0;
+  }
+  private static float[] getCoefficients(String base) {
+    switch( base.charAt(0) ) {
+      case 'A': return A_COEFFS;
+      case 'C': return C_COEFFS;
+      case 'G': return G_COEFFS;
+      case 'T': return T_COEFFS;
+      case 'S': return S_COEFFS;
+      default:
+        throw new IllegalArgumentException("No mobility coefficients for base: "+base);
+    }
+  }
+/**
+ * Gets the adjustment scan for mutant base searching
+ * @param base1 the current base type
+ * @param base2 the search base type
+ * @param base1_no the current base No
+ * @param base1_scan the current base scan index
+ * @return adjusted scan for centre of the search base window
+ */
+  public float getAdjustedScan(String base1, String base2,
+                               int base1_no, int base1_scan) {
+    float base1_adj,base2_adj;
+
+// if mobility corrected data return uncorrected scan
+    if ( adjustmentType != 0 ) {
+      return (float) base1_scan;
+    }
+    float[] b1 = getCoefficients(base1);
+    float[] b2 = getCoefficients(base2);
+    base1_adj = b1[0] * (float) Math.log((double) base1_no) + b1[1];
+    base2_adj = b2[0] * (float) Math.log((double) base1_no) + b2[1];
+// return adjusted scan for additional base at same position
+    return (float) base1_scan - base1_adj + base2_adj;
+  }
+/**
+ * Gets the adjustment offset for amplimer base searching
+ * @param base1 the current base type
+ * @param base2 the next base type
+ * @param base1_no the current base No
+ * @param base2_no the next base No
+ * @return spacing (in scans) for next base search
+ */
+  public float getAdjustmentOffset(String base1, String base2,
+                                   int base1_no, int base2_no) {
+    float base1_adj,base2_adj,s_offset;
+
+// if mobility corrected data return scan increment for next base search
+    if ( adjustmentType != 0 ) {
+      if( base1_no > 100 ) {
+        return 10.0f;
+      } else {
+        return 9.0f;
+      }
+    }
+    float[] b1 = getCoefficients(base1);
+    float[] b2 = getCoefficients(base2);
+    base1_adj = b1[0] * (float) Math.log((double) base1_no) + b1[1];
+    base2_adj = b2[0] * (float) Math.log((double) base2_no) + b2[1];
+    s_offset = S_COEFFS[0] * (float) Math.log((double) base1_no) + S_COEFFS[1];
+// return adjusted scan increment for base at neighbouring position
+    return s_offset - base1_adj + base2_adj;
+  }
+/**
+ * Overides the toString() object method
+ */
+  public String toString() {
+    return this.getClass().getName()+": adjustmentType: "+adjustmentType;
+  }
+
+}
@@ -0,0 +1,264 @@
+package uk.ac.sanger.cgp.autocsa.analysis ;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ *<p> Scan ordered index of the peaks of a SeqTraceAnalysis.</p>
+ *<p> Peaks are held per channel (A,C,G,T & a fifth channel for any other
+ * base, e.g. the reserved N peaks) as analysis array indices sorted by
+ * scan, so the peaks of a base within a scan window are found with a
+ * binary search & a walk over the window only. A BitSet per channel &
+ * peak type (realPeak value) marks the positions holding peaks of that
+ * type.</p>
+ *<p> The index reads the scan, base & realPeak arrays it was built from.
+ * Changes to those arrays must be passed on with {@link #setType(int,int)}
+ * & {@link #update(int)}; replacing an array requires a new index.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+class PeakIndex {
+
+/** channel holding peaks of any base other than A,C,G,T */
+  static final int OTHER=4;
+  private static final String CHANNELS="ACGT";
+  private static final int NUM_CHANNELS=5;
+// n.b. realPeak values run from NOISE_PEAK (0) to DYE_BLOB_PEAK (6)
+  private static final int NUM_TYPES=7;
+
+  private int[] curScan;
+  private char[] curBase;
+// peak (analysis array index) & its scan at each position, per channel
+  private int[][] peaks = new int[NUM_CHANNELS][];
+  private int[][] scans = new int[NUM_CHANNELS][];
+  private int[] size = new int[NUM_CHANNELS];
+  private BitSet[][] typeBits = new BitSet[NUM_CHANNELS][NUM_TYPES];
+// No of neighbouring peaks of a type whose analysis indices are out of
+// scan order, when 0 the peaks of that type are in scan order
+  private int[][] disorder = new int[NUM_CHANNELS][NUM_TYPES];
+// n.b. per analysis index: channel, position in channel & indexed type
+  private int[] chanOf;
+  private int[] posOf;
+  private int[] typeOf;
+
+/**
+ * Builds the index over peaks 1 to nPeaks
+ * @param scan curScan array of the analysis
+ * @param base curBase array of the analysis
+ * @param realPeak realPeak array of the analysis
+ * @param nPeaks No of peaks in the analysis
+ */
+  PeakIndex(int[] scan, char[] base, byte[] realPeak, int nPeaks) {
+    curScan=scan;
+    curBase=base;
+    chanOf = new int[nPeaks+1];
+    posOf = new int[nPeaks+1];
+    typeOf = new int[nPeaks+1];
+    int[] count = new int[NUM_CHANNELS];
+    for( int i=1; i <= nPeaks; ++i ) {
+      chanOf[i]=getChannel(base[i]);
+      ++count[chanOf[i]];
+    }
+// sort on scan then index, both packed into a long
+    long[][] keys = new long[NUM_CHANNELS][];
+    for( int c=0; c < NUM_CHANNELS; ++c ) {
+      keys[c] = new long[count[c]];
+      size[c]=0;
+    }
+    for( int i=1; i <= nPeaks; ++i ) {
+      int c=chanOf[i];
+      keys[c][size[c]++]=((long) scan[i] << 32) | (long) i;
+    }
+    for( int c=0; c < NUM_CHANNELS; ++c ) {
+      Arrays.sort(keys[c]);
+      peaks[c] = new int[Math.max(1,size[c])];
+      scans[c] = new int[Math.max(1,size[c])];
+      for( int t=0; t < NUM_TYPES; ++t ) {
+        typeBits[c][t] = new BitSet(size[c]);
+      }
+      for( int p=0; p < size[c]; ++p ) {
+        int i=(int) keys[c][p];
+        peaks[c][p]=i;
+        scans[c][p]=scan[i];
+        posOf[i]=p;
+      }
+    }
+    chanOf[0]=-1;
+    typeOf[0]=-1;
+    for( int i=1; i <= nPeaks; ++i ) {
+      typeOf[i]=-1;
+      setType(i,realPeak[i]);
+    }
+  }
+/**
+ * Gets the index channel of a base
+ * @param base one of A,C,G,T or any other char
+ * @return channel No, OTHER for bases other than A,C,G,T
+ */
+  static int getChannel(char base) {
+    int c=CHANNELS.indexOf(base);
+    return ( c < 0 ) ? OTHER : c;
+  }
+/**
+ * Gets the No of peaks in a channel
+ * @param chan channel No
+ * @return No of peaks
+ */
+  int getNumPeaks(int chan) {
+    return size[chan];
+  }
+/**
+ * Gets the peak at a position in a channel
+ * @param chan channel No
+ * @param pos position (0 to getNumPeaks()-1)
+ * @return analysis array index of the peak
+ */
+  int getPeak(int chan, int pos) {
+    return peaks[chan][pos];
+  }
+/**
+ * Finds the first position at or above a scan limit
+ * @param chan channel No
+ * @param limit scan limit
+ * @param inclusive true to include a peak at the limit
+ * @return position, getNumPeaks() if all peaks are below the limit
+ */
+  int findPosition(int chan, float limit, boolean inclusive) {
+    int[] s=scans[chan];
+    int lo=0;
+    int hi=size[chan];
+    while( lo < hi ) {
+      int mid=(lo+hi) >>> 1;
+      float scan=(float) s[mid];
+      if( scan < limit || (! inclusive && scan == limit) ) {
+        lo=mid+1;
+      } else {
+        hi=mid;
+      }
+    }
+    return lo;
+  }
+/**
+ * Finds the next position holding a peak of a type
+ * @param chan channel No
+ * @param type realPeak value
+ * @param pos position to start from
+ * @return position, -1 if there are no more peaks of the type
+ */
+  int nextPosition(int chan, int type, int pos) {
+    if( type < 0 || type >= NUM_TYPES ) return -1;
+    return typeBits[chan][type].nextSetBit(pos);
+  }
+/**
+ * <p>Finds the peak of a type next to a scan, as found by walking the
+ * channel peaks in analysis array order.</p>
+ * <p>Going left this is the peak before the first at or after the scan,
+ * going right the first peak after the scan.</p>
+ * @param chan channel No
+ * @param type realPeak value
+ * @param targetScan the scan to search from
+ * @param inc -1 to search left, else right
+ * @return analysis array index, 0 if there is no such peak or -1 if the
+ * array order of the peaks differs from their scan order so the index
+ * cannot give the answer
+ */
+  int findAdjacentPeak(int chan, int type, float targetScan, int inc) {
+    if( chan == OTHER || type < 0 || type >= NUM_TYPES ) return -1;
+    if( disorder[chan][type] > 0 ) return -1;
+    BitSet bits=typeBits[chan][type];
+    if( inc == -1 ) {
+      int pos=findPosition(chan,targetScan,true);
+      if( bits.nextSetBit(pos) < 0 ) return 0;
+      int prev=( pos > 0 ) ? bits.previousSetBit(pos-1) : -1;
+      return ( prev < 0 ) ? 0 : peaks[chan][prev];
+    } else {
+      int next=bits.nextSetBit(findPosition(chan,targetScan,false));
+      return ( next < 0 ) ? 0 : peaks[chan][next];
+    }
+  }
+/**
+ * Records a change of peak type
+ * @param index analysis array index
+ * @param type new realPeak value
+ */
+  void setType(int index, int type) {
+    if( typeOf[index] == type ) return;
+    removeType(chanOf[index],posOf[index],typeOf[index]);
+    typeOf[index]=type;
+    addType(chanOf[index],posOf[index],type);
+  }
+/**
+ * Moves a peak after a change to its scan or base
+ * @param index analysis array index
+ */
+  void update(int index) {
+    int c=chanOf[index];
+    int p=posOf[index];
+    int type=typeOf[index];
+    removeType(c,p,type);
+// close up the gap left in the old channel
+    int n=size[c]-1;
+    System.arraycopy(peaks[c],p+1,peaks[c],p,n-p);
+    System.arraycopy(scans[c],p+1,scans[c],p,n-p);
+    size[c]=n;
+    resetTypes(c,p,n+1);
+// open a gap in the new channel
+    int scan=curScan[index];
+    c=getChannel(curBase[index]);
+    n=size[c];
+    if( n == peaks[c].length ) {
+      int[] newPeaks = new int[n+n/2+1];
+      int[] newScans = new int[n+n/2+1];
+      System.arraycopy(peaks[c],0,newPeaks,0,n);
+      System.arraycopy(scans[c],0,newScans,0,n);
+      peaks[c]=newPeaks;
+      scans[c]=newScans;
+    }
+    p=findPosition(c,(float) scan,true);
+    while( p < n && scans[c][p] == scan && peaks[c][p] < index ) ++p;
+    System.arraycopy(peaks[c],p,peaks[c],p+1,n-p);
+    System.arraycopy(scans[c],p,scans[c],p+1,n-p);
+    peaks[c][p]=index;
+    scans[c][p]=scan;
+    size[c]=n+1;
+    chanOf[index]=c;
+    typeOf[index]=-1;
+    resetTypes(c,p,n+1);
+    typeOf[index]=type;
+    addType(c,p,type);
+  }
+// resets positions & type bits of shifted peaks (leaving the peak at
+// a position with no indexed type out of the bits)
+  private void resetTypes(int chan, int from, int to) {
+    for( int t=0; t < NUM_TYPES; ++t ) {
+      typeBits[chan][t].clear(from,to);
+    }
+    for( int p=from; p < size[chan]; ++p ) {
+      int i=peaks[chan][p];
+      posOf[i]=p;
+      int t=typeOf[i];
+      if( t >= 0 && t < NUM_TYPES ) typeBits[chan][t].set(p);
+    }
+  }
+  private void addType(int chan, int pos, int type) {
+    if( type < 0 || type >= NUM_TYPES ) return;
+    BitSet bits=typeBits[chan][type];
+    int prev=( pos > 0 ) ? bits.previousSetBit(pos-1) : -1;
+    int next=bits.nextSetBit(pos+1);
+    disorder[chan][type]+=isOutOfOrder(chan,prev,pos)+isOutOfOrder(chan,pos,next)-isOutOfOrder(chan,prev,next);
+    bits.set(pos);
+  }
+  private void removeType(int chan, int pos, int type) {
+    if( type < 0 || type >= NUM_TYPES ) return;
+    BitSet bits=typeBits[chan][type];
+    bits.clear(pos);
+    int prev=( pos > 0 ) ? bits.previousSetBit(pos-1) : -1;
+    int next=bits.nextSetBit(pos+1);
+    disorder[chan][type]-=isOutOfOrder(chan,prev,pos)+isOutOfOrder(chan,pos,next)-isOutOfOrder(chan,prev,next);
+  }
+  private int isOutOfOrder(int chan, int pos1, int pos2) {
+    if( pos1 < 0 || pos2 < 0 ) return 0;
+    return ( peaks[chan][pos1] > peaks[chan][pos2] ) ? 1 : 0;
+  }
+}
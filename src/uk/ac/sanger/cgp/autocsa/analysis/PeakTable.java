@@ -0,0 +1,266 @@
+package uk.ac.sanger.cgp.autocsa.analysis ;
+
+/**
+ *<p> The per-peak data of a SeqTraceAnalysis held as a struct of arrays:
+ * scan, intensity, base, base No (bpPos), fork, filter, trace peak No,
+ * peak type (realPeak) & quality, each of getNumPeaks()+1 elements.
+ * Peak types are held as bytes as they only run from AutoCSA.NOISE_PEAK
+ * to AutoCSA.DYE_BLOB_PEAK.</p>
+ *<p> Element 0 of every column is unused. Reserved slots (base N, scans
+ * 1,2,..) are placed before the detected peaks, peaks found after peak
+ * detection are added into them, e.g. by
+ * SeqTraceAnalysis.addPeakToAnalysis(). Once they are all used grow()
+ * appends more slots, so existing peak indices are unchanged.</p>
+ *<p> A PeakTable from SeqTraceAnalysis.getPeakTable() is a read-only
+ * view sharing the arrays of the analysis, so it shows later changes to
+ * its peaks but not slots appended by a later grow().</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class PeakTable {
+
+/** default No of reserved peak slots, & the No added each time they run out */
+  public static final int DEFAULT_RESERVED_PEAKS=10;
+
+  int nPeaks;
+  int nReserved;
+  int[] scan;
+  int[] intensity;
+  char[] base;
+  int[] bpPos;
+  int[] fork;
+  int[] filter;
+  int[] tracePeakNo;
+  byte[] realPeak;
+  float[] quality;
+
+/**
+ * Allocates a PeakTable over existing columns
+ * @param nPeaks No of peaks (including reserved slots)
+ * @param nReserved No of reserved slots
+ */
+  PeakTable(int nPeaks, int nReserved, int[] scan, int[] intensity,
+            char[] base, int[] bpPos, int[] fork, int[] filter,
+            int[] tracePeakNo, byte[] realPeak, float[] quality) {
+    this.nPeaks=nPeaks;
+    this.nReserved=nReserved;
+    this.scan=scan;
+    this.intensity=intensity;
+    this.base=base;
+    this.bpPos=bpPos;
+    this.fork=fork;
+    this.filter=filter;
+    this.tracePeakNo=tracePeakNo;
+    this.realPeak=realPeak;
+    this.quality=quality;
+  }
+/**
+ * Creates a PeakTable from detected peaks, placing the reserved slots
+ * before them. The base column is not set.
+ * @param nPeaks No of peaks (detected peaks plus reserved slots)
+ * @param nReserved No of reserved slots
+ * @param scan int array of scan indices of all peaks detected
+ * @param intensity int array of intensities of all peaks detected
+ * @return the PeakTable
+ */
+  static PeakTable create(int nPeaks, int nReserved, int[] scan, int[] intensity) {
+    int[] curScan;
+    int[] curIntensity;
+    if( nReserved > 0 ) {
+      curScan=new int[nPeaks+1];
+      curIntensity=new int[nPeaks+1];
+      curScan[0]=scan[0];
+      curIntensity[0]=intensity[0];
+      for(int n=0 ; n < nReserved ; ++n ) {
+        curScan[n+1]=n+1;
+        curIntensity[n+1]=1;
+      }
+      int i=nReserved+1;
+      for(int n=1 ; n < scan.length ; ++n ) {
+        curScan[i]=scan[n];
+        curIntensity[i++]=intensity[n];
+      }
+    } else {
+      curScan = scan;
+      curIntensity = intensity;
+    }
+    return new PeakTable(nPeaks,nReserved,curScan,curIntensity,null,
+                         new int[nPeaks+1],new int[nPeaks+1],new int[nPeaks+1],
+                         new int[nPeaks+1],new byte[nPeaks+1],new float[nPeaks+1]);
+  }
+/**
+ * Creates a copy of the table, with copies of all its columns
+ * @return the copied PeakTable
+ */
+  public PeakTable copy() {
+    return new PeakTable(nPeaks,nReserved,copyOf(scan),copyOf(intensity),
+                         copyOf(base),
+                         copyOf(bpPos),copyOf(fork),copyOf(filter),
+                         copyOf(tracePeakNo),copyOf(realPeak),
+                         copyOf(quality));
+  }
+  private static int[] copyOf(int[] data) {
+    if( data == null ) return null;
+    int[] d = new int[data.length];
+    System.arraycopy(data,0,d,0,data.length);
+    return d;
+  }
+  private static char[] copyOf(char[] data) {
+    if( data == null ) return null;
+    char[] d = new char[data.length];
+    System.arraycopy(data,0,d,0,data.length);
+    return d;
+  }
+  private static byte[] copyOf(byte[] data) {
+    if( data == null ) return null;
+    byte[] d = new byte[data.length];
+    System.arraycopy(data,0,d,0,data.length);
+    return d;
+  }
+  private static float[] copyOf(float[] data) {
+    if( data == null ) return null;
+    float[] d = new float[data.length];
+    System.arraycopy(data,0,d,0,data.length);
+    return d;
+  }
+/**
+ * Creates a copy of the table with reserved slots appended after its
+ * peaks. The new slots are unmatched noise peaks of base N, with scans
+ * following on from those of the existing reserved slots.
+ * @param extra No of slots to append
+ * @return the larger PeakTable
+ */
+  PeakTable grow(int extra) {
+    int n=nPeaks+extra;
+    PeakTable t = new PeakTable(n,nReserved+extra,grow(scan,n),grow(intensity,n),
+                                null,grow(bpPos,n),grow(fork,n),grow(filter,n),
+                                grow(tracePeakNo,n),grow(realPeak,n),new float[n+1]);
+    t.base = new char[n+1];
+    System.arraycopy(base,0,t.base,0,nPeaks+1);
+    System.arraycopy(quality,0,t.quality,0,nPeaks+1);
+    for( int i=nPeaks+1; i <= n; ++i ) {
+      t.scan[i]=nReserved+i-nPeaks;
+      t.intensity[i]=1;
+      t.base[i]='N';
+      t.bpPos[i]=-1;
+      t.fork[i]=-1;
+      t.tracePeakNo[i]=i;
+      t.realPeak[i]=AutoCSA.NOISE_PEAK;
+    }
+    return t;
+  }
+  private static int[] grow(int[] data, int n) {
+    int[] d = new int[n+1];
+    System.arraycopy(data,0,d,0,data.length);
+    return d;
+  }
+  private static byte[] grow(byte[] data, int n) {
+    byte[] d = new byte[n+1];
+    System.arraycopy(data,0,d,0,data.length);
+    return d;
+  }
+/**
+ * Reorders the scan, intensity, base, bpPos, tracePeakNo, realPeak and
+ * filter columns in place by a sort (fork & quality are not reordered)
+ * @param indices sort indices to define the sorting order
+ */
+  void permute(int[] indices) {
+// n.b. a single scratch buffer per element type is reused for every column
+    int[] scratch = new int[nPeaks+1];
+    int[][] columns={bpPos,scan,intensity,tracePeakNo,filter};
+    for( int c=0; c < columns.length; ++c ) {
+      int[] data=columns[c];
+      System.arraycopy(data,0,scratch,0,nPeaks+1);
+      for(int n=0 ; n < nPeaks+1 ; ++n ) {
+        data[n] = scratch[indices[n]];
+      }
+    }
+    char[] baseScratch=copyOf(base);
+    for(int n=0 ; n < nPeaks+1 ; ++n ) {
+      base[n] = baseScratch[indices[n]];
+    }
+    byte[] typeScratch=copyOf(realPeak);
+    for(int n=0 ; n < nPeaks+1 ; ++n ) {
+      realPeak[n] = typeScratch[indices[n]];
+    }
+  }
+/**
+ * Gets the No of peaks
+ * @return No of peaks, including reserved slots
+ */
+  public int getNumPeaks() {
+    return nPeaks;
+  }
+/**
+ * Gets the No of reserved peak slots
+ * @return No of reserved slots
+ */
+  public int getNumReserved() {
+    return nReserved;
+  }
+/**
+ * Gets the scan of a peak
+ * @param i peak index (1 to getNumPeaks())
+ * @return scan index
+ */
+  public int getScan(int i) {
+    return scan[i];
+  }
+/**
+ * Gets the intensity of a peak
+ * @param i peak index (1 to getNumPeaks())
+ * @return peak intensity
+ */
+  public int getIntensity(int i) {
+    return intensity[i];
+  }
+/**
+ * Gets the base of a peak
+ * @param i peak index (1 to getNumPeaks())
+ * @return one of A,C,G,T or N for an unused reserved slot
+ */
+  public char getBase(int i) {
+    return base[i];
+  }
+/**
+ * Gets the ref seq base No a peak is matched to
+ * @param i peak index (1 to getNumPeaks())
+ * @return base No, -1 if not matched
+ */
+  public int getBasePosition(int i) {
+    return bpPos[i];
+  }
+/**
+ * Gets the type of a peak
+ * @param i peak index (1 to getNumPeaks())
+ * @return realPeak value i.e. one of AutoCSA.NOISE_PEAK etc.
+ */
+  public int getPeakType(int i) {
+    return realPeak[i];
+  }
+/**
+ * Gets the filter flag of a peak
+ * @param i peak index (1 to getNumPeaks())
+ * @return filter value
+ */
+  public int getFilter(int i) {
+    return filter[i];
+  }
+/**
+ * Gets the trace peak No of a peak
+ * @param i peak index (1 to getNumPeaks())
+ * @return peak No in the trace before sorting
+ */
+  public int getTracePeakNo(int i) {
+    return tracePeakNo[i];
+  }
+/**
+ * Gets the quality of a peak
+ * @param i peak index (1 to getNumPeaks())
+ * @return quality value
+ */
+  public float getQuality(int i) {
+    return quality[i];
+  }
+}
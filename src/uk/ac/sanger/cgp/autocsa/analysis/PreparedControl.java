@@ -0,0 +1,149 @@
+package uk.ac.sanger.cgp.autocsa.analysis ;
+
+import java.util.ArrayList;
+
+/**
+ *<p> A Normal (control) analysis prepared once for comparison against
+ * many Tumours, as created by {@link AutoCSA#prepareControl(SeqTraceAnalysis)}
+ * & passed to {@link AutoCSA#setupAutoCSA(PreparedControl,SeqTraceAnalysis)}.</p>
+ *<p> Along with the analysis (which should already hold its quality
+ * values, dye blob flags & ROI) it holds the control side of the
+ * comparison setup: the extent of ref seq analysed, the No of peaks
+ * matched to each base & the bases missing within the analysed extent.</p>
+ *<p> Each comparison is given its own copy of the analysis, so a
+ * PreparedControl is never changed once created & may be shared between
+ * threads.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class PreparedControl {
+
+  private SeqTraceAnalysis analysis;
+  private String refSeq;
+  private int startIndex=-1;
+  private int bpLimit1=-1;
+  private int bpLimit2=-1;
+// No of peaks matched to each ref seq base
+  private int[] baseCounts;
+// n.b. bases missing between bpLimit1 & bpLimit2, null if bpPos is not
+// in strictly ascending order (so must be searched per comparison)
+  private int[] missing;
+
+/**
+ * Allocates a PreparedControl
+ * @param analysis the Normal analysis object (null if the analysis failed)
+ * @param refSeq ref seq as analysed (i.e. reverse complemented if necessary)
+ */
+  PreparedControl(SeqTraceAnalysis analysis, String refSeq) {
+    this.analysis=analysis;
+    this.refSeq=refSeq;
+    if( analysis == null ) { return; }
+    int[] bpPos=analysis.getbpPos();
+    baseCounts = new int[refSeq.length()+1];
+    boolean ascending=true;
+    int nmiss=0;
+    for( int i=0; i < bpPos.length; ++i ) {
+      if( bpPos[i] == -1 ) {
+        if( startIndex != -1 ) { ascending=false; }
+        continue;
+      }
+      ++baseCounts[bpPos[i]];
+      if( startIndex == -1 ) {
+        startIndex=i;
+      } else if( bpPos[i] <= bpPos[i-1] ) {
+        ascending=false;
+      } else {
+        nmiss+=bpPos[i]-bpPos[i-1]-1;
+      }
+    }
+// n.b. sort on bpPos moves all analysed data to end
+    if( startIndex == -1 ) { return; }
+    bpLimit1=bpPos[startIndex];
+    bpLimit2=bpPos[bpPos.length-1];
+    if( ascending ) {
+      missing = new int[nmiss];
+      int count=0;
+      for( int i=startIndex+1; i < bpPos.length; ++i ) {
+        for( int j=bpPos[i-1]+1; j < bpPos[i]; ++j ) {
+          missing[count++]=j;
+        }
+      }
+    }
+  }
+/**
+ * Gets a copy of the Normal analysis, for use in a single comparison
+ * @return the copied SeqTraceAnalysis, null if the analysis failed
+ */
+  public SeqTraceAnalysis getAnalysis() {
+    return ( analysis == null ) ? null : analysis.copy();
+  }
+/**
+ * Gets the ref seq the analysis was prepared against
+ * @return ref seq (reverse complemented if necessary)
+ */
+  public String getRefSeq() {
+    return refSeq;
+  }
+/**
+ * Gets the analysis array index of the first analysed base
+ * @return index, -1 if no bases were analysed
+ */
+  int getStartIndex() {
+    return startIndex;
+  }
+/**
+ * Gets the first analysed base No
+ * @return base No, -1 if no bases were analysed
+ */
+  int getFirstBase() {
+    return bpLimit1;
+  }
+/**
+ * Gets the last analysed base No
+ * @return base No, -1 if no bases were analysed
+ */
+  int getLastBase() {
+    return bpLimit2;
+  }
+/**
+ * Gets the No of peaks matched to each ref seq base
+ * @return a new array (ref seq length+1) which the caller may change
+ */
+  int[] getBaseCounts() {
+    int[] counts = new int[baseCounts.length];
+    System.arraycopy(baseCounts,0,counts,0,counts.length);
+    return counts;
+  }
+/**
+ * Gets the bases missing from the analysis within a range of analysed
+ * bases, as AutoCSA.findMissingBases() would return them
+ * @param bpLim1 first base No of the range (analysed in the Normal)
+ * @param bpLim2 last base No of the range (analysed in the Normal)
+ * @return a new ArrayList of missing base No.s (Integer) in ascending
+ * order, null if they must be searched for
+ */
+  ArrayList getMissingBases(int bpLim1, int bpLim2) {
+    if( missing == null ) { return null; }
+    ArrayList list = new ArrayList();
+    int i=findFirstAbove(bpLim1);
+    for( ; i < missing.length && missing[i] < bpLim2; ++i ) {
+      list.add(Integer.valueOf(missing[i]));
+    }
+    return list;
+  }
+// binary search for the first missing base above a base No
+  private int findFirstAbove(int base) {
+    int lo=0;
+    int hi=missing.length;
+    while( lo < hi ) {
+      int mid=(lo+hi) >>> 1;
+      if( missing[mid] <= base ) {
+        lo=mid+1;
+      } else {
+        hi=mid;
+      }
+    }
+    return lo;
+  }
+}
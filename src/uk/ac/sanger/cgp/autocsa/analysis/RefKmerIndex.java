@@ -0,0 +1,176 @@
+package uk.ac.sanger.cgp.autocsa.analysis ;
+
+import java.util.Arrays;
+
+/**
+ *<p> Index of the K-mers of a ref seq (as analysed, i.e. reverse
+ * complemented if necessary) by the base No at which they start.</p>
+ *<p> A K-mer is coded 2 bits per base in ACGT order, first base highest.
+ * The base Nos of each code are held in ascending order so the next base
+ * No starting any of a set of K-mers is found with a binary search per
+ * code, rather than a walk over the ref seq. K-mers holding a base other
+ * than A,C,G,T have no code & are always returned, as are base Nos too
+ * near the end of the ref seq to start a K-mer.</p>
+ *<p> Immutable (but for the cached base spacing range, which is safely
+ * recomputed by a race), so may be shared by the analyses of a ref seq.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+final class RefKmerIndex {
+
+/** K-mer length, n.b. at most 4 so the K-1 mers after a base fit a long */
+  static final int K=4;
+/** No of K-mer codes */
+  static final int CODES=1 << (2*K);
+/** code of a base No not starting a K-mer of A,C,G,T */
+  static final int NO_CODE=-1;
+
+  private final String refSeq;
+// per base No (from 1)
+  private final int[] codes;
+// per code & for NO_CODE, ascending base Nos
+  private final int[][] positions = new int[CODES][];
+  private final int[] noCode;
+  private volatile StepRange stepRange=null;
+
+/**
+ * Builds the index of a ref seq
+ * @param refSeq the ref seq
+ */
+  RefKmerIndex(String refSeq) {
+    this.refSeq=refSeq;
+    int refLen=refSeq.length();
+    codes = new int[refLen+1];
+    int[] count = new int[CODES];
+    int nNoCode=0;
+    codes[0]=NO_CODE;
+    for( int bp=1; bp <= refLen; ++bp ) {
+      codes[bp]=getCode(refSeq,bp);
+      if( codes[bp] == NO_CODE ) {
+        ++nNoCode;
+      } else {
+        ++count[codes[bp]];
+      }
+    }
+    for( int c=0; c < CODES; ++c ) {
+      positions[c] = new int[count[c]];
+      count[c]=0;
+    }
+    noCode = new int[nNoCode];
+    nNoCode=0;
+    for( int bp=1; bp <= refLen; ++bp ) {
+      int c=codes[bp];
+      if( c == NO_CODE ) {
+        noCode[nNoCode++]=bp;
+      } else {
+        positions[c][count[c]++]=bp;
+      }
+    }
+  }
+/**
+ * Tests whether the index is of a ref seq
+ * @param seq the ref seq
+ * @return true if the index was built from seq
+ */
+  boolean isFor(String seq) {
+    return refSeq == seq || refSeq.equals(seq);
+  }
+/**
+ * Gets the code of the K-mer starting at a base No
+ * @param bp base No (from 1)
+ * @return the code, NO_CODE if none
+ */
+  int getCode(int bp) {
+    return ( bp > 0 && bp < codes.length ) ? codes[bp] : NO_CODE;
+  }
+/**
+ * Tests whether a base No starts a K-mer of a set or has no code
+ * @param followers set of K-mers (as next())
+ * @param bp base No
+ * @return true if so
+ */
+  boolean matches(long[] followers, int bp) {
+    int code=getCode(bp);
+    return code == NO_CODE || ( followers[code >>> (2*K-2)] & ( 1L << (code & (CODES/4-1)) ) ) != 0L;
+  }
+/**
+ * Finds the first base No within a range starting a K-mer of a set or
+ * having no code
+ * @param followers set of K-mers per first base (ACGT order), as a bit per
+ * code of the K-1 mer following it
+ * @param from first base No
+ * @param to last base No (inclusive)
+ * @return the base No, to+1 if none
+ */
+  int next(long[] followers, int from, int to) {
+    int next=first(noCode,from,to+1);
+    for( int c=0; c < 4; ++c ) {
+      long bits=followers[c];
+      while( bits != 0L ) {
+        int bit=Long.numberOfTrailingZeros(bits);
+        bits&=bits-1L;
+        next=first(positions[(c << (2*K-2)) | bit],from,next);
+      }
+    }
+    return next;
+  }
+// first base No of an ascending list at or after from, if below limit
+  private static int first(int[] list, int from, int limit) {
+    int pos=Arrays.binarySearch(list,from);
+    if( pos < 0 ) { pos=-pos-1; }
+    return ( pos < list.length && list[pos] < limit ) ? list[pos] : limit;
+  }
+/**
+ * Gets the range of base spacings of adjacent A,C,G,T bases of the ref
+ * seq, i.e. of MobilityModel.getAdjustmentOffset(), kept for the last
+ * model asked for
+ * @param mobility the MobilityModel
+ * @return float[2] of the min & max spacing (in scans)
+ */
+  float[] getStepRange(MobilityModel mobility) {
+    StepRange range=stepRange;
+    if( range == null || range.mobility != mobility ) {
+      range = new StepRange(mobility,refSeq);
+      stepRange=range;
+    }
+    return new float[] {range.min,range.max};
+  }
+  private static int getCode(String seq, int bp) {
+    if( bp+K-1 > seq.length() ) { return NO_CODE; }
+    int code=0;
+    for( int k=0; k < K; ++k ) {
+      int c=PeakIndex.getChannel(seq.charAt(bp-1+k));
+      if( c == PeakIndex.OTHER ) { return NO_CODE; }
+      code=(code << 2) | c;
+    }
+    return code;
+  }
+
+/**
+ * Base spacing range of a ref seq under a MobilityModel
+ */
+  private static final class StepRange {
+
+    final MobilityModel mobility;
+    final float min;
+    final float max;
+
+    StepRange(MobilityModel mobility, String refSeq) {
+      float minOffset=Float.MAX_VALUE;
+      float maxOffset=-Float.MAX_VALUE;
+      for( int bp=1; bp < refSeq.length(); ++bp ) {
+        String base1=refSeq.substring(bp-1, bp);
+        String base2=refSeq.substring(bp, bp+1);
+        if( PeakIndex.getChannel(base1.charAt(0)) == PeakIndex.OTHER ||
+            PeakIndex.getChannel(base2.charAt(0)) == PeakIndex.OTHER ) { continue; }
+        float offset=mobility.getAdjustmentOffset(base1,base2,bp,bp+1);
+        minOffset=Math.min(minOffset,offset);
+        maxOffset=Math.max(maxOffset,offset);
+      }
+      this.mobility=mobility;
+      this.min=minOffset;
+      this.max=maxOffset;
+    }
+  }
+}
@@ -2,11 +2,18 @@ package uk.ac.sanger.cgp.autocsa.analysis ;
 
 import java.util.Arrays;
 import java.util.ArrayList;
-import java.util.List;
-import java.util.Collections;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.FileWriter;
 import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import uk.ac.sanger.cgp.autocsa.exceptions.*;
@@ -23,6 +30,12 @@ public class SeqTraceAnalysis {
 	
 	protected static Log log = LogFactory.getLog(SeqTraceAnalysis.class.getName());
 
+// n.b. tries matchPeaksToRefSeq() start positions concurrently if not null
+  private static volatile ExecutorService startSearchExecutor=createDefaultStartSearchExecutor();
+  private static volatile boolean anchorSearch=true;
+// n.b. No of ints per base No in the flat prev_peak arrays of matching
+  private static final int PEAK_FIELDS=MatchScratch.FIELDS;
+
   public int nPeaks;
   public String stsName;
   public String well;
@@ -35,7 +48,7 @@ public class SeqTraceAnalysis {
   private int[] curIntensity;
   private int[] filter;
   private int[] tracePeakNo;
-  private int[] realPeak;
+  private byte[] realPeak;
   private float[] quality;
   private int refSearchStart;
   private int refSearchEnd;
@@ -46,13 +59,30 @@ public class SeqTraceAnalysis {
   private float peakSearchBin=6.0f;
   private ArrayList traceHoles=null;
   private Trace traceObj;
+  private MobilityModel mobilityModel=null;
+  private int matchingEngine=AutoCSA.GREEDY_MATCHING;
   private boolean matchedSomeRefSeq=false;
   private int ROIStartCoord=0;
   private int ROIEndCoord=0;
   private float maxAllowableQuality=25.0f;
+// n.b. the last reserved slot used & the last of the current block of slots
   private int reservePeakIndex=0;
-  private int totalReservedPeaks=10;
+  private int reserveEnd=PeakTable.DEFAULT_RESERVED_PEAKS;
+  private int totalReservedPeaks=PeakTable.DEFAULT_RESERVED_PEAKS;
   private String nonSearchableBases="NRYKMBDHV";
+  private PeakIndex peakIndex=null;
+  private RefKmerIndex refKmerIndex=null;
+// n.b. per chain length & peak, the codes of the bases matchable from it
+// (see getKmerChains()), set while matching only
+  private long[][] kmerChains=null;
+  private boolean[][] kmerChainsSet=null;
+  private float kmerStepLo,kmerStepHi;
+// n.b. per base No, the first analysis array index holding the base & the
+// No of indices holding it (null until getAnalysisIndex() is first used)
+  private int[] baseIndex=null;
+  private int[] baseCount=null;
+// n.b. while matching, peaks above this index are all unmatched noise peaks
+  private int matchedTo=-1;
 
 /**
  * Allocates a SeqTraceAnalysis object.
@@ -63,12 +93,169 @@ public class SeqTraceAnalysis {
  * @param minDist minimum distance between peaks used in peak detection.
  */
   public SeqTraceAnalysis(int np, int refStart, int refEnd, int[] minAmp, int minDist) {
+       this(np,refStart,refEnd,minAmp,minDist,PeakTable.DEFAULT_RESERVED_PEAKS);
+  }
+/**
+ * Allocates a SeqTraceAnalysis object with a set No of reserved peak slots.
+ * @param np No of data points in analysis, i.e. No of peaks in trace.
+ * @param refStart base No to start Amplimer matching
+ * @param refEnd base No to stop Amplimer matching
+ * @param minAmp int[4] array of minimum intensities for each channel that were used for peak detection.
+ * @param minDist minimum distance between peaks used in peak detection.
+ * @param reservedPeaks No of slots reserved for peaks added after peak detection
+ */
+  public SeqTraceAnalysis(int np, int refStart, int refEnd, int[] minAmp, int minDist, int reservedPeaks) {
+       totalReservedPeaks=Math.max(0,reservedPeaks);
+       reserveEnd=totalReservedPeaks;
        nPeaks=np+totalReservedPeaks;
        refSearchStart=refStart;
        refSearchEnd=refEnd;
        minPeakIntensity=minAmp;
        minPeakSpacing=minDist;
   }
+// n.b. used by copy() only
+  private SeqTraceAnalysis() {
+  }
+/**
+ * <p>Creates a copy of the analysis which can be changed (e.g. by a
+ * comparison) without changing this analysis.</p>
+ * <p>Note all analysis arrays are copied but the Trace object is shared as
+ * it is not changed once the analysis is complete.</p>
+ * @return the copied SeqTraceAnalysis object
+ */
+  public SeqTraceAnalysis copy() {
+    SeqTraceAnalysis c = new SeqTraceAnalysis();
+    c.nPeaks=nPeaks;
+    c.stsName=stsName;
+    c.well=well;
+    c.refSeq=refSeq;
+    c.isTumourSample=isTumourSample;
+    c.setPeakTable(getPeakTable().copy());
+    c.refSearchStart=refSearchStart;
+    c.refSearchEnd=refSearchEnd;
+    c.refSearchStartInc=refSearchStartInc;
+    c.maxBasesMissed=maxBasesMissed;
+    c.minPeakIntensity=copyOf(minPeakIntensity);
+    c.minPeakSpacing=minPeakSpacing;
+    c.peakSearchBin=peakSearchBin;
+    c.traceHoles=( traceHoles == null ) ? null : new ArrayList(traceHoles);
+    c.traceObj=traceObj;
+    c.mobilityModel=mobilityModel;
+    c.refKmerIndex=refKmerIndex;
+    c.matchingEngine=matchingEngine;
+    c.matchedSomeRefSeq=matchedSomeRefSeq;
+    c.ROIStartCoord=ROIStartCoord;
+    c.ROIEndCoord=ROIEndCoord;
+    c.maxAllowableQuality=maxAllowableQuality;
+    c.reservePeakIndex=reservePeakIndex;
+    c.reserveEnd=reserveEnd;
+    c.totalReservedPeaks=totalReservedPeaks;
+    c.nonSearchableBases=nonSearchableBases;
+    return c;
+  }
+  private static int[] copyOf(int[] data) {
+    if( data == null ) return null;
+    int[] d = new int[data.length];
+    System.arraycopy(data,0,d,0,data.length);
+    return d;
+  }
+/**
+ * Writes the analysis (other than its Trace) as part of an AnalysisSnapshot
+ * n.b. fields are written in the order of copy(), readSnapshot() must match
+ * @param out stream to write to
+ */
+  void writeSnapshot(DataOutputStream out) throws IOException {
+    AnalysisSnapshot.writeString(stsName,out);
+    AnalysisSnapshot.writeString(well,out);
+    AnalysisSnapshot.writeString(refSeq,out);
+    out.writeBoolean(isTumourSample);
+    out.writeInt(nPeaks);
+    out.writeInt(totalReservedPeaks);
+    AnalysisSnapshot.writeInts(curScan,out);
+    AnalysisSnapshot.writeInts(curIntensity,out);
+    AnalysisSnapshot.writeChars(curBase,out);
+    AnalysisSnapshot.writeInts(bpPos,out);
+    AnalysisSnapshot.writeInts(fork,out);
+    AnalysisSnapshot.writeInts(filter,out);
+    AnalysisSnapshot.writeInts(tracePeakNo,out);
+    AnalysisSnapshot.writeBytes(realPeak,out);
+    AnalysisSnapshot.writeFloats(quality,out);
+    out.writeInt(refSearchStart);
+    out.writeInt(refSearchEnd);
+    out.writeInt(refSearchStartInc);
+    out.writeInt(maxBasesMissed);
+    AnalysisSnapshot.writeInts(minPeakIntensity,out);
+    out.writeInt(minPeakSpacing);
+    out.writeFloat(peakSearchBin);
+    int[] holes=null;
+    if( traceHoles != null ) {
+      holes = new int[traceHoles.size()];
+      for( int i=0; i < holes.length; ++i ) {
+        holes[i]=((Integer) traceHoles.get(i)).intValue();
+      }
+    }
+    AnalysisSnapshot.writeInts(holes,out);
+    out.writeBoolean(mobilityModel != null);
+    if( mobilityModel != null ) { out.writeInt(mobilityModel.getAdjustmentType()); }
+    out.writeInt(matchingEngine);
+    out.writeBoolean(matchedSomeRefSeq);
+    out.writeInt(ROIStartCoord);
+    out.writeInt(ROIEndCoord);
+    out.writeFloat(maxAllowableQuality);
+    out.writeInt(reservePeakIndex);
+    out.writeInt(reserveEnd);
+    AnalysisSnapshot.writeString(nonSearchableBases,out);
+  }
+/**
+ * Reads an analysis written by writeSnapshot()
+ * @param in stream to read from
+ * @param trace the Trace of the analysis, as read from the snapshot
+ * @return the SeqTraceAnalysis object
+ */
+  static SeqTraceAnalysis readSnapshot(DataInputStream in, Trace trace) throws IOException {
+    SeqTraceAnalysis c = new SeqTraceAnalysis();
+    c.stsName=AnalysisSnapshot.readString(in);
+    c.well=AnalysisSnapshot.readString(in);
+    c.refSeq=AnalysisSnapshot.readString(in);
+    c.isTumourSample=in.readBoolean();
+    int np=in.readInt();
+    int nReserved=in.readInt();
+    int[] scan=AnalysisSnapshot.readInts(in);
+    int[] intensity=AnalysisSnapshot.readInts(in);
+    char[] base=AnalysisSnapshot.readChars(in);
+    int[] pos=AnalysisSnapshot.readInts(in);
+    int[] fk=AnalysisSnapshot.readInts(in);
+    int[] filt=AnalysisSnapshot.readInts(in);
+    int[] peakNo=AnalysisSnapshot.readInts(in);
+    byte[] rpeak=AnalysisSnapshot.readBytes(in);
+    float[] q=AnalysisSnapshot.readFloats(in);
+    c.setPeakTable(new PeakTable(np,nReserved,scan,intensity,base,pos,fk,filt,peakNo,rpeak,q));
+    c.refSearchStart=in.readInt();
+    c.refSearchEnd=in.readInt();
+    c.refSearchStartInc=in.readInt();
+    c.maxBasesMissed=in.readInt();
+    c.minPeakIntensity=AnalysisSnapshot.readInts(in);
+    c.minPeakSpacing=in.readInt();
+    c.peakSearchBin=in.readFloat();
+    int[] holes=AnalysisSnapshot.readInts(in);
+    if( holes != null ) {
+      c.traceHoles = new ArrayList(holes.length);
+      for( int i=0; i < holes.length; ++i ) {
+        c.traceHoles.add(Integer.valueOf(holes[i]));
+      }
+    }
+    c.traceObj=trace;
+    if( in.readBoolean() ) { c.mobilityModel=MobilityModel.getInstance(in.readInt()); }
+    c.matchingEngine=in.readInt();
+    c.matchedSomeRefSeq=in.readBoolean();
+    c.ROIStartCoord=in.readInt();
+    c.ROIEndCoord=in.readInt();
+    c.maxAllowableQuality=in.readFloat();
+    c.reservePeakIndex=in.readInt();
+    c.reserveEnd=in.readInt();
+    c.nonSearchableBases=AnalysisSnapshot.readString(in);
+    return c;
+  }
 /**
  * Setter for isTumour boolean.
  * @param isTumour flag whether trace is a Normal or Tumour
@@ -106,30 +293,35 @@ public class SeqTraceAnalysis {
  * @param intensity int array of intensities of all peaks detected
  */
   public void setAnalysisData(int[] scan, int[] intensity){
-       if( totalReservedPeaks > 0 ) {
-         curScan=new int[nPeaks+1];
-         curIntensity=new int[nPeaks+1];
-         curScan[0]=scan[0];
-         curIntensity[0]=intensity[0];
-         for(int n=0 ; n < totalReservedPeaks ; ++n ) {
-           curScan[n+1]=n+1;
-           curIntensity[n+1]=1;
-         }
-         int i=totalReservedPeaks+1;
-         for(int n=1 ; n < scan.length ; ++n ) {
-           curScan[i]=scan[n];
-           curIntensity[i++]=intensity[n];
-         }
-       } else {
-         curScan = scan;
-         curIntensity = intensity;
-       }
-       fork= new int[nPeaks+1];
-       bpPos= new int[nPeaks+1];
-       filter= new int[nPeaks+1];
-       tracePeakNo= new int[nPeaks+1];
-       realPeak= new int[nPeaks+1];
-       quality= new float[nPeaks+1];
+       PeakTable table=PeakTable.create(nPeaks,totalReservedPeaks,scan,intensity);
+// n.b. keep any bases already set by setPeakToBaseData()
+       table.base=curBase;
+       setPeakTable(table);
+  }
+/**
+ * Gets a read-only view of the peak arrays of the analysis as a PeakTable,
+ * take a new view after adding peaks as the arrays may have been replaced.
+ * @return the PeakTable
+ */
+  public PeakTable getPeakTable() {
+    return new PeakTable(nPeaks,totalReservedPeaks,curScan,curIntensity,
+                         curBase,bpPos,fork,filter,tracePeakNo,realPeak,quality);
+  }
+// n.b. replaces all peak arrays so any indices over them are dropped
+  private void setPeakTable(PeakTable table) {
+    nPeaks=table.nPeaks;
+    totalReservedPeaks=table.nReserved;
+    curScan=table.scan;
+    curIntensity=table.intensity;
+    curBase=table.base;
+    bpPos=table.bpPos;
+    fork=table.fork;
+    filter=table.filter;
+    tracePeakNo=table.tracePeakNo;
+    realPeak=table.realPeak;
+    quality=table.quality;
+    peakIndex=null;
+    baseIndex=null;
   }
 /**
  * Setter for base types of detected peaks
@@ -147,30 +339,79 @@ public class SeqTraceAnalysis {
       Arrays.fill(curBase,1+nN+nG,1+nN+nG+nA,'A');
       Arrays.fill(curBase,1+nN+nG+nA,1+nN+nG+nA+nT,'T');
       Arrays.fill(curBase,1+nN+nG+nA+nT,nPeaks+1,'C');
+      peakIndex=null;
   }
 /**
- * Sorts array of data and returns sort indices
+ * <p>Sorts array of data and returns sort indices</p>
+ * <p>Note the sort is stable (equal values keep their order) and element 0
+ * is not sorted.</p>
  * @param data array to derive sort indices
  * @return array of sort indices
  */
   public int[] sortDataset(int[] data){
 
-    List dpList = new ArrayList();
-
-    for(int n=1 ; n < nPeaks+1 ; ++n ) {
-      dpList.add(new DataPoint(data[n],n));
-    }
-
-    Collections.sort(dpList);
     int[] sortIndices = new int[nPeaks+1];
-
 //  curScan[0]=0;
     sortIndices[0]=0;
+    if( nPeaks < 1 ) { return sortIndices; }
+
+    int min=data[1];
+    int max=data[1];
+    for(int n=2 ; n < nPeaks+1 ; ++n ) {
+      if( data[n] < min ) min=data[n];
+      if( data[n] > max ) max=data[n];
+    }
+    int[] from = new int[nPeaks];
+    int[] to = new int[nPeaks];
     for(int n=1 ; n < nPeaks+1 ; ++n ) {
-      sortIndices[n]=((DataPoint) dpList.get(n-1)).getIndex();
+      from[n-1]=n;
+    }
+// n.b. values are scans or base No.s, so their range is small enough for a
+// single counting sort pass, else sort on the low then high 16 bits
+    long range=(long) max-(long) min;
+    if( range < 0x10000L ) {
+      sortPass(data,min,0,(int) range+1,from,to);
+    } else {
+      sortPass(data,min,0,0x10000,from,to);
+      sortPass(data,min,16,0x10000,to,from);
+      to=from;
     }
+    System.arraycopy(to,0,sortIndices,1,nPeaks);
     return sortIndices;
   }
+// stable counting sort of indices (from) on a 16 bit digit of (value-min)
+  private static void sortPass(int[] data, int min, int shift, int nDigits, int[] from, int[] to) {
+    int[] count = new int[nDigits+1];
+    for( int i=0; i < from.length; ++i ) {
+      ++count[(((data[from[i]]-min) >>> shift) & 0xFFFF)+1];
+    }
+    for( int i=1; i < count.length; ++i ) {
+      count[i]+=count[i-1];
+    }
+    for( int i=0; i < from.length; ++i ) {
+      to[count[((data[from[i]]-min) >>> shift) & 0xFFFF]++]=from[i];
+    }
+  }
+/**
+ * Reorders the peak arrays (bpPos, curScan, curIntensity, tracePeakNo,
+ * realPeak, filter and curBase) in place by a previous sort
+ * @param indices sort indices to define the sorting order
+ */
+  public void sortAnalysisArrays(int[] indices) {
+    getPeakTable().permute(indices);
+    peakIndex=null;
+    baseIndex=null;
+// n.b. unused reserved slots keep their order, so follow them to their
+// new indices
+    if( reservePeakIndex < reserveEnd ) {
+      int[] moved = new int[nPeaks+1];
+      for(int n=0 ; n < nPeaks+1 ; ++n ) {
+        moved[indices[n]] = n;
+      }
+      reserveEnd=moved[reserveEnd];
+      reservePeakIndex=moved[reservePeakIndex+1]-1;
+    }
+  }
 /**
  * Sorts an int array of data based on a previous sort
  * @param indices sort indices to define the sorting order
@@ -206,7 +447,7 @@ public class SeqTraceAnalysis {
  * @param value new value to use for the array element
  */
   public void setRealPeak(int index, int value ){
-    realPeak[index] = value;
+    setPeakType(index,value);
   }
 
 /**
@@ -215,6 +456,7 @@ public class SeqTraceAnalysis {
  */
   public void setScan(int[] scan){
     curScan=scan;
+    peakIndex=null;
   }
 /**
  * Setter for the intensity array.
@@ -229,6 +471,7 @@ public class SeqTraceAnalysis {
  */
   public void setbpPos(int[] pos){
     bpPos=pos;
+    baseIndex=null;
   }
 /**
  * Setter for the curBase array.
@@ -236,13 +479,15 @@ public class SeqTraceAnalysis {
  */
   public void setBase(char[] base){
     curBase=base;
+    peakIndex=null;
   }
 /**
  * Setter for the realPeak array.
  * @param rpeak the new value for the realPeak array
  */
-  public void setRealPeak(int[] rpeak){
+  public void setRealPeak(byte[] rpeak){
     realPeak=rpeak;
+    peakIndex=null;
   }
 /**
  * Setter for the filter array.
@@ -274,7 +519,8 @@ public class SeqTraceAnalysis {
     return curIntensity;
   }
 /**
- * Getter for the bpPos array.
+ * <p>Getter for the bpPos array.</p>
+ * <p>Note the array must not be changed, use setbpPos() to replace it.</p>
  * @return the current value of the bpPos array.
  */
   public int[] getbpPos(){
@@ -291,7 +537,7 @@ public class SeqTraceAnalysis {
  * Getter for the realPeak array.
  * @return the current value of the realPeak array.
  */
-  public int[] getRealPeak(){
+  public byte[] getRealPeak(){
     return realPeak;
   }
 /**
@@ -308,6 +554,123 @@ public class SeqTraceAnalysis {
   public int[] getFilter(){
     return filter;
   }
+/**
+ * <p>Getter for the scan ordered peak index, built on first use.</p>
+ * <p>Note the realPeak array must only be changed with setRealPeak(int,int)
+ * while the index is in use.</p>
+ * @return the PeakIndex over the current analysis arrays
+ */
+  PeakIndex getPeakIndex(){
+    if( peakIndex == null ) {
+      peakIndex = new PeakIndex(curScan,curBase,realPeak,nPeaks);
+    }
+    return peakIndex;
+  }
+  private void setPeakType(int index, int value) {
+    realPeak[index] = (byte) value;
+    if( peakIndex != null && index > 0 ) { peakIndex.setType(index,value); }
+  }
+// n.b. call after changing the scan or base of a peak
+  private void updatePeakIndex(int index) {
+    if( peakIndex != null ) { peakIndex.update(index); }
+  }
+// sets the base No of a peak, keeping the base index in step
+  private void setBasePos(int index, int pos) {
+    int old=bpPos[index];
+    bpPos[index] = pos;
+    if( baseIndex == null || old == pos ) { return; }
+    if( pos >= baseIndex.length ) {
+      baseIndex=null;   // rebuilt larger on next use
+      return;
+    }
+    if( old >= 0 ) {
+      if( --baseCount[old] == 0 ) {
+        baseIndex[old]=-1;
+      } else if( baseIndex[old] == index ) {
+        baseIndex[old]=findAnalysisIndex(old);
+      }
+    }
+    if( pos >= 0 ) {
+      ++baseCount[pos];
+      if( baseIndex[pos] == -1 || index < baseIndex[pos] ) { baseIndex[pos]=index; }
+    }
+  }
+// matches a peak to a base No, tracking the highest index matched
+  private void setMatchedPeak(int index, int forkValue, int pos) {
+    fork[index] = forkValue;
+    setPeakType(index,AutoCSA.CALLED_PEAK);
+    setBasePos(index,pos);
+    if( index > matchedTo ) { matchedTo=index; }
+  }
+// resets peaks from an index on to unmatched noise peaks, n.b. those above
+// matchedTo are already reset so a retry after no match costs nothing
+  private void resetMatchedPeaks(int from) {
+    int to=Math.min(nPeaks,matchedTo);
+    for( int j = from ; j<= to ; ++j) {
+        fork[j] = -1;
+        setBasePos(j,-1);
+        setPeakType(j,AutoCSA.NOISE_PEAK);
+    }
+    if( from <= matchedTo ) { matchedTo=from-1; }
+  }
+  private void buildBaseIndex() {
+    int maxPos=( refSeq == null ) ? 0 : refSeq.length();
+    for( int i=0; i < nPeaks+1; ++i ) {
+      maxPos=Math.max(maxPos,bpPos[i]);
+    }
+    baseIndex = new int[maxPos+1];
+    baseCount = new int[maxPos+1];
+    Arrays.fill(baseIndex,-1);
+    for( int i=0; i < nPeaks+1; ++i ) {
+      int pos=bpPos[i];
+      if( pos < 0 ) { continue; }
+      if( baseCount[pos]++ == 0 ) { baseIndex[pos]=i; }
+    }
+  }
+
+/**
+ * <p>Sets the executor used by matchPeaksToRefSeq() to try the positions
+ * at which matching may start concurrently rather than in turn. The
+ * lowest position matching enough bases is chosen, as when tried in turn,
+ * so the analysis is unchanged. Poor traces, where most positions are
+ * tried, are matched sooner.</p>
+ * <p>Note the executor must not be one running the analyses themselves,
+ * as each analysis waits for its start positions to be tried.</p>
+ * @param executor the ExecutorService (null to try start positions in turn)
+ */
+  public static void setStartSearchExecutor(ExecutorService executor) {
+    startSearchExecutor=executor;
+  }
+/**
+ * Gets the executor used to try start positions concurrently
+ * @return the ExecutorService, null if start positions are tried in turn
+ */
+  public static ExecutorService getStartSearchExecutor() {
+    return startSearchExecutor;
+  }
+/**
+ * <p>Sets whether matchPeaksToRefSeq() looks up the ref seq K-mers the
+ * peaks may match (see RefKmerIndex) to jump to the next base No from
+ * which a match may start, e.g. past a trace hole, rather than trying
+ * each base No in turn. Only base Nos that cannot match are passed over,
+ * so the analysis is the same either way; turning it off is for
+ * agreement checks & benchmarks.</p>
+ * @param search true to jump to the next base No which may match
+ */
+  public static void setAnchorSearch(boolean search) {
+    anchorSearch=search;
+  }
+/**
+ * Gets whether matchPeaksToRefSeq() jumps to the next base No which may match
+ * @return true if so, false if each base No is tried in turn
+ */
+  public static boolean isAnchorSearch() {
+    return anchorSearch;
+  }
+  private static ExecutorService createDefaultStartSearchExecutor() {
+    int threads=Integer.getInteger("autocsa.startSearchThreads",0).intValue();
+    return ( threads > 0 ) ? Executors.newFixedThreadPool(threads,new StartSearchThreadFactory()) : null;
+  }
 
 /**
  * Top level method to organise matching of trace peaks with amplimer
@@ -316,7 +679,8 @@ public class SeqTraceAnalysis {
     
     //  set variables
     int refLen = refSeq.length();
-    int prev_peak[][]=new int[refLen+1][ 6];
+// n.b. flat, zeroed & reused by this thread across traces (see below)
+    int prev_peak[]=MatchScratch.get(refLen+1,nPeaks).getPrevPeak(refLen+1);
     
     String baseList[]={"A","C","G","T"};
     int i,j,k,l,m,n,x,y,z,x1;
@@ -343,10 +707,11 @@ public class SeqTraceAnalysis {
 // initialise arrays & initially set all peaks to noise peaks
     for( j = 0 ; j<= nPeaks ; ++j) {
         fork[j] = -1;
-        bpPos[j] = -1;
+        setBasePos(j,-1);
         tracePeakNo[j] = j;
-        realPeak[j] = AutoCSA.NOISE_PEAK;
+        setPeakType(j,AutoCSA.NOISE_PEAK);
     }
+    matchedTo=-1;
     
 //  filter out low peaks by looking at local intensity ratios
     x = 1;
@@ -370,21 +735,24 @@ public class SeqTraceAnalysis {
         }
     }
     
-    for( j = 1 ; j<= refLen ; ++j) {
-        for( k = 1 ; k<= 5 ; ++k) {
-            prev_peak[j][ k] = 0;
-        }
-    }
-    
-// n.b. prev_peak[0][ 0] - current max matched base No found
-// n.b. prev_peak[0][ 1] - current length of portion of matched bases found
-// prev_peak[j][ 1] - 'fork' value
-// prev_peak[j][ 2] - index to map base No to arays
-// prev_peak[j][ 3] - scan of base
-// prev_peak[j][ 4] - intensity of base
-// prev_peak[j][ 5] - fork switch
-    prev_peak[0][ 1] = 0;       //  max length found
+// n.b. prev_peak[0] - current max matched base No found
+// n.b. prev_peak[1] - current length of portion of matched bases found
+// n.b. PEAK_FIELDS ints per base No j, at row=j*PEAK_FIELDS
+// prev_peak[row+1] - 'fork' value
+// prev_peak[row+2] - index to map base No to arays
+// prev_peak[row+3] - scan of base
+// prev_peak[row+4] - intensity of base
+// prev_peak[row+5] - fork switch
+    prev_peak[1] = 0;       //  max length found
     
+    if( matchingEngine == AutoCSA.BANDED_MATCHING ) {
+      if( matchPeaksBanded(matchSeqLenCrit) ) {
+        matchedSomeRefSeq=true;
+        fillSingleTraceHoles();
+      }
+      return;
+    }
+
 // define model parameters for base No Vs scan relationship
     int startOffset=50;
     int startInc=10;
@@ -401,45 +769,47 @@ public class SeqTraceAnalysis {
       startInc=0;
     }
     prevScan=0;   // this setting causes trace param model to be used
-    int adjustmentType=Adjustment.getAdjustmentType();
+    int adjustmentType=getMobilityModel().getAdjustmentType();
     //  loop matchSequence to find first batch of bases in trace
     int refSearchStartLimit=refSearchStart+refSearchStartInc;
 
-    for( i = refSearchStart ; i<= refSearchStartLimit ; ++i) {
+    ExecutorService startSearch=startSearchExecutor;
+    if( startSearch != null ) {
+// n.b. as the loop below, but trying the start positions concurrently
+      position=matchStartConcurrently(startSearch, sall, saul, prev_peak, matchSeqLenCrit,
+                                      adjustmentType, startOffset, startInc, startBaseNo);
+      startedMatching=( prev_peak[0] - position >= matchSeqLenCrit );
+    } else {
+      for( i = refSearchStart ; i<= refSearchStartLimit ; ++i) {
 
 // can use estimated start scan if data is mobility corrected
 // n.b use fact that base 50 in seq is never before scan 50
 // also use a conservative base spacing of 10 from base 50 onwards
 // to make sure search bin does not miss required base
-        if( adjustmentType == 1 ) {
-          prevScan=startOffset+startInc*(i-startBaseNo);
-        }
-        prev_peak[0][ 0] = i;    //  current max peak position
-        for( j = 0 ; j<= nPeaks ; ++j) {
-            fork[j] = -1;
-            bpPos[j] = -1;
-            realPeak[j] = AutoCSA.NOISE_PEAK;
-        }
-        position = i;
+          if( adjustmentType == 1 ) {
+            prevScan=startOffset+startInc*(i-startBaseNo);
+          }
+          prev_peak[0] = i;    //  current max peak position
+          resetMatchedPeaks(0);
+          position = i;
 //if(log.isInfoEnabled()) log.info("Search (L1) base no "+position+" of "+refLen);
-        matchSequence(position, sall, saul, prev_peak, prevScan, matchSeqLenCrit,true);
+          matchSequence(position, sall, saul, prev_peak, prevScan, matchSeqLenCrit,true);
         
 // assume matching ok if >= matchSeqLenCrit bases are found
-        if ( prev_peak[0][ 0] - position >= matchSeqLenCrit ) {
-//if(log.isInfoEnabled()) log.info("Breaking "+prev_peak[0][ 0]+" i: "+i);
-            startedMatching=true;
-            break;   // jump out of i loop
-        }
+          if ( prev_peak[0] - position >= matchSeqLenCrit ) {
+//if(log.isInfoEnabled()) log.info("Breaking "+prev_peak[0]+" i: "+i);
+              startedMatching=true;
+              break;   // jump out of i loop
+          }
+      }
     }
 //  write ref seq info once first batch of contiguous bases identified
     if( startedMatching ) {
       startBase=position;
-      for( j = position ; j<= prev_peak[0][ 0] ; ++j) {
-        if ( prev_peak[j][ 2] > 0 ) {
-            index = prev_peak[j][ 2];
-            fork[index] = prev_peak[j][ 1];
-            realPeak[index] = AutoCSA.CALLED_PEAK;
-            bpPos[index] = j;
+      for( j = position ; j<= prev_peak[0] ; ++j) {
+        if ( prev_peak[j*PEAK_FIELDS+2] > 0 ) {
+            index = prev_peak[j*PEAK_FIELDS+2];
+            setMatchedPeak(index,prev_peak[j*PEAK_FIELDS+1],j);
         }
       }
       sall = 0;             // redefine search limits
@@ -448,20 +818,25 @@ public class SeqTraceAnalysis {
 
 // assign next base No to search for n.b always assign next
 // as this becomes new start base which is always recorded
-    position = prev_peak[0][ 0] + 1;  // try next base
+    position = prev_peak[0] + 1;  // try next base
 
   whileloop:
     while ( position < refSearchEnd ) {
         for( i = 1 ; i<= maxBasesMissed  ; ++i) {
-            for( j = index + 1 ; j<= nPeaks ; ++j) {
-                fork[j] = -1;
-                bpPos[j] = -1;
-                realPeak[j] = AutoCSA.NOISE_PEAK;
-            }
+            resetMatchedPeaks(index+1);
             if( startedMatching ) {
               sall = 0;             // redefine search limits
               saul = maxSearchLen;  // for efficiency
-              prevScan=prev_peak[prev_peak[0][0]] [3]; // scan of last base
+              prevScan=prev_peak[prev_peak[0]*PEAK_FIELDS+3]; // scan of last base
+// n.b. the search window stays put until a match is found & a failed match
+// changes nothing, so jump straight to the next base No which may match
+// (one too near refSearchEnd to match 6 bases ends the loop either way)
+              if( anchorSearch ) {
+                int anchor=findNextAnchor(position, Math.min(position+maxBasesMissed-i,refSearchEnd-1), sall, saul, prevScan);
+                i+=anchor-position;
+                position=anchor;
+                if( i > maxBasesMissed || position >= refSearchEnd ) { break; }
+              }
               matchSeqLenCrit=12;     // relax required consecutive bases
               if( refSearchEnd-position+1 < matchSeqLenCrit ) {
                 matchSeqLenCrit=refSearchEnd-position+1;
@@ -473,20 +848,21 @@ public class SeqTraceAnalysis {
               }
             }
 //if(log.isInfoEnabled()) log.info("Search (L2) base no "+position+" of "+refLen+" i: "+i+" prevScan: "+prevScan);
-            matchSequence(position, sall, saul, prev_peak, prevScan, matchSeqLenCrit,true);
+// n.b. until matching has started the window moves with position
+            if( startedMatching || ! anchorSearch || mayMatch(position, matchSeqLenCrit, sall, saul, prevScan) ) {
+              matchSequence(position, sall, saul, prev_peak, prevScan, matchSeqLenCrit,true);
+            }
 //  save data if we've found >= matchSeqLenCrit further bases
-            if ( prev_peak[0][ 0] - position + 1 >= matchSeqLenCrit ) {
+            if ( prev_peak[0] - position + 1 >= matchSeqLenCrit ) {
                 startedMatching=true;
                 if( startBase == 0 ) { startBase=position; }
-                for( j = position ; j<= prev_peak[0][ 0] ; ++j) {
-                    if ( prev_peak[j][ 2] > 0 ) {
-                        index = prev_peak[j][ 2];
-                        fork[index] = prev_peak[j][ 1];
-                        realPeak[index] = AutoCSA.CALLED_PEAK;
-                        bpPos[index] = j;
+                for( j = position ; j<= prev_peak[0] ; ++j) {
+                    if ( prev_peak[j*PEAK_FIELDS+2] > 0 ) {
+                        index = prev_peak[j*PEAK_FIELDS+2];
+                        setMatchedPeak(index,prev_peak[j*PEAK_FIELDS+1],j);
                     }
                 }
-                position = prev_peak[0][ 0] + 1;
+                position = prev_peak[0] + 1;
                 continue whileloop;
             }
             ++position;
@@ -500,7 +876,11 @@ public class SeqTraceAnalysis {
     }  // end of mainloop
 
     if( startedMatching ) { matchedSomeRefSeq=true; }
-    if( !startedMatching ) { return; }
+    if( !startedMatching ) {
+      kmerChains=null;
+      kmerChainsSet=null;
+      return;
+    }
 //  now perform 'clean up' to try to fill in any holes with a
 //  targeted matching of exactly the required lengths
 //  n.b. only if adjacent scans indicate we haven't a HOM DEL
@@ -524,17 +904,18 @@ public class SeqTraceAnalysis {
               matchSeqLenCrit=Math.min(3,matchSeqLenCrit);  // relax a bit
             }
             refSearchEnd=bpPos[i]-2;       // n.b. need to reset
-            prev_peak[0][ 0]=position;     // reset to curr base
-            matchSequence(position, sall, saul, prev_peak, prevScan,2,true);
-            int nFound=prev_peak[0][ 0] - position + 1;
+            prev_peak[0]=position;     // reset to curr base
+// n.b. skipped if no 2 bases can match, leaving nFound 1 as a failed match
+            if( ! anchorSearch || mayMatch(position, 2, sall, saul, prevScan) ) {
+              matchSequence(position, sall, saul, prev_peak, prevScan,2,true);
+            }
+            int nFound=prev_peak[0] - position + 1;
             if ( nFound >= matchSeqLenCrit ) {
-              if ( curScan[prev_peak[prev_peak[0][ 0]][ 2]] < curScan[i]) {
-                for( j = position ; j<= prev_peak[0][ 0] ; ++j) {
-                    if ( prev_peak[j][ 2] > 0 ) {
-                        index = prev_peak[j][ 2];
-                        fork[index] = prev_peak[j][ 1];
-                        realPeak[index] = AutoCSA.CALLED_PEAK;
-                        bpPos[index] = j;
+              if ( curScan[prev_peak[prev_peak[0]*PEAK_FIELDS+2]] < curScan[i]) {
+                for( j = position ; j<= prev_peak[0] ; ++j) {
+                    if ( prev_peak[j*PEAK_FIELDS+2] > 0 ) {
+                        index = prev_peak[j*PEAK_FIELDS+2];
+                        setMatchedPeak(index,prev_peak[j*PEAK_FIELDS+1],j);
                     }
                 }
               } else {
@@ -543,13 +924,11 @@ public class SeqTraceAnalysis {
             } else {
               index=0;
               if( nFound > 1 ) {
-                if ( curScan[prev_peak[prev_peak[0][ 0]][ 2]] < curScan[i] ) {
-                  for( j = position ; j<= prev_peak[0][ 0] ; ++j) {
-                    if ( prev_peak[j][ 2] > 0 ) {
-                        index = prev_peak[j][ 2];
-                        fork[index] = prev_peak[j][ 1];
-                        realPeak[index] = AutoCSA.CALLED_PEAK;
-                        bpPos[index] = j;
+                if ( curScan[prev_peak[prev_peak[0]*PEAK_FIELDS+2]] < curScan[i] ) {
+                  for( j = position ; j<= prev_peak[0] ; ++j) {
+                    if ( prev_peak[j*PEAK_FIELDS+2] > 0 ) {
+                        index = prev_peak[j*PEAK_FIELDS+2];
+                        setMatchedPeak(index,prev_peak[j*PEAK_FIELDS+1],j);
                     }
                   }
                 } else {
@@ -568,16 +947,16 @@ public class SeqTraceAnalysis {
                 matchSeqLenCrit-=(nFound+1);  // re-set
                 matchSeqLenCrit=Math.max(2,matchSeqLenCrit);
                 matchSeqLenCrit=Math.min(3,matchSeqLenCrit);
-                prev_peak[0][ 0]=position;     // reset to curr base
-                matchSequence(position, sall, saul, prev_peak, prevScan, matchSeqLenCrit,true);
-                if ( prev_peak[0][ 0] - position + 1 >= matchSeqLenCrit) {
-                  if ( curScan[prev_peak[prev_peak[0][ 0]][ 2]] < curScan[i]) {
-                    for( j = position ; j<= prev_peak[0][ 0] ; ++j) {
-                      if ( prev_peak[j][ 2] > 0 ) {
-                          index = prev_peak[j][ 2];
-                          fork[index] = prev_peak[j][ 1];
-                          realPeak[index] = AutoCSA.CALLED_PEAK;
-                          bpPos[index] = j;
+                prev_peak[0]=position;     // reset to curr base
+                if( ! anchorSearch || mayMatch(position, matchSeqLenCrit, sall, saul, prevScan) ) {
+                  matchSequence(position, sall, saul, prev_peak, prevScan, matchSeqLenCrit,true);
+                }
+                if ( prev_peak[0] - position + 1 >= matchSeqLenCrit) {
+                  if ( curScan[prev_peak[prev_peak[0]*PEAK_FIELDS+2]] < curScan[i]) {
+                    for( j = position ; j<= prev_peak[0] ; ++j) {
+                      if ( prev_peak[j*PEAK_FIELDS+2] > 0 ) {
+                          index = prev_peak[j*PEAK_FIELDS+2];
+                          setMatchedPeak(index,prev_peak[j*PEAK_FIELDS+1],j);
                       }
                     }
                   }
@@ -588,6 +967,9 @@ public class SeqTraceAnalysis {
       iPrevBase=i;
     }
     refSearchEnd=refSearchEnd_orig;  // reset original
+// n.b. the chains are stale once peaks are added
+    kmerChains=null;
+    kmerChainsSet=null;
 // finally check if we are > 5 bases from the refSearchStart
 // if so then try a reverse match from match start
     if( startBase > refSearchStart+5 ) {
@@ -597,16 +979,14 @@ public class SeqTraceAnalysis {
                 saul=0;
                 sall=5*Constants.AVERAGE_BASE_SPACING;
                 matchSeqLenCrit=5;
-                prev_peak[0][ 0]=position;     // reset to curr base
+                prev_peak[0]=position;     // reset to curr base
                 matchSequence(position, sall, saul, prev_peak, prevScan, matchSeqLenCrit,false);
-                if ( position - prev_peak[0][ 0] + 1 >= matchSeqLenCrit)
+                if ( position - prev_peak[0] + 1 >= matchSeqLenCrit)
 {
-                    for( j = position ; j>= prev_peak[0][ 0] ; --j) {
-                      if ( prev_peak[j][ 2] > 0 ) {
-                          index = prev_peak[j][ 2];
-                          fork[index] = prev_peak[j][ 1];
-                          realPeak[index] = AutoCSA.CALLED_PEAK;
-                          bpPos[index] = j;
+                    for( j = position ; j>= prev_peak[0] ; --j) {
+                      if ( prev_peak[j*PEAK_FIELDS+2] > 0 ) {
+                          index = prev_peak[j*PEAK_FIELDS+2];
+                          setMatchedPeak(index,prev_peak[j*PEAK_FIELDS+1],j);
                       }
                     }
                 }
@@ -619,24 +999,112 @@ public class SeqTraceAnalysis {
 
   }
 
-  private void matchSequence(int position, int sall, int saul, int[][] prev_peak, int lastBaseScan, int matchSeqLenCrit, boolean forwardSearch) {
+/**
+ * Matches peaks to the amplimer with a BandedPeakMatcher rather than
+ * matchSequence()
+ * @param matchSeqLenCrit min No of bases matched for success
+ * @return true if the amplimer was matched
+ */
+  private boolean matchPeaksBanded(int matchSeqLenCrit) {
+    BandedPeakMatcher matcher = new BandedPeakMatcher(curScan,curBase,filter,nPeaks,
+        refSeq,refSearchStart,refSearchEnd,peakSearchBin,maxBasesMissed,getMobilityModel());
+    int[] matched=matcher.match(matchSeqLenCrit);
+    if( matched == null ) { return false; }
+    for( int bp = 1 ; bp < matched.length ; ++bp) {
+      if( matched[bp] > 0 ) {
+        setMatchedPeak(matched[bp],0,bp);
+      }
+    }
+    return true;
+  }
+/**
+ * Tries the start positions of the first matching phase of
+ * matchPeaksToRefSeq() concurrently, each matched on a private copy of
+ * prev_peak. The results are then applied in position order up to the
+ * first position matching matchSeqLenCrit bases, leaving prev_peak & the
+ * analysis arrays as if the positions were tried in turn.
+ * @return the last position applied, i.e. the matching start position if any
+ */
+  private int matchStartConcurrently(ExecutorService executor, final int sall, final int saul, int[] prev_peak,
+                                     final int matchSeqLenCrit, int adjustmentType, int startOffset, int startInc, int startBaseNo) {
+    int refSearchStartLimit=refSearchStart+refSearchStartInc;
+    resetMatchedPeaks(0);
+// n.b. built now as the tries share it & matchSequence() only reads it
+    getPeakIndex();
+    final int refLen=refSeq.length();
+    Future[] tries = new Future[refSearchStartLimit-refSearchStart+1];
+    StartTry[] tasks = new StartTry[tries.length];
+    for( int i = refSearchStart ; i<= refSearchStartLimit ; ++i) {
+      int lastBaseScan=( adjustmentType == 1 ) ? startOffset+startInc*(i-startBaseNo) : 0;
+      StartTry task = new StartTry(i,sall,saul,refLen,lastBaseScan,matchSeqLenCrit);
+      try {
+        tries[i-refSearchStart]=executor.submit(task);
+        tasks[i-refSearchStart]=task;
+      } catch ( RejectedExecutionException e ) {
+        break;   // remaining positions are tried below
+      }
+    }
+    int position=refSearchStart;
+    boolean interrupted=false;
+    try {
+      for( int i = refSearchStart ; i<= refSearchStartLimit ; ++i) {
+        position=i;
+        prev_peak[0] = i;
+        Future f=tries[i-refSearchStart];
+        int[] found=null;
+        if( f != null && ! interrupted ) {
+          try {
+            found=(int[]) f.get();
+          } catch ( InterruptedException e ) {
+            interrupted=true;
+            f=null;
+          }
+        }
+        if( f == null || interrupted ) {
+          int lastBaseScan=( adjustmentType == 1 ) ? startOffset+startInc*(i-startBaseNo) : 0;
+          found=matchStartPosition(i,sall,saul,refLen,lastBaseScan,matchSeqLenCrit);
+        }
+        if( found != null ) {
+          prev_peak[0] = found[0];
+          prev_peak[1] = found[1];
+          for( int j = refSearchStart ; j<= refSearchEnd ; ++j) {
+            System.arraycopy(found,j*PEAK_FIELDS+1,prev_peak,j*PEAK_FIELDS+1,PEAK_FIELDS-1);
+          }
+          if ( prev_peak[0] - position >= matchSeqLenCrit ) { break; }
+        }
+      }
+    } catch ( ExecutionException e ) {
+      Throwable cause=e.getCause();
+      if( cause instanceof RuntimeException ) { throw (RuntimeException) cause; }
+      if( cause instanceof Error ) { throw (Error) cause; }
+      throw new RuntimeException(cause);
+    }
+    finally {
+// n.b. tries still running read the analysis arrays, so must finish before
+// the caller changes them
+      for( int i = 0 ; i < tasks.length ; ++i) {
+        if( tasks[i] != null && tasks[i].abandon() ) { interrupted=true; }
+      }
+      if( interrupted ) { Thread.currentThread().interrupt(); }
+    }
+    return position;
+  }
+/**
+ * Tries a single start position on a private prev_peak array
+ * @return the prev_peak array if matchSequence() stored a match, else null
+ */
+  private int[] matchStartPosition(int position, int sall, int saul, int refLen, int lastBaseScan, int matchSeqLenCrit) {
+    int[] tried = new int[(refLen+1)*PEAK_FIELDS];
+    tried[0] = position;
+    tried[1] = -1;   // n.b. set >0 only if a match is stored
+    matchSequence(position, sall, saul, tried, lastBaseScan, matchSeqLenCrit,true);
+    return ( tried[1] < 0 ) ? null : tried;
+  }
+  private void matchSequence(int position, int sall, int saul, int[] prev_peak, int lastBaseScan, int matchSeqLenCrit, boolean forwardSearch) {
     
     int refLen = refSeq.length();
-    int peak[][] = new int[refLen+1][6];
-    
-//  set trace parameterisation coefficients
-//  n.b. these are obtained from non-mobility corrected 3730 POP7 data
-    float curve,slope,intercept;
-// must use trace parameterisation if data is not mobility corrected
-    if( Adjustment.getAdjustmentType() == 0 ) {
-      curve = 0.00318f;
-      slope = 9.56794f;
-      intercept = 1171.146f;
-    } else {
-      curve = 0.0f;
-      slope = 0.0f;
-      intercept = 0.0f;
-    }
+    MatchScratch scratch=MatchScratch.get(refLen+1,nPeaks);
+    MobilityModel mobility=getMobilityModel();
    
     int direction,refSearchLimit;
     if ( forwardSearch ) {
@@ -646,19 +1114,10 @@ public class SeqTraceAnalysis {
       direction=-1;
       refSearchLimit=refSearchStart;
     }
-    float pos = (float) position;
-    float sac;
-    if( lastBaseScan > 0 ) {
-      sac= (float) (lastBaseScan+direction*1);   // inc 1 so don't pick up last base
-    } else {
-      sac = curve*pos*pos + pos*slope + intercept;
-      if( sac == 0.0f ) {
-        if(log.isWarnEnabled()) log.warn("WARNING: Quadratic Trace parameterisation should NOT be used with zero coefficients");
-      }
+    float sac=getStartScan(position,lastBaseScan,direction);
+    if( lastBaseScan <= 0 && sac == 0.0f ) {
+      if(log.isWarnEnabled()) log.warn("WARNING: Quadratic Trace parameterisation should NOT be used with zero coefficients");
     }
-// define upper and lower search limits
-    float sal = Math.max(50.0f, sac - (float) sall);
-    float sau = sac + (float) saul;
     
     int i,j,k,l,n;
     int branch,maxPos,scan,bp;
@@ -670,36 +1129,19 @@ public class SeqTraceAnalysis {
     boolean selectMax;
 
 //  define index range that fall in search range
-//  n.b. curScan[y] is int, sal,sau are float
-    int y = 1;
-    while( y < nPeaks-1 && (float) curScan[y] < sal ) {
-        ++y;
-    }
-    int lll = y;       // lower line limit  (was y-1)
-    
-    while( y < nPeaks && (float) curScan[y] < sau ) {
-        ++y;
-    }
-    int ull = y;   // upper line limit
+    long range=getStartRange(sac,sall,saul);
+    int lll = (int) (range >>> 32);   // lower line limit  (was y-1)
+    int ull = (int) range;            // upper line limit
     
     int trialIndex;
     if ( forwardSearch ) { trialIndex = lll; } else { trialIndex = ull; }
     String startBase = refSeq.substring(position-1, position);
     int numTrialBases = countChars(curBase,startBase.charAt(0),lll,ull);
     
-    int forkValue[] = new int[nPeaks+1];
-
 // main loop over No. of bases (of type startBase) in range [lll,ull]
   iloop:
     for(i = 1 ; i<=numTrialBases ; ++i) {
-        for(j = 0 ; j<=nPeaks ; ++j) {
-          forkValue[j] = 0;
-        }
-        for(j = refSearchStart ; j<=refSearchEnd ; ++j) {
-            for(k = 1 ; k<=5 ; ++k) {
-                peak[j][ k] = 0;
-            }
-        }
+        scratch.clear();   // n.b. zeroes the peak rows & fork values
         branch = 0;
         maxPos = 0;
         index  = 0;
@@ -722,9 +1164,9 @@ public class SeqTraceAnalysis {
         scan = curScan[trialIndex];
         bp = position;
         
-        peak[bp][ 2] = trialIndex;
-        peak[bp][ 3] = scan;
-        peak[bp][ 4] = curIntensity[trialIndex];
+        scratch.setPeak(bp,2,trialIndex);
+        scratch.setPeak(bp,3,scan);
+        scratch.setPeak(bp,4,curIntensity[trialIndex]);
                 
 //      search for seq at selected start base
         while ( true) {
@@ -743,23 +1185,23 @@ public class SeqTraceAnalysis {
               base2 = refSeq.substring(bp-2, bp-1);
               base3 = refSeq.substring(bp-3, bp-2);
             }
-            baseOffset=Adjustment.getAdjustmentOffset(base1,base2,bp,bp+1);
+            baseOffset=mobility.getAdjustmentOffset(base1,base2,bp,bp+1);
             baseOffset*=direction;   // account for fwd or rev search
 //          setup criteria for array searching
             
-            if ( forkValue[peak[bp][ 2]] > 0 ) {
-                peak[bp][ 1] = forkValue[peak[bp][ 2]];
-                peak[bp][ 5] = 1;
+            if ( scratch.getForkValue(scratch.getPeak(bp,2)) > 0 ) {
+                scratch.setPeak(bp,1,scratch.getForkValue(scratch.getPeak(bp,2)));
+                scratch.setPeak(bp,5,1);
             }
             
 // inner while
             selectMax=false;
             while( bin > 0.0f ) {  // allows smallest bin=0.5
-              if ( peak[bp][ 1] == 0 ) {
+              if ( scratch.getPeak(bp,1) == 0 ) {
                 searchLimit1 = (float) scan + baseOffset - bin;
                 searchLimit2 = (float) scan + baseOffset + bin;
                 searchType=1;    // > lim1 && < lim2
-              } else if ( peak[bp][ 1] == 1 ) {
+              } else if ( scratch.getPeak(bp,1) == 1 ) {
                 searchLimit1 = (float) scan + baseOffset - bin;
                 searchLimit2 = (float) scan + baseOffset;
                 searchType=2;    // > lim1 && <= lim2
@@ -777,12 +1219,12 @@ public class SeqTraceAnalysis {
 //          examine results of peak search
               if ( index < 0 ) {
                 if ( index < -1 ) {    // >1 peak found - reduce bin
-                //  if ( peak[bp][ 1] == 0 ) {
-                //      peak[bp][ 1] = 1;
+                //  if ( scratch.getPeak(bp,1) == 0 ) {
+                //      scratch.setPeak(bp,1,1);
                 //      continue;
                 //  } else {
-                //      if ( peak[bp][ 1] == 2 ) {
-                //          peak[bp][ 1] = 1;
+                //      if ( scratch.getPeak(bp,1) == 2 ) {
+                //          scratch.setPeak(bp,1,1);
                 //      }
                 //      bin = bin - 0.5f;
                 //      continue;
@@ -795,13 +1237,9 @@ if( bin == 0.0 ) {
 if(log.isInfoEnabled()) log.info("Returning: bp: "+bp+" Retval: "+index);
         if( maxPos == 0 ) {return; }
         if ( direction*(maxPos - position) + 1 >= matchSeqLenCrit ) {
-                prev_peak[0][ 0] = maxPos;
-                prev_peak[0][ 1] = Math.abs(maxPos - position) + 1;
-                for(j = refSearchStart ; j<=refSearchEnd ; ++j) {
-                    for(k = 1 ; k<=5 ; ++k) {
-                        prev_peak[j][ k] = peak[j][ k];
-                    }
-                }
+                prev_peak[0] = maxPos;
+                prev_peak[1] = Math.abs(maxPos - position) + 1;
+                scratch.copyPeaks(refSearchStart,refSearchEnd,prev_peak);
         }
         return;   // return here prevents infinite loop if bin=0.0
 }
@@ -822,18 +1260,18 @@ if(log.isInfoEnabled()) log.info("Returning: bp: "+bp+" Retval: "+index);
                 resIntensity = curIntensity[index];
                 if ( branch != 0 ) {
 if(log.isInfoEnabled()) log.info("Branch > 0");
-                    if ( resPeak != peak[bp + 1][ 2] ) {
-                        for(k = bp + 1 ; k<= prev_peak[0][ 0] ; ++k ) {
+                    if ( resPeak != scratch.getPeak(bp + 1,2) ) {
+                        for(k = bp + 1 ; k<= prev_peak[0] ; ++k ) {
                             for(l = 1 ; l <=5 ; ++l ) {
-                                peak[k][ l] = 0;
+                                scratch.setPeak(k,l,0);
                             }
                         }
                     }
                 }
                 if ( forwardSearch ) { ++bp; } else { --bp; }
-                peak[bp][ 2] = resPeak;
-                peak[bp][ 3] = resScan;
-                peak[bp][ 4] = resIntensity;
+                scratch.setPeak(bp,2,resPeak);
+                scratch.setPeak(bp,3,resScan);
+                scratch.setPeak(bp,4,resIntensity);
                 scan = resScan;
                 maxPos = bp;
                 break;  // break out of inner while i.e. continue matching
@@ -842,34 +1280,26 @@ if(log.isInfoEnabled()) log.info("Branch > 0");
         }
             
 //      store data for longest sequence found (may need to be >20)
-//      if ( maxPos - position + 1 > matchSeqLenCrit && maxPos - position + 1 >= prev_peak[0][ 1] ) {
+//      if ( maxPos - position + 1 > matchSeqLenCrit && maxPos - position + 1 >= prev_peak[1] ) {
         if ( maxPos > 0 && direction*(maxPos - position) + 1 >= matchSeqLenCrit ) {
-//          if ( maxPos - position + 1 > prev_peak[0][ 1] ) {
+//          if ( maxPos - position + 1 > prev_peak[1] ) {
             if ( true ) {
-                prev_peak[0][ 0] = maxPos;
-                prev_peak[0][ 1] = Math.abs(maxPos - position) + 1;
-                for(j = refSearchStart ; j<=refSearchEnd ; ++j) {
-                    for(k = 1 ; k<=5 ; ++k) {
-                        prev_peak[j][ k] = peak[j][ k];
-                    }
-                }
+                prev_peak[0] = maxPos;
+                prev_peak[1] = Math.abs(maxPos - position) + 1;
+                scratch.copyPeaks(refSearchStart,refSearchEnd,prev_peak);
                 return;
             } else {
-                if ( maxPos - position + 1 == prev_peak[0][ 1] ) {
-                    if ( peak[branch + 1][4] >= prev_peak[branch + 1][4] ) {
-                        prev_peak[0][ 0] = maxPos;
-                        prev_peak[0][ 1] = maxPos - position + 1;
-                        for(j = refSearchStart ; j<=refSearchEnd ; ++j) {
-                            for(k = 1 ; k<=5 ; ++k) {
-                                prev_peak[j][ k] = peak[j][ k];
-                            }
-                        }
+                if ( maxPos - position + 1 == prev_peak[1] ) {
+                    if ( scratch.getPeak(branch + 1,4) >= prev_peak[(branch + 1)*PEAK_FIELDS+4] ) {
+                        prev_peak[0] = maxPos;
+                        prev_peak[1] = maxPos - position + 1;
+                        scratch.copyPeaks(refSearchStart,refSearchEnd,prev_peak);
                         return;
                     }
                 }
             }
- //         if ( peak[branch][ 1] >= 2 && peak[branch][ 5] == 0 ) {
- //             peak[branch][ 5] = 1;
+ //         if ( scratch.getPeak(branch,1) >= 2 && scratch.getPeak(branch,5) == 0 ) {
+ //             scratch.setPeak(branch,5,1);
  //         }
         }
 //      if ( maxPos == refSearchEnd) { return; }  // return if matched to end
@@ -878,23 +1308,23 @@ if(log.isInfoEnabled()) log.info("Branch > 0");
               continue iloop;
         }
         
-        if ( peak[branch][ 1] == 1 && peak[branch][ 5] == 0 ) {
-            peak[branch][ 1] = 2;
+        if ( scratch.getPeak(branch,1) == 1 && scratch.getPeak(branch,5) == 0 ) {
+            scratch.setPeak(branch,1,2);
         } else {
-            if ( peak[branch][ 1] == 2 && peak[branch][ 5] == 0 ) {
-                peak[branch][ 1] = 1;
-                peak[branch][ 5] = 1;
+            if ( scratch.getPeak(branch,1) == 2 && scratch.getPeak(branch,5) == 0 ) {
+                scratch.setPeak(branch,1,1);
+                scratch.setPeak(branch,5,1);
             }
         }
         
         for(j = branch ; j<=maxPos ; ++j ) {
-            if ( peak[j][ 1] > 0 && peak[j][ 5] == 1 ) {
-                forkValue[peak[j][ 2]] = peak[j][ 1];
+            if ( scratch.getPeak(j,1) > 0 && scratch.getPeak(j,5) == 1 ) {
+                scratch.setForkValue(scratch.getPeak(j,2),scratch.getPeak(j,1));
             }
         }
         
         while( bp >= 0 ) {
-            if( peak[bp][ 1] == 1 && peak[bp][ 5] == 0 ) { break; }
+            if( scratch.getPeak(bp,1) == 1 && scratch.getPeak(bp,5) == 0 ) { break; }
             bp = bp - 1;
             if ( bp == position - 1 ) {
                 ++trialIndex;
@@ -902,59 +1332,198 @@ if(log.isInfoEnabled()) log.info("Branch > 0");
             }
         }
         
-        peak[bp][ 1] = 2;
+        scratch.setPeak(bp,1,2);
         branch = bp;
-        scan = peak[bp][ 3];
+        scan = scratch.getPeak(bp,3);
         
 //  at this point control transfers to start of while(true) loop
 //  so we can resume searching for refseq
       }
     }
   }
+/**
+ * Gets the scan about which matchSequence() searches for its first base
+ * @param position base No of the first base
+ * @param lastBaseScan scan of the last matched base, <= 0 if none
+ * @param direction 1 for a forward search, -1 for reverse
+ * @return the search centre (in scans)
+ */
+  private float getStartScan(int position, int lastBaseScan, int direction) {
+    if( lastBaseScan > 0 ) {
+      return (float) (lastBaseScan+direction*1);   // inc 1 so don't pick up last base
+    }
+//  set trace parameterisation coefficients
+//  n.b. these are obtained from non-mobility corrected 3730 POP7 data
+    float curve,slope,intercept;
+// must use trace parameterisation if data is not mobility corrected
+    if( ! getMobilityModel().isMobilityCorrected() ) {
+      curve = 0.00318f;
+      slope = 9.56794f;
+      intercept = 1171.146f;
+    } else {
+      curve = 0.0f;
+      slope = 0.0f;
+      intercept = 0.0f;
+    }
+    float pos = (float) position;
+    return curve*pos*pos + pos*slope + intercept;
+  }
+/**
+ * Gets the analysis index range searched by matchSequence() for its first
+ * base
+ * @param sac search centre (in scans)
+ * @param sall search area lower limit (scans below sac)
+ * @param saul search area upper limit (scans above sac)
+ * @return the lower index limit << 32 | the upper index limit
+ */
+  private long getStartRange(float sac, int sall, int saul) {
+// define upper and lower search limits
+    float sal = Math.max(50.0f, sac - (float) sall);
+    float sau = sac + (float) saul;
+//  n.b. curScan[y] is int, sal,sau are float
+    int y = 1;
+    while( y < nPeaks-1 && (float) curScan[y] < sal ) {
+        ++y;
+    }
+    long lll = y;
+    while( y < nPeaks && (float) curScan[y] < sau ) {
+        ++y;
+    }
+    return ( lll << 32 ) | y;
+  }
+/**
+ * <p>Gets the codes of the bases which may be matched from a peak by
+ * matchSequence(), i.e. those spelled by chains of filtered peaks each a
+ * base spacing (within the peak search bin) after the last.</p>
+ * <p>As any spacing of a pair of ref seq bases is allowed & called peaks
+ * are not excluded, the first length bases of a match from a peak are
+ * always in its set.</p>
+ * <p>Chains are found as needed & kept (in kmerChains) until peaks are
+ * added.</p>
+ * @param length No of bases (up to RefKmerIndex.K)
+ * @param index analysis array index of the peak
+ * @return a bit per code of the length-mers, but for length K a bit per
+ * code of the K-1 mers after the peak (as RefKmerIndex.next())
+ */
+  private long getKmerChains(int length, int index) {
+    if( filter[index] != 1 ) { return 0L; }
+    int c=PeakIndex.getChannel(curBase[index]);
+    if( length < RefKmerIndex.K && c == PeakIndex.OTHER ) { return 0L; }
+    if( length == 1 ) { return 1L << c; }
+    if( kmerChains == null ) { initKmerChains(); }
+    if( kmerChainsSet[length][index] ) { return kmerChains[length][index]; }
+    long or=0L;
+    PeakIndex peaks=getPeakIndex();
+    float scan=(float) curScan[index];
+    for( int n = 0 ; n < 4 ; ++n) {
+      int lim=peaks.findPosition(n,scan+kmerStepHi,false);
+      for( int p=peaks.findPosition(n,scan+kmerStepLo,true) ; p < lim ; ++p) {
+        or|=getKmerChains(length-1,peaks.getPeak(n,p));
+      }
+    }
+    if( length < RefKmerIndex.K ) {
+      or<<=c*(1 << (2*length-2));
+    }
+    kmerChains[length][index]=or;
+    kmerChainsSet[length][index]=true;
+    return or;
+  }
+  private void initKmerChains() {
+    float[] step=getRefKmerIndex().getStepRange(getMobilityModel());
+// n.b. widened by a scan as matchSequence() search limits are floats
+    kmerStepLo=step[0]-peakSearchBin-1.0f;
+    kmerStepHi=step[1]+peakSearchBin+1.0f;
+    kmerChains = new long[RefKmerIndex.K+1][nPeaks+1];
+    kmerChainsSet = new boolean[RefKmerIndex.K+1][nPeaks+1];
+  }
+/**
+ * Finds the next base No from which a forward matchSequence() may match
+ * RefKmerIndex.K bases, i.e. the next starting a ref seq K-mer spelled by
+ * one of the start peaks it would try (see getKmerChains())
+ * @param position first base No to try
+ * @param limit last base No to try
+ * @param sall search area lower limit (as matchSequence())
+ * @param saul search area upper limit (as matchSequence())
+ * @param lastBaseScan scan of the last matched base (as matchSequence())
+ * @return the base No, limit+1 if none
+ */
+  private int findNextAnchor(int position, int limit, int sall, int saul, int lastBaseScan) {
+    long range=getStartRange(getStartScan(position,lastBaseScan,1),sall,saul);
+    int lll = (int) (range >>> 32);
+    int ull = (int) range;
+// n.b. the start peaks are those counted by countChars()
+    if( ull >= curBase.length ) { return position; }
+    long[] followers = new long[4];
+    for( int i = lll ; i<= ull ; ++i) {
+      if( filter[i] != 1 || realPeak[i] != AutoCSA.NOISE_PEAK ) { continue; }
+      int c=PeakIndex.getChannel(curBase[i]);
+      if( c != PeakIndex.OTHER ) {
+        followers[c]|=getKmerChains(RefKmerIndex.K,i);
+      }
+    }
+    RefKmerIndex index=getRefKmerIndex();
+    if( limit <= position ) {
+      return index.matches(followers,position) ? position : position+1;
+    }
+    return index.next(followers,position,limit);
+  }
+/**
+ * Tests whether a forward matchSequence() from a base No may match a No
+ * of bases, i.e. whether the ref seq bases from it are spelled by one of
+ * the start peaks it would try (see getKmerChains())
+ * @param position base No of the first base
+ * @param length No of bases to match
+ * @param sall search area lower limit (as matchSequence())
+ * @param saul search area upper limit (as matchSequence())
+ * @param lastBaseScan scan of the last matched base (as matchSequence())
+ * @return false if no match of length bases can be found
+ */
+  private boolean mayMatch(int position, int length, int sall, int saul, int lastBaseScan) {
+    if( length >= RefKmerIndex.K ) {
+      return findNextAnchor(position,position,sall,saul,lastBaseScan) == position;
+    }
+    if( position < 1 || position+length-1 > refSeq.length() ) { return true; }
+    int code=0;
+    for( int k = 0 ; k < length ; ++k) {
+      int c=PeakIndex.getChannel(refSeq.charAt(position-1+k));
+      if( c == PeakIndex.OTHER ) { return true; }
+      code=(code << 2) | c;
+    }
+    long range=getStartRange(getStartScan(position,lastBaseScan,1),sall,saul);
+    int lll = (int) (range >>> 32);
+    int ull = (int) range;
+    if( ull >= curBase.length ) { return true; }
+    for( int i = lll ; i<= ull ; ++i) {
+      if( realPeak[i] != AutoCSA.NOISE_PEAK ) { continue; }
+      if( ( getKmerChains(length,i) & ( 1L << code ) ) != 0L ) { return true; }
+    }
+    return false;
+  }
   private int searchData(int searchType,float searchLimit1,float searchLimit2,int searchFilter,String searchBase, boolean selectMax) {
 
+// n.b. all search types include both limits (see PeakIndex)
+    PeakIndex peaks=getPeakIndex();
+    char base=searchBase.charAt(0);
+    int chan=PeakIndex.getChannel(base);
     int index=0;
     int count=0;
     int curMax=0;
-    float scan=0.0f;
-    for( int i=1; i<= nPeaks ; ++i) {
+    int lim=peaks.findPosition(chan,searchLimit2,false);
+    for( int p=peaks.findPosition(chan,searchLimit1,true); p < lim ; ++p) {
+      int i=peaks.getPeak(chan,p);
       if ( realPeak[i] == AutoCSA.CALLED_PEAK ) {continue; }
       if ( filter[i] != searchFilter ) {continue; }
-      if ( curBase[i] != searchBase.charAt(0) ) {continue; }
-      scan = (float) curScan[i];
-      switch(searchType) {
-      case 1: {
-//        if ( scan > searchLimit1 && scan < searchLimit2 ) {
-          if ( scan >= searchLimit1 && scan <= searchLimit2 ) {
-            if( selectMax ) {
-              if( curIntensity[i] > curMax ) {
-                curMax=curIntensity[i];
-                index = i;
-              }
-              count=1;
-            } else {
-              index = i;
-              ++count;
-            }
-          }
-          break;
-        }
-      case 2: {
-//        if ( scan > searchLimit1 && scan <= searchLimit2 ) {
-          if ( scan >= searchLimit1 && scan <= searchLimit2 ) {
-            index = i;
-            ++count;
-          }
-          break;
-        }
-      case 3: {
-//        if ( scan >= searchLimit1 && scan < searchLimit2 ) {
-          if ( scan >= searchLimit1 && scan <= searchLimit2 ) {
-            index = i;
-            ++count;
-          }
-          break;
+      if ( curBase[i] != base ) {continue; }
+      if( selectMax && searchType == 1 ) {
+// n.b. the lowest index is kept where max intensities are equal
+        if( curIntensity[i] > curMax || (curIntensity[i] == curMax && index > 0 && i < index) ) {
+          curMax=curIntensity[i];
+          index = i;
         }
+        count=1;
+      } else {
+        index = i;
+        ++count;
       }
     }
 
@@ -1057,6 +1626,7 @@ if(log.isInfoEnabled()) log.info("Branch > 0");
 // at start of array so cannot use data until we've reached the first
 // index corresponding to a real peak
 // Trace base quality q is defined as signal/noise ratio at the base
+    long qualityStart=CSAMetrics.start();
     int i;
     int peakIncr=(peakRange-1)/2;
     for( i=0; i < nPeaks+1; ++i ) {
@@ -1064,6 +1634,7 @@ if(log.isInfoEnabled()) log.info("Branch > 0");
     }
     int realPeakStart=i;
     float maxQ=maxAllowableQuality;
+    SlidingWindowMax noisePeaks=getNoisePeakWindow();
     for( i=0; i < nPeaks+1; ++i ) {
       if( realPeak[i] != AutoCSA.CALLED_PEAK ) {
         quality[i]=-1.0f;
@@ -1075,7 +1646,7 @@ if(log.isInfoEnabled()) log.info("Branch > 0");
       int peakScan=curScan[i];
       int scanLim1=peakScan-5;
       int scanLim2=peakScan+5;
-      int maxUnCalledPeak=getMaxNoisePeak(scanLim1,scanLim2);
+      int maxUnCalledPeak=Math.max(0,noisePeaks.max(scanLim1,scanLim2,0));
       if( maxUnCalledPeak > 0 ) {
         quality[i]= Math.min(maxQ,(float) maxCalledPeak/ (float) maxUnCalledPeak);
 //if(log.isInfoEnabled()) log.info("Q: "+quality[i]+" "+maxCalledPeak+" "+maxUnCalledPeak);
@@ -1091,6 +1662,7 @@ if(log.isInfoEnabled()) log.info("Branch > 0");
         quality[i]= Math.min(maxQ,(float) maxCalledPeak/ (float) maxNoise);
       }
     }
+    CSAMetrics.stop(CSAMetrics.QUALITY,qualityStart);
   }
 /**
  * <p>Returns a trace quality array calculated using peak data only.</p>
@@ -1110,6 +1682,7 @@ this method.</p>
 // noise peaks bases on peaks only - used for subtle het detection
     int i;
     float[] qual = new float[nPeaks+1];
+    SlidingWindowMax noisePeaks=getNoisePeakWindow();
     for( i=0; i < nPeaks+1; ++i ) {
       if( realPeak[i] != AutoCSA.CALLED_PEAK ) {
         qual[i]=-1.0f;
@@ -1121,7 +1694,7 @@ this method.</p>
       int peakScan=curScan[i];
       int scanLim1=peakScan-bin;
       int scanLim2=peakScan+bin;
-      int maxUnCalledPeak=getMaxNoisePeak(scanLim1,scanLim2);
+      int maxUnCalledPeak=Math.max(0,noisePeaks.max(scanLim1,scanLim2,0));
       if( maxUnCalledPeak > 0 ) {
         qual[i]= Math.min(maxQual,(float) maxCalledPeak/ (float) maxUnCalledPeak);
       } else {
@@ -1151,6 +1724,11 @@ this method.</p>
     }
     int realPeakStart=i;
     float[] qual = new float[nPeaks+1];
+// n.b. index of the max peak in the window of peakRange peaks centred on
+// each peak from realPeakStart on, found in a single pass
+    int[] windowMax = new int[nPeaks+1];
+    SlidingWindowFilter.maxIndex(curIntensity,realPeakStart,nPeaks,peakIncr,windowMax);
+    SlidingWindowMax noisePeaks=getNoisePeakWindow();
     for( i=0; i < nPeaks+1; ++i ) {
       if( realPeak[i] != AutoCSA.CALLED_PEAK && realPeak[i] != AutoCSA.DYE_BLOB_PEAK ) {
         qual[i]=-1.0f;
@@ -1161,14 +1739,19 @@ this method.</p>
       // find max called peak in window of peakRange peaks centred on current
       int maxCalledPeak=0;
       int maxIndex=0;
-      for( int j=lim1; j <= lim2; ++j ) {
-        maxCalledPeak=Math.max(maxCalledPeak,curIntensity[j]);
-        if ( maxCalledPeak == curIntensity[j] ) {maxIndex=j; }
+      if( i < realPeakStart ) {
+        for( int j=lim1; j <= lim2; ++j ) {
+          maxCalledPeak=Math.max(maxCalledPeak,curIntensity[j]);
+          if ( maxCalledPeak == curIntensity[j] ) {maxIndex=j; }
+        }
+      } else if( curIntensity[windowMax[i]] >= 0 ) {
+        maxIndex=windowMax[i];
+        maxCalledPeak=curIntensity[maxIndex];
       }
       // find max uncalled peak in same window (add a bit extra)
       int scanLim1=curScan[lim1]-5;
       int scanLim2=curScan[lim2]+5;
-      int maxUnCalledPeak=getMaxNoisePeak(scanLim1,scanLim2);
+      int maxUnCalledPeak=Math.max(0,noisePeaks.max(scanLim1,scanLim2,0));
       if( maxUnCalledPeak > 0 ) {
         qual[i]= Math.min(maxQual,(float) maxCalledPeak/ (float) maxUnCalledPeak);
       } else {
@@ -1252,27 +1835,45 @@ this method.</p>
       return 100.0f * avQuality/ (float) count;
     }
   }
-  private int getMaxNoisePeak(int limit1, int limit2) {
-    int maxNoisePeak=0;
-    for( int i=1; i < nPeaks+1; ++i ) {
-      if( realPeak[i] != AutoCSA.NOISE_PEAK ) { continue; }  // selects only unassigned
-      if( curScan[i] >= limit1 && curScan[i] <= limit2 ) {
-        maxNoisePeak=Math.max(maxNoisePeak,curIntensity[i]);
+// n.b. the noise peaks (as indexed by getPeakIndex()) in scan order, for
+// the max noise peak over each window of a quality pass
+  private SlidingWindowMax getNoisePeakWindow() {
+    int n=0;
+    long[] keys = new long[nPeaks];
+    for( int i=1; i <= nPeaks; ++i ) {
+      if( realPeak[i] == AutoCSA.NOISE_PEAK ) {
+        keys[n++]=((long) curScan[i] << 32) | (curIntensity[i] & 0xFFFFFFFFL);
       }
     }
-// returns the max noise peak over a scan range
-    return maxNoisePeak;
+    Arrays.sort(keys,0,n);
+    int[] scans = new int[n];
+    int[] intensities = new int[n];
+    for( int p=0; p < n; ++p ) {
+      scans[p]=(int) (keys[p] >> 32);
+      intensities[p]=(int) keys[p];
+    }
+    return new SlidingWindowMax(scans,intensities,n);
   }
   private int getMaxNoisePeak(int limit1, int limit2, String base) {
+    if( base.length() != 1 ) { return 0; }
+    char b=base.charAt(0);
+    int chan=PeakIndex.getChannel(b);
+// returns the max noise peak (of a specified base) over a scan range
+    return getMaxNoisePeak(chan,limit1,limit2,( chan == PeakIndex.OTHER ) ? b : (char) 0);
+  }
+// n.b. base 0 selects all bases in the channel
+  private int getMaxNoisePeak(int chan, int limit1, int limit2, char base) {
+    PeakIndex peaks=getPeakIndex();
     int maxNoisePeak=0;
-    for( int i=1; i < nPeaks+1; ++i ) {
-      if( realPeak[i] != AutoCSA.NOISE_PEAK ) { continue; }  // selects only unassigned
-      if( ! base.equals(String.valueOf(curBase[i])) ) {continue; }
-      if( curScan[i] >= limit1 && curScan[i] <= limit2 ) {
+    int lim=peaks.findPosition(chan,(float) limit2,false);
+    int p=peaks.nextPosition(chan,AutoCSA.NOISE_PEAK,peaks.findPosition(chan,(float) limit1,true));
+    while( p >= 0 && p < lim ) {
+      int i=peaks.getPeak(chan,p);
+      if( base == 0 || curBase[i] == base ) {
         maxNoisePeak=Math.max(maxNoisePeak,curIntensity[i]);
       }
+      p=peaks.nextPosition(chan,AutoCSA.NOISE_PEAK,p+1);
     }
-// returns the max noise peak (of a specified base) over a scan range
     return maxNoisePeak;
   }
 /**
@@ -1282,6 +1883,11 @@ this method.</p>
  * @return the analysis array index
  */
   public int getAnalysisIndex(int targetPos) {
+    if( targetPos < 0 ) { return findAnalysisIndex(targetPos); }
+    if( baseIndex == null ) { buildBaseIndex(); }
+    return targetPos < baseIndex.length ? baseIndex[targetPos] : -1;
+  }
+  private int findAnalysisIndex(int targetPos) {
     int i;
     for( i=0; i < nPeaks+1; ++i ) {
       if( bpPos[i] == targetPos ) { break; }
@@ -1475,6 +2081,57 @@ this method.</p>
   public Trace getTraceObj(){
     return traceObj;
   }
+/**
+ * <p>Setter for the mobility model used in amplimer matching.</p>
+ * @param model the MobilityModel for this analysis
+ */
+  public void setMobilityModel(MobilityModel model){
+    mobilityModel=model;
+  }
+/**
+ * <p>Getter for the mobility model used in amplimer matching.</p>
+ * <p>If none has been set the deprecated global Adjustment type is used.</p>
+ * @return the MobilityModel for this analysis
+ */
+  public MobilityModel getMobilityModel(){
+    if( mobilityModel == null ) {
+      return Adjustment.getMobilityModel();
+    }
+    return mobilityModel;
+  }
+/**
+ * <p>Setter for the engine matching peaks to the amplimer.</p>
+ * @param engine AutoCSA.GREEDY_MATCHING (the default) or AutoCSA.BANDED_MATCHING
+ */
+  public void setMatchingEngine(int engine){
+    matchingEngine=engine;
+  }
+/**
+ * <p>Getter for the engine matching peaks to the amplimer.</p>
+ * @return AutoCSA.GREEDY_MATCHING or AutoCSA.BANDED_MATCHING
+ */
+  public int getMatchingEngine(){
+    return matchingEngine;
+  }
+/**
+ * <p>Setter for the index of the ref seq K-mers, which may be shared by
+ * the analyses of an amplimer.</p>
+ * @param index the RefKmerIndex of the ref seq
+ */
+  void setRefKmerIndex(RefKmerIndex index){
+    refKmerIndex=index;
+  }
+/**
+ * <p>Getter for the index of the ref seq K-mers, built if none has been
+ * set for the current ref seq.</p>
+ * @return the RefKmerIndex of the ref seq
+ */
+  RefKmerIndex getRefKmerIndex(){
+    if( refKmerIndex == null || ! refKmerIndex.isFor(refSeq) ) {
+      refKmerIndex = new RefKmerIndex(refSeq);
+    }
+    return refKmerIndex;
+  }
 /**
  * <p>Getter for the int array of scan indices of base positions.</p>
  * <p>Note the class array bpPos must have been sorted.</p>
@@ -1698,7 +2355,7 @@ window) to search for dye blobs (bases)
       }
       if ( quality[i] == 0.0f ) {
         ++count;
-        realPeak[i]=AutoCSA.DYE_BLOB_PEAK;
+        setPeakType(i,AutoCSA.DYE_BLOB_PEAK);
       }
     }
     return count;
@@ -1830,7 +2487,6 @@ window) to search for dye blobs (bases)
     int len=qual.length-start;
     if( len < 2*startLhsWindow+10 ) { return 0; }
     float[] wQual = new float[len];
-    float[] qtemp = new float[5];
     for( i=start; i < start+len; ++i ) {
         wQual[pos++]=qual[i];
     }
@@ -2000,6 +2656,7 @@ if(log.isInfoEnabled()) log.info("INDEL: IDROP "+total1+" "+total2);
     int searchType=1;
     int searchFilter = 1;
     int i,j,index,saveIndex,nUnder;
+    int freeScan=0;
     int iPrevBase=1;
     int scan1,scan2;
     String baseList[]={"A","C","G","T"};
@@ -2042,10 +2699,11 @@ if(log.isInfoEnabled()) log.info("INDEL: IDROP "+total1+" "+total2);
           if( scan1 >= scan2 ) continue;
           vals=searchChannelForPeak(searchBase,scan1,scan2,0.5f);
           if( vals[0] == -1 ) { iPrevBase=i; continue; }  // no peak found
-          saveIndex=++reservePeakIndex;
-          if( saveIndex > totalReservedPeaks ) { iPrevBase=i; continue; }  // reserved peaks all used
+          saveIndex=reservePeak();
+          freeScan=curScan[saveIndex];
           curScan[saveIndex]=vals[0];
           curIntensity[saveIndex]=vals[1];
+          updatePeakIndex(saveIndex);
         } else {
           scan1=curScan[iPrevBase]+3;
           scan2=curScan[i]-3;
@@ -2061,16 +2719,18 @@ if(log.isInfoEnabled()) log.info("INDEL: IDROP "+total1+" "+total2);
 // n.b. below here nUnder is used to signify if we have added a new peak
           if( keep ) {
              fork[saveIndex] = 0;
-             realPeak[saveIndex] = AutoCSA.CALLED_PEAK;
-             bpPos[saveIndex] = missingBaseNo;
+             setPeakType(saveIndex,AutoCSA.CALLED_PEAK);
+             setBasePos(saveIndex,missingBaseNo);
              if( nUnder >= 2 ) {
                curBase[saveIndex]=searchBase.charAt(0);
                filter[saveIndex]=1;
+               updatePeakIndex(saveIndex);
              }
           } else {
              if( nUnder >= 2 ) {
-               curScan[saveIndex]=reservePeakIndex;
+               curScan[saveIndex]=freeScan;
                curIntensity[saveIndex]=1;
+               updatePeakIndex(saveIndex);
                --reservePeakIndex;   // peak not needed
              }
           }
@@ -2095,29 +2755,43 @@ if(log.isInfoEnabled()) log.info("INDEL: IDROP "+total1+" "+total2);
     }
     return numPeaks;
   }
+/**
+ * <p>Adds a peak found by a channel search as an unmatched noise peak.</p>
+ * <p>Note more reserved slots are appended when they run out, so unlike
+ * earlier versions (which returned -1 after the 10th added peak) a
+ * comparison adding many peaks can still find & report them.</p>
+ * @param newBase base of the peak
+ * @param newScan scan index of the peak
+ * @param newIntensity intensity of the peak
+ * @return 1 if added, -1 if it is the same as the last peak added
+ */
   public int addPeakToAnalysis(String newBase, int newScan, int newIntensity) {
 // firstly check if peak has been added before - if so return
-    int saveIndex=++reservePeakIndex;
-    if( saveIndex > 1 ) {
-      if( curScan[saveIndex-1] == newScan ) {
-        --reservePeakIndex;
-        return -1;
-      }
-    }
-// check if all reserved peaks already used
-    if( saveIndex > totalReservedPeaks ) {
-      --reservePeakIndex;
+    if( reservePeakIndex > 0 && curScan[reservePeakIndex] == newScan ) {
       return -1;
     }
+    int saveIndex=reservePeak();
     curScan[saveIndex]=newScan;
     curIntensity[saveIndex]=newIntensity;
     curBase[saveIndex]=newBase.charAt(0);
+    updatePeakIndex(saveIndex);
     fork[saveIndex] = 0;
-    realPeak[saveIndex] = AutoCSA.NOISE_PEAK;
-    bpPos[saveIndex] = -1;
+    setPeakType(saveIndex,AutoCSA.NOISE_PEAK);
+    setBasePos(saveIndex,-1);
     filter[saveIndex]=1;
     return 1;
   }
+// n.b. once the reserved slots are all used another block is appended to
+// the peak arrays, so added peaks are never dropped
+  private int reservePeak() {
+    if( reservePeakIndex >= reserveEnd ) {
+      int from=nPeaks;
+      setPeakTable(getPeakTable().grow(PeakTable.DEFAULT_RESERVED_PEAKS));
+      reservePeakIndex=from;
+      reserveEnd=nPeaks;
+    }
+    return ++reservePeakIndex;
+  }
 /** 
  * <p>Finds the int array of scan indices of Inserted base positions.</p>
  * <p>Note the bases must have been set to "Inserted" type to be recognised.</p>
@@ -2138,4 +2812,76 @@ if(log.isInfoEnabled()) log.info("INDEL: IDROP "+total1+" "+total2);
     }
     return scans;
   }
+
+/**
+ * A start position tried by matchStartConcurrently(), which once abandoned
+ * is either never started or waited for
+ */
+  private class StartTry implements Callable {
+
+    private static final int NEW=0;
+    private static final int RUNNING=1;
+    private static final int DONE=2;
+
+    private final int position;
+    private final int sall;
+    private final int saul;
+    private final int refLen;
+    private final int lastBaseScan;
+    private final int matchSeqLenCrit;
+    private int state=NEW;
+
+    StartTry(int position, int sall, int saul, int refLen, int lastBaseScan, int matchSeqLenCrit) {
+      this.position=position;
+      this.sall=sall;
+      this.saul=saul;
+      this.refLen=refLen;
+      this.lastBaseScan=lastBaseScan;
+      this.matchSeqLenCrit=matchSeqLenCrit;
+    }
+
+    public Object call() {
+      synchronized( this ) {
+        if( state != NEW ) { return null; }
+        state=RUNNING;
+      }
+      try {
+        return matchStartPosition(position,sall,saul,refLen,lastBaseScan,matchSeqLenCrit);
+      }
+      finally {
+        synchronized( this ) {
+          state=DONE;
+          notifyAll();
+        }
+      }
+    }
+// n.b. returns whether the wait was interrupted, the wait continues anyway
+    synchronized boolean abandon() {
+      boolean interrupted=false;
+      if( state == NEW ) { state=DONE; }
+      while( state != DONE ) {
+        try {
+          wait();
+        } catch ( InterruptedException e ) {
+          interrupted=true;
+        }
+      }
+      return interrupted;
+    }
+  }
+
+/**
+ * Creates named daemon threads for the default start position executor so
+ * it never holds up JVM exit
+ */
+  private static class StartSearchThreadFactory implements ThreadFactory {
+
+    private int count=0;
+
+    public synchronized Thread newThread(Runnable r) {
+      Thread t = new Thread(r,"StartSearch-"+(++count));
+      t.setDaemon(true);
+      return t;
+    }
+  }
 }
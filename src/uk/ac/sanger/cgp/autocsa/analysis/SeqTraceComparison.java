@@ -48,6 +48,7 @@ public class SeqTraceComparison {
   private boolean[] isOverloaded;
   private boolean mutationsPresent=false;
   private int indelBasePosFromQ=0;
+  private MobilityModel mobilityModel=null;
 
 /**
  * Allocates a SeqTraceComparison object.
@@ -63,6 +64,24 @@ public class SeqTraceComparison {
   public void setCSAOutput(CSAOutput out) {
        output=out;
   }
+/**
+ * Sets the mobility model used when searching for mutant peaks
+ * @param model the MobilityModel for this comparison
+ */
+  public void setMobilityModel(MobilityModel model) {
+       mobilityModel=model;
+  }
+/**
+ * Returns the mobility model used when searching for mutant peaks,
+ * if none has been set the deprecated global Adjustment type is used
+ * @return the MobilityModel for this comparison
+ */
+  public MobilityModel getMobilityModel() {
+       if( mobilityModel == null ) {
+         return Adjustment.getMobilityModel();
+       }
+       return mobilityModel;
+  }
 /**
  * Returns the associated CSAOutput mutation output object for this class
  * @return the associated CSAOutput object
@@ -473,7 +492,7 @@ public class SeqTraceComparison {
                 b1_no = baseNo[i];
                 b1_scan = sampleScan[i];
 // get centre of window for search for het peak
-                m_scan = Adjustment.getAdjustedScan(base1,mut_base,b1_no,b1_scan);
+                m_scan = getMobilityModel().getAdjustedScan(base1,mut_base,b1_no,b1_scan);
                 
                 searchType=1;    // > lim1 && < lim2
                 searchFilter = 999;
@@ -633,7 +652,7 @@ public class SeqTraceComparison {
     base1 =String.valueOf(baseSeq[compIndex]);
     b1_no = baseNo[compIndex];
     b1_scan = controlScan[compIndex];
-    m_scan = Adjustment.getAdjustedScan(base1,mut_base,b1_no,b1_scan);
+    m_scan = getMobilityModel().getAdjustedScan(base1,mut_base,b1_no,b1_scan);
 //  use increased bin (using binFactor) as important to locate potential
 //  peak matching the trial mutant peak, in control sample
     index=locatePeak(cTrace,m_scan,mut_base,binFactor);
@@ -735,17 +754,19 @@ public class SeqTraceComparison {
   }
   private int locateAdjacentPeak(SeqTraceAnalysis trace,float targetScan, String searchBase, int inc, int requiredType) {
 
-    int[] scans = trace.getScan();
-    int[] realPeak = trace.getRealPeak();
-    char[] base = trace.getBase();
+    int chan=PeakIndex.getChannel(searchBase.charAt(0));
+    int adjacent=trace.getPeakIndex().findAdjacentPeak(chan,requiredType,targetScan,inc);
+    if ( adjacent >= 0 ) { return adjacent; }
+// n.b. index cannot be used if peaks are not in scan order, walk them all
+    PeakTable table = trace.getPeakTable();
     float scan;
     int index=0;
     int lastIndex=0;
     int i;
     for( i=1; i<= trace.nPeaks ; ++i) {
-      if ( realPeak[i] != requiredType ) {continue; }
-      if ( base[i] != searchBase.charAt(0) ) {continue; }
-      scan = (float) scans[i];
+      if ( table.getPeakType(i) != requiredType ) {continue; }
+      if ( table.getBase(i) != searchBase.charAt(0) ) {continue; }
+      scan = (float) table.getScan(i);
       if ( inc == -1 ) {
         if ( scan >= targetScan ) { 
           index=lastIndex;
@@ -766,38 +787,21 @@ public class SeqTraceComparison {
 
     int index=0;
     int count=0;
-    float scan=0.0f;
-    int[] scans = trace.getScan();
-    int[] realPeak = trace.getRealPeak();
+    byte[] realPeak = trace.getRealPeak();
     char[] base = trace.getBase();
-    for( int i=1; i<= trace.nPeaks ; ++i) {
+    char targetBase = searchBase.charAt(0);
+    PeakIndex peaks = trace.getPeakIndex();
+    int chan = PeakIndex.getChannel(targetBase);
+// n.b. search type 1 is > lim1 && < lim2, 2 is > lim1 && <= lim2
+// and 3 is >= lim1 && < lim2
+    int lim = peaks.findPosition(chan,searchLimit2,searchType != 2);
+    for( int p=peaks.findPosition(chan,searchLimit1,searchType == 3); p < lim ; ++p) {
+      int i=peaks.getPeak(chan,p);
 // search over rest of peaks i.e. not assigned to bases in parent seq
       if ( realPeak[i] != AutoCSA.NOISE_PEAK ) {continue; }
-      if ( base[i] != searchBase.charAt(0) ) {continue; }
-      scan = (float) scans[i];
-      switch(searchType) {
-      case 1: {
-          if ( scan > searchLimit1 && scan < searchLimit2 ) {
-            index = i;
-            ++count;
-          }
-          break;
-        }
-      case 2: {
-          if ( scan > searchLimit1 && scan <= searchLimit2 ) {
-            index = i;
-            ++count;
-          }
-          break;
-        }
-      case 3: {
-          if ( scan >= searchLimit1 && scan < searchLimit2 ) {
-            index = i;
-            ++count;
-          }
-          break;
-        }
-      }
+      if ( base[i] != targetBase ) {continue; }
+      index = i;
+      ++count;
     }
 
     switch(count) {
@@ -1708,7 +1712,7 @@ if(log.isInfoEnabled()) log.info("HET INDEL: Too few bases for MutSeq: "+nb);
 // set default bins
     float[] bins = new float[] {maxBin,maxBin};
 // must use uncentred bins if data is not mobility corrected
-    if( Adjustment.getAdjustmentType() == 0 ) {
+    if( ! getMobilityModel().isMobilityCorrected() ) {
       return bins;
     }
 // check scan to LHS if adjacent base is present
@@ -1728,8 +1732,8 @@ if(log.isInfoEnabled()) log.info("HET INDEL: Too few bases for MutSeq: "+nb);
   private float getHomSearchCentre(String base1,String hom_base,int pos,float b1_scan, int[] scan) {
     float m_scan;
 // must use uncentred bins if data is not mobility corrected
-    m_scan=b1_scan+Adjustment.getAdjustmentOffset(base1,hom_base,pos-1,pos);
-    if( Adjustment.getAdjustmentType() == 0 ) {
+    m_scan=b1_scan+getMobilityModel().getAdjustmentOffset(base1,hom_base,pos-1,pos);
+    if( ! getMobilityModel().isMobilityCorrected() ) {
       return m_scan;
     }
 // if we have a snp, i.e. data either side then use central scan
@@ -2137,7 +2141,7 @@ int ii=shift+n;
       for( int i=0; i < len; ++i ) {
         insBases[i]= 'N';
 // n.b. finding offset below only applicable to mobility corrected data
-        int offset=(int) Adjustment.getAdjustmentOffset("N","N",pos-1,pos);
+        int offset=(int) getMobilityModel().getAdjustmentOffset("N","N",pos-1,pos);
         if( bestIndex > 0 ) {
           sScan1=sScan[bestIndex]+offset;
         } else {
@@ -0,0 +1,102 @@
+package uk.ac.sanger.cgp.autocsa.beans;
+
+/**
+ *<p> Class for holding the outcome of one comparison in a batch run.</p>
+ *<p> Exactly one of output or failure is set once the comparison has run.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class CSABatchResult implements java.io.Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private int index;
+  private CSAInput input;
+  private CSAOutput output = null;
+  private Throwable failure = null;
+
+  /**
+   * Creates a new instance of CSABatchResult
+   * @param index position of the input in the submitted batch
+   * @param input the CSAInput bean that was compared
+   */
+  public CSABatchResult(int index, CSAInput input) {
+    this.index=index;
+    this.input=input;
+  }
+
+  /**
+   * Gets the current value of index
+   * @return Current value of index (position in the submitted batch)
+   */
+  public int getIndex() {
+    return index;
+  }
+
+  /**
+   * Gets the current value of input
+   * @return Current value of input
+   */
+  public CSAInput getInput() {
+    return input;
+  }
+
+  /**
+   * Gets the current value of output
+   * @return Current value of output, null if the comparison failed
+   */
+  public CSAOutput getOutput() {
+    return output;
+  }
+
+  /**
+   * Sets the value of output
+   * @param output New value for output
+   */
+  public void setOutput(CSAOutput output) {
+    this.output=output;
+  }
+
+  /**
+   * Gets the current value of failure
+   * @return Current value of failure (an Exception, or an Error such as
+   * OutOfMemoryError), null if the comparison succeeded
+   */
+  public Throwable getFailure() {
+    return failure;
+  }
+
+  /**
+   * Sets the value of failure
+   * @param failure New value for failure
+   */
+  public void setFailure(Throwable failure) {
+    this.failure=failure;
+  }
+
+  /**
+   * Indicates whether the comparison produced an output
+   * @return true if output is set and no failure was recorded
+   */
+  public boolean isSuccessful() {
+    return failure == null && output != null;
+  }
+
+  /**
+   * Overides the toString() object method
+   */
+  public String toString() {
+    StringBuffer sb = new StringBuffer();
+    sb.append(this.getClass().getName()+":\n");
+    sb.append("index: "+index+"\n");
+    if(failure == null) {
+      sb.append("failure: null\n");
+    }
+    else {
+      sb.append("failure: "+failure.getMessage()+"\n");
+    }
+    return sb.toString();
+  }
+
+}
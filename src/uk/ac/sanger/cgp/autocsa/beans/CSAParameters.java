@@ -16,6 +16,7 @@ public class CSAParameters implements java.io.Serializable {
   private int refSearchStart;
   private int minPeakSpacing;
   private int minPeakIntensity;
+  private int matchingEngine;
 
   /**
    * Creates a new instance of CSAParameters
@@ -183,4 +184,21 @@ public class CSAParameters implements java.io.Serializable {
     this.minPeakIntensity=minPeakIntensity;
   }
 
+  /**
+   * Gets the current value of matchingEngine
+   * @return Current value of matchingEngine
+   */
+  public int getMatchingEngine() {
+    return matchingEngine;
+  }
+
+  /**
+   * Sets the value of matchingEngine, AutoCSA.GREEDY_MATCHING (the default)
+   * or AutoCSA.BANDED_MATCHING
+   * @param matchingEngine New value for matchingEngine
+   */
+  public void setMatchingEngine(int matchingEngine) {
+    this.matchingEngine=matchingEngine;
+  }
+
 }
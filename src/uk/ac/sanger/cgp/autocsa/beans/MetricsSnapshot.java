@@ -0,0 +1,152 @@
+package uk.ac.sanger.cgp.autocsa.beans;
+
+/**
+ *<p> Class for holding a copy of the CSA stage timers and event counters
+ * taken at one point in time.</p>
+ *<p> Timers & counters are indexed by the constants in CSAMetrics.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class MetricsSnapshot implements java.io.Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private long timestamp;
+  private boolean enabled;
+  private String[] timerNames;
+  private long[] timerCounts;
+  private long[] timerNanos;
+  private long[] timerMaxNanos;
+  private String[] counterNames;
+  private long[] counters;
+
+  /**
+   * Creates a new instance of MetricsSnapshot
+   * @param timestamp time the snapshot was taken (ms since epoch)
+   * @param enabled whether metrics were being collected
+   * @param timerNames names of the stage timers
+   * @param timerCounts No of timed calls of each stage
+   * @param timerNanos total time in each stage (ns)
+   * @param timerMaxNanos longest single call of each stage (ns)
+   * @param counterNames names of the event counters
+   * @param counters value of each event counter
+   */
+  public MetricsSnapshot(long timestamp, boolean enabled,
+                         String[] timerNames, long[] timerCounts,
+                         long[] timerNanos, long[] timerMaxNanos,
+                         String[] counterNames, long[] counters) {
+    this.timestamp=timestamp;
+    this.enabled=enabled;
+    this.timerNames=timerNames;
+    this.timerCounts=timerCounts;
+    this.timerNanos=timerNanos;
+    this.timerMaxNanos=timerMaxNanos;
+    this.counterNames=counterNames;
+    this.counters=counters;
+  }
+
+  /**
+   * Gets the current value of timestamp
+   * @return time the snapshot was taken (ms since epoch)
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * Indicates whether metrics were being collected when the snapshot was taken
+   * @return true if enabled
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Gets the names of the stage timers
+   * @return timer names, indexed by timer
+   */
+  public String[] getTimerNames() {
+    return copyOf(timerNames);
+  }
+
+  /**
+   * Gets the No of timed calls of a stage
+   * @param timer timer index
+   * @return No of calls
+   */
+  public long getTimerCount(int timer) {
+    return timerCounts[timer];
+  }
+
+  /**
+   * Gets the total time spent in a stage
+   * @param timer timer index
+   * @return total time (ns)
+   */
+  public long getTimerNanos(int timer) {
+    return timerNanos[timer];
+  }
+
+  /**
+   * Gets the longest single call of a stage
+   * @param timer timer index
+   * @return max time (ns)
+   */
+  public long getTimerMaxNanos(int timer) {
+    return timerMaxNanos[timer];
+  }
+
+  /**
+   * Gets the mean time per call of a stage
+   * @param timer timer index
+   * @return mean time (ns), 0 if the stage has not been called
+   */
+  public long getTimerMeanNanos(int timer) {
+    if( timerCounts[timer] == 0L ) return 0L;
+    return timerNanos[timer]/timerCounts[timer];
+  }
+
+  /**
+   * Gets the names of the event counters
+   * @return counter names, indexed by counter
+   */
+  public String[] getCounterNames() {
+    return copyOf(counterNames);
+  }
+
+  /**
+   * Gets the value of an event counter
+   * @param counter counter index
+   * @return No of events
+   */
+  public long getCounter(int counter) {
+    return counters[counter];
+  }
+
+  /**
+   * Overides the toString() object method
+   */
+  public String toString() {
+    StringBuffer sb = new StringBuffer();
+    sb.append(this.getClass().getName()+":\n");
+    sb.append("enabled: "+enabled+"\n");
+    for( int i=0; i < timerNames.length; ++i ) {
+      sb.append(timerNames[i]+": count="+timerCounts[i]+
+                " totalMs="+(timerNanos[i]/1000000L)+
+                " meanUs="+(getTimerMeanNanos(i)/1000L)+
+                " maxUs="+(timerMaxNanos[i]/1000L)+"\n");
+    }
+    for( int i=0; i < counterNames.length; ++i ) {
+      sb.append(counterNames[i]+": "+counters[i]+"\n");
+    }
+    return sb.toString();
+  }
+
+  private static String[] copyOf(String[] names) {
+    String[] copy = new String[names.length];
+    System.arraycopy(names,0,copy,0,names.length);
+    return copy;
+  }
+
+}
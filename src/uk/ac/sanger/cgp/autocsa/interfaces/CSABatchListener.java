@@ -0,0 +1,22 @@
+package uk.ac.sanger.cgp.autocsa.interfaces;
+
+import uk.ac.sanger.cgp.autocsa.beans.CSABatchResult;
+
+/**
+ * Callback for results of a batch of CSA comparisons.
+ * Results are delivered one at a time, in completion order, on the
+ * thread that started the batch.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public interface CSABatchListener {
+
+	/**
+	 * Called once for every comparison in the batch
+	 *
+	 * @param result the completed (or failed) comparison
+	 */
+	void comparisonCompleted(CSABatchResult result);
+
+}
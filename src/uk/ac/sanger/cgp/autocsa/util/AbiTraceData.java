@@ -0,0 +1,116 @@
+package uk.ac.sanger.cgp.autocsa.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.biojava.bio.program.abi.ABIFChromatogram;
+import org.biojava.bio.program.abi.ABIFParser;
+import org.biojava.bio.chromatogram.UnsupportedChromatogramFormatException;
+
+/**
+ *<p> Holds everything needed from an AB1 file for trace conversion.</p>
+ *<p> The DATA channels, base calls and the SVER/SPAC/PDMF comment tags
+ * are all taken from a single parse of the file, so that
+ * {@link ConvertTrace} does not need to re-open it.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class AbiTraceData {
+
+  private static final String ABI_CTAG1="SVER";
+  private static final String ABI_CTAG2="SPAC";
+  private static final String ABI_CTAG3="PDMF";
+
+  private ABIFChromatogram chromatogram;
+  private float udcVersion=0.0f;
+  private float traceAvgBaseSpac=0.0f;
+  private String dyepLabel=null;
+
+/**
+ * Allocates an AbiTraceData object from an already parsed AB1 file
+ * @param chrom the chromatogram populated by the parser
+ * @param abiParse the parser used to read the file
+ */
+  public AbiTraceData(ABIFChromatogram chrom, ABIFParser abiParse) {
+    this(chrom,abiParse.getDataRecord(ABI_CTAG1,1).dataRecord,
+         abiParse.getDataRecord(ABI_CTAG2,1).dataRecord,
+         abiParse.getDataRecord(ABI_CTAG3,1).offsetData,
+         abiParse.getDataRecord(ABI_CTAG3,1).recordLength);
+  }
+/**
+ * Allocates an AbiTraceData object from the raw SVER/SPAC/PDMF records
+ * @param chrom the chromatogram read from the AB1 file
+ * @param sverRecord the 4 byte data field of the SVER record
+ * @param spacRecord the 4 byte data field of the SPAC record
+ * @param pdmfData the data of the PDMF record
+ * @param pdmfLength the length in bytes of the PDMF record
+ */
+  public AbiTraceData(ABIFChromatogram chrom, long sverRecord, long spacRecord, byte[] pdmfData, long pdmfLength) {
+    chromatogram=chrom;
+  //f[3] =(float)Double.longBitsToDouble( r2.dataRecord); // doesn't work
+    traceAvgBaseSpac =Float.intBitsToFloat( (int) spacRecord);
+    byte[] str = new byte[8];
+    ByteBuffer.wrap(str).putLong(sverRecord);
+    udcVersion = Float.parseFloat(new String(str));
+
+  // n.b. this tag is a p-string (first byte is string len) so ignore
+    byte[] str1 = new byte[(int)pdmfLength-1];
+    for( int k=1 ; k < pdmfLength; ++k) str1[k-1]=pdmfData[k];
+    dyepLabel=new String(str1);
+  }
+/**
+ * Reads an uncompressed AB1 stream once, the stream is not closed
+ * @param input stream positioned at the start of the AB1 data
+ * @return AbiTraceData holding the chromatogram & comment tags
+ * @throws IOException if the stream cannot be read
+ * @throws UnsupportedChromatogramFormatException if not an AB1 stream
+ */
+  public static AbiTraceData load(InputStream input) throws IOException, UnsupportedChromatogramFormatException {
+    SinglePassChromatogram chrom = new SinglePassChromatogram();
+    ABIFParser abiParse = chrom.parse(input);
+    return new AbiTraceData(chrom,abiParse);
+  }
+/**
+ * Gets the parsed chromatogram (DATA channels & base calls)
+ * @return the chromatogram
+ */
+  public ABIFChromatogram getChromatogram() {
+    return chromatogram;
+  }
+/**
+ * Gets the data collection software version (SVER tag)
+ * @return the software version
+ */
+  public float getUdcVersion() {
+    return udcVersion;
+  }
+/**
+ * Gets the average base spacing (SPAC tag)
+ * @return the average base spacing
+ */
+  public float getTraceAvgBaseSpac() {
+    return traceAvgBaseSpac;
+  }
+/**
+ * Gets the mobility file label (PDMF tag)
+ * @return the mobility file label
+ */
+  public String getDyepLabel() {
+    return dyepLabel;
+  }
+
+/**
+ * ABIFChromatogram which hands back its parser, n.b. the chromatogram
+ * parser is also an ABIFParser so can be used to read the comment tags
+ * without a second pass over the file
+ */
+  private static class SinglePassChromatogram extends ABIFChromatogram {
+
+    ABIFParser parse(InputStream input) throws IOException, UnsupportedChromatogramFormatException {
+      return new Parser(input);
+    }
+  }
+
+}
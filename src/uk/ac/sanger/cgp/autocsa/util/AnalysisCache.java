@@ -0,0 +1,263 @@
+package uk.ac.sanger.cgp.autocsa.util;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.biojava.bio.chromatogram.Chromatogram;
+
+import uk.ac.sanger.cgp.autocsa.analysis.*;
+import uk.ac.sanger.cgp.autocsa.beans.*;
+
+/**
+ *<p> Holds completed trace analyses (SeqTraceAnalysis objects as returned
+ * by AutoCSA.doCSAAnalysis()) so that a trace used in several comparisons,
+ * typically a Normal, is loaded & analysed only once.</p>
+ *<p> Analyses are keyed by the trace (file or in memory Chromatogram), the
+ * trace file length & modification time, the AutoCSA version and every
+ * input to the analysis step: ref seq, Normal/Tumour and the CSAParameters
+ * used by the analysis (the comparison only parameters critMutRatio &
+ * minAllowedQuality are not part of the key). A changed trace file, or one
+ * analysed by another version, is therefore analysed again.</p>
+ *<p> The cache holds at most maxEntries analyses, the least recently used
+ * being dropped first. An analysis is copied both into and out of the
+ * cache, so the analyses handed out can be changed freely.</p>
+ *<p> CSALoader uses no cache unless one is set with
+ * CSALoader.setAnalysisCache() or by the system property
+ * autocsa.analysisCacheSize (No of analyses held).</p>
+ *<p> All methods are thread safe.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class AnalysisCache {
+
+	protected static Log log = LogFactory.getLog(AnalysisCache.class.getName());
+
+  private final int maxEntries;
+  private final Map cache;
+  private long hits=0;
+  private long misses=0;
+
+/**
+ * Allocates an AnalysisCache
+ * @param maxEntries max No of analyses held (minimum of 1)
+ */
+  public AnalysisCache(int maxEntries) {
+    this.maxEntries=Math.max(1,maxEntries);
+// n.b. access ordered so the eldest entry is the least recently used
+    cache = new LinkedHashMap(16,0.75f,true) {
+      protected boolean removeEldestEntry(Map.Entry eldest) {
+        return size() > AnalysisCache.this.maxEntries;
+      }
+    };
+  }
+/**
+ * Gets the max No of analyses held
+ * @return max No of entries
+ */
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+/**
+ * Creates the key of a trace analysis
+ * @param td TraceDetails bean of the trace
+ * @param refSeq ref seq as analysed (i.e. reverse complemented if necessary)
+ * @param version version of the analysis code, i.e. AutoCSA.getCSAVersion()
+ * @param isNormal whether the trace is analysed as a Normal
+ * @param minDist minimum allowed distance between peaks (in scans)
+ * @param params CSAParameters of the analysis
+ * @return the key, null if the trace cannot be identified (no file or
+ * Chromatogram)
+ */
+  public static Object createKey(TraceDetails td, String refSeq, String version,
+      boolean isNormal, int minDist, CSAParameters params) {
+    if( td.useChromatogram() ) {
+      return new Key(td.getChromatogram(),null,0L,0L,refSeq,version,isNormal,minDist,params);
+    }
+    File file=td.getFilePositionFromRoot();
+    if( file == null ) return null;
+// n.b. a missing file gives length & time 0, its load will fail anyway
+    return new Key(null,file.getAbsolutePath(),file.length(),
+                   file.lastModified(),refSeq,version,isNormal,minDist,params);
+  }
+/**
+ * Describes a key as a String which identifies the analysis across runs
+ * @param key key from createKey()
+ * @return the description, null for an in memory Chromatogram (which
+ * cannot be identified outside this run)
+ */
+  static String describeKey(Object key) {
+    if( ! (key instanceof Key) ) return null;
+    return ((Key) key).describe();
+  }
+/**
+ * Gets a copy of a cached analysis
+ * @param key key from createKey()
+ * @return the copied SeqTraceAnalysis, null if not held
+ */
+  public SeqTraceAnalysis get(Object key) {
+    if( key == null ) return null;
+    SeqTraceAnalysis analysis;
+    synchronized(cache) {
+      analysis=(SeqTraceAnalysis) cache.get(key);
+      if( analysis == null ) {
+        ++misses;
+        return null;
+      }
+      ++hits;
+    }
+    CSAMetrics.increment(CSAMetrics.ANALYSIS_CACHE_HITS);
+// n.b. the held analysis is never changed so can be copied unlocked
+    return analysis.copy();
+  }
+/**
+ * Adds a copy of a completed analysis to the cache
+ * @param key key from createKey()
+ * @param analysis SeqTraceAnalysis as returned by AutoCSA.doCSAAnalysis()
+ */
+  public void put(Object key, SeqTraceAnalysis analysis) {
+    if( key == null || analysis == null ) return;
+    SeqTraceAnalysis held=analysis.copy();
+    synchronized(cache) {
+      cache.put(key,held);
+    }
+  }
+/**
+ * Gets the No of analyses held
+ * @return No of entries
+ */
+  public int size() {
+    synchronized(cache) {
+      return cache.size();
+    }
+  }
+/**
+ * Gets the No of get() calls answered from the cache
+ * @return No of hits
+ */
+  public long getHits() {
+    synchronized(cache) {
+      return hits;
+    }
+  }
+/**
+ * Gets the No of get() calls not answered from the cache
+ * @return No of misses
+ */
+  public long getMisses() {
+    synchronized(cache) {
+      return misses;
+    }
+  }
+/**
+ * Drops all analyses held
+ */
+  public void clear() {
+    synchronized(cache) {
+      cache.clear();
+    }
+  }
+/**
+ * Overides the toString() object method
+ */
+  public String toString() {
+    synchronized(cache) {
+      return "AnalysisCache: size="+cache.size()+" maxEntries="+maxEntries+
+             " hits="+hits+" misses="+misses;
+    }
+  }
+
+/**
+ * Identifies a trace analysis
+ */
+  private static class Key {
+
+    private Chromatogram chromatogram;
+    private String path;
+    private long length;
+    private long lastModified;
+    private String refSeq;
+    private String version;
+    private boolean isNormal;
+    private int minDist;
+    private float peakSearchBin;
+    private int refSearchStartInc;
+    private int maxBasesMissed;
+    private int mobilityCorrection;
+    private int refSearchStart;
+    private int refSearchEnd;
+    private int minPeakSpacing;
+    private int minPeakIntensity;
+    private int matchingEngine;
+
+    Key(Chromatogram chromatogram, String path, long length, long lastModified,
+        String refSeq, String version, boolean isNormal, int minDist,
+        CSAParameters params) {
+      this.chromatogram=chromatogram;
+      this.path=path;
+      this.length=length;
+      this.lastModified=lastModified;
+      this.refSeq=refSeq;
+      this.version=version;
+      this.isNormal=isNormal;
+      this.minDist=minDist;
+      peakSearchBin=params.getPeakSearchBin();
+      refSearchStartInc=params.getRefSearchStartInc();
+      maxBasesMissed=params.getMaxBasesMissed();
+      mobilityCorrection=params.getMobilityCorrection();
+      refSearchStart=params.getRefSearchStart();
+      refSearchEnd=params.getRefSearchEnd();
+      minPeakSpacing=params.getMinPeakSpacing();
+      minPeakIntensity=params.getMinPeakIntensity();
+      matchingEngine=params.getMatchingEngine();
+    }
+
+    public boolean equals(Object o) {
+      if( ! (o instanceof Key) ) return false;
+      Key k=(Key) o;
+// n.b. in memory Chromatograms are matched by identity
+      return chromatogram == k.chromatogram &&
+             ( path == null ? k.path == null : path.equals(k.path) ) &&
+             length == k.length && lastModified == k.lastModified &&
+             refSeq.equals(k.refSeq) &&
+             ( version == null ? k.version == null : version.equals(k.version) ) &&
+             isNormal == k.isNormal &&
+             minDist == k.minDist &&
+             Float.floatToIntBits(peakSearchBin) == Float.floatToIntBits(k.peakSearchBin) &&
+             refSearchStartInc == k.refSearchStartInc &&
+             maxBasesMissed == k.maxBasesMissed &&
+             mobilityCorrection == k.mobilityCorrection &&
+             refSearchStart == k.refSearchStart &&
+             refSearchEnd == k.refSearchEnd &&
+             minPeakSpacing == k.minPeakSpacing &&
+             minPeakIntensity == k.minPeakIntensity &&
+             matchingEngine == k.matchingEngine;
+    }
+
+    String describe() {
+      if( chromatogram != null ) return null;
+// n.b. includes the snapshot format, so a snapshot of another format or
+// AutoCSA version is held under another name & never read
+      return version+"\t"+AnalysisSnapshot.VERSION+"\t"+
+             path+"\t"+length+"\t"+lastModified+"\t"+refSeq+"\t"+isNormal+
+             "\t"+minDist+"\t"+peakSearchBin+"\t"+refSearchStartInc+
+             "\t"+maxBasesMissed+"\t"+mobilityCorrection+"\t"+refSearchStart+
+             "\t"+refSearchEnd+"\t"+minPeakSpacing+"\t"+minPeakIntensity+
+             "\t"+matchingEngine;
+    }
+
+    public int hashCode() {
+      int h=( chromatogram == null ) ? path.hashCode() : System.identityHashCode(chromatogram);
+      h=31*h+(int) (lastModified ^ (lastModified >>> 32));
+      h=31*h+refSeq.hashCode();
+      h=31*h+( isNormal ? 1 : 0 );
+      h=31*h+mobilityCorrection;
+      h=31*h+refSearchStart;
+      h=31*h+refSearchEnd;
+      return h;
+    }
+  }
+
+}
@@ -0,0 +1,211 @@
+package uk.ac.sanger.cgp.autocsa.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.ac.sanger.cgp.autocsa.analysis.PreparedControl;
+import uk.ac.sanger.cgp.autocsa.beans.*;
+import uk.ac.sanger.cgp.autocsa.exceptions.*;
+import uk.ac.sanger.cgp.autocsa.interfaces.CSABatchListener;
+
+/**
+ *<p> Runs batches of CSA comparisons over a fixed size thread pool.</p>
+ *<p> Each CSAInput is passed to {@link CSALoader#performComparison(CSAInput)}
+ * on a worker thread and the outcome is wrapped in a {@link CSABatchResult}.
+ * A failure of one comparison is recorded in its result and does not
+ * stop the rest of the batch.</p>
+ *<p> Results are handed back in completion order, either through a
+ * BlockingQueue or a {@link CSABatchListener}.</p>
+ *<p> While a comparison is running the traces of the comparison one
+ * worker-count further on are loaded by a {@link TracePrefetcher}, so
+ * trace I/O (and any retries of failed loads) overlaps the analysis.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class CSABatchRunner {
+
+	protected static Log log = LogFactory.getLog(CSABatchRunner.class.getName());
+
+  private ExecutorService executor;
+  private TracePrefetcher prefetcher;
+  private int numThreads;
+
+/**
+ * Allocates a CSABatchRunner with its own worker threads.
+ * @param threads No of worker threads (minimum of 1)
+ */
+  public CSABatchRunner(int threads) {
+    this(threads,CSALoader.getRetryPolicy());
+  }
+/**
+ * Allocates a CSABatchRunner with its own worker & trace loading threads.
+ * @param threads No of worker threads (minimum of 1)
+ * @param policy RetryPolicy for trace loads failing with an IOException
+ */
+  public CSABatchRunner(int threads, RetryPolicy policy) {
+    numThreads=Math.max(1,threads);
+    executor=Executors.newFixedThreadPool(numThreads,new WorkerThreadFactory());
+    prefetcher=new TracePrefetcher(numThreads,policy);
+  }
+/**
+ * Gets the number of worker threads
+ * @return the number of worker threads
+ */
+  public int getNumThreads() {
+    return numThreads;
+  }
+/**
+ * Submits every comparison in the list and returns immediately.
+ * @param inputs List of CSAInput beans
+ * @return queue which receives one CSABatchResult per input, in completion order
+ */
+  public BlockingQueue submitAll(List inputs) {
+    return submitAll(inputs,null);
+  }
+/**
+ * Submits every comparison in the list against a prepared Normal, which
+ * replaces the WT trace of each input, and returns immediately.
+ * @param inputs List of CSAInput beans
+ * @param control PreparedControl of the Normal (null to analyse each WT trace)
+ * @return queue which receives one CSABatchResult per input, in completion order
+ */
+  BlockingQueue submitAll(List inputs, PreparedControl control) {
+    BlockingQueue results = new LinkedBlockingQueue();
+// n.b. prefetch the first comparison of each worker, each comparison then
+// prefetches the one numThreads further on
+    for( int i=0; i < Math.min(numThreads,inputs.size()); ++i ) {
+      prefetch(prefetcher,(CSAInput) inputs.get(i),control);
+    }
+    for( int i=0; i < inputs.size(); ++i ) {
+      executor.execute(new ComparisonTask(i,inputs,numThreads,prefetcher,control,results));
+    }
+    return results;
+  }
+/**
+ * Runs every comparison in the list and blocks until all have completed.
+ * @param inputs List of CSAInput beans
+ * @param listener called on the current thread as each comparison completes
+ * @throws InterruptedException if interrupted while waiting for results
+ */
+  public void compareAll(List inputs, CSABatchListener listener) throws InterruptedException {
+    BlockingQueue results=submitAll(inputs);
+    for( int i=0; i < inputs.size(); ++i ) {
+      listener.comparisonCompleted((CSABatchResult) results.take());
+    }
+  }
+/**
+ * Stops the worker threads once any submitted comparisons have completed.
+ */
+  public void shutdown() {
+    executor.shutdown();
+    prefetcher.shutdown();
+  }
+/**
+ * Runs a batch of comparisons on a temporary pool of worker threads.
+ * @param inputs List of CSAInput beans
+ * @param threads No of worker threads
+ * @return List of CSABatchResult beans in completion order
+ * @throws InterruptedException if interrupted while waiting for results
+ */
+  public static List compareAll(List inputs, int threads) throws InterruptedException {
+    final List completed = new ArrayList(inputs.size());
+    CSABatchRunner runner = new CSABatchRunner(Math.min(threads,Math.max(1,inputs.size())));
+    try {
+      runner.compareAll(inputs,new CSABatchListener() {
+        public void comparisonCompleted(CSABatchResult result) {
+          completed.add(result);
+        }
+      });
+    }
+    finally {
+      runner.shutdown();
+    }
+    return completed;
+  }
+// prefetches the traces of a comparison, only the Tumour for a prepared Normal
+  private static void prefetch(TracePrefetcher prefetcher, CSAInput input, PreparedControl control) {
+    if( control == null ) {
+      prefetcher.prefetch(input);
+    } else {
+      prefetcher.prefetch(input.getMutTraceDetails());
+    }
+  }
+
+/**
+ * Runnable wrapping a single call to CSALoader.performComparison()
+ */
+  private static class ComparisonTask implements Runnable {
+
+    private int index;
+    private CSAInput input;
+    private List inputs;
+    private int lookahead;
+    private TracePrefetcher prefetcher;
+    private PreparedControl control;
+    private BlockingQueue results;
+
+    ComparisonTask(int index, List inputs, int lookahead, TracePrefetcher prefetcher, PreparedControl control, BlockingQueue results) {
+      this.index=index;
+      this.input=(CSAInput) inputs.get(index);
+      this.inputs=inputs;
+      this.lookahead=lookahead;
+      this.prefetcher=prefetcher;
+      this.control=control;
+      this.results=results;
+    }
+
+    public void run() {
+      CSABatchResult result = new CSABatchResult(index,input);
+      try {
+        if( index+lookahead < inputs.size() ) {
+          prefetch(prefetcher,(CSAInput) inputs.get(index+lookahead),control);
+        }
+        result.setOutput(CSALoader.performComparison(input,prefetcher,control));
+      } catch ( BadTraceException e ) {
+        if(log.isWarnEnabled()) log.warn("Caught BadTraceException for batch item "+index+": "+e.getMessage());
+        result.setFailure(e);
+      } catch ( CSAException e ) {
+        if(log.isWarnEnabled()) log.warn("Caught CSAException for batch item "+index+": "+e.getMessage());
+        result.setFailure(e);
+      } catch ( BadCommentException e ) {
+        if(log.isWarnEnabled()) log.warn("Caught BadCommentException for batch item "+index+": "+e.getMessage());
+        result.setFailure(e);
+      } catch ( RuntimeException e ) {
+        if(log.isWarnEnabled()) log.warn("Caught "+e.getClass().getName()+" for batch item "+index+": "+e.getMessage());
+        result.setFailure(e);
+      } catch ( Error e ) {
+// n.b. recorded so the cause is not lost, then passed on to the worker
+        if(log.isWarnEnabled()) log.warn("Caught "+e.getClass().getName()+" for batch item "+index+": "+e.getMessage());
+        result.setFailure(e);
+        throw e;
+      } finally {
+// n.b. always hand back a result so the consumer never waits forever
+        results.add(result);
+      }
+    }
+  }
+
+/**
+ * Creates named daemon worker threads so an unfinished batch never
+ * holds up JVM exit
+ */
+  private static class WorkerThreadFactory implements ThreadFactory {
+
+    private int count=0;
+
+    public synchronized Thread newThread(Runnable r) {
+      Thread t = new Thread(r,"CSABatchRunner-"+(++count));
+      t.setDaemon(true);
+      return t;
+    }
+  }
+
+}
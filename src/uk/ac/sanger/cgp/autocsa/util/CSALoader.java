@@ -1,7 +1,11 @@
 package uk.ac.sanger.cgp.autocsa.util;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.beans.*;
 import java.lang.reflect.*;
 import org.apache.commons.logging.Log;
@@ -14,7 +18,8 @@ import org.biojava.bio.chromatogram.UnsupportedChromatogramFormatException;
 
 /**
  *<p> Class provides the interface between autoCSA and hotCSA.</p>
- *<p> Public static methods analyseTrace() & performComparison().</p>
+ *<p> Public static methods analyseTrace(), performComparison() &
+ * performComparisons().</p>
  *
  *Original author:  emd
  *@author $Author$
@@ -25,8 +30,14 @@ public class CSALoader {
 	protected static Log log = LogFactory.getLog(CSALoader.class.getName());
 
   private static final boolean debug=false;
-// definition of wait time for trace file locking problem
-  private static final long WAIT_TIME=5000L;
+// retries of trace loads e.g. for trace file locking problem
+  private static volatile RetryPolicy retryPolicy=RetryPolicy.DEFAULT;
+/** default No of trace analyses held (none), set autocsa.analysisCacheSize to enable the cache */
+  public static final int DEFAULT_ANALYSIS_CACHE_SIZE=0;
+// completed trace analyses reused by later analyses & comparisons, if enabled
+  private static volatile AnalysisCache analysisCache=createDefaultAnalysisCache();
+// completed trace analyses held on disk across runs, set autocsa.snapshotDir to use
+  private static volatile SnapshotStore snapshotStore=createDefaultSnapshotStore();
 
 /**
  * null constructor.
@@ -34,6 +45,96 @@ public class CSALoader {
   public CSALoader() {
 // constructor not needed as all methods are static
   }
+/**
+ * Sets the policy for retrying trace loads which fail with an IOException
+ * @param policy the RetryPolicy (RetryPolicy.NO_RETRY for a single attempt)
+ */
+  public static void setRetryPolicy(RetryPolicy policy) {
+    retryPolicy=( policy == null ) ? RetryPolicy.NO_RETRY : policy;
+  }
+/**
+ * Gets the policy for retrying trace loads
+ * @return the current RetryPolicy
+ */
+  public static RetryPolicy getRetryPolicy() {
+    return retryPolicy;
+  }
+/**
+ * Sets the cache of completed trace analyses used by analyseTrace() &
+ * performComparison()
+ * @param cache the AnalysisCache (null for no caching)
+ */
+  public static void setAnalysisCache(AnalysisCache cache) {
+    analysisCache=cache;
+  }
+/**
+ * Gets the cache of completed trace analyses
+ * @return the current AnalysisCache, null if analyses are not cached
+ */
+  public static AnalysisCache getAnalysisCache() {
+    return analysisCache;
+  }
+  private static AnalysisCache createDefaultAnalysisCache() {
+    int size=Integer.getInteger("autocsa.analysisCacheSize",DEFAULT_ANALYSIS_CACHE_SIZE).intValue();
+    return ( size > 0 ) ? new AnalysisCache(size) : null;
+  }
+/**
+ * Sets the on disk store of completed trace analyses used by
+ * analyseTrace() & performComparison() when an analysis is not in the
+ * AnalysisCache
+ * @param store the SnapshotStore (null for none)
+ */
+  public static void setSnapshotStore(SnapshotStore store) {
+    snapshotStore=store;
+  }
+/**
+ * Gets the on disk store of completed trace analyses
+ * @return the current SnapshotStore, null if analyses are not stored
+ */
+  public static SnapshotStore getSnapshotStore() {
+    return snapshotStore;
+  }
+  private static SnapshotStore createDefaultSnapshotStore() {
+    String dir=System.getProperty("autocsa.snapshotDir");
+    return ( dir == null || dir.length() == 0 ) ? null : new SnapshotStore(new File(dir));
+  }
+/**
+ * Creates the key of a trace analysis, if analyses are cached or stored
+ * @return the key, null if neither
+ */
+  private static Object createAnalysisKey(AutoCSA autoCSA, TraceDetails td, int minDist, CSAParameters params) {
+    if( analysisCache == null && snapshotStore == null ) return null;
+    return AnalysisCache.createKey(td,autoCSA.refSeq,autoCSA.getCSAVersion(),td.isNormal(),minDist,params);
+  }
+/**
+ * Gets a completed trace analysis from the AnalysisCache, else from the
+ * SnapshotStore (adding it to the cache)
+ * @param key key from createAnalysisKey()
+ * @return the SeqTraceAnalysis, null if not held
+ */
+  private static SeqTraceAnalysis getCompletedAnalysis(Object key) {
+    if( key == null ) return null;
+    AnalysisCache cache=analysisCache;
+    SnapshotStore store=snapshotStore;
+    SeqTraceAnalysis analysis=( cache == null ) ? null : cache.get(key);
+    if( analysis == null && store != null ) {
+      analysis=store.get(key);
+      if( analysis != null && cache != null ) cache.put(key,analysis);
+    }
+    return analysis;
+  }
+/**
+ * Adds a completed trace analysis to the AnalysisCache & SnapshotStore
+ * @param key key from createAnalysisKey()
+ * @param analysis SeqTraceAnalysis as returned by AutoCSA.doCSAAnalysis()
+ */
+  private static void putCompletedAnalysis(Object key, SeqTraceAnalysis analysis) {
+    if( key == null ) return;
+    AnalysisCache cache=analysisCache;
+    SnapshotStore store=snapshotStore;
+    if( cache != null ) cache.put(key,analysis);
+    if( store != null ) store.put(key,analysis);
+  }
 /**
   * Performs a CSA analysis step on the specified trace
   * @param csatrace CSATrace bean
@@ -62,41 +163,51 @@ public class CSALoader {
   int refStart=csatrace.getRefSearchStart();
   int refEnd=refseq.length()+csatrace.getRefSearchEnd();
 
-// set Mobility-correction type
-  Adjustment.setAdjustmentType(csatrace.getMobilityCorrection());
-
-// read in trace file name in traceDet - data is set in Trace object
-  Trace myTrace;
-  try {
-    myTrace=getTraceObj(traceDet);
-  } catch ( UnsupportedChromatogramFormatException e ) {
-    if(log.isWarnEnabled()) log.warn("Caught UnsupportedChromatogramFormatException: "+e.getMessage());
-    throw new CSAException("CSAOutput.analyseTrace() ",e);
-  } catch ( IOException e ) {
-    if(log.isWarnEnabled()) log.warn("Caught IOException: "+e.getMessage());
-    throw new CSAException("CSAOutput.analyseTrace() ",e);
-  }
-  if( csatrace.getMobilityCorrection() == 0 ) {
-    baseline(myTrace);
-  }
-
 // ready for AutoCSA analysis - construct AutoCSA object
   AutoCSA autoCSA = new AutoCSA(sts,refseq,reverse,refStart,refEnd);
 // n.b. we're now ready to reset default CSA parameters
   CSAParameters csaParams = getCSAParameters(csatrace);
 //reset refEnd in csaParams as absolute value needed rather than offset
   csaParams.setRefSearchEnd(refEnd);
+// n.b. also sets the Mobility-correction type for this run only
   autoCSA.setCSAParameters(csaParams);  // pass input params bean
 
+// n.b. a cached or stored analysis of the trace replaces loading & analysing it
+  Object key=createAnalysisKey(autoCSA,traceDet,minDist,csaParams);
+  SeqTraceAnalysis traceAnal=getCompletedAnalysis(key);
+
+// read in trace file name in traceDet - data is set in Trace object
+  Trace myTrace=null;
+  if( traceAnal == null ) {
+    try {
+      myTrace=getTraceObj(traceDet);
+    } catch ( BadTraceException e ) {
+      CSAMetrics.increment(CSAMetrics.BAD_TRACES);
+      throw e;
+    } catch ( UnsupportedChromatogramFormatException e ) {
+      if(log.isWarnEnabled()) log.warn("Caught UnsupportedChromatogramFormatException: "+e.getMessage());
+      throw new CSAException("CSAOutput.analyseTrace() ",e);
+    } catch ( IOException e ) {
+      if(log.isWarnEnabled()) log.warn("Caught IOException: "+e.getMessage());
+      throw new CSAException("CSAOutput.analyseTrace() ",e);
+    }
+    if( csatrace.getMobilityCorrection() == 0 ) {
+      baseline(myTrace);
+    }
+  }
+
 // perform CSA trace analysis step and set all analysis results
-  SeqTraceAnalysis traceAnal;
   try {
-    traceAnal=autoCSA.doCSAAnalysis(myTrace,"G",minAmp,minDist,traceDet.isNormal());
+    if( traceAnal == null ) {
+      traceAnal=autoCSA.doCSAAnalysis(myTrace,"G",minAmp,minDist,traceDet.isNormal());
+      putCompletedAnalysis(key,traceAnal);
+    }
     traceDet.setCsaVersion(autoCSA.getCSAVersion());
     setTraceAnalInfo(traceAnal,traceDet);
     setTraceParams(traceAnal,traceDet);
   } catch ( BadTraceException e ) {
     if(log.isWarnEnabled()) log.warn("Caught BadTraceException: "+e.getMessage());
+    CSAMetrics.increment(CSAMetrics.BAD_TRACES);
     throw new BadTraceException("CSAOutput.load() ",e);
   }
 
@@ -111,6 +222,111 @@ public class CSALoader {
   * @throws CSAException if any (miscelleaneous) IOExceptions occur
   **/
   public static CSAOutput performComparison(CSAInput csainput ) throws BadTraceException, CSAException, BadCommentException {
+    return performComparison(csainput,null);
+  }
+/**
+  * Performs a CSA Comparison step on the specified pair of traces, taking
+  * the traces from a TracePrefetcher if they have been prefetched
+  * @param csainput CSAInput bean
+  * @param prefetcher TracePrefetcher holding the traces (null to load them here)
+  * @return csaout CSAOutput bean containing trace comparison parameters
+  * @throws BadTraceException if any trace data Channel has zero peaks
+  * @throws CSAException if any (miscelleaneous) IOExceptions occur
+  **/
+  public static CSAOutput performComparison(CSAInput csainput, TracePrefetcher prefetcher) throws BadTraceException, CSAException, BadCommentException {
+    return performComparison(csainput,prefetcher,null);
+  }
+/**
+  * Performs CSA Comparisons of one Normal trace against each of a list of
+  * Tumour traces. The Normal is loaded, analysed & prepared (quality, dye
+  * blobs & the control side of the comparison setup) once only, then the
+  * comparisons are run in parallel.
+  * @param normal TraceDetails bean of the Normal trace
+  * @param tumours List of TraceDetails beans of the Tumour traces
+  * @param params CSAInput bean giving the ref seq & parameters of every
+  * comparison (its trace details are not used)
+  * @param threads No of worker threads
+  * @return List of CSABatchResult beans, one per Tumour in list order
+  * @throws BadTraceException if the Normal trace cannot be analysed
+  * @throws CSAException if the Normal trace cannot be loaded
+  * @throws InterruptedException if interrupted while waiting for results
+  **/
+  public static List performComparisons(TraceDetails normal, List tumours, CSAInput params, int threads) throws BadTraceException, CSAException, BadCommentException, InterruptedException {
+    List inputs = new ArrayList(tumours.size());
+    for( int i=0; i < tumours.size(); ++i ) {
+      CSAInput csainput = new CSAInput();
+      csainput.setRefSeq(params.getRefSeq());
+      csainput.setWtTraceDetails(normal);
+      csainput.setMutTraceDetails((TraceDetails) tumours.get(i));
+      csainput.setMinAllowedQuality(params.getMinAllowedQuality());
+      csainput.setMinPeakIntensity(params.getMinPeakIntensity());
+      csainput.setNormalNormalComp(params.getNormalNormalComp());
+      inputs.add(csainput);
+    }
+    if( inputs.size() == 0 ) { return new ArrayList(); }
+    CSABatchResult[] results = new CSABatchResult[inputs.size()];
+    PreparedControl control=prepareControl((CSAInput) inputs.get(0));
+    CSABatchRunner runner = new CSABatchRunner(Math.min(threads,inputs.size()));
+    try {
+      BlockingQueue queue=runner.submitAll(inputs,control);
+      for( int i=0; i < inputs.size(); ++i ) {
+        CSABatchResult result=(CSABatchResult) queue.take();
+        results[result.getIndex()]=result;
+      }
+    }
+    finally {
+      runner.shutdown();
+    }
+    return new ArrayList(Arrays.asList(results));
+  }
+/**
+  * Loads & analyses the Normal (WT) trace of a comparison and prepares it
+  * for comparison against any Tumour with the same ref seq & parameters
+  * @param csainput CSAInput bean
+  * @return the PreparedControl object
+  * @throws BadTraceException if any trace data Channel has zero peaks
+  * @throws CSAException if any (miscelleaneous) IOExceptions occur
+  **/
+  private static PreparedControl prepareControl(CSAInput csainput) throws BadTraceException, CSAException, BadCommentException {
+
+  TraceDetails traceWt=csainput.getWtTraceDetails();
+
+  String refseq=csainput.getRefSeq();
+  String sts = traceWt.getStsName();
+  char forRev=traceWt.getForwardOrReverseStrand();
+  boolean reverse=false;
+  if( forRev == 'r' ) {reverse=true; }
+
+  int minDist=csainput.getMinPeakSpacing();
+  int refStart=csainput.getRefSearchStart();
+  int refEnd=refseq.length()+csainput.getRefSearchEnd();
+
+  AutoCSA autoCSA = new AutoCSA(sts,refseq,reverse,refStart,refEnd);
+  CSAParameters csaParams = getCSAParameters(csainput);
+  csaParams.setRefSearchEnd(refEnd);
+  autoCSA.setCSAParameters(csaParams);
+
+  SeqTraceAnalysis cTraceAnal=getTraceAnalysis(autoCSA,traceWt,null,"N",minDist,csaParams,
+      csainput.getMobilityCorrection(),"CSALoader.prepareControl() ");
+// n.b. q array, dye blobs & ROI are set once here rather than per comparison
+  if( cTraceAnal != null ) {
+    setTraceAnalQualityAndDyeBlobs(cTraceAnal,traceWt);
+    int[] roi=getROICoordsForAnalysis(traceWt);
+    cTraceAnal.setROICoords(roi[0],roi[1]);
+  }
+  return autoCSA.prepareControl(cTraceAnal);
+  }
+/**
+  * Performs a CSA Comparison step on the specified pair of traces, taking
+  * the Normal from a PreparedControl if given
+  * @param csainput CSAInput bean
+  * @param prefetcher TracePrefetcher holding the traces (null to load them here)
+  * @param control PreparedControl of the WT trace (null to analyse it here)
+  * @return csaout CSAOutput bean containing trace comparison parameters
+  * @throws BadTraceException if any trace data Channel has zero peaks
+  * @throws CSAException if any (miscelleaneous) IOExceptions occur
+  **/
+  static CSAOutput performComparison(CSAInput csainput, TracePrefetcher prefetcher, PreparedControl control) throws BadTraceException, CSAException, BadCommentException {
 
 // get input parameters from csainput
   TraceDetails traceWt=csainput.getWtTraceDetails();
@@ -122,80 +338,90 @@ public class CSALoader {
   boolean reverse=false;
   if( forRev == 'r' ) {reverse=true; }
 
-// n.b. minAmp,minDist,refStart,refEnd hardired until we're
+// n.b. minDist,refStart,refEnd hardired until we're
 // ready to set them directly from the database
-  int minAmp=csainput.getMinPeakIntensity();
   int minDist=csainput.getMinPeakSpacing();
-  minAmp=500; // dummy value - not used
   int refStart=csainput.getRefSearchStart();
   int refEnd=refseq.length()+csainput.getRefSearchEnd();
-// set Mobility-correction type
-  Adjustment.setAdjustmentType(csainput.getMobilityCorrection());
-
-// read in trace file names in traceDet objs - data is set in Trace object
-  Trace myTrace1,myTrace2;
-  try {
-    myTrace1=getTraceObj(traceWt);
-    myTrace2=getTraceObj(traceMut);
-  } catch ( UnsupportedChromatogramFormatException e ) {
-    if(log.isWarnEnabled()) log.warn("Caught UnsupportedChromatogramFormatException: "+e.getMessage());
-    throw new CSAException("CSAOutput.performComparison() ",e);
-  } catch ( IOException e ) {
-    if(log.isWarnEnabled()) log.warn("Caught IOException: "+e.getMessage());
-    throw new CSAException("CSAOutput.performComparison() ",e);
-  }
-  if( csainput.getMobilityCorrection() == 0 ) {
-    baseline(myTrace1);
-    baseline(myTrace2);
-  }
 
 // ready for AutoCSA comparison - construct AutoCSA object
   AutoCSA autoCSA = new AutoCSA(sts,refseq,reverse,refStart,refEnd);
   CSAParameters csaParams = getCSAParameters(csainput);
 //reset refEnd in csaParams as absolute value needed rather than offset
   csaParams.setRefSearchEnd(refEnd);
+// n.b. also sets the Mobility-correction type for this run only
   autoCSA.setCSAParameters(csaParams);  // pass input params bean
 
-// perform CSA trace analyses steps, then comparison step (if possible)
+// n.b. cached or stored analyses of the traces replace loading & analysing them
+  SeqTraceAnalysis cTraceAnal=null;
+  SeqTraceAnalysis sTraceAnal=null;
+  boolean wtTaken=false;
+  boolean mutTaken=false;
+  try {
+    if( control == null ) {
+      wtTaken=true;
+      cTraceAnal=getTraceAnalysis(autoCSA,traceWt,prefetcher,"N",minDist,csaParams,
+          csainput.getMobilityCorrection(),"CSAOutput.performComparison() ");
+    }
+    mutTaken=true;
+    sTraceAnal=getTraceAnalysis(autoCSA,traceMut,prefetcher,"S",minDist,csaParams,
+        csainput.getMobilityCorrection(),"CSAOutput.performComparison() ");
+  } finally {
+// n.b. drops any prefetched trace not taken, i.e. not needed or left as
+// the analysis of the other trace failed, so it is not held until shutdown
+    if( prefetcher != null ) {
+      if( ! wtTaken ) prefetcher.discard(traceWt);
+      if( ! mutTaken ) prefetcher.discard(traceMut);
+    }
+  }
+
+// perform CSA comparison step (if possible)
 // and set all comparison results (in CSAOutput obj)
   SeqTraceComparison comparison=null;
-  SeqTraceAnalysis cTraceAnal,sTraceAnal;
   CSAOutput csaout = null;
-  try {
-    cTraceAnal=autoCSA.doCSAAnalysis(myTrace1,"N",minAmp,minDist,traceWt.isNormal());
-    sTraceAnal=autoCSA.doCSAAnalysis(myTrace2,"S",minAmp,minDist,traceMut.isNormal());
 //  n.b. QC is not applied on the analyses here so we are passing
 //  the trace based on the result from it's original analysis.
+  long compStart=CSAMetrics.start();
+  if( control == null ) {
     comparison= autoCSA.setupAutoCSA(cTraceAnal,sTraceAnal);
-    if( comparison == null ) {
-      csaout=new CSAOutput();
-    } else {
+  } else {
+    comparison= autoCSA.setupAutoCSA(control,sTraceAnal);
+  }
+  if( comparison == null ) {
+    csaout=new CSAOutput();
+  } else {
 // n.b. firstly set q array and search for dye blobs
 // these must be set as are referenced by comparison methods
+// n.b. a PreparedControl already has these set in its analysis
+    if( control == null ) {
       setTraceAnalQualityAndDyeBlobs(cTraceAnal,traceWt);
-      setTraceAnalQualityAndDyeBlobs(sTraceAnal,traceMut);
-      int[] roi=getROICoordsForAnalysis(traceWt);
+    }
+    setTraceAnalQualityAndDyeBlobs(sTraceAnal,traceMut);
+    int[] roi=getROICoordsForAnalysis(traceWt);
 // set roi coords for ALL objects WT, TT & comparison
+    if( control == null ) {
       cTraceAnal.setROICoords(roi[0],roi[1]);
-      sTraceAnal.setROICoords(roi[0],roi[1]);
-      autoCSA.setROICoords(roi[0],roi[1]);
+    }
+    sTraceAnal.setROICoords(roi[0],roi[1]);
+    autoCSA.setROICoords(roi[0],roi[1]);
 // set comparison parameters (drop,bin) dependent on dna type
-      if( traceMut.getDnaType() == Constants.DNA_MRX ) {
-        comparison.setComparisonParams(0.5f,6.0f);
-      }
-      autoCSA.runAutoCSA(comparison);
+    if( traceMut.getDnaType() == Constants.DNA_MRX ) {
+      comparison.setComparisonParams(0.5f,6.0f);
+    }
+    autoCSA.runAutoCSA(comparison);
+    CSAMetrics.stop(CSAMetrics.COMPARISON,compStart);
 // set association between CSAOutput and comparison
-      comparison.setCSAOutput(new CSAOutput());
-      autoCSA.mutationScan(comparison);
+    comparison.setCSAOutput(new CSAOutput());
+    autoCSA.mutationScan(comparison);
 // hand back updated CSAOutput object
-      csaout = comparison.getCSAOutput();
-    }
+    csaout = comparison.getCSAOutput();
+  }
 // set all trace info in output object csaout
-    csaout.setMutTraceDetails(traceMut);
-    csaout.setWtTraceDetails(traceWt);
-    //csaout.setCSAMutTraceAnalInfo(sTraceAnal);
-    //csaout.setCSAWtTraceAnalInfo(cTraceAnal);
-    csaout.setComparisonInfo(comparison,autoCSA.getCSAVersion());
+  csaout.setMutTraceDetails(traceMut);
+  csaout.setWtTraceDetails(traceWt);
+  //csaout.setCSAMutTraceAnalInfo(sTraceAnal);
+  //csaout.setCSAWtTraceAnalInfo(cTraceAnal);
+  csaout.setComparisonInfo(comparison,autoCSA.getCSAVersion());
 //  n.b. these calls now done by analyseTrace
 //  if ( sTraceAnal != null ) {
 //    csaout.setMutTraceHoles(sTraceAnal.getTraceHoles());
@@ -206,15 +432,65 @@ public class CSALoader {
 //  setTraceParams(sTraceAnal,traceMut);
 //  setTraceParams(cTraceAnal,traceWt);
 //  extract required fields from CSAInput bean and copy into CSAOutput
-    csaout.setNormalNormalComp(csainput.getNormalNormalComp());
-  } catch ( BadTraceException e ) {
-    if(log.isWarnEnabled()) log.warn("Caught BadTraceException: "+e.getMessage());
-    throw new BadTraceException("CSAOutput.performComparison() ",e);
-  }
+  csaout.setNormalNormalComp(csainput.getNormalNormalComp());
 
 // results are returned via CSAOutput object
   return csaout;
   }
+/**
+  * Gets the analysis of a trace of a comparison from the AnalysisCache or
+  * SnapshotStore, else loads, baselines & analyses the trace, holding the
+  * analysis in the cache & store. A prefetched trace is always taken
+  * from the TracePrefetcher (discarded if its analysis is held).
+  * @param autoCSA AutoCSA object of the comparison
+  * @param td TraceDetails bean of the trace
+  * @param prefetcher TracePrefetcher holding the trace (null to load it here)
+  * @param traceType trace type for AutoCSA.doCSAAnalysis(), "N" or "S"
+  * @param minDist minimum allowed distance between peaks (in scans)
+  * @param csaParams CSAParameters of the comparison
+  * @param mobilityCorrection mobility correction type of the comparison
+  * @param caller name of the calling method for exception messages
+  * @return the SeqTraceAnalysis
+  * @throws BadTraceException if any trace data Channel has zero peaks
+  * @throws CSAException if any (miscelleaneous) IOExceptions occur
+  **/
+  private static SeqTraceAnalysis getTraceAnalysis(AutoCSA autoCSA, TraceDetails td, TracePrefetcher prefetcher,
+      String traceType, int minDist, CSAParameters csaParams, int mobilityCorrection, String caller)
+      throws BadTraceException, CSAException, BadCommentException {
+  int minAmp=500; // dummy value - not used
+  Object key=createAnalysisKey(autoCSA,td,minDist,csaParams);
+  SeqTraceAnalysis traceAnal=getCompletedAnalysis(key);
+  if( traceAnal != null ) {
+    if( prefetcher != null ) prefetcher.discard(td);
+    return traceAnal;
+  }
+// read in trace file name in td - data is set in Trace object
+  Trace myTrace=null;
+  try {
+    myTrace=getTraceObj(td,prefetcher);
+  } catch ( BadTraceException e ) {
+    CSAMetrics.increment(CSAMetrics.BAD_TRACES);
+    throw e;
+  } catch ( UnsupportedChromatogramFormatException e ) {
+    if(log.isWarnEnabled()) log.warn("Caught UnsupportedChromatogramFormatException: "+e.getMessage());
+    throw new CSAException(caller,e);
+  } catch ( IOException e ) {
+    if(log.isWarnEnabled()) log.warn("Caught IOException: "+e.getMessage());
+    throw new CSAException(caller,e);
+  }
+  if( mobilityCorrection == 0 ) {
+    baseline(myTrace);
+  }
+  try {
+    traceAnal=autoCSA.doCSAAnalysis(myTrace,traceType,minAmp,minDist,td.isNormal());
+  } catch ( BadTraceException e ) {
+    if(log.isWarnEnabled()) log.warn("Caught BadTraceException: "+e.getMessage());
+    CSAMetrics.increment(CSAMetrics.BAD_TRACES);
+    throw new BadTraceException(caller,e);
+  }
+  putCompletedAnalysis(key,traceAnal);
+  return traceAnal;
+  }
 /**
   * Instantiates a Trace object from a specified trace file
   * @param td input TraceDetails object (bean)
@@ -223,6 +499,31 @@ public class CSALoader {
   * @throws IOException for any other miscelleaneous exceptions
   **/
   private static Trace getTraceObj(TraceDetails td) throws IOException, UnsupportedChromatogramFormatException, BadTraceException, BadCommentException {
+    return getTraceObj(td,retryPolicy);
+  }
+/**
+  * Instantiates a Trace object, taking it from a TracePrefetcher if it has
+  * been prefetched
+  * @param td input TraceDetails object (bean)
+  * @param prefetcher TracePrefetcher holding the trace (null to load it here)
+  * @return trace Trace object formed from specified trace in input
+  **/
+  private static Trace getTraceObj(TraceDetails td, TracePrefetcher prefetcher) throws IOException, UnsupportedChromatogramFormatException, BadTraceException, BadCommentException {
+    if( prefetcher == null ) {
+      return getTraceObj(td);
+    }
+    return prefetcher.getTrace(td);
+  }
+/**
+  * Instantiates a Trace object from a specified trace file, retrying
+  * failed loads as set by a RetryPolicy
+  * @param td input TraceDetails object (bean)
+  * @param policy RetryPolicy for loads failing with an IOException
+  * @return trace Trace object formed from specified trace in input
+  * @throws UnsupportedChromatogramFormatException if trace file is wrong type
+  * @throws IOException for any other miscelleaneous exceptions
+  **/
+  static Trace getTraceObj(TraceDetails td, RetryPolicy policy) throws IOException, UnsupportedChromatogramFormatException, BadTraceException, BadCommentException {
 
   int nChans=4;
   Trace trace = null;
@@ -235,29 +536,33 @@ public class CSALoader {
   }
 //Trace trace=new Trace(file.toString(),nChans);
 // use generic trace loader in Canutil package
-  try {
-    trace.loadSCFFile(1);    // uses generic loader
-//  trace.loadTraceFile();    // uses ab1 loader
-  } catch ( UnsupportedChromatogramFormatException e ) {
-    if(log.isWarnEnabled()) log.warn("Caught UnsupportedChromatogramFormatException: "+e.getMessage());
-    throw new IOException("CSALoader.getTraceObj() "+e.getMessage());
-  } catch ( IOException e ) {
-// take account of case where trace file might be temporarily locked
-// by another user - sleep and then try again
-    try {
-      if(debug){if(log.isInfoEnabled()) log.info("Trace access problem waiting and retrying");}
-      Thread.sleep(WAIT_TIME); // wait time is in milliseconds
-    } catch (InterruptedException ie) {
-      throw new IOException("CSALoader.getTraceObj() (InterruptedException)"+ie.getMessage());
-    }
+  long startTime=System.currentTimeMillis();
+  for( int attempt=1; ; ++attempt ) {
     try {
       trace.loadSCFFile(1);    // uses generic loader
-    } catch ( IOException e1 ) {
-      if(log.isWarnEnabled()) log.warn("Caught IOException: "+e1.getMessage());
-      throw new IOException("CSALoader.getTraceObj() "+e1.getMessage());
+//    trace.loadTraceFile();    // uses ab1 loader
+      break;
+    } catch ( UnsupportedChromatogramFormatException e ) {
+      if(log.isWarnEnabled()) log.warn("Caught UnsupportedChromatogramFormatException: "+e.getMessage());
+      throw new IOException("CSALoader.getTraceObj() "+e.getMessage());
+    } catch ( IOException e ) {
+// take account of case where trace file might be temporarily locked
+// by another user or on a slow mount - wait (backing off) and try again
+      long delay=policy.getRetryDelay(attempt,startTime);
+      if( delay < 0L ) {
+        if(log.isWarnEnabled()) log.warn("Caught IOException: "+e.getMessage()+" (attempt "+attempt+")");
+        throw new IOException("CSALoader.getTraceObj() "+e.getMessage());
+      }
+      if(log.isInfoEnabled()) log.info("Trace access problem waiting "+delay+"ms and retrying: "+e.getMessage());
+      CSAMetrics.increment(CSAMetrics.TRACE_RETRIES);
+      try {
+        Thread.sleep(delay); // wait time is in milliseconds
+      } catch (InterruptedException ie) {
+        throw new IOException("CSALoader.getTraceObj() (InterruptedException)"+ie.getMessage());
+      }
     }
   }
-  
+
 // return Trace object complete with data Channels loaded
   return trace;
   }
@@ -265,16 +570,17 @@ public class CSALoader {
   * Performs a baselining of a trace
   * @param trace input Trace object specifying trace file
   **/
-  private static void baseline(Trace trace) {
+  private static void baseline(final Trace trace) {
 
-// baseline channels if necessary
-  int i,traceLimit1,traceLimit2;
+// baseline channels if necessary, n.b. concurrently if a channel executor is set
   if ( trace.AbiType.equals("3730") ) {
-    traceLimit1=0;
-    traceLimit2=0;
-    for( i=0; i < trace.nChannels; ++i ) {
-      trace.baseline(i,traceLimit1,traceLimit2);
-    }
+    final int traceLimit1=0;
+    final int traceLimit2=0;
+    ChannelTasks.forEach(trace.nChannels,new ChannelTasks.Task() {
+      public void run(int chan) {
+        trace.baseline(chan,traceLimit1,traceLimit2);
+      }
+    });
   }
 
   }
@@ -407,27 +713,33 @@ params) throws CSAException {
     PropertyDescriptor[] pd = info.getPropertyDescriptors();
 
 // test CSAExtractableParameters for presence of getCritMutRatio method
-// if present then set the CritMutRatio
-    String value;
+// if present then set the CritMutRatio, likewise the optional matching
+// engine (getMatchingEngine)
     for(int i = 0 ; i< pd.length ; i++) {
       Method meth = pd[i].getReadMethod();
+      if( meth == null ) { continue; }
       if( meth.getName().equals("getCritMutRatio") ) {
-        try {
-          value = meth.invoke(params,null).toString();
-        } catch (IllegalAccessException e) {
-          if(log.isWarnEnabled()) log.warn("Caught IllegalAccessException: "+e.getMessage());
-          throw new CSAException("CSALoader.getCSAParameters() ",e);
-        } catch (InvocationTargetException e) {
-          if(log.isWarnEnabled()) log.warn("Caught InvocationTargetException: "+e.getMessage());
-          throw new CSAException("CSALoader.getCSAParameters() ",e);
-        }
+        String value=invokeGetter(meth,params);
         csaParams.setCritMutRatio(Float.valueOf(value).floatValue());
-        break;
+      } else if( meth.getName().equals("getMatchingEngine") ) {
+        String value=invokeGetter(meth,params);
+        csaParams.setMatchingEngine(Integer.parseInt(value));
       }
     }
 
 // return the set CSAParameters bean
     return csaParams;
   }
+  private static String invokeGetter(Method meth, Object bean) throws CSAException {
+    try {
+      return meth.invoke(bean,null).toString();
+    } catch (IllegalAccessException e) {
+      if(log.isWarnEnabled()) log.warn("Caught IllegalAccessException: "+e.getMessage());
+      throw new CSAException("CSALoader.getCSAParameters() ",e);
+    } catch (InvocationTargetException e) {
+      if(log.isWarnEnabled()) log.warn("Caught InvocationTargetException: "+e.getMessage());
+      throw new CSAException("CSALoader.getCSAParameters() ",e);
+    }
+  }
 
 }
@@ -0,0 +1,279 @@
+package uk.ac.sanger.cgp.autocsa.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InvalidAttributeValueException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.ac.sanger.cgp.autocsa.beans.MetricsSnapshot;
+
+/**
+ *<p> Process wide timers for the CSA stages & counters for notable events.</p>
+ *<p> Collection is off by default. When off, {@link #start()} returns
+ * without reading the clock and {@link #stop(int,long)} & {@link #increment(int)}
+ * return after a single flag test, so the calls can stay in the analysis
+ * code at no real cost. Set the system property autocsa.metrics=true to
+ * collect from start up & register with JMX, or use {@link #setEnabled(boolean)}
+ * & {@link #registerMBean()}.</p>
+ *<p> Usage:</p>
+ *<pre>
+ *  long t=CSAMetrics.start();
+ *  ... stage ...
+ *  CSAMetrics.stop(CSAMetrics.PEAK_FINDING,t);
+ *</pre>
+ *<p> Timers are inclusive, i.e. COMPARISON includes the QUALITY calls
+ * made while the comparison is set up.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public final class CSAMetrics {
+
+	protected static Log log = LogFactory.getLog(CSAMetrics.class.getName());
+
+/** reading of the trace file */
+  public static final int LOAD=0;
+/** baselining, trimming & mobility correction (ConvertTrace) */
+  public static final int CONVERT=1;
+/** peak finding over all Channels */
+  public static final int PEAK_FINDING=2;
+/** matching of peaks to the ref seq */
+  public static final int REF_MATCHING=3;
+/** per base trace quality */
+  public static final int QUALITY=4;
+/** set up & normalisation of a trace pair */
+  public static final int COMPARISON=5;
+/** het & hom mutation scans of a trace pair */
+  public static final int MUTATION_SCAN=6;
+
+/** traces rejected with a BadTraceException */
+  public static final int BAD_TRACES=0;
+/** traces corrected with a generic (fallback) mobility file */
+  public static final int MOBILITY_FALLBACK=1;
+/** trace loads retried after a wait */
+  public static final int TRACE_RETRIES=2;
+/** trace analyses taken from an AnalysisCache */
+  public static final int ANALYSIS_CACHE_HITS=3;
+/** trace analyses read from a SnapshotStore */
+  public static final int SNAPSHOT_HITS=4;
+
+/** JMX name the registry is registered under */
+  public static final String OBJECT_NAME="uk.ac.sanger.cgp.autocsa:type=CSAMetrics";
+
+  private static final String[] TIMER_NAMES = new String[] { "Load",
+      "Convert", "PeakFinding", "RefMatching", "Quality", "Comparison",
+      "MutationScan" };
+  private static final String[] COUNTER_NAMES = new String[] { "BadTraces",
+      "MobilityFallbacks", "TraceRetries", "AnalysisCacheHits",
+      "SnapshotHits" };
+// n.b. returned by start() when disabled, nanoTime() cannot give this
+  private static final long NOT_TIMED=Long.MIN_VALUE;
+
+  private static volatile boolean enabled=false;
+  private static final AtomicLongArray timerCounts = new AtomicLongArray(TIMER_NAMES.length);
+  private static final AtomicLongArray timerNanos = new AtomicLongArray(TIMER_NAMES.length);
+  private static final AtomicLongArray timerMaxNanos = new AtomicLongArray(TIMER_NAMES.length);
+  private static final AtomicLongArray counters = new AtomicLongArray(COUNTER_NAMES.length);
+  private static boolean registered=false;
+
+  static {
+    if( Boolean.getBoolean("autocsa.metrics") ) {
+      enabled=true;
+      registerMBean();
+    }
+  }
+
+  private CSAMetrics() {
+  }
+/**
+ * Indicates whether metrics are being collected
+ * @return true if enabled
+ */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+/**
+ * Switches collection of metrics on or off
+ * @param on true to collect
+ */
+  public static void setEnabled(boolean on) {
+    enabled=on;
+  }
+/**
+ * Starts timing a stage
+ * @return start time to pass to stop()
+ */
+  public static long start() {
+    if( ! enabled ) return NOT_TIMED;
+    return System.nanoTime();
+  }
+/**
+ * Stops timing a stage & adds the elapsed time to its timer
+ * @param timer timer index
+ * @param start value returned by start()
+ */
+  public static void stop(int timer, long start) {
+    if( start == NOT_TIMED ) return;
+    long elapsed=System.nanoTime()-start;
+    timerCounts.incrementAndGet(timer);
+    timerNanos.addAndGet(timer,elapsed);
+    long max=timerMaxNanos.get(timer);
+    while( elapsed > max && ! timerMaxNanos.compareAndSet(timer,max,elapsed) ) {
+      max=timerMaxNanos.get(timer);
+    }
+  }
+/**
+ * Adds one to an event counter
+ * @param counter counter index
+ */
+  public static void increment(int counter) {
+    if( ! enabled ) return;
+    counters.incrementAndGet(counter);
+  }
+/**
+ * Sets all timers & counters to zero
+ */
+  public static void reset() {
+    for( int i=0; i < TIMER_NAMES.length; ++i ) {
+      timerCounts.set(i,0L);
+      timerNanos.set(i,0L);
+      timerMaxNanos.set(i,0L);
+    }
+    for( int i=0; i < COUNTER_NAMES.length; ++i ) {
+      counters.set(i,0L);
+    }
+  }
+/**
+ * Takes a copy of the current timers & counters
+ * @return MetricsSnapshot bean
+ */
+  public static MetricsSnapshot snapshot() {
+    int nt=TIMER_NAMES.length;
+    long[] counts = new long[nt];
+    long[] nanos = new long[nt];
+    long[] maxNanos = new long[nt];
+    for( int i=0; i < nt; ++i ) {
+      counts[i]=timerCounts.get(i);
+      nanos[i]=timerNanos.get(i);
+      maxNanos[i]=timerMaxNanos.get(i);
+    }
+    long[] values = new long[COUNTER_NAMES.length];
+    for( int i=0; i < values.length; ++i ) {
+      values[i]=counters.get(i);
+    }
+// n.b. the snapshot only hands out copies of the name arrays
+    return new MetricsSnapshot(System.currentTimeMillis(),enabled,
+        TIMER_NAMES,counts,nanos,maxNanos,COUNTER_NAMES,values);
+  }
+/**
+ * Registers the metrics with the platform MBeanServer under OBJECT_NAME.
+ * Failure is logged rather than thrown so cannot affect an analysis.
+ * @return true if registered (now or previously)
+ */
+  public static synchronized boolean registerMBean() {
+    if( registered ) return true;
+    try {
+      MBeanServer server=ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(new MetricsMBean(),new ObjectName(OBJECT_NAME));
+      registered=true;
+    } catch ( JMException e ) {
+      if(log.isWarnEnabled()) log.warn("Caught JMException: "+e.getMessage());
+    }
+    return registered;
+  }
+
+/**
+ * JMX view of the metrics, one attribute per timer statistic & counter
+ */
+  private static class MetricsMBean implements DynamicMBean {
+
+    private static final String ENABLED="Enabled";
+    private static final String RESET="reset";
+
+    public Object getAttribute(String name) throws AttributeNotFoundException {
+      if( ENABLED.equals(name) ) return Boolean.valueOf(enabled);
+      for( int i=0; i < TIMER_NAMES.length; ++i ) {
+        if( name.equals(TIMER_NAMES[i]+"Count") ) return Long.valueOf(timerCounts.get(i));
+        if( name.equals(TIMER_NAMES[i]+"TotalMillis") ) return Double.valueOf(timerNanos.get(i)/1.0e6);
+        if( name.equals(TIMER_NAMES[i]+"MaxMillis") ) return Double.valueOf(timerMaxNanos.get(i)/1.0e6);
+      }
+      for( int i=0; i < COUNTER_NAMES.length; ++i ) {
+        if( name.equals(COUNTER_NAMES[i]) ) return Long.valueOf(counters.get(i));
+      }
+      throw new AttributeNotFoundException(name);
+    }
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException, InvalidAttributeValueException {
+      if( ! ENABLED.equals(attribute.getName()) ) {
+        throw new AttributeNotFoundException(attribute.getName());
+      }
+      if( ! (attribute.getValue() instanceof Boolean) ) {
+        throw new InvalidAttributeValueException(ENABLED+" must be a Boolean");
+      }
+      setEnabled(((Boolean) attribute.getValue()).booleanValue());
+    }
+    public AttributeList getAttributes(String[] names) {
+      AttributeList list = new AttributeList();
+      for( int i=0; i < names.length; ++i ) {
+        try {
+          list.add(new Attribute(names[i],getAttribute(names[i])));
+        } catch ( AttributeNotFoundException e ) {
+// n.b. unknown attributes are left out of the list
+        }
+      }
+      return list;
+    }
+    public AttributeList setAttributes(AttributeList attributes) {
+      AttributeList list = new AttributeList();
+      for( int i=0; i < attributes.size(); ++i ) {
+        Attribute attribute=(Attribute) attributes.get(i);
+        try {
+          setAttribute(attribute);
+          list.add(attribute);
+        } catch ( JMException e ) {
+// n.b. attributes which cannot be set are left out of the list
+        }
+      }
+      return list;
+    }
+    public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+      if( RESET.equals(action) ) {
+        reset();
+        return null;
+      }
+      throw new ReflectionException(new NoSuchMethodException(action));
+    }
+    public MBeanInfo getMBeanInfo() {
+      int nt=TIMER_NAMES.length;
+      MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[1+3*nt+COUNTER_NAMES.length];
+      int n=0;
+      attrs[n++]=new MBeanAttributeInfo(ENABLED,"boolean","Whether metrics are collected",true,true,true);
+      for( int i=0; i < nt; ++i ) {
+        attrs[n++]=new MBeanAttributeInfo(TIMER_NAMES[i]+"Count","long","No of timed "+TIMER_NAMES[i]+" calls",true,false,false);
+        attrs[n++]=new MBeanAttributeInfo(TIMER_NAMES[i]+"TotalMillis","double","Total "+TIMER_NAMES[i]+" time (ms)",true,false,false);
+        attrs[n++]=new MBeanAttributeInfo(TIMER_NAMES[i]+"MaxMillis","double","Longest "+TIMER_NAMES[i]+" call (ms)",true,false,false);
+      }
+      for( int i=0; i < COUNTER_NAMES.length; ++i ) {
+        attrs[n++]=new MBeanAttributeInfo(COUNTER_NAMES[i],"long","No of "+COUNTER_NAMES[i]+" events",true,false,false);
+      }
+      MBeanOperationInfo[] ops = new MBeanOperationInfo[] {
+        new MBeanOperationInfo(RESET,"Sets all timers & counters to zero",
+            new MBeanParameterInfo[0],"void",MBeanOperationInfo.ACTION) };
+      return new MBeanInfo(CSAMetrics.class.getName(),"AutoCSA stage timers & event counters",
+          attrs,null,ops,null);
+    }
+  }
+
+}
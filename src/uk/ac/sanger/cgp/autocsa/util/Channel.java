@@ -25,8 +25,16 @@ public class Channel {
 // set int flags for adjacent peak indicators
   private static final int PEAK_TO_LEFT=-1;
   private static final int PEAK_TO_RIGHT=1;
+// set bit flags for scans used in peak finding
+  private static final byte REMOVED=1;
+  private static final byte PEAK=2;
 
   private int[] dataPoints; 
+// n.b. ranges shorter than this are scanned rather than indexed
+  private static final int MIN_INDEXED_RANGE=4*RangeIndex.BLOCK_SIZE;
+// range min/max index of dataPoints, built on first use & dropped when the
+// data is set (null until then)
+  private volatile RangeIndex rangeIndex=null;
 
 /**
  * null constructor
@@ -39,10 +47,12 @@ public class Channel {
  */
   public void setDataPoints(int[] points){
 	dataPoints = points;
+	rangeIndex = null;
   }
 
 /**
  * Gets the data points for the channel
+ * n.b. if the array is changed it must be reset with setDataPoints()
  * @return the array of channel intensities
  */
   public int[] getDataPoints(){
@@ -90,6 +100,9 @@ public class Channel {
     int min=30000;
     index=Math.max(index,0);
     index2=Math.min(index2,dataPoints.length-1);
+    if( index2-index >= MIN_INDEXED_RANGE ) {
+      return Math.min(min,getRangeIndex().min(index,index2));
+    }
     for (int i=index; i <= index2; ++i ) {
       min= Math.min(min,dataPoints[i]);
     }
@@ -106,11 +119,28 @@ public class Channel {
     int max=-30000;
     index=Math.max(index,0);
     index2=Math.min(index2,dataPoints.length-1);
+    if( index2-index >= MIN_INDEXED_RANGE ) {
+      return Math.max(max,getRangeIndex().max(index,index2));
+    }
     for (int i=index; i <= index2; ++i ) {
       max= Math.max(max,dataPoints[i]);
     }
     return max;
   }
+/**
+ * Gets the range min/max index of the data, building it if necessary.
+ * n.b. the data must be reset with setDataPoints() once changed in place
+ * @return the RangeIndex
+ */
+  private RangeIndex getRangeIndex() {
+    RangeIndex ri=rangeIndex;
+// n.b. threads racing here each build an identical index, one is kept
+    if( ri == null || ri.getData() != dataPoints ) {
+      ri = new RangeIndex(dataPoints);
+      rangeIndex=ri;
+    }
+    return ri;
+  }
 /**
  * Gets the array of derived peak intensities
  * @return the array of derived peak intensities
@@ -135,43 +165,49 @@ public class Channel {
   public void findPeaks (int minAmp, int minShoulder, int minRelaxedShoulder, int minDist) {
 
   int curPos,maxPos,maxValue,peakIndex,dlhs1,drhs1,dlhs2,drhs2;
-  int n,num,nShift,count,nStart;
+  int n,num,count;
 
   int nPoints=dataPoints.length;
-  int descData[] = new int[nPoints];
-  
-  List dpList = new ArrayList();
-
-// use DataPoint class to pair up data values with array indices
-  for(n=0 ; n < nPoints ; ++n ) {
-    dpList.add(new DataPoint(dataPoints[n],n));
-  }
-
-// form an ordered descending list of data values
-  Collections.sort(dpList);
-  Collections.reverse(dpList);
   int scanForRelaxedShoulders=Constants.SCAN_SHOULDER_RELAXATION;
 
-  ArrayList index= new ArrayList();
+// pack each value >= minAmp with its array index into a single long
+// so a primitive sort orders by value then index, n.b. reading the
+// sorted keys from the end gives descending value & descending index
+  long[] index=new long[nPoints];
+  num=0;
   for(n=0 ; n < nPoints ; ++n ) {
-    descData[n]=((DataPoint) dpList.get(n)).getDataPoint();
-// only add elements to index where descData < minAmp
-    if( descData[n] >= minAmp ) {
-      index.add(new Integer(((DataPoint) dpList.get(n)).getIndex()));
+    if( dataPoints[n] >= minAmp ) {
+      index[num++]=((long) dataPoints[n] << 32) | (long) n;
     }
   }
 
-// if first element < minAmp then all elements are
-  if ( descData[0] < minAmp ) return;
+// if largest element < minAmp then all elements are
+  if ( num == 0 ) return;
+  Arrays.sort(index,0,num);
+
+// list order is descending, i.e. list position j is index[num-1-j]
+// n.b. listPos maps a scan to its list position (-1 if not in list)
+  int[] listPos=new int[nPoints];
+  Arrays.fill(listPos,-1);
+  for(n=0 ; n < num ; ++n ) {
+    listPos[(int) index[num-1-n]]=n;
+  }
+// per scan flags, for points removed from the list & for found peaks
+  byte[] flags=new byte[nPoints];
+// counts of list members for finding the rank of a member in the list
+  int[] ranks=initRanks(num);
+  int[] inRange=new int[Math.max(2*minDist+1,0)];
+  int listSize=num;
+  int head=0;
+  int nFound=0;
 
-  // Initialise peaks info arrayLists
-  ArrayList peakList= new ArrayList();
-  ArrayList peakPosList= new ArrayList();
-  
-  // Repeat the following procedure until index is empty
-  while (index.size() > 0) {  
+  // Repeat the following procedure until list is empty
+  while (listSize > 0) {
      // save index of current peak wrt original unsorted array
-     peakIndex=((Integer) index.get(0)).intValue();
+     while( (flags[(int) index[num-1-head]] & REMOVED) != 0 ) {
+       ++head;
+     }
+     peakIndex=(int) index[num-1-head];
      maxPos = peakIndex;
      maxValue = dataPoints[peakIndex];
      
@@ -203,14 +239,14 @@ public class Channel {
      } else {
        int df1=0,df2=0,df3=0;
        int incr=0;
-       if( isAdjacentPeak(peakPosList,maxPos,PEAK_TO_LEFT) ) {
+       if( isAdjacentPeak(flags,maxPos,PEAK_TO_LEFT) ) {
          if ( maxPos+3 < nPoints ) {
            df1 = dataPoints[ maxPos    ] - dataPoints[ maxPos + 1];
            df2 = dataPoints[ maxPos + 1] - dataPoints[ maxPos + 2];
            df3 = dataPoints[ maxPos + 2] - dataPoints[ maxPos + 3];
          }
          incr=1;
-       } else if( isAdjacentPeak(peakPosList,maxPos,PEAK_TO_RIGHT) ) {
+       } else if( isAdjacentPeak(flags,maxPos,PEAK_TO_RIGHT) ) {
          if ( maxPos-3 >= 0 ) {
            df1 = dataPoints[ maxPos    ] - dataPoints[ maxPos - 1];
            df2 = dataPoints[ maxPos - 1] - dataPoints[ maxPos - 2];
@@ -235,54 +271,55 @@ public class Channel {
        if( maxPos > scanForRelaxedShoulders ) minShoulderForScan=minRelaxedShoulder;
        if( foundPeak && maxValue < minShoulderForScan ) foundPeak=false;
      }
-// if a valid peak add intensity and position to array lists
+// if a valid peak flag its position
      if ( foundPeak ) {
-       peakPosList.add(new Integer(maxPos));
-       peakList.add(new Integer(maxValue));
+       flags[maxPos] |= PEAK;
+       ++nFound;
      
-// remove all values at > distance than minDist to the current value
-       nShift=0;
-       for(n=0; n < index.size() ; ++n ) {
-         curPos=((Integer) index.get(n-nShift)).intValue();
-         if( Math.abs(maxPos - curPos) <= minDist ) {
-           index.remove(n-nShift++);    // list is left shifted on remove
+// remove all values at <= minDist from the current value
+// n.b. as in earlier versions, which removed these from an ArrayList
+// while testing the loop count against the shrinking list size, a value
+// is only removed if (rank + 2 * No removed so far) < list size
+       int nInRange=0;
+       int lim1=Math.max(maxPos-minDist,0);
+       int lim2=Math.min(maxPos+minDist,nPoints-1);
+       for(curPos=lim1; curPos <= lim2 ; ++curPos ) {
+         if( listPos[curPos] >= 0 && (flags[curPos] & REMOVED) == 0 ) {
+           inRange[nInRange++]=listPos[curPos];
          }
        }
+       Arrays.sort(inRange,0,nInRange);
+       int nRemoved=0;
+       for(n=0 ; n < nInRange ; ++n ) {
+         if( getRank(ranks,inRange[n]) + 2*nRemoved >= listSize ) { break; }
+         flags[(int) index[num-1-inRange[n]]] |= REMOVED;
+         removeRank(ranks,inRange[n]);
+         ++nRemoved;
+       }
+       listSize-=nRemoved;
      } else {
-       index.remove(0);    // remove current (failed as a peak)
+       flags[peakIndex] |= REMOVED;    // remove current (failed as a peak)
+       removeRank(ranks,head);
+       --listSize;
      }
   }
      
 // deal with case where no peaks found
-  if( peakPosList.size() == 0 ) {
+  if( nFound == 0 ) {
     peaksPos=null;
     peaks=null;
   } else {
-    Integer[] peakPos=(Integer[]) peakPosList.toArray(new Integer[1]);
-    Integer[] peak=(Integer[]) peakList.toArray(new Integer[1]);
-
-    TreeMap tmap= new TreeMap();
-
-    for(n=0 ; n < peakPos.length ; ++n ) {
-      tmap.put(peakPos[n],peak[n]);
-    }
-    peaksPos=new int[peakPosList.size()];
-    peaks=new int[peakPosList.size()];
-
-    Set set=tmap.keySet();
-    Iterator iter = set.iterator();
+// n.b. arrays are sized on No of peaks found, as in previous versions
+    peaksPos=new int[nFound];
+    peaks=new int[nFound];
     count=0;
-// save peak & pos into arrays
-    while(iter.hasNext() ) {
-      Integer key =(Integer) iter.next();
-      peaksPos[count]=key.intValue(); 
-      peaks[count++]=((Integer) tmap.get(key)).intValue();
+// save peak & pos into arrays in scan order
+    for(n=0 ; n < nPoints ; ++n ) {
+      if( (flags[n] & PEAK) != 0 ) {
+        peaksPos[count]=n;
+        peaks[count++]=dataPoints[n];
+      }
     }
-
-    tmap.clear();
-    index.clear();
-    peakPosList.clear();
-    peakList.clear();
   }
 
   }        // end findPeaks
@@ -320,25 +357,63 @@ public class Channel {
       return new int[] {-1,-1};
   }
 /**
- * Asks if there is a close peak on either the lhs or rhs contained in
-the input list, wrt an input peak position.
+ * Initialises a binary indexed tree of counts for a list of members
+ * @param size No of members in the list
+ * @return the tree with all members present
+ */
+  private static int[] initRanks(int size) {
+    int[] tree=new int[size+1];
+    for( int i=1; i <= size; ++i ) {
+      tree[i]=i & -i;
+    }
+    return tree;
+  }
+/**
+ * Gets the No of members still present before a list position
+ * @param tree binary indexed tree of counts
+ * @param pos list position
+ * @return rank of the list position amongst the present members
+ */
+  private static int getRank(int[] tree, int pos) {
+    int rank=0;
+    for( int i=pos; i > 0; i-=i & -i ) {
+      rank+=tree[i];
+    }
+    return rank;
+  }
+/**
+ * Removes a member from the list
+ * @param tree binary indexed tree of counts
+ * @param pos list position of the member
+ */
+  private static void removeRank(int[] tree, int pos) {
+    for( int i=pos+1; i < tree.length; i+=i & -i ) {
+      --tree[i];
+    }
+  }
+/**
+ * Asks if there is a close peak on either the lhs or rhs flagged in
+the input array, wrt an input peak position.
  * n.b. spacing < Constants.AVERAGE_BASE_SPACING-2
- * @param peakPosList ArrayList of peak positions
+ * @param flags per scan flags with PEAK set for peaks found so far
  * @param position scan position of peak to query
  * @param direction direction indicator for peak (PEAK_TO_LEFT or PEAK_TO_RIGHT)
  * @return boolean result
  */
-  private boolean isAdjacentPeak(ArrayList peakPosList, int position, int direction) {
+  private boolean isAdjacentPeak(byte[] flags, int position, int direction) {
 // n.b. shoulders will be relatively closely spaced so relax spacing
     int maxSpacing=Constants.AVERAGE_BASE_SPACING-2;
-// search through list of peaks found so far
-    Iterator iter = peakPosList.iterator();
-    while(iter.hasNext() ) {
-      int pos=((Integer) iter.next()).intValue();
-      if ( Math.abs(pos - position) < maxSpacing) {
-        if( direction == PEAK_TO_LEFT && pos < position) {return true; }
-        if( direction == PEAK_TO_RIGHT && pos > position) {return true; }
-      }
+// search through scans either side for peaks found so far
+    int lim1,lim2;
+    if( direction == PEAK_TO_LEFT ) {
+      lim1=Math.max(position-maxSpacing+1,0);
+      lim2=position-1;
+    } else {
+      lim1=position+1;
+      lim2=Math.min(position+maxSpacing-1,flags.length-1);
+    }
+    for( int pos=lim1; pos <= lim2; ++pos ) {
+      if( (flags[pos] & PEAK) != 0 ) {return true; }
     }
     return false;
   }
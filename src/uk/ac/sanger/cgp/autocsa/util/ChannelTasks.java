@@ -0,0 +1,151 @@
+package uk.ac.sanger.cgp.autocsa.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *<p> Runs a task for each Channel of a trace, concurrently if a channel
+ * executor is set, else in turn on the calling thread.</p>
+ *<p> The channels of a trace are independent until their peaks are
+ * merged, so baselining, mobility correction & peak finding give the same
+ * result either way. The calling thread takes channels as well as the
+ * executor threads, so a caller which is itself a pool thread (e.g. of
+ * CSABatchRunner) never waits for a busy executor to start a channel.
+ * The executor is shared by all traces, so its size bounds the extra
+ * threads however many traces are analysed at once.</p>
+ *<p> The default executor has the No of threads given by the system
+ * property autocsa.channelThreads, 0 (the default) for none.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public final class ChannelTasks {
+
+  private static volatile ExecutorService executor=createDefaultExecutor();
+
+/**
+ * Work done for a single channel
+ */
+  public interface Task {
+/**
+ * Processes a channel
+ * @param chan channel index
+ */
+    void run(int chan);
+  }
+
+  private ChannelTasks() {
+  }
+/**
+ * Sets the executor used to process channels concurrently
+ * @param exec the ExecutorService (null to process channels in turn)
+ */
+  public static void setExecutor(ExecutorService exec) {
+    executor=exec;
+  }
+/**
+ * Gets the executor used to process channels concurrently
+ * @return the ExecutorService, null if channels are processed in turn
+ */
+  public static ExecutorService getExecutor() {
+    return executor;
+  }
+/**
+ * Runs a task for each channel, returning once all have finished
+ * @param numChans No of channels
+ * @param task the Task
+ * @throws RuntimeException (or Error) thrown by the task for any channel,
+ * after the other channels have finished
+ */
+  public static void forEach(int numChans, Task task) {
+    ExecutorService exec=executor;
+    if( exec == null || numChans < 2 ) {
+      for( int j=0; j < numChans; ++j ) {
+        task.run(j);
+      }
+      return;
+    }
+    Fork fork = new Fork(numChans,task);
+    for( int j=1; j < numChans; ++j ) {
+      try {
+        exec.execute(fork);
+      } catch ( RejectedExecutionException e ) {
+        break;   // remaining channels are taken by this thread
+      }
+    }
+    fork.run();
+    fork.join();
+  }
+  private static ExecutorService createDefaultExecutor() {
+    int threads=Integer.getInteger("autocsa.channelThreads",0).intValue();
+    return ( threads > 0 ) ? Executors.newFixedThreadPool(threads,new ChannelThreadFactory()) : null;
+  }
+
+/**
+ * Channels of a single forEach() call, taken in turn by each thread
+ * running it
+ */
+  private static class Fork implements Runnable {
+
+    private final int numChans;
+    private final Task task;
+    private final AtomicInteger next = new AtomicInteger();
+    private int done=0;
+    private Throwable failure=null;
+
+    Fork(int numChans, Task task) {
+      this.numChans=numChans;
+      this.task=task;
+    }
+
+    public void run() {
+      int chan;
+      while( (chan=next.getAndIncrement()) < numChans ) {
+        Throwable t=null;
+        try {
+          task.run(chan);
+        } catch ( Throwable e ) {
+          t=e;
+        }
+        synchronized( this ) {
+          if( failure == null ) { failure=t; }
+          if( ++done == numChans ) { notifyAll(); }
+        }
+      }
+    }
+// n.b. only channels already taken are waited for, so never blocks on
+// the executor & a channel left running is never abandoned on interrupt
+    synchronized void join() {
+      boolean interrupted=false;
+      while( done < numChans ) {
+        try {
+          wait();
+        } catch ( InterruptedException e ) {
+          interrupted=true;
+        }
+      }
+      if( interrupted ) { Thread.currentThread().interrupt(); }
+      if( failure instanceof RuntimeException ) { throw (RuntimeException) failure; }
+      if( failure instanceof Error ) { throw (Error) failure; }
+      if( failure != null ) { throw new RuntimeException(failure); }
+    }
+  }
+
+/**
+ * Creates named daemon threads for the default channel executor so it
+ * never holds up JVM exit
+ */
+  private static class ChannelThreadFactory implements ThreadFactory {
+
+    private int count=0;
+
+    public synchronized Thread newThread(Runnable r) {
+      Thread t = new Thread(r,"Channel-"+(++count));
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
@@ -1,11 +1,9 @@
 package uk.ac.sanger.cgp.autocsa.util;
 
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.BufferedReader;
 import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -42,9 +40,6 @@ private int numPoints=0;
 private int numChans=4;
 private float nominalAvgBaseSpac=12.0f;
 
-private static final String ABI_CTAG1="SVER";
-private static final String ABI_CTAG2="SPAC";
-private static final String ABI_CTAG3="PDMF";
 private static final String SCF_CTAG1="VER1";
 private static final String SCF_CTAG2="SPAC";
 private static final String SCF_CTAG3="DYEP";
@@ -54,7 +49,7 @@ private String dyepLabel=null;
 private String mobFileName=null;
 //private Chromatogram abiObj=null;
 private ABIFChromatogram abiObj=null;
-private MobilityCorData[] mobCor=null;
+private MobilityCorTable mobTable=null;
 private Channel[] channels=null;
 
 public ConvertTrace() {}
@@ -138,32 +133,21 @@ public Channel[] getConvertedChannels(String order) {
   return chans;
 }
 public void readCommentsBlockABI(File abiFile) throws IOException {
-  ABIFParser abiParse = null;
   FileInputStream fis = null;
   try {
     fis = new FileInputStream(abiFile);
-    abiParse=new ABIFParser(fis);
-    String s=null;
-    ABIFParser.DataAccess a1=abiParse.getDataAccess();
-    ABIFParser.TaggedDataRecord r1=abiParse.getDataRecord(ABI_CTAG1,1);
-    ABIFParser.TaggedDataRecord r2=abiParse.getDataRecord(ABI_CTAG2,1);
-    ABIFParser.TaggedDataRecord r3=abiParse.getDataRecord(ABI_CTAG3,1);
-  //f[3] =(float)Double.longBitsToDouble( r2.dataRecord); // doesn't work
-    traceAvgBaseSpac =Float.intBitsToFloat( (int) r2.dataRecord);
-    byte[] str = new byte[8];
-    ByteBuffer.wrap(str).putLong(r1.dataRecord);
-    udcVersion = Float.parseFloat(new String(str));
-
-  // n.b. this tag is a p-string (first byte is string len) so ignore
-    byte[] str1 = new byte[(int)r3.recordLength-1];
-    for( int k=1 ; k < r3.recordLength; ++k) str1[k-1]=r3.offsetData[k];
-    dyepLabel=new String(str1);
+    readCommentsBlockABI(new AbiTraceData(abiObj,new ABIFParser(fis)));
   }
   finally {
     IOUtils.closeQuietly(fis);
   }
 
 }
+public void readCommentsBlockABI(AbiTraceData abiData) {
+  traceAvgBaseSpac=abiData.getTraceAvgBaseSpac();
+  udcVersion=abiData.getUdcVersion();
+  dyepLabel=abiData.getDyepLabel();
+}
 public void readCommentsBlockSCF() {
 
 /*
@@ -176,9 +160,6 @@ public void readCommentsBlockSCF() {
 
 }
 private void constructMobFileName() throws BadCommentException {
-// get the MOBDIR environmental variable
-  String mobdir="."+ File.separator + "resources" + File.separator +"mobCorrFiles" + File.separator;
-
 // map DYEP tag value to real mobfilename
 // here we change a '{' to a '=' and skip any '}'
   
@@ -189,23 +170,6 @@ private void constructMobFileName() throws BadCommentException {
   
   dyepLabel=dyepLabel.replaceAll("\\{","=");
   dyepLabel=dyepLabel.replaceAll("\\}","");
-  mobFileName=mobdir.concat(dyepLabel);
-
-// test if the derived file for the mobility correction file exists
-// if not then use a generic version for current machine & chemistry
-  if ( ! (new File(mobFileName)).exists() ) {
-    String pop=null,machine=null;
-    if( dyepLabel.indexOf("POP4") > -1 ) pop="POP4";
-    if( dyepLabel.indexOf("POP5") > -1 ) pop="POP5";
-    if( dyepLabel.indexOf("POP6") > -1 ) pop="POP6";
-    if( dyepLabel.indexOf("POP7") > -1 ) pop="POP7";
-    if( dyepLabel.indexOf("3100") > -1 ) machine="3100";
-    if( dyepLabel.indexOf("3130") > -1 ) machine="3130";
-    if( dyepLabel.indexOf("3700") > -1 ) machine="3700";
-    if( dyepLabel.indexOf("3730") > -1 ) machine="3730";
-    mobFileName=mobdir.concat("Generic"+machine+pop+".mob");
-  }
-  if(log.isInfoEnabled()) log.info("MOB: "+mobFileName);
 }
 private int trimTraceStart(int len) {
   int i, j;
@@ -291,96 +255,23 @@ private int applyMobilityCorrect(int[] trace, int startOffset, MobilityCorData m
 }
 
 private int readMobilityCorrect() {
-  int i, j;
-  int numChanInFile=-1;
-  /*
-  ** Open file.
-  */
-  File iFile=new File(mobFileName);
-  BufferedReader in = null;
-  String line=null;
+// n.b. tables are cached by DYEP label so each mobility file is only
+// located & read once per process
   try {
-    in = new BufferedReader(new FileReader(iFile));
-    // Read number of channels.
-    line=in.readLine();
-    numChanInFile=Integer.parseInt(line);
-    if( numChanInFile < numChans )
-    { 
-      if(log.isWarnEnabled()) log.warn("readMobilityCorrect: error: number of channels in mobility file");
-      if(log.isWarnEnabled()) log.warn("is less than number in trace data "+numChanInFile);
-      in.close();
-      return( IOERROR );
-    }
-
-  /*
-  ** Instantiate mobCor array
-  */
-    mobCor=new MobilityCorData[numChans];
-    for( j = 0; j < numChans; ++j ) {
-      mobCor[j] = new MobilityCorData();
-    }
-
-  /*
-  ** Read line that contain the number of correction
-  ** factors for each channel.
-  */
-  line=in.readLine();
-  String[] strs=line.split("\\s+");
-  if( strs.length < numChans )
-  { 
-    if(log.isWarnEnabled()) log.warn("readMobilityCorrect: error: corrupted mobility file");
-    in.close();
-    return( IOERROR );
-  }
-
-  /*
-  ** Extract numbers of correction factors from line.
-  */
-  for( j = 0; j < numChans; ++j ) {
-    mobCor[j].setNumShift(Integer.parseInt(strs[j]));
-  }
-
-  /*
-  ** Read correction factors and save to beans
-  */
-  for( j = 0; j < numChans; ++j ) {
-    mobCor[j].setDoCorrection(1);
-    int np=mobCor[j].getNumShift();
-    int[] scan = new int[np];
-    int[] shift = new int[np];
-    for( i = 0; i < np; ++i ) {
-      line=in.readLine();
-      strs=line.split("\\s+");
-      int curChan=Integer.parseInt(strs[0]);
-      scan[i]= Integer.parseInt(strs[1]);
-      shift[i]= Integer.parseInt(strs[2]);
-      if( curChan != j ) {
-        if(log.isWarnEnabled()) log.warn("readMobilityCorrect: unexpected channel in mobfile");
-        in.close();
-        return( IOERROR );
-      }
-    }
-    if( scan[np-1] == 0 && shift[np-1] == 0) mobCor[j].setDoCorrection(0);
-    mobCor[j].setScan(scan);
-    mobCor[j].setShift(shift);
-  }
-
-    in.close();
+    mobTable=MobilityCorTable.getInstance(dyepLabel,numChans);
   } catch ( IOException e ) {
     if(log.isWarnEnabled()) log.warn("Caught IOException: "+e.getMessage());
+    mobFileName=MobilityCorTable.resolveFileName(dyepLabel);
     return( IOERROR );
   }
-  finally {
-    if(in != null) {
-      IOUtils.closeQuietly(in);
-    }
-  }
+  mobFileName=mobTable.getFileName();
+  if(log.isInfoEnabled()) log.info("MOB: "+mobFileName);
+  if( mobTable.isFallback() ) CSAMetrics.increment(CSAMetrics.MOBILITY_FALLBACK);
 
   return( OK );
 }
 
 private int mobilityCorrect() {
-  int j, k;
   float scale=1.0f;
   
   /*
@@ -402,22 +293,17 @@ private int mobilityCorrect() {
   }
   if(log.isInfoEnabled()) log.info("Mobility scale factor: "+scale);
   
-  for( j = 0; j < numChans; ++j ) {
-    if( mobCor[j].getDoCorrection() == 1 ) {
-      int[] trace=channels[j].getDataPoints();
-      int[] scan = mobCor[j].getScan();
-      int[] shift = mobCor[j].getShift();
-// n.b original C code did not use "round" so truncates floats
-// hence using round as below is more accurate
-      for ( k = 0; k < mobCor[j].getNumShift(); k++ ) {
-        scan[k] = Math.round( (float) scan[k] * scale );
-        shift[k] = Math.round( (float) shift[k] * scale );
+  final int offset=startOffset;
+  final float scaleFactor=scale;
+  ChannelTasks.forEach(numChans,new ChannelTasks.Task() {
+    public void run(int chan) {
+      if( mobTable.isCorrected(chan) ) {
+        int[] trace=channels[chan].getDataPoints();
+// n.b. scale a copy, the cached table is shared by all traces
+        applyMobilityCorrect(trace, offset, mobTable.getScaledData(chan,scaleFactor), chan );
       }
-      mobCor[j].setScan(scan);
-      mobCor[j].setShift(shift);
-      applyMobilityCorrect(trace, startOffset, mobCor[j], j );
     }
-  }
+  });
 
   return( OK );
 }
@@ -425,19 +311,20 @@ private int findSignalStart() {
   int j, iStart;
 // cut off specified scans from each end of the trace to avoid dye blobs
 // and larger spikes at end of trace - to get a reasonable max intensity
-  int[] minPeakAmps = new int[numChans];
-  int cut1=2500;
-  int cut2=1000;
-  for( j=0; j < numChans; ++j ) {
-    minPeakAmps[j]=channels[j].getMaxIntensity(cut1,numPoints-cut2);
-    minPeakAmps[j]=(int) (0.04f*(float) minPeakAmps[j]);
-    minPeakAmps[j]=Math.max(250,minPeakAmps[j]);
-  }
-// do peak search (with shoulders turned off)
+  final int cut1=2500;
+  final int cut2=1000;
+// then do peak search (with shoulders turned off)
+  ChannelTasks.forEach(numChans,new ChannelTasks.Task() {
+    public void run(int chan) {
+      int minPeakAmp=channels[chan].getMaxIntensity(cut1,numPoints-cut2);
+      minPeakAmp=(int) (0.04f*(float) minPeakAmp);
+      minPeakAmp=Math.max(250,minPeakAmp);
+      channels[chan].findPeaks(minPeakAmp,40000,40000,5);
+    }
+  });
   int minpos=10000,maxpos=0;
   int nPeaks=0;
   for( j=0; j < numChans; ++j ) {
-    channels[j].findPeaks(minPeakAmps[j],40000,40000,5);
     int[] pos=channels[j].getPeaksPos();
     if( pos == null ) continue;
     nPeaks+=pos.length;
@@ -457,79 +344,65 @@ private int findSignalStart() {
   return( OK );
 }
 private int subtractBaseline() {
-  int i, ii, j, k, m;
-  float val;
-
   if( numPoints < baselineWinLen ) {
     if(log.isInfoEnabled()) log.info("subtractBaseline: error - Not enough data points: "+numPoints);
     return( ERROR );
   }
 
+  ChannelTasks.forEach(numChans,new ChannelTasks.Task() {
+    public void run(int chan) {
+      subtractBaseline(chan);
+    }
+  });
+
+  return( OK );
+}
+private void subtractBaseline(int j) {
+  int i, m;
+  int hlen = baselineWinLen / 2;
+
+// n.b. per channel as channels may be baselined concurrently
   float temp1[] = new float[numPoints];
   float temp2[] = new float[numPoints];
 
-  for( j = 0; j < numChans; ++j ) {
-    int[] trace=channels[j].getDataPoints();
-    for( m = 0; m < 2; m++) {
-      /*
-      ** apply the max min filter m=0 is min m=1 is max
-      */
+  int[] trace=channels[j].getDataPoints();
+  for( m = 0; m < 2; m++) {
+    /*
+    ** apply the max min filter m=0 is min m=1 is max
+    ** n.b. only points with a full window are filtered
+    */
+    if( m == 0 ) {
       for( i = 0; i < numPoints; ++i ) {
-        if( m == 0 ) {
-          temp1[i] = trace[i];
-        } else {
-          temp1[i] = temp2[i];
-        }
-      }
-      for( i = 0; i < numPoints; ++i ) {
-        ii = i + 1;
-        if( ii >= baselineWinLen ) {
-          val = temp1[ii-baselineWinLen];
-          if( m == 1 ) {
-            for( k = ii - baselineWinLen; k < ii; ++k ) {
-              if( temp1[k] > val ) {
-                val = temp1[k];
-              }
-            }
-          } else {
-            for( k = ii - baselineWinLen; k < ii; ++k ) {
-              if( temp1[k] < val ) {
-                val = temp1[k];
-              }
-            }
-          }
-          temp2[ii-baselineWinLen/2-1] = val;
-        }
-      }
-      for( i = 0; i < baselineWinLen / 2; ++i ) {
-        temp2[i] = temp2[baselineWinLen/2];
-        temp2[numPoints-i-1] = temp2[numPoints-baselineWinLen/2-1];
+        temp1[i] = trace[i];
       }
+      SlidingWindowFilter.min(temp1,numPoints,hlen,hlen,numPoints-hlen-1,temp2);
+    } else {
+      System.arraycopy(temp2,0,temp1,0,numPoints);
+      SlidingWindowFilter.max(temp1,numPoints,hlen,hlen,numPoints-hlen-1,temp2);
     }
-
-//  Subtract derived baseline
-    for( i = 0; i < numPoints; ++i ) {
-      trace[i] -= temp2[i];
+    for( i = 0; i < hlen; ++i ) {
+      temp2[i] = temp2[hlen];
+      temp2[numPoints-i-1] = temp2[numPoints-hlen-1];
     }
-    channels[j].setDataPoints(trace);
   }
 
-  return( OK );
+//  Subtract derived baseline
+  for( i = 0; i < numPoints; ++i ) {
+    trace[i] -= temp2[i];
+  }
+  channels[j].setDataPoints(trace);
 }
 public int setChannels(String tFile) {
   File abiFile= new File(tFile);
+  AbiTraceData abiData = null;
+  FileInputStream fis = null;
   try {
-//  scfObj = TraceLoader.loadTrace(scfFile);
+    fis = new FileInputStream(abiFile);
+// n.b. if chromatogram already set only the comment tags are needed
     if( abiObj == null ) {
-      FileInputStream fis = null;
-      try {
-        fis = new FileInputStream(abiFile);
-        abiObj=ABIFChromatogram.create(fis);
-      }
-      finally {
-        IOUtils.closeQuietly(fis);
-      }
-      //abiObj=ABIFChromatogram.create(abiFile);
+      abiData=AbiTraceData.load(new BufferedInputStream(fis));
+    } else {
+      abiData=new AbiTraceData(abiObj,new ABIFParser(new BufferedInputStream(fis)));
     }
   } catch ( UnsupportedChromatogramFormatException e ) {
     if(log.isWarnEnabled()) log.warn("Caught UnsupportedChromatogramFormatException: "+e.getMessage());
@@ -537,7 +410,18 @@ public int setChannels(String tFile) {
   } catch ( IOException e1 ) {
     if(log.isWarnEnabled()) log.warn("Caught IOException: "+e1.getMessage());
     return(IOERROR);
+  } finally {
+    IOUtils.closeQuietly(fis);
   }
+  return(setChannels(abiData));
+}
+/**
+ * Sets the data Channels & comment tags from an already parsed AB1 file
+ * @param abiData the AB1 trace data from a single read of the file
+ * @return status code (OK or IOERROR)
+ */
+public int setChannels(AbiTraceData abiData) {
+  abiObj=abiData.getChromatogram();
   channels = new Channel[this.numChans];
   for( int i=0; i < this.numChans; ++i ) {
     if( channels[i] == null ) {
@@ -555,13 +439,10 @@ public int setChannels(String tFile) {
     channels[2].setDataPoints(abiObj.getTrace(DNATools.g()));
     channels[3].setDataPoints(abiObj.getTrace(DNATools.t()));
     numPoints=channels[0].getChannelLength();
-    readCommentsBlockABI(abiFile);
+    readCommentsBlockABI(abiData);
   } catch ( IllegalSymbolException e ) {
     if(log.isWarnEnabled()) log.warn("Caught IllegalSymbolException: "+e.getMessage());
     return(IOERROR);
-  } catch ( IOException e1 ) {
-    if(log.isWarnEnabled()) log.warn("Caught IOException: "+e1.getMessage());
-    return(IOERROR);
   }
   return(OK);
 }
@@ -0,0 +1,345 @@
+package uk.ac.sanger.cgp.autocsa.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.IOUtils;
+
+import org.biojava.bio.BioError;
+import org.biojava.bio.chromatogram.Chromatogram;
+import org.biojava.bio.chromatogram.ChromatogramFactory;
+import org.biojava.bio.chromatogram.UnsupportedChromatogramFormatException;
+import org.biojava.bio.program.abi.ABIFChromatogram;
+import org.biojava.bio.program.abi.ABIFParser;
+import org.biojava.bio.program.scf.SCF;
+import org.biojava.bio.seq.DNATools;
+import org.biojava.bio.symbol.AtomicSymbol;
+import org.biojava.bio.symbol.IllegalAlphabetException;
+import org.biojava.bio.symbol.IllegalSymbolException;
+import org.biojava.bio.symbol.IntegerAlphabet;
+import org.biojava.bio.symbol.Symbol;
+import org.biojava.utils.SmallMap;
+
+/**
+ *<p> Loads uncompressed AB1 and SCF trace files through a read only
+ * memory mapping of the file rather than a buffered stream.</p>
+ *<p> The magic number is taken from the mapped buffer. For AB1 files the
+ * ABIF directory, DATA, PBAS and PLOC records are decoded straight from
+ * the buffer into the trace arrays, giving the same chromatogram as the
+ * biojava ABIF parser without copying the file through its caching
+ * stream. SCF files are handed to the biojava SCF parser as a stream over
+ * the mapped buffer.</p>
+ *<p> Anything else (e.g. gzipped traces) is not handled here and should
+ * be loaded with {@link TraceLoader}.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class MappedTraceLoader {
+
+// ABIF header: the directory entry count & offset are held in the
+// root directory entry which starts at byte 6
+  private static final int RECORD_COUNT_OFFSET=18;
+  private static final int RECORD_OFFSET_OFFSET=26;
+  private static final int RECORD_LENGTH=28;
+
+  private static final String ABI_CTAG1="SVER";
+  private static final String ABI_CTAG2="SPAC";
+  private static final String ABI_CTAG3="PDMF";
+
+/**
+ * dummy constructor as all methods are static
+ */
+  public MappedTraceLoader() {
+  }
+/**
+ * Maps a trace file into memory, the file itself is closed before
+ * returning as the mapping stays valid until it is garbage collected
+ * @param input the trace file
+ * @return big endian, read only buffer over the whole file
+ * @throws IOException if the file cannot be opened or mapped
+ */
+  public static ByteBuffer map(File input) throws IOException {
+    FileInputStream fis = null;
+    try {
+      fis = new FileInputStream(input);
+      FileChannel fc = fis.getChannel();
+      ByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY,0,fc.size());
+      buf.order(ByteOrder.BIG_ENDIAN);
+      return buf;
+    }
+    finally {
+      IOUtils.closeQuietly(fis);
+    }
+  }
+/**
+ * Gets the magic number (first 4 bytes) of a mapped trace
+ * @param buf the mapped trace
+ * @return the magic number, or 0 if the trace is too short to have one
+ */
+  public static int readMagic(ByteBuffer buf) {
+    if( buf.limit() < 4 ) return 0;
+    return buf.getInt(0);
+  }
+/**
+ * Indicates whether a trace with the given magic number can be read
+ * from a mapped buffer
+ * @param magic the magic number of the trace
+ * @return true for uncompressed AB1 & SCF traces
+ */
+  public static boolean isMappable(int magic) {
+    return magic == ChromatogramFactory.ABI_MAGIC || magic == ChromatogramFactory.SCF_MAGIC;
+  }
+/**
+ * Loads an SCF trace from a mapped buffer
+ * @param buf the mapped trace
+ * @return SCF chromatogram
+ * @throws IOException if the buffer is truncated
+ * @throws UnsupportedChromatogramFormatException if not an SCF trace
+ */
+  public static Chromatogram loadSCF(ByteBuffer buf) throws IOException, UnsupportedChromatogramFormatException {
+    if( readMagic(buf) != ChromatogramFactory.SCF_MAGIC ) {
+      throw new UnsupportedChromatogramFormatException("The provided trace does not have the SCF magic number");
+    }
+// n.b. the SCF parser expects to be positioned after the magic number
+    ByteBuffer in = buf.duplicate();
+    in.position(4);
+    return SCF.create(new ByteBufferInputStream(in),4);
+  }
+/**
+ * Loads an AB1 trace and the comment tags needed for trace conversion
+ * from a mapped buffer
+ * @param buf the mapped trace
+ * @return AbiTraceData holding the chromatogram & comment tags
+ * @throws IOException if the buffer is truncated
+ * @throws UnsupportedChromatogramFormatException if not an AB1 trace,
+ *         a required tag is missing or the trace data cannot be read
+ */
+  public static AbiTraceData loadABI(ByteBuffer buf) throws IOException, UnsupportedChromatogramFormatException {
+    if( readMagic(buf) != ChromatogramFactory.ABI_MAGIC ) {
+      throw new UnsupportedChromatogramFormatException("The provided trace does not have the ABI magic number");
+    }
+    Map records=readDataRecords(buf);
+    MappedChromatogram chrom = new MappedChromatogram();
+    try {
+      chrom.parse(buf,records);
+    } catch ( IndexOutOfBoundsException e ) {
+      throw new IOException("Truncated AB1 trace: "+e.getMessage());
+    }
+    Record r1=getRecord(records,ABI_CTAG1+1);
+    Record r2=getRecord(records,ABI_CTAG2+1);
+    Record r3=getRecord(records,ABI_CTAG3+1);
+    return new AbiTraceData(chrom,r1.dataRecord,r2.dataRecord,r3.getOffsetData(buf),r3.recordLength);
+  }
+// n.b. tags are the tag name followed by the tag No, e.g. DATA1
+  private static Record getRecord(Map records, String tag) throws UnsupportedChromatogramFormatException {
+    Record r=(Record) records.get(tag);
+    if( r == null ) {
+      throw new UnsupportedChromatogramFormatException("No "+tag+" record in ABIF file");
+    }
+    return r;
+  }
+  private static Map readDataRecords(ByteBuffer buf) throws IOException {
+    try {
+      long count=buf.getInt(RECORD_COUNT_OFFSET) & 0xffffffffL;
+      int pos=buf.getInt(RECORD_OFFSET_OFFSET);
+      Map records=new HashMap();
+      for( long i=0; i < count; ++i ) {
+        Record r=new Record(buf,pos);
+        records.put(r.tagName+r.tagNumber,r);
+        pos+=RECORD_LENGTH;
+      }
+      return records;
+    } catch ( IndexOutOfBoundsException e ) {
+      throw new IOException("Truncated ABIF directory: "+e.getMessage());
+    }
+  }
+
+/**
+ * One ABIF directory entry, n.b. record data of 4 bytes or less is held
+ * in the dataRecord field itself rather than at an offset
+ */
+  private static class Record {
+
+    String tagName;
+    long tagNumber;
+    int elementLength;
+    long numberOfElements;
+    long recordLength;
+    long dataRecord;
+
+    Record(ByteBuffer buf, int pos) {
+      char[] name = new char[4];
+      for( int k=0; k < 4; ++k ) name[k]=(char) buf.get(pos+k);
+      tagName=new String(name);
+      tagNumber=buf.getInt(pos+4) & 0xffffffffL;
+      elementLength=buf.getShort(pos+10) & 0xffff;
+      numberOfElements=buf.getInt(pos+12) & 0xffffffffL;
+      recordLength=buf.getInt(pos+16) & 0xffffffffL;
+      dataRecord=buf.getInt(pos+20) & 0xffffffffL;
+    }
+
+    byte[] getOffsetData(ByteBuffer buf) throws IOException {
+      if( recordLength <= 4 ) return new byte[0];
+      if( dataRecord + recordLength > buf.limit() ) {
+        throw new IOException("Truncated ABIF record: "+tagName+tagNumber);
+      }
+      byte[] data = new byte[(int) recordLength];
+      ByteBuffer in = buf.duplicate();
+      in.position((int) dataRecord);
+      in.get(data);
+      return data;
+    }
+  }
+
+/**
+ * ABIFChromatogram filled directly from the mapped ABIF records, this
+ * follows the biojava ABIF parser so the traces & base calls are the same
+ */
+  private static class MappedChromatogram extends ABIFChromatogram {
+
+    void parse(ByteBuffer buf, Map records) throws UnsupportedChromatogramFormatException {
+      Record fwo=(Record) records.get("FWO_1");
+      if( fwo == null ) {
+        throw new UnsupportedChromatogramFormatException("No FWO_ (1) record in ABIF file, therefore no trace data");
+      }
+      char[] order = new char[4];
+      order[0]=(char) ((fwo.dataRecord >>> 24) & 0xff);
+      order[1]=(char) ((fwo.dataRecord >>> 16) & 0xff);
+      order[2]=(char) ((fwo.dataRecord >>> 8) & 0xff);
+      order[3]=(char) (fwo.dataRecord & 0xff);
+      clearTraces();
+      for( int i=0; i < 4; ++i ) {
+        Symbol sym=null;
+        try {
+          sym=ABIFParser.decodeDNAToken(order[i]);
+        } catch ( IllegalSymbolException e ) {
+          throw new UnsupportedChromatogramFormatException("An unexpected character ("+order[i]+") was found in the FWO_ tag.  Parsing cannot continue.");
+        }
+        if( ! (sym instanceof AtomicSymbol) ) {
+          throw new UnsupportedChromatogramFormatException("An unexpected character ("+order[i]+") was found in the FWO_ tag.  Parsing cannot continue.");
+        }
+        parseTrace(buf,(AtomicSymbol) sym,getRecord(records,"DATA"+(i+1)));
+      }
+      parseBaseCalls(buf,getRecord(records,"PLOC1"),getRecord(records,"PBAS1"));
+    }
+
+    private void parseTrace(ByteBuffer buf, AtomicSymbol sym, Record r) throws UnsupportedChromatogramFormatException {
+      if( r.numberOfElements > Integer.MAX_VALUE ) {
+        throw new UnsupportedChromatogramFormatException("Chromatogram has more than "+Integer.MAX_VALUE+" trace samples -- can't handle it");
+      }
+      int n=(int) r.numberOfElements;
+      int pos=(int) r.dataRecord;
+      int[] trace = new int[n];
+      int max=-1;
+      setBits(8*r.elementLength);
+      if( r.elementLength == 2 ) {
+        for( int k=0; k < n; ++k ) {
+          trace[k]=buf.getShort(pos);
+          pos+=2;
+          if( trace[k] > max ) max=trace[k];
+        }
+      } else if( r.elementLength == 1 ) {
+        for( int k=0; k < n; ++k ) {
+          trace[k]=buf.get(pos++);
+          if( trace[k] > max ) max=trace[k];
+        }
+      } else {
+        throw new UnsupportedChromatogramFormatException("Only 8- and 16-bit trace samples are supported");
+      }
+      try {
+        setTrace(sym,trace,max);
+      } catch ( IllegalSymbolException e ) {
+        throw new BioError(e,"Can't happen");
+      }
+    }
+
+    private void parseBaseCalls(ByteBuffer buf, Record ploc, Record pbas) throws UnsupportedChromatogramFormatException {
+      if( ploc.numberOfElements != pbas.numberOfElements ) {
+        throw new BioError("PLOC and PBAS are different lengths.  Can't proceed.");
+      }
+      if( ploc.numberOfElements > Integer.MAX_VALUE ) {
+        throw new UnsupportedChromatogramFormatException("Chromatogram has more than "+Integer.MAX_VALUE+" base calls -- can't handle it");
+      }
+      int n=(int) ploc.numberOfElements;
+      List dna = new ArrayList(n);
+      List offsets = new ArrayList(n);
+      IntegerAlphabet ia = IntegerAlphabet.getInstance();
+      int pos=(int) ploc.dataRecord;
+      if( ploc.elementLength == 2 ) {
+        for( int k=0; k < n; ++k ) {
+          offsets.add(ia.getSymbol(buf.getShort(pos) & 0xffff));
+          pos+=2;
+        }
+      } else if( ploc.elementLength == 1 ) {
+        for( int k=0; k < n; ++k ) {
+          offsets.add(ia.getSymbol(buf.get(pos++) & 0xff));
+        }
+      } else {
+        throw new IllegalStateException("Only 8- and 16-bit trace samples are supported");
+      }
+      pos=(int) pbas.dataRecord;
+      try {
+        for( int k=0; k < n; ++k ) {
+          dna.add(ABIFParser.decodeDNAToken((char) buf.get(pos++)));
+        }
+      } catch ( IllegalSymbolException e ) {
+        throw new BioError(e,"Can't happen");
+      }
+      Map baseCalls = new SmallMap(2);
+      try {
+        baseCalls.put(Chromatogram.DNA,createImmutableSymbolList(DNATools.getDNA(),dna));
+        baseCalls.put(Chromatogram.OFFSETS,createImmutableSymbolList(ia,offsets));
+        setBaseCallAlignment(createImmutableAlignment(baseCalls));
+      } catch ( IllegalAlphabetException e ) {
+        throw new BioError(e,"Can't happen");
+      } catch ( IllegalSymbolException e ) {
+        throw new BioError(e,"Can't happen");
+      }
+    }
+  }
+
+/**
+ * InputStream reading from the current position of a ByteBuffer
+ */
+  private static class ByteBufferInputStream extends InputStream {
+
+    private ByteBuffer buf;
+
+    ByteBufferInputStream(ByteBuffer buf) {
+      this.buf=buf;
+    }
+
+    public int read() {
+      if( ! buf.hasRemaining() ) return -1;
+      return buf.get() & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) {
+      if( len == 0 ) return 0;
+      if( ! buf.hasRemaining() ) return -1;
+      len=Math.min(len,buf.remaining());
+      buf.get(b,off,len);
+      return len;
+    }
+
+    public long skip(long n) {
+      int k=(int) Math.max(0,Math.min(n,buf.remaining()));
+      buf.position(buf.position()+k);
+      return k;
+    }
+
+    public int available() {
+      return buf.remaining();
+    }
+  }
+
+}
@@ -0,0 +1,218 @@
+package uk.ac.sanger.cgp.autocsa.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.ac.sanger.cgp.autocsa.beans.MobilityCorData;
+
+/**
+ *<p> Mobility correction factors read from one mobility (.mob) file.</p>
+ *<p> Tables are cached for the life of the process, keyed by the DYEP
+ * label of the trace, so each mobility file is located (including the
+ * fallback to the generic file for the machine & chemistry) and parsed
+ * only once however many traces use it.</p>
+ *<p> A table cannot be modified once read, so may be shared between
+ * threads. {@link #getScaledData(int,float)} hands back a new
+ * MobilityCorData for each call which the caller is free to change.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public final class MobilityCorTable {
+
+	protected static Log log = LogFactory.getLog(MobilityCorTable.class.getName());
+
+  private static final String MOB_DIR="."+ File.separator + "resources" + File.separator +"mobCorrFiles" + File.separator;
+
+// n.b. key is No of channels + ':' + DYEP label
+  private static final Map tables = new HashMap();
+
+  private final String fileName;
+  private final boolean fallback;
+  private final int[] doCorrection;
+  private final int[][] scans;
+  private final int[][] shifts;
+
+  private MobilityCorTable(String fileName, boolean fallback, int[] doCorrection, int[][] scans, int[][] shifts) {
+    this.fileName=fileName;
+    this.fallback=fallback;
+    this.doCorrection=doCorrection;
+    this.scans=scans;
+    this.shifts=shifts;
+  }
+/**
+ * Gets the cached table for a DYEP label, reading the mobility file the
+ * first time the label is seen
+ * @param dyepLabel DYEP label with '{' mapped to '=' and any '}' removed
+ * @param numChans No of trace channels to read factors for
+ * @return MobilityCorTable for the label
+ * @throws IOException if the mobility file cannot be read or is corrupt
+ */
+  public static MobilityCorTable getInstance(String dyepLabel, int numChans) throws IOException {
+    String key=numChans+":"+dyepLabel;
+    synchronized(tables) {
+      MobilityCorTable table=(MobilityCorTable) tables.get(key);
+      if( table == null ) {
+        String fileName=resolveFileName(dyepLabel);
+        table=read(fileName,! fileName.equals(MOB_DIR.concat(dyepLabel)),numChans);
+        tables.put(key,table);
+      }
+      return table;
+    }
+  }
+/**
+ * Empties the table cache so mobility files are read again on next use
+ */
+  public static void clearCache() {
+    synchronized(tables) {
+      tables.clear();
+    }
+  }
+/**
+ * Maps a DYEP label to its mobility file, falling back to a generic
+ * version for the current machine & chemistry if no file for the
+ * label exists
+ * @param dyepLabel DYEP label with '{' mapped to '=' and any '}' removed
+ * @return path of the mobility file
+ */
+  public static String resolveFileName(String dyepLabel) {
+    String mobFileName=MOB_DIR.concat(dyepLabel);
+    if ( ! (new File(mobFileName)).exists() ) {
+      String pop=null,machine=null;
+      if( dyepLabel.indexOf("POP4") > -1 ) pop="POP4";
+      if( dyepLabel.indexOf("POP5") > -1 ) pop="POP5";
+      if( dyepLabel.indexOf("POP6") > -1 ) pop="POP6";
+      if( dyepLabel.indexOf("POP7") > -1 ) pop="POP7";
+      if( dyepLabel.indexOf("3100") > -1 ) machine="3100";
+      if( dyepLabel.indexOf("3130") > -1 ) machine="3130";
+      if( dyepLabel.indexOf("3700") > -1 ) machine="3700";
+      if( dyepLabel.indexOf("3730") > -1 ) machine="3730";
+      mobFileName=MOB_DIR.concat("Generic"+machine+pop+".mob");
+    }
+    return mobFileName;
+  }
+  private static MobilityCorTable read(String mobFileName, boolean fallback, int numChans) throws IOException {
+    int i, j;
+    int[] doCorrection=new int[numChans];
+    int[][] scans=new int[numChans][];
+    int[][] shifts=new int[numChans][];
+    BufferedReader in = null;
+    try {
+      in = new BufferedReader(new FileReader(new File(mobFileName)));
+    // Read number of channels.
+      String line=in.readLine();
+      int numChanInFile=Integer.parseInt(line);
+      if( numChanInFile < numChans ) {
+        if(log.isWarnEnabled()) log.warn("readMobilityCorrect: error: number of channels in mobility file");
+        if(log.isWarnEnabled()) log.warn("is less than number in trace data "+numChanInFile);
+        throw new IOException("Too few channels in mobility file "+mobFileName);
+      }
+
+    /*
+    ** Read line that contain the number of correction
+    ** factors for each channel.
+    */
+      line=in.readLine();
+      String[] strs=line.split("\\s+");
+      if( strs.length < numChans ) {
+        if(log.isWarnEnabled()) log.warn("readMobilityCorrect: error: corrupted mobility file");
+        throw new IOException("Corrupted mobility file "+mobFileName);
+      }
+      int[] numShift=new int[numChans];
+      for( j = 0; j < numChans; ++j ) {
+        numShift[j]=Integer.parseInt(strs[j]);
+      }
+
+    /*
+    ** Read correction factors for each channel
+    */
+      for( j = 0; j < numChans; ++j ) {
+        doCorrection[j]=1;
+        int np=numShift[j];
+        int[] scan = new int[np];
+        int[] shift = new int[np];
+        for( i = 0; i < np; ++i ) {
+          line=in.readLine();
+          strs=line.split("\\s+");
+          int curChan=Integer.parseInt(strs[0]);
+          scan[i]= Integer.parseInt(strs[1]);
+          shift[i]= Integer.parseInt(strs[2]);
+          if( curChan != j ) {
+            if(log.isWarnEnabled()) log.warn("readMobilityCorrect: unexpected channel in mobfile");
+            throw new IOException("Unexpected channel in mobility file "+mobFileName);
+          }
+        }
+        if( scan[np-1] == 0 && shift[np-1] == 0) doCorrection[j]=0;
+        scans[j]=scan;
+        shifts[j]=shift;
+      }
+    }
+    finally {
+      IOUtils.closeQuietly(in);
+    }
+    if(log.isInfoEnabled()) log.info("Read mobility file: "+mobFileName);
+    return new MobilityCorTable(mobFileName,fallback,doCorrection,scans,shifts);
+  }
+/**
+ * Gets the path of the mobility file the table was read from
+ * @return path of the mobility file
+ */
+  public String getFileName() {
+    return fileName;
+  }
+/**
+ * Indicates whether the table was read from the generic mobility file for
+ * the machine & chemistry as no file exists for the DYEP label
+ * @return true if the generic (fallback) file was used
+ */
+  public boolean isFallback() {
+    return fallback;
+  }
+/**
+ * Gets the number of channels held in the table
+ * @return No of channels
+ */
+  public int getNumChannels() {
+    return doCorrection.length;
+  }
+/**
+ * Indicates whether a channel needs mobility correction
+ * @param chan channel index
+ * @return true if the channel has non zero correction factors
+ */
+  public boolean isCorrected(int chan) {
+    return doCorrection[chan] == 1;
+  }
+/**
+ * Gets a copy of the correction factors of one channel with the scan and
+ * shift values multiplied by a scale factor
+ * @param chan channel index
+ * @param scale scale factor (trace / nominal average base spacing)
+ * @return new MobilityCorData holding the scaled factors
+ */
+  public MobilityCorData getScaledData(int chan, float scale) {
+    int np=scans[chan].length;
+    int[] scan=new int[np];
+    int[] shift=new int[np];
+// n.b original C code did not use "round" so truncates floats
+// hence using round as below is more accurate
+    for( int k = 0; k < np; k++ ) {
+      scan[k] = Math.round( (float) scans[chan][k] * scale );
+      shift[k] = Math.round( (float) shifts[chan][k] * scale );
+    }
+    MobilityCorData data = new MobilityCorData();
+    data.setDoCorrection(doCorrection[chan]);
+    data.setNumShift(np);
+    data.setScan(scan);
+    data.setShift(shift);
+    return data;
+  }
+
+}
@@ -0,0 +1,237 @@
+package uk.ac.sanger.cgp.autocsa.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.ac.sanger.cgp.autocsa.beans.*;
+
+/**
+ *<p> Lists the trace files of plate run directories, handing out a
+ * TraceDetails bean per trace as soon as it is found so analysis can
+ * start before the listing is complete.</p>
+ *<p> Each run directory is read once with a DirectoryStream on its own
+ * scanner thread, so large directories on network file systems are listed
+ * in parallel. The well of each file is parsed from its name (as
+ * TraceFileFilter.getWell()) & files of wells not accepted by the
+ * TraceFileFilter are skipped. Files are classified by name only, no file
+ * attributes are read.</p>
+ *<p> Found traces are held in a bounded queue, the scanner threads waiting
+ * while it is full. Collect them with {@link #take()}, which returns null
+ * once every directory has been listed & all traces taken.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class PlateScanner {
+
+	protected static Log log = LogFactory.getLog(PlateScanner.class.getName());
+
+// n.b. placed on the queue once all directories are listed
+  private static final TraceDetails END = new TraceDetails();
+
+  private TraceFileFilter filter;
+// n.b. parses wells from file names, the filter itself if given
+  private TraceFileFilter parser;
+  private BlockingQueue queue;
+  private ExecutorService executor;
+  private int remaining=0;
+  private volatile boolean stopped=false;
+  private int found=0;
+  private final List failed = new ArrayList();
+
+/**
+ * Allocates a PlateScanner
+ * @param filter TraceFileFilter giving the wells to accept (null for all
+ * files with a well in their name)
+ * @param capacity max No of traces held before they are taken (minimum of 1)
+ * @param threads No of scanner threads (minimum of 1)
+ */
+  public PlateScanner(TraceFileFilter filter, int capacity, int threads) {
+    this.filter=filter;
+    parser=( filter == null ) ? new TraceFileFilter() : filter;
+    queue = new ArrayBlockingQueue(Math.max(1,capacity));
+    executor=Executors.newFixedThreadPool(Math.max(1,threads),new ScannerThreadFactory());
+  }
+/**
+ * Starts listing run directories in the background. May be called once
+ * only.
+ * @param runDirs the run directories
+ */
+  public void scan(File[] runDirs) {
+    synchronized(this) {
+      if( executor.isShutdown() ) {
+        throw new IllegalStateException("PlateScanner.scan() already called");
+      }
+      remaining=runDirs.length;
+    }
+    if( runDirs.length == 0 ) {
+      queue.add(END);
+    }
+    for( int i=0; i < runDirs.length; ++i ) {
+      executor.execute(new ScanTask(runDirs[i]));
+    }
+    executor.shutdown();
+  }
+/**
+ * Gets the next trace found, waiting for one if necessary
+ * @return TraceDetails bean of the trace, null once all traces are taken
+ * @throws InterruptedException if interrupted while waiting
+ */
+  public TraceDetails take() throws InterruptedException {
+    TraceDetails td=(TraceDetails) queue.take();
+    if( td == END ) {
+// n.b. left for any other thread taking traces
+      queue.put(END);
+      return null;
+    }
+    return td;
+  }
+/**
+ * Gets the well of a trace handed out by take()
+ * @param td TraceDetails bean of the trace
+ * @return the well, as parsed from the trace file name
+ */
+  public String getWell(TraceDetails td) {
+    return parser.getWell(td.getFilePositionFromRoot());
+  }
+/**
+ * Gets the No of traces found so far
+ * @return No of traces
+ */
+  public synchronized int getNumFound() {
+    return found;
+  }
+/**
+ * Gets the run directories which could not be listed
+ * @return a new List of File objects
+ */
+  public List getFailedDirectories() {
+    synchronized(failed) {
+      return new ArrayList(failed);
+    }
+  }
+/**
+ * Stops listing, any traces not yet taken are dropped & take() then
+ * returns null
+ */
+  public void shutdown() {
+    stopped=true;
+    executor.shutdownNow();
+// n.b. a scanner thread may put a trace just after the clear, so clear
+// until END is queued
+    do {
+      queue.clear();
+    } while( ! queue.offer(END) );
+  }
+/**
+ * Creates the TraceDetails bean of a trace found. Subclasses may override
+ * to set e.g. the strand or Normal/Tumour of the trace from its well.
+ * @param file the trace file
+ * @param well the well of the trace
+ * @return the TraceDetails bean
+ */
+  protected TraceDetails createTraceDetails(File file, String well) {
+    TraceDetails td = new TraceDetails();
+    td.setFilePositionFromRoot(file);
+    td.setSeqReadName(file.getName());
+    return td;
+  }
+
+  private void listDirectory(File dir) throws IOException, InterruptedException {
+    DirectoryStream stream=Files.newDirectoryStream(dir.toPath());
+    try {
+      for( Iterator it=stream.iterator(); it.hasNext(); ) {
+        Path path=(Path) it.next();
+        String name=path.getFileName().toString();
+        String well=parser.getWell(name);
+        if( well == null || ( filter != null && ! filter.acceptWell(well) ) ) {
+          continue;
+        }
+        if( stopped ) { break; }
+        queue.put(createTraceDetails(new File(dir,name),well));
+        synchronized(this) {
+          ++found;
+        }
+      }
+    }
+    finally {
+      stream.close();
+    }
+  }
+  private void finishDirectory() {
+    boolean last;
+    synchronized(this) {
+      last=( --remaining == 0 );
+    }
+// n.b. after shutdown() END is already queued
+    if( last && ! stopped ) {
+      try {
+        queue.put(END);
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+/**
+ * Runnable listing a single run directory
+ */
+  private class ScanTask implements Runnable {
+
+    private File dir;
+
+    ScanTask(File dir) {
+      this.dir=dir;
+    }
+
+    public void run() {
+      try {
+        listDirectory(dir);
+      } catch ( IOException e ) {
+        if(log.isWarnEnabled()) log.warn("Cannot list run directory "+dir+": "+e.getMessage());
+        synchronized(failed) {
+          failed.add(dir);
+        }
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+      } catch ( RuntimeException e ) {
+        if(log.isWarnEnabled()) log.warn("Cannot list run directory "+dir+": "+e);
+        synchronized(failed) {
+          failed.add(dir);
+        }
+      }
+      finally {
+        finishDirectory();
+      }
+    }
+  }
+
+/**
+ * Creates named daemon scanner threads so an unfinished listing never
+ * holds up JVM exit
+ */
+  private static class ScannerThreadFactory implements ThreadFactory {
+
+    private int count=0;
+
+    public synchronized Thread newThread(Runnable r) {
+      Thread t = new Thread(r,"PlateScanner-"+(++count));
+      t.setDaemon(true);
+      return t;
+    }
+  }
+
+}
@@ -0,0 +1,135 @@
+package uk.ac.sanger.cgp.autocsa.util;
+
+/**
+ *<p> Range min/max index over an int array (the data of a Channel), for
+ * constant time queries over arbitrary ranges.</p>
+ *<p> The data is divided into blocks of BLOCK_SIZE elements. A sparse
+ * table over the block minima & maxima answers the whole blocks of a range
+ * with two lookups, the partial blocks at either end (at most
+ * 2*(BLOCK_SIZE-1) elements) are scanned. The table is around
+ * 2*log2(n/BLOCK_SIZE)*n/BLOCK_SIZE ints, a fraction of the data itself.</p>
+ *<p> The index is never changed once built so may be shared between
+ * threads. The data must not be changed while the index is in use.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+final class RangeIndex {
+
+  private static final int BLOCK_SHIFT=4;
+/** No of elements per block */
+  static final int BLOCK_SIZE=1 << BLOCK_SHIFT;
+
+  private final int[] data;
+// n.b. mins[k][b] (maxs[k][b]) is the min (max) of blocks b to b+2^k-1
+  private final int[][] mins;
+  private final int[][] maxs;
+
+/**
+ * Builds the index of an array
+ * @param data the array
+ */
+  RangeIndex(int[] data) {
+    this.data=data;
+    int nBlocks=data.length >> BLOCK_SHIFT;
+    int levels=1;
+    while( (1 << levels) <= nBlocks ) { ++levels; }
+    mins = new int[levels][];
+    maxs = new int[levels][];
+    int[] min0 = new int[nBlocks];
+    int[] max0 = new int[nBlocks];
+    for( int b=0; b < nBlocks; ++b ) {
+      int from=b << BLOCK_SHIFT;
+      int min=data[from];
+      int max=data[from];
+      for( int i=from+1; i < from+BLOCK_SIZE; ++i ) {
+        min=Math.min(min,data[i]);
+        max=Math.max(max,data[i]);
+      }
+      min0[b]=min;
+      max0[b]=max;
+    }
+    mins[0]=min0;
+    maxs[0]=max0;
+// n.b. plain counted loops over 2 offsets of the previous level, which
+// the JIT can unroll & vectorise
+    for( int k=1; k < levels; ++k ) {
+      int half=1 << (k-1);
+      int len=nBlocks-(1 << k)+1;
+      int[] pmin=mins[k-1];
+      int[] pmax=maxs[k-1];
+      int[] kmin = new int[len];
+      int[] kmax = new int[len];
+      for( int b=0; b < len; ++b ) {
+        kmin[b]=Math.min(pmin[b],pmin[b+half]);
+      }
+      for( int b=0; b < len; ++b ) {
+        kmax[b]=Math.max(pmax[b],pmax[b+half]);
+      }
+      mins[k]=kmin;
+      maxs[k]=kmax;
+    }
+  }
+/**
+ * Gets the array indexed
+ * @return the array
+ */
+  int[] getData() {
+    return data;
+  }
+/**
+ * Gets the minimum over a range
+ * @param from start index (0 or more)
+ * @param to end index (inclusive, less than the data length & not below from)
+ * @return the minimum
+ */
+  int min(int from, int to) {
+    int b1=(from+BLOCK_SIZE-1) >> BLOCK_SHIFT;
+    int b2=((to+1) >> BLOCK_SHIFT)-1;
+    int min=data[from];
+    if( b1 > b2 ) {
+      for( int i=from+1; i <= to; ++i ) {
+        min=Math.min(min,data[i]);
+      }
+      return min;
+    }
+    int k=log2(b2-b1+1);
+    min=Math.min(min,Math.min(mins[k][b1],mins[k][b2-(1 << k)+1]));
+    for( int i=from+1; i < (b1 << BLOCK_SHIFT); ++i ) {
+      min=Math.min(min,data[i]);
+    }
+    for( int i=(b2+1) << BLOCK_SHIFT; i <= to; ++i ) {
+      min=Math.min(min,data[i]);
+    }
+    return min;
+  }
+/**
+ * Gets the maximum over a range
+ * @param from start index (0 or more)
+ * @param to end index (inclusive, less than the data length & not below from)
+ * @return the maximum
+ */
+  int max(int from, int to) {
+    int b1=(from+BLOCK_SIZE-1) >> BLOCK_SHIFT;
+    int b2=((to+1) >> BLOCK_SHIFT)-1;
+    int max=data[from];
+    if( b1 > b2 ) {
+      for( int i=from+1; i <= to; ++i ) {
+        max=Math.max(max,data[i]);
+      }
+      return max;
+    }
+    int k=log2(b2-b1+1);
+    max=Math.max(max,Math.max(maxs[k][b1],maxs[k][b2-(1 << k)+1]));
+    for( int i=from+1; i < (b1 << BLOCK_SHIFT); ++i ) {
+      max=Math.max(max,data[i]);
+    }
+    for( int i=(b2+1) << BLOCK_SHIFT; i <= to; ++i ) {
+      max=Math.max(max,data[i]);
+    }
+    return max;
+  }
+  private static int log2(int n) {
+    return 31-Integer.numberOfLeadingZeros(n);
+  }
+}
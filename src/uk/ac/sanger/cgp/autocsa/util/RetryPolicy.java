@@ -0,0 +1,131 @@
+package uk.ac.sanger.cgp.autocsa.util;
+
+import java.util.Random;
+
+/**
+ *<p> Defines how often & how long to wait before retrying a failed trace
+ * load, e.g. when a trace file is temporarily locked or a network mount
+ * is slow to respond.</p>
+ *<p> The wait before retry n (n=1 after the first failure) is
+ * initialDelay*multiplier^(n-1), capped at maxDelay, of which a random
+ * fraction (up to jitter) is removed so that threads failing together
+ * do not all retry together. No retry is made once maxAttempts loads
+ * have been tried or if the wait would end after the deadline (measured
+ * from the first attempt).</p>
+ *<p> A RetryPolicy cannot be changed once created, so may be shared
+ * between threads.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class RetryPolicy {
+
+/** 3 attempts, waits of ~0.5s then ~1s, given up after 20s */
+  public static final RetryPolicy DEFAULT = new RetryPolicy(3,500L,2.0f,5000L,0.5f,20000L);
+/** a single attempt with no retry */
+  public static final RetryPolicy NO_RETRY = new RetryPolicy(1,0L,1.0f,0L,0.0f,0L);
+
+  private final int maxAttempts;
+  private final long initialDelay;
+  private final float multiplier;
+  private final long maxDelay;
+  private final float jitter;
+  private final long deadline;
+  private final Random random = new Random();
+
+/**
+ * Allocates a RetryPolicy
+ * @param maxAttempts max No of load attempts (minimum of 1)
+ * @param initialDelay wait before the first retry (ms)
+ * @param multiplier factor applied to the wait after each retry (minimum of 1)
+ * @param maxDelay longest wait before any retry (ms)
+ * @param jitter max fraction of each wait removed at random (0-1)
+ * @param deadline overall time allowed for all attempts (ms), 0 for no limit
+ */
+  public RetryPolicy(int maxAttempts, long initialDelay, float multiplier,
+                     long maxDelay, float jitter, long deadline) {
+    this.maxAttempts=Math.max(1,maxAttempts);
+    this.initialDelay=Math.max(0L,initialDelay);
+    this.multiplier=Math.max(1.0f,multiplier);
+    this.maxDelay=Math.max(this.initialDelay,maxDelay);
+    this.jitter=Math.min(1.0f,Math.max(0.0f,jitter));
+    this.deadline=Math.max(0L,deadline);
+  }
+/**
+ * Gets the max No of load attempts
+ * @return max No of attempts
+ */
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+/**
+ * Gets the wait before the first retry
+ * @return wait (ms)
+ */
+  public long getInitialDelay() {
+    return initialDelay;
+  }
+/**
+ * Gets the factor applied to the wait after each retry
+ * @return backoff multiplier
+ */
+  public float getMultiplier() {
+    return multiplier;
+  }
+/**
+ * Gets the longest wait before any retry
+ * @return max wait (ms)
+ */
+  public long getMaxDelay() {
+    return maxDelay;
+  }
+/**
+ * Gets the max fraction of each wait removed at random
+ * @return jitter fraction (0-1)
+ */
+  public float getJitter() {
+    return jitter;
+  }
+/**
+ * Gets the overall time allowed for all attempts
+ * @return deadline (ms), 0 if there is no limit
+ */
+  public long getDeadline() {
+    return deadline;
+  }
+/**
+ * Gets the wait before a retry, before any jitter is applied
+ * @param attempt No of attempts already made (1 or more)
+ * @return wait (ms)
+ */
+  public long getBackoff(int attempt) {
+    double delay=(double) initialDelay*Math.pow(multiplier,attempt-1);
+    return (long) Math.min((double) maxDelay,delay);
+  }
+/**
+ * Decides whether a failed load is retried & how long to wait first
+ * @param attempt No of attempts already made (1 or more)
+ * @param startTime time of the first attempt (ms since epoch)
+ * @return wait before the next attempt (ms), -1 if no retry should be made
+ */
+  public long getRetryDelay(int attempt, long startTime) {
+    if( attempt >= maxAttempts ) return -1L;
+    long delay=getBackoff(attempt);
+    if( jitter > 0.0f ) {
+      delay-=(long) (jitter*random.nextFloat()*(float) delay);
+    }
+    if( deadline > 0L && System.currentTimeMillis()+delay > startTime+deadline ) {
+      return -1L;
+    }
+    return delay;
+  }
+/**
+ * Overides the toString() object method
+ */
+  public String toString() {
+    return "RetryPolicy: maxAttempts="+maxAttempts+" initialDelay="+initialDelay+
+           " multiplier="+multiplier+" maxDelay="+maxDelay+" jitter="+jitter+
+           " deadline="+deadline;
+  }
+
+}
@@ -0,0 +1,167 @@
+package uk.ac.sanger.cgp.autocsa.util;
+
+/**
+ *<p> Running min/max filters over a centred window of a data array.</p>
+ *<p> Each filter keeps a monotonic deque of array indices so the cost
+ * is O(n) whatever the window width, rather than O(n * width) for a
+ * rescan of the full window at every data point.</p>
+ *<p> For each index i the window is [i-hlen,i+hlen] clipped to [0,n-1].</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class SlidingWindowFilter {
+
+/**
+ * dummy constructor as all methods are static
+ */
+  public SlidingWindowFilter() {
+  }
+/**
+ * Applies a running minimum filter to an int array
+ * @param src input data
+ * @param n No of data points in src to use
+ * @param hlen half width of the window, i.e. width is 2*hlen+1
+ * @param from first index to set in dst
+ * @param to last index to set in dst (inclusive)
+ * @param dst output array, only indices from..to are set
+ */
+  public static void min(int[] src, int n, int hlen, int from, int to, int[] dst) {
+    filter(src,n,hlen,from,to,dst,false);
+  }
+/**
+ * Applies a running maximum filter to an int array
+ * @param src input data
+ * @param n No of data points in src to use
+ * @param hlen half width of the window, i.e. width is 2*hlen+1
+ * @param from first index to set in dst
+ * @param to last index to set in dst (inclusive)
+ * @param dst output array, only indices from..to are set
+ */
+  public static void max(int[] src, int n, int hlen, int from, int to, int[] dst) {
+    filter(src,n,hlen,from,to,dst,true);
+  }
+/**
+ * Applies a running minimum filter to a float array
+ * @param src input data
+ * @param n No of data points in src to use
+ * @param hlen half width of the window, i.e. width is 2*hlen+1
+ * @param from first index to set in dst
+ * @param to last index to set in dst (inclusive)
+ * @param dst output array, only indices from..to are set
+ */
+  public static void min(float[] src, int n, int hlen, int from, int to, float[] dst) {
+    filter(src,n,hlen,from,to,dst,false);
+  }
+/**
+ * Applies a running maximum filter to a float array
+ * @param src input data
+ * @param n No of data points in src to use
+ * @param hlen half width of the window, i.e. width is 2*hlen+1
+ * @param from first index to set in dst
+ * @param to last index to set in dst (inclusive)
+ * @param dst output array, only indices from..to are set
+ */
+  public static void max(float[] src, int n, int hlen, int from, int to, float[] dst) {
+    filter(src,n,hlen,from,to,dst,true);
+  }
+/**
+ * Finds the position of the running maximum of an int array, i.e. for each
+ * index i the index of the max over [i-hlen,i+hlen] clipped to [from,to].
+ * Where the max occurs more than once the last index is given.
+ * @param src input data
+ * @param from first index of src to use
+ * @param to last index of src to use (inclusive)
+ * @param hlen half width of the window, i.e. width is 2*hlen+1
+ * @param dst output array, only indices from..to are set
+ */
+  public static void maxIndex(int[] src, int from, int to, int hlen, int[] dst) {
+    if( from > to ) { return; }
+    int cap=2*hlen+2;
+    int[] deque=new int[cap];
+    int head=0;
+    int size=0;
+    int next=from;
+    for( int i=from; i <= to; ++i ) {
+      int right=Math.min(i+hlen,to);
+      int left=Math.max(i-hlen,from);
+// n.b. equal values are dropped too, so the latest index of the max is kept
+      while( next <= right ) {
+        int val=src[next];
+        while( size > 0 && src[deque[(head+size-1)%cap]] <= val ) {
+          --size;
+        }
+        deque[(head+size)%cap]=next++;
+        ++size;
+      }
+      while( deque[head] < left ) {
+        head=(head+1)%cap;
+        --size;
+      }
+      dst[i]=deque[head];
+    }
+  }
+
+  private static void filter(int[] src, int n, int hlen, int from, int to, int[] dst, boolean isMax) {
+    if( from > to ) { return; }
+// n.b. deque never holds more than window width + 1 indices
+    int cap=2*hlen+2;
+    int[] deque=new int[cap];
+    int head=0;
+    int size=0;
+    int next=Math.max(from-hlen,0);
+    for( int i=from; i <= to; ++i ) {
+      int right=Math.min(i+hlen,n-1);
+      int left=Math.max(i-hlen,0);
+// add new points, dropping any that can no longer be the extreme value
+      while( next <= right ) {
+        int val=src[next];
+        while( size > 0 ) {
+          int last=src[deque[(head+size-1)%cap]];
+          if( isMax ? last > val : last < val ) { break; }
+          --size;
+        }
+        deque[(head+size)%cap]=next++;
+        ++size;
+      }
+// drop points which have left the window
+      while( deque[head] < left ) {
+        head=(head+1)%cap;
+        --size;
+      }
+      dst[i]=src[deque[head]];
+    }
+  }
+
+  private static void filter(float[] src, int n, int hlen, int from, int to, float[] dst, boolean isMax) {
+    if( from > to ) { return; }
+// n.b. deque never holds more than window width + 1 indices
+    int cap=2*hlen+2;
+    int[] deque=new int[cap];
+    int head=0;
+    int size=0;
+    int next=Math.max(from-hlen,0);
+    for( int i=from; i <= to; ++i ) {
+      int right=Math.min(i+hlen,n-1);
+      int left=Math.max(i-hlen,0);
+// add new points, dropping any that can no longer be the extreme value
+      while( next <= right ) {
+        float val=src[next];
+        while( size > 0 ) {
+          float last=src[deque[(head+size-1)%cap]];
+          if( isMax ? last > val : last < val ) { break; }
+          --size;
+        }
+        deque[(head+size)%cap]=next++;
+        ++size;
+      }
+// drop points which have left the window
+      while( deque[head] < left ) {
+        head=(head+1)%cap;
+        --size;
+      }
+      dst[i]=src[deque[head]];
+    }
+  }
+
+}
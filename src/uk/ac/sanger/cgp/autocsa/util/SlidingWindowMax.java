@@ -0,0 +1,86 @@
+package uk.ac.sanger.cgp.autocsa.util;
+
+/**
+ *<p> Running maximum of a set of points (key, value) sorted by key, over a
+ * window of keys, e.g. the max intensity of the peaks within a scan
+ * window.</p>
+ *<p> A monotonic deque of points is kept between queries, so a run of
+ * windows whose limits never decrease costs O(1) per query amortised,
+ * rather than a rescan of every window. A window starting or ending before
+ * the previous one restarts the deque with a binary search, so any order
+ * of windows gives the correct result.</p>
+ *<p> Not thread safe, as each query changes the deque.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class SlidingWindowMax {
+
+  private int[] keys;
+  private int[] values;
+  private int n;
+// n.b. each point enters at most once between restarts, so never wraps
+  private int[] deque;
+  private int head=0;
+  private int tail=0;
+  private int next=0;
+  private int lastFrom=Integer.MIN_VALUE;
+  private int lastTo=Integer.MIN_VALUE;
+
+/**
+ * Allocates a SlidingWindowMax
+ * @param keys keys of the points in ascending order
+ * @param values values of the points
+ * @param n No of points
+ */
+  public SlidingWindowMax(int[] keys, int[] values, int n) {
+    this.keys=keys;
+    this.values=values;
+    this.n=n;
+    deque = new int[Math.max(1,n)];
+  }
+/**
+ * Gets the max value of the points within a window of keys
+ * @param from first key of the window
+ * @param to last key of the window (inclusive)
+ * @param empty value to return if no points are in the window
+ * @return the max value
+ */
+  public int max(int from, int to, int empty) {
+    if( from < lastFrom || to < lastTo ) {
+      head=0;
+      tail=0;
+      next=findFirst(from);
+    }
+    lastFrom=from;
+    lastTo=to;
+    while( next < n && keys[next] <= to ) {
+      if( keys[next] >= from ) {
+        int val=values[next];
+        while( tail > head && values[deque[tail-1]] <= val ) {
+          --tail;
+        }
+        deque[tail++]=next;
+      }
+      ++next;
+    }
+    while( tail > head && keys[deque[head]] < from ) {
+      ++head;
+    }
+    return ( tail > head ) ? values[deque[head]] : empty;
+  }
+// binary search for the first point at or above a key
+  private int findFirst(int key) {
+    int lo=0;
+    int hi=n;
+    while( lo < hi ) {
+      int mid=(lo+hi) >>> 1;
+      if( keys[mid] < key ) {
+        lo=mid+1;
+      } else {
+        hi=mid;
+      }
+    }
+    return lo;
+  }
+}
@@ -0,0 +1,170 @@
+package uk.ac.sanger.cgp.autocsa.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.ac.sanger.cgp.autocsa.analysis.*;
+
+/**
+ *<p> Holds completed trace analyses on disk as AnalysisSnapshot files, so
+ * a trace (typically a Normal) compared in several runs is loaded &
+ * analysed in the first run only.</p>
+ *<p> Snapshots are keyed as in an AnalysisCache, i.e. by trace file path,
+ * length & modification time, the AutoCSA version and every input to the
+ * analysis step. Each file starts with the full key, so a changed trace
+ * file or parameter, or a new AutoCSA version, never matches an old
+ * snapshot. Analyses of in memory Chromatograms are not held.</p>
+ *<p> Any failure to read or write a snapshot is logged & treated as a
+ * missing snapshot, the trace then being analysed as normal. Snapshots are
+ * written to a temporary file & renamed, so runs sharing a directory never
+ * read a partly written snapshot.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class SnapshotStore {
+
+	protected static Log log = LogFactory.getLog(SnapshotStore.class.getName());
+
+/** file name extension of snapshots */
+  public static final String EXTENSION=".csas";
+
+  private final File directory;
+
+/**
+ * Allocates a SnapshotStore, creating its directory if necessary
+ * @param directory directory holding the snapshot files
+ */
+  public SnapshotStore(File directory) {
+    this.directory=directory;
+    if( ! directory.isDirectory() && ! directory.mkdirs() ) {
+      if(log.isWarnEnabled()) log.warn("Cannot create snapshot directory "+directory);
+    }
+  }
+/**
+ * Gets the directory holding the snapshot files
+ * @return the directory
+ */
+  public File getDirectory() {
+    return directory;
+  }
+/**
+ * Reads the snapshot of an analysis
+ * @param key key from AnalysisCache.createKey()
+ * @return the SeqTraceAnalysis, null if no snapshot is held
+ */
+  public SeqTraceAnalysis get(Object key) {
+    String desc=AnalysisCache.describeKey(key);
+    if( desc == null ) return null;
+    File file=getFile(desc);
+    if( ! file.isFile() ) return null;
+    InputStream in=null;
+    try {
+      in = new BufferedInputStream(new FileInputStream(file));
+      DataInputStream data = new DataInputStream(in);
+      byte[] held = new byte[data.readInt()];
+      data.readFully(held);
+// n.b. a differing key is a file name clash, the snapshot is not ours
+      if( ! desc.equals(new String(held,"UTF-8")) ) return null;
+      SeqTraceAnalysis analysis=AnalysisSnapshot.read(in);
+      CSAMetrics.increment(CSAMetrics.SNAPSHOT_HITS);
+      return analysis;
+    } catch ( IOException e ) {
+      if(log.isWarnEnabled()) log.warn("Cannot read snapshot "+file+": "+e.getMessage());
+      return null;
+    } catch ( RuntimeException e ) {
+      if(log.isWarnEnabled()) log.warn("Cannot read snapshot "+file+": "+e);
+      return null;
+    }
+    finally {
+      close(in);
+    }
+  }
+/**
+ * Writes the snapshot of a completed analysis, replacing any held
+ * @param key key from AnalysisCache.createKey()
+ * @param analysis SeqTraceAnalysis as returned by AutoCSA.doCSAAnalysis()
+ */
+  public void put(Object key, SeqTraceAnalysis analysis) {
+    String desc=AnalysisCache.describeKey(key);
+    if( desc == null || analysis == null ) return;
+    File file=getFile(desc);
+    File tmp=null;
+    OutputStream out=null;
+    try {
+      tmp=File.createTempFile("snapshot",".tmp",directory);
+      out = new BufferedOutputStream(new FileOutputStream(tmp));
+      DataOutputStream data = new DataOutputStream(out);
+      byte[] held=desc.getBytes("UTF-8");
+      data.writeInt(held.length);
+      data.write(held);
+      AnalysisSnapshot.write(analysis,out);
+      out.close();
+      out=null;
+// n.b. renameTo() does not replace an existing file on all platforms
+      if( ! tmp.renameTo(file) && ! ( file.delete() && tmp.renameTo(file) ) ) {
+        throw new IOException("cannot rename "+tmp);
+      }
+      tmp=null;
+    } catch ( IOException e ) {
+      if(log.isWarnEnabled()) log.warn("Cannot write snapshot "+file+": "+e.getMessage());
+    }
+    finally {
+      close(out);
+      if( tmp != null ) tmp.delete();
+    }
+  }
+/**
+ * Overides the toString() object method
+ */
+  public String toString() {
+    return "SnapshotStore: directory="+directory;
+  }
+
+  private File getFile(String desc) {
+    return new File(directory,digest(desc)+EXTENSION);
+  }
+// hex SHA-1 of the key, giving a short fixed length file name
+  private static String digest(String desc) {
+    try {
+      byte[] hash=MessageDigest.getInstance("SHA-1").digest(desc.getBytes("UTF-8"));
+      StringBuffer sb = new StringBuffer(hash.length*2);
+      for( int i=0; i < hash.length; ++i ) {
+        sb.append(Character.forDigit((hash[i] >> 4) & 0xF,16));
+        sb.append(Character.forDigit(hash[i] & 0xF,16));
+      }
+      return sb.toString();
+    } catch ( NoSuchAlgorithmException e ) {
+      return Integer.toHexString(desc.hashCode());
+    } catch ( IOException e ) {
+      return Integer.toHexString(desc.hashCode());
+    }
+  }
+  private static void close(InputStream in) {
+    if( in == null ) return;
+    try {
+      in.close();
+    } catch ( IOException e ) {
+    }
+  }
+  private static void close(OutputStream out) {
+    if( out == null ) return;
+    try {
+      out.close();
+    } catch ( IOException e ) {
+    }
+  }
+
+}
@@ -6,6 +6,7 @@ import java.io.FileNotFoundException;
 import java.io.File;
 import java.util.zip.GZIPInputStream;
 import java.io.FileInputStream;
+import java.nio.ByteBuffer;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -114,6 +115,23 @@ public Trace(Chromatogram chromatogram, String file, int nChans) {
   this.chromatogram = chromatogram;
 }
 
+/**
+ * Generates a trace object over already converted Channels, e.g. as read
+ * back from an analysis snapshot. The trace file is not read.
+ * @param file the trace file name (full pathname)
+ * @param abiType the ABI machine type (e.g. 3730)
+ * @param chans the converted data Channels
+ */
+public Trace(String file, String abiType, Channel[] chans) {
+  this.traceDir=null;
+  this.traceFile=file;
+  this.AbiType=abiType;
+  this.genericFileObj=null;
+  this.nChannels=chans.length;
+  this.channels=chans;
+  this.chanPoints=( chans.length == 0 ) ? 0 : chans[0].getChannelLength();
+}
+
 /**
  * returns the Channel index
  * @param base the base type (one of A,C,G,T)
@@ -177,44 +195,65 @@ public int getGlobalMaxHD(int index1,int index2) {
 public void loadSCFFile (int inputType) throws IOException, UnsupportedChromatogramFormatException, BadTraceException, BadCommentException {
 
 	Chromatogram scfObj=null;
+	AbiTraceData abiData=null;
+	long loadStart=CSAMetrics.start();
 
-	if(useChromatogram()) {
-		scfObj = getChromatogram();
-	}
-	else {
-		File scfFile;
-		// open trace file (if we don't already have file pointer)
-		if( this.genericFileObj != null ) {
-		  scfFile=this.genericFileObj;
-		} else {
-		  scfFile= new File(this.traceFile);
+	try {
+		if(useChromatogram()) {
+			scfObj = getChromatogram();
 		}
+		else {
+			File scfFile;
+			// open trace file (if we don't already have file pointer)
+			if( this.genericFileObj != null ) {
+			  scfFile=this.genericFileObj;
+			} else {
+			  scfFile= new File(this.traceFile);
+			}
 		
-		GZIPInputStream scfGzInput = null;
-		try {
-		  if( inputType == 1 ) {
-		    scfObj = TraceLoader.loadTrace(scfFile);  // use generic trace loader
-		  } else if( inputType == 2 ) {
-		    scfObj = SCF.create(scfFile);
-		  } else {
-		    scfGzInput = new GZIPInputStream( new FileInputStream(scfFile));
-		    long offset = 0;
-		    scfObj = SCF.create(scfGzInput, offset);
-		  }
-		} catch ( UnsupportedChromatogramFormatException e ) {
-		  if(log.isWarnEnabled()) log.warn("Caught UnsupportedChromatogramFormatException: "+e.getMessage());
-		  throw new UnsupportedChromatogramFormatException("UnsupportedChromatogramFormatException from TraceLoader.loadTrace()");
-		} catch ( IOException e ) {
-		  if(log.isWarnEnabled()) log.warn("Caught IOException: "+e.getMessage());
-		  throw new IOException("IOException from TraceLoader.loadTrace()"+e.getMessage());
-		} finally {
-      if(scfGzInput != null) {
-        IOUtils.closeQuietly(scfGzInput);
-        scfGzInput = null;
-      }
+			GZIPInputStream scfGzInput = null;
+			FileInputStream scfInput = null;
+			try {
+			  if( inputType == 1 ) {
+	// n.b. AB1 files are read once here, for both the chromatogram and the
+	// comment tags needed by the later trace conversion
+	// uncompressed AB1 & SCF are read from a memory mapping of the file
+			    ByteBuffer mapped = MappedTraceLoader.map(scfFile);
+			    int magic = MappedTraceLoader.readMagic(mapped);
+			    if( magic == ChromatogramFactory.ABI_MAGIC ) {
+			      abiData = MappedTraceLoader.loadABI(mapped);
+			      scfObj = abiData.getChromatogram();
+			    } else if( magic == ChromatogramFactory.SCF_MAGIC ) {
+			      scfObj = MappedTraceLoader.loadSCF(mapped);
+			    } else {
+			      scfInput = new FileInputStream(scfFile);
+			      scfObj = TraceLoader.loadTrace(scfInput);  // use generic trace loader
+			    }
+			  } else if( inputType == 2 ) {
+			    scfObj = SCF.create(scfFile);
+			  } else {
+			    scfGzInput = new GZIPInputStream( new FileInputStream(scfFile));
+			    long offset = 0;
+			    scfObj = SCF.create(scfGzInput, offset);
+			  }
+			} catch ( UnsupportedChromatogramFormatException e ) {
+			  if(log.isWarnEnabled()) log.warn("Caught UnsupportedChromatogramFormatException: "+e.getMessage());
+			  throw new UnsupportedChromatogramFormatException("UnsupportedChromatogramFormatException from TraceLoader.loadTrace()");
+			} catch ( IOException e ) {
+			  if(log.isWarnEnabled()) log.warn("Caught IOException: "+e.getMessage());
+			  throw new IOException("IOException from TraceLoader.loadTrace()"+e.getMessage());
+			} finally {
+	      IOUtils.closeQuietly(scfInput);
+	      if(scfGzInput != null) {
+	        IOUtils.closeQuietly(scfGzInput);
+	        scfGzInput = null;
+	      }
+			}
 		}
+	} finally {
+// n.b. a failed load is timed too
+		CSAMetrics.stop(CSAMetrics.LOAD,loadStart);
 	}
-	
 	int bits=scfObj.getSignificantBits();
 	//if(log.isInfoEnabled()) log.info("No of Bits: "+bits);
 	chanPoints=scfObj.getTraceLength();
@@ -249,8 +288,8 @@ public void loadSCFFile (int inputType) throws IOException, UnsupportedChromatog
 	  if(log.isWarnEnabled()) log.warn("Caught IllegalSymbolException: "+e.getMessage());
 	  throw new IOException("IllegalSymbolException N.B Should NOT happen");
 	}
-  if(!useChromatogram()) {
-    if( isFileAB1Type() ) chromatogram = convertChromatogram(scfObj.getBaseCalls());
+  if( abiData != null ) {
+    chromatogram = convertChromatogram(scfObj.getBaseCalls(),abiData);
   }
 
 } // End method
@@ -261,10 +300,26 @@ public ABIFChromatogramExtender convertChromatogram(Alignment baseCall) throws I
   ConvertTrace c = new ConvertTrace();
 //if( scfObj != null ) c.setChromatogram(scfObj);
   int ok1=c.setChannels(this.traceFile);
+  return convertChromatogram(c,ok1,baseCall);
+}
+/** method to convert (Mobilities, Baseline etc) the curent Trace Chromatogram
+ * using AB1 data already read from the trace file
+ * @param baseCall the base calls of the trace
+ * @param abiData the AB1 trace data read by loadSCFFile()
+ * @return Returns a ABIFChromatogramExtender object with updated channels
+ */
+public ABIFChromatogramExtender convertChromatogram(Alignment baseCall, AbiTraceData abiData) throws IOException, BadTraceException, BadCommentException {
+  ConvertTrace c = new ConvertTrace();
+  int ok1=c.setChannels(abiData);
+  return convertChromatogram(c,ok1,baseCall);
+}
+private ABIFChromatogramExtender convertChromatogram(ConvertTrace c, int ok1, Alignment baseCall) throws IOException, BadTraceException, BadCommentException {
   if( ok1 == ConvertTrace.ERROR ) throw new BadTraceException("Failure in Trace Correction (setChannels)");
   if( ok1 == ConvertTrace.IOERROR ) throw new IOException("IO Errror in Trace Correction (setChannels)");
   c.printInfo();
+  long convertStart=CSAMetrics.start();
   int ok2=c.processTrace();
+  CSAMetrics.stop(CSAMetrics.CONVERT,convertStart);
   if( ok2 == ConvertTrace.ERROR ) throw new BadTraceException("Failure in Trace Correction (processTrace)");
   if( ok2 == ConvertTrace.IOERROR ) throw new IOException("IO Errror in Trace Correction (processTrace)");
   c.printInfo();
@@ -315,10 +370,6 @@ public boolean isFileAB1Type(String file) throws FileNotFoundException, IOExcept
   }
 }
 
-private boolean isFileAB1Type() throws FileNotFoundException, IOException {
-  return isFileAB1Type(this.traceFile);
-}
-
 /**
  * performs a baselining of a specified Channel
  * @param traceIndex index of Channel to baseline
@@ -350,32 +401,23 @@ public void baseline( int traceIndex, int traceLim1,int traceLim2) {
 int hlen=(baselineWindow-1)/2;
 int np=this.chanPoints;
 int[] data=this.channels[traceIndex].getDataPoints();
-int i,i1,i2;
+int i;
 
+if ( traceLim2 == 0 ) { traceLim2=this.chanPoints-1; }
+// n.b. work arrays are per call, so channels may be baselined concurrently
+// bline & bline1 are zero outside of traceLim1 - traceLim2
 int[] bline=new int[np];
 int[] bline1=new int[np];
-for ( i=0 ; i<np ; ++i ) {
-  bline[i]=0;
-  bline1[i]=0;
-}
-if ( traceLim2 == 0 ) { traceLim2=this.chanPoints-1; }
-for ( i=traceLim1 ; i<=traceLim2 ; ++i ) {
-  i1=Math.max(i-hlen,0);
-  i2=Math.min(i+hlen,this.chanPoints-1);
-  bline[i]=this.channels[traceIndex].getMinIntensity(i1,i2);
-}
-// temporarily set trace data channel to the intermediate baseline bline
-// so we can apply the method getMaxIntensity to this data (bline)
-this.channels[traceIndex].setDataPoints(bline);
-
+SlidingWindowFilter.min(data,np,hlen,traceLim1,traceLim2,bline);
+// n.b. limit values as in Channel.getMinIntensity() & getMaxIntensity()
 for ( i=traceLim1 ; i<=traceLim2 ; ++i ) {
-  i1=Math.max(i-hlen,0);
-  i2=Math.min(i+hlen,this.chanPoints-1);
-  bline1[i]=this.channels[traceIndex].getMaxIntensity(i1,i2);
+  bline[i]=Math.min(bline[i],30000);
 }
+// apply running max to the intermediate baseline bline
+SlidingWindowFilter.max(bline,np,hlen,traceLim1,traceLim2,bline1);
 
 for ( i=0 ; i<np ; ++i ) {
-  data[i]-=bline1[i];
+  data[i]-=Math.max(bline1[i],-30000);
 // set any -ve signal to zero
   if ( data[i] < 0 ) { data[i]=0; }
 }
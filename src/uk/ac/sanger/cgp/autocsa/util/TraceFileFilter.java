@@ -3,9 +3,13 @@ package uk.ac.sanger.cgp.autocsa.util;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.util.Hashtable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class TraceFileFilter implements FilenameFilter {
 
+// n.b. compiled once, matches an MP... or st... name up to its first "Run"
+    private static final Pattern WELL_PATTERN=Pattern.compile("(?:MP|st)(?:(?!Run).)*Run");
 
     private Hashtable filters = null;
 
@@ -31,27 +35,23 @@ public class TraceFileFilter implements FilenameFilter {
 
     public String getWell(String filename) {
        if(filename != null) {
-         String filenameId=filename.substring(0,2);
-         if( filenameId.equals("MP") ) {
-           int indexRun=filename.indexOf("Run");
-           if( indexRun > 0 ) {
+// n.b. the well is the 3 chars ending 1 before the first "Run" of an MP... or st... name
+         Matcher m=WELL_PATTERN.matcher(filename);
+         if( m.lookingAt() ) {
+           int indexRun=m.end()-3;
+           if( indexRun >= 4 ) {
              return filename.substring(indexRun-4,indexRun-1);
            }
          }
-         if( filenameId.equals("st") ) {
-           int index=filename.length();
-           if( index > 0 ) {
-//           String ww=filename.substring(index-11,index-8);
-//           return filename.substring(index-11,index-8);
-           int indexRun=filename.indexOf("Run");
-           if( indexRun > 0 ) {
-             return filename.substring(indexRun-4,indexRun-1);
-           }
-           }
-         }
        }
        return null;
     }
+    /**
+     * Return true if files of the well are accepted
+     */
+    public boolean acceptWell(String well) {
+       return well != null && filters.get(well) != null;
+    }
     public String getWell(File f) {
        if(f != null) {
            String filename = f.getName();
@@ -0,0 +1,179 @@
+package uk.ac.sanger.cgp.autocsa.util;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.biojava.bio.chromatogram.UnsupportedChromatogramFormatException;
+
+import uk.ac.sanger.cgp.autocsa.beans.*;
+import uk.ac.sanger.cgp.autocsa.exceptions.*;
+
+/**
+ *<p> Loads traces on background I/O threads ahead of their analysis.</p>
+ *<p> Traces are requested with {@link #prefetch(TraceDetails)} and
+ * collected with {@link #getTrace(TraceDetails)}, which waits for the load
+ * if it is still running. A trace which was never prefetched is loaded on
+ * the calling thread. Failed loads are retried on the I/O thread as set by
+ * the RetryPolicy, so backoff waits hold up neither the caller nor the
+ * analysis of other traces.</p>
+ *<p> Each prefetched trace is handed out once, as the analysis of a
+ * Trace changes it. TraceDetails are matched by identity.</p>
+ *
+ *@author $Author$
+ *@version $Revision$
+ */
+public class TracePrefetcher {
+
+	protected static Log log = LogFactory.getLog(TracePrefetcher.class.getName());
+
+  private ExecutorService executor;
+  private RetryPolicy policy;
+// n.b. key is TraceDetails (by identity), value is Future of the Trace
+  private final Map pending = new IdentityHashMap();
+
+/**
+ * Allocates a TracePrefetcher with its own I/O threads.
+ * @param threads No of I/O threads (minimum of 1)
+ * @param policy RetryPolicy for loads failing with an IOException
+ */
+  public TracePrefetcher(int threads, RetryPolicy policy) {
+    this.policy=( policy == null ) ? RetryPolicy.NO_RETRY : policy;
+    executor=Executors.newFixedThreadPool(Math.max(1,threads),new LoaderThreadFactory());
+  }
+/**
+ * Gets the policy for retrying trace loads
+ * @return the RetryPolicy
+ */
+  public RetryPolicy getRetryPolicy() {
+    return policy;
+  }
+/**
+ * Starts loading a trace in the background. Does nothing if the trace is
+ * already being loaded or is held in memory (TraceDetails.useChromatogram()).
+ * @param td TraceDetails bean of the trace
+ */
+  public void prefetch(TraceDetails td) {
+    if( td == null || td.useChromatogram() ) return;
+    synchronized(pending) {
+      if( ! executor.isShutdown() && ! pending.containsKey(td) ) {
+        pending.put(td,executor.submit(new LoadTask(td,policy)));
+      }
+    }
+  }
+/**
+ * Starts loading both traces of a comparison in the background.
+ * @param csainput CSAInput bean
+ */
+  public void prefetch(CSAInput csainput) {
+    prefetch(csainput.getWtTraceDetails());
+    prefetch(csainput.getMutTraceDetails());
+  }
+/**
+ * Gets the No of prefetched traces not yet collected
+ * @return No of traces loading or loaded
+ */
+  public int getNumPending() {
+    synchronized(pending) {
+      return pending.size();
+    }
+  }
+/**
+ * Gets a trace, waiting for it if prefetched or else loading it on the
+ * calling thread.
+ * @param td TraceDetails bean of the trace
+ * @return Trace object complete with data Channels loaded
+ * @throws UnsupportedChromatogramFormatException if trace file is wrong type
+ * @throws IOException for any other miscelleaneous exceptions
+ * @throws BadTraceException if the trace cannot be corrected
+ * @throws BadCommentException if the trace comment tags are invalid
+ */
+  public Trace getTrace(TraceDetails td) throws IOException, UnsupportedChromatogramFormatException, BadTraceException, BadCommentException {
+    Future future;
+    synchronized(pending) {
+      future=(Future) pending.remove(td);
+    }
+    if( future == null ) {
+      return CSALoader.getTraceObj(td,policy);
+    }
+    try {
+      return (Trace) future.get();
+    } catch ( InterruptedException e ) {
+      future.cancel(true);
+      throw new IOException("TracePrefetcher.getTrace() (InterruptedException)"+e.getMessage());
+    } catch ( ExecutionException e ) {
+      Throwable cause=e.getCause();
+      if( cause instanceof IOException ) throw (IOException) cause;
+      if( cause instanceof UnsupportedChromatogramFormatException ) throw (UnsupportedChromatogramFormatException) cause;
+      if( cause instanceof BadTraceException ) throw (BadTraceException) cause;
+      if( cause instanceof BadCommentException ) throw (BadCommentException) cause;
+      if( cause instanceof RuntimeException ) throw (RuntimeException) cause;
+      if( cause instanceof Error ) throw (Error) cause;
+      throw new IOException("TracePrefetcher.getTrace() "+cause);
+    }
+  }
+/**
+ * Drops a prefetched trace which is no longer needed, e.g. as its
+ * analysis was found in an AnalysisCache, cancelling its load if it has
+ * not yet started.
+ * @param td TraceDetails bean of the trace
+ */
+  public void discard(TraceDetails td) {
+    Future future;
+    synchronized(pending) {
+      future=(Future) pending.remove(td);
+    }
+    if( future != null ) future.cancel(false);
+  }
+/**
+ * Stops the I/O threads once any loads already started have completed.
+ * Prefetched traces may still be collected, later requests are loaded on
+ * the calling thread.
+ */
+  public void shutdown() {
+    synchronized(pending) {
+      executor.shutdown();
+    }
+  }
+
+/**
+ * Callable loading a single trace
+ */
+  private static class LoadTask implements Callable {
+
+    private TraceDetails td;
+    private RetryPolicy policy;
+
+    LoadTask(TraceDetails td, RetryPolicy policy) {
+      this.td=td;
+      this.policy=policy;
+    }
+
+    public Object call() throws Exception {
+      return CSALoader.getTraceObj(td,policy);
+    }
+  }
+
+/**
+ * Creates named daemon I/O threads so outstanding loads never hold up
+ * JVM exit
+ */
+  private static class LoaderThreadFactory implements ThreadFactory {
+
+    private int count=0;
+
+    public synchronized Thread newThread(Runnable r) {
+      Thread t = new Thread(r,"TracePrefetcher-"+(++count));
+      t.setDaemon(true);
+      return t;
+    }
+  }
+
+}